@@ -0,0 +1,401 @@
+package seongdokim.remotecamera;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the quality, resolution and frame rate of the stream to hold a target latency, from
+ * what the sender measures: the time from capture to acknowledgement, the depth of the queue,
+ * the number of frames dropped and the number of bytes sent.
+ *
+ * <p>The operating points form a ladder of {@link Level}s ordered by decreasing cost. When the
+ * latency exceeds the target, the queue builds up or frames are dropped, the controller steps
+ * down, straight to the highest level the measured throughput can carry. When the latency
+ * stays well below the target for a few intervals, it steps up one level. A level that could
+ * not be held is tried again only after a delay that doubles with every failure, so that the
+ * stream does not keep flapping around the capacity of the link.</p>
+ *
+ * <p>This is a pure policy: {@link #update} is given the counters of the sender and says
+ * whether the level changed. It is called from a single thread.</p>
+ */
+public class AdaptiveController {
+    /**
+     * The default target latency in milliseconds, from capture to acknowledgement
+     */
+    public static final long DEFAULT_TARGET_LATENCY = 200;
+
+    /**
+     * The latency above which, relative to the target, the controller steps down
+     */
+    private static final float HIGH_LATENCY = 1.25f;
+
+    /**
+     * The latency below which, relative to the target, the controller may step up
+     */
+    private static final float LOW_LATENCY = 0.5f;
+
+    /**
+     * The number of queued frames from which the link is taken as congested
+     */
+    private static final int CONGESTED_QUEUE_DEPTH = 2;
+
+    /**
+     * The number of good intervals in a row before stepping up
+     */
+    private static final int STEP_UP_INTERVALS = 3;
+
+    /**
+     * The fraction of the measured throughput a level may use when stepping down
+     */
+    private static final float THROUGHPUT_MARGIN = 0.8f;
+
+    /**
+     * The weight of the last interval in the smoothed measurements
+     */
+    private static final float SMOOTHING = 0.3f;
+
+    /**
+     * The shortest and longest wait before stepping up again after a step down, in
+     * milliseconds
+     */
+    private static final long MIN_STEP_UP_DELAY = 2000;
+    private static final long MAX_STEP_UP_DELAY = 30000;
+
+    /**
+     * One operating point of the stream.
+     */
+    public static final class Level {
+        private final int mQuality;
+        private final float mAreaScale;
+        private final int mFrameRate;
+        private final float mCost;
+
+        /**
+         * Create an operating point.
+         *
+         * @param quality   The JPEG quality from 1 to 100
+         * @param areaScale The number of pixels relative to the full resolution, up to 1
+         * @param frameRate The number of frames per second
+         */
+        public Level(int quality, float areaScale, int frameRate) {
+            if (quality < 1 || quality > 100 || areaScale <= 0 || areaScale > 1
+                    || frameRate <= 0) {
+                throw new IllegalArgumentException("Invalid level: quality " + quality
+                        + ", scale " + areaScale + ", " + frameRate + " fps");
+            }
+            mQuality = quality;
+            mAreaScale = areaScale;
+            mFrameRate = frameRate;
+            mCost = areaScale * frameRate * qualityCost(quality);
+        }
+
+        public int getQuality() {
+            return mQuality;
+        }
+
+        public float getAreaScale() {
+            return mAreaScale;
+        }
+
+        public int getFrameRate() {
+            return mFrameRate;
+        }
+
+        /**
+         * Get the expected bitrate of this level, in arbitrary units.
+         *
+         * @return A value proportional to the bytes per second this level takes
+         */
+        public float getCost() {
+            return mCost;
+        }
+
+        @Override
+        public String toString() {
+            return "Level{q" + mQuality + ", x" + mAreaScale + ", " + mFrameRate + "fps}";
+        }
+    }
+
+    /**
+     * Estimate the size of a JPEG image of the given quality, relative to other qualities.
+     * Image size follows the quantization steps, which libjpeg scales by {@code 5000 / q} below
+     * 50 and {@code 200 - 2q} above, with a floor from the headers and the entropy coding.
+     */
+    static float qualityCost(int quality) {
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        return 1f / (scale / 100f + 0.25f);
+    }
+
+    /**
+     * Build the default ladder: quality first, then resolution, then frame rate.
+     *
+     * @return The levels from the most to the least expensive
+     */
+    public static Level[] defaultLadder() {
+        return new Level[]{
+                new Level(90, 1f, 30),
+                new Level(80, 1f, 30),
+                new Level(70, 1f, 30),
+                new Level(70, 0.5f, 30),
+                new Level(60, 0.5f, 30),
+                new Level(60, 0.25f, 30),
+                new Level(60, 0.25f, 20),
+                new Level(50, 0.25f, 15),
+                new Level(50, 0.25f, 10),
+                new Level(40, 0.25f, 5)
+        };
+    }
+
+    private final Level[] mLadder;
+    private final long mTargetLatencyNanos;
+
+    private int mLevel;
+
+    /**
+     * The counters at the previous update
+     */
+    private boolean mStarted = false;
+    private long mLastTime;
+    private long mLastAcknowledged;
+    private long mLastLatencySum;
+    private long mLastBytes;
+    private long mLastDropped;
+
+    /**
+     * The smoothed latency in nanoseconds and throughput in bytes per second
+     */
+    private float mLatency = -1;
+    private float mThroughput = -1;
+
+    /**
+     * The smoothed number of bytes of a frame per unit of cost per frame, learned from the
+     * frames sent
+     */
+    private float mBytesPerCost = -1;
+
+    /**
+     * Whether the level just changed: the next interval mixes both levels and is not judged
+     */
+    private boolean mSettling = false;
+
+    private int mGoodIntervals = 0;
+    private long mLastStepDownTime;
+    private boolean mLastStepWasUp = false;
+
+    /**
+     * The most expensive level that failed after a step up, -1 if none, and when it may be
+     * tried again
+     */
+    private int mFailedLevel = -1;
+    private long mFailedDelayNanos = 0;
+    private long mFailedUntil;
+
+    private int mChangeCount = 0;
+
+    /**
+     * Create a controller with the default ladder.
+     *
+     * @param targetLatency The latency to hold in milliseconds
+     */
+    public AdaptiveController(long targetLatency) {
+        this(defaultLadder(), 0, targetLatency);
+    }
+
+    /**
+     * Create a controller.
+     *
+     * @param ladder        The levels from the most to the least expensive
+     * @param initialLevel  The index of the level to start at
+     * @param targetLatency The latency to hold in milliseconds
+     */
+    public AdaptiveController(Level[] ladder, int initialLevel, long targetLatency) {
+        if (ladder.length == 0 || initialLevel < 0 || initialLevel >= ladder.length) {
+            throw new IllegalArgumentException("Invalid ladder or initial level");
+        }
+        for (int i = 1; i < ladder.length; i++) {
+            if (ladder[i].getCost() > ladder[i - 1].getCost()) {
+                throw new IllegalArgumentException("Ladder cost increases at level " + i);
+            }
+        }
+        mLadder = ladder.clone();
+        mLevel = initialLevel;
+        mTargetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatency);
+    }
+
+    public Level getLevel() {
+        return mLadder[mLevel];
+    }
+
+    public int getLevelIndex() {
+        return mLevel;
+    }
+
+    public Level[] getLadder() {
+        return mLadder.clone();
+    }
+
+    /**
+     * Get the number of level changes so far.
+     *
+     * @return The number of steps up and down
+     */
+    public int getChangeCount() {
+        return mChangeCount;
+    }
+
+    /**
+     * Get the smoothed latency from capture to acknowledgement.
+     *
+     * @return The latency in nanoseconds, or -1 before the first acknowledgement
+     */
+    public long getLatencyNanos() {
+        return (long) mLatency;
+    }
+
+    /**
+     * Get the smoothed throughput of the sender.
+     *
+     * @return The throughput in bytes per second, or -1 before the first measurement
+     */
+    public long getThroughput() {
+        return (long) mThroughput;
+    }
+
+    /**
+     * Take the counters of the sender into account, typically once a second.
+     *
+     * @param now                The current time in nanoseconds
+     * @param acknowledged       The number of frames acknowledged so far
+     * @param latencySumNanos    The sum of the latencies of those frames, in nanoseconds
+     * @param bytesSent          The number of bytes sent so far
+     * @param queueDepth         The number of frames waiting to be sent now
+     * @param droppedCount       The number of frames dropped so far
+     * @return True if the level changed
+     */
+    public boolean update(long now, long acknowledged, long latencySumNanos, long bytesSent,
+                          int queueDepth, long droppedCount) {
+        if (!mStarted) {
+            mStarted = true;
+            remember(now, acknowledged, latencySumNanos, bytesSent, droppedCount);
+            return false;
+        }
+        long elapsed = now - mLastTime;
+        if (elapsed <= 0) {
+            return false;
+        }
+        if (acknowledged < mLastAcknowledged || bytesSent < mLastBytes
+                || droppedCount < mLastDropped) {
+            // A new connection or encoder started its counters over
+            remember(now, acknowledged, latencySumNanos, bytesSent, droppedCount);
+            return false;
+        }
+        long frames = acknowledged - mLastAcknowledged;
+        long latencySum = latencySumNanos - mLastLatencySum;
+        long bytes = bytesSent - mLastBytes;
+        long dropped = droppedCount - mLastDropped;
+        remember(now, acknowledged, latencySumNanos, bytesSent, droppedCount);
+
+        if (frames == 0 && queueDepth == 0 && dropped == 0) {
+            // Nothing was sent and nothing waits: the camera is idle, nothing to learn
+            return false;
+        }
+
+        mThroughput = smooth(mThroughput, bytes * 1e9f / elapsed);
+        if (frames > 0) {
+            // What a frame of the current level weighs, whatever the link does
+            Level level = mLadder[mLevel];
+            mBytesPerCost = smooth(mBytesPerCost,
+                    (float) bytes / frames / (level.getCost() / level.getFrameRate()));
+        }
+        if (mSettling) {
+            // Frames of the previous level were still queued and sent
+            mSettling = false;
+            return false;
+        }
+        if (frames > 0) {
+            mLatency = smooth(mLatency, (float) latencySum / frames);
+        } else {
+            // Frames wait and none got through: the latency is at least the interval
+            mLatency = smooth(mLatency, elapsed);
+        }
+
+        boolean congested = mLatency > mTargetLatencyNanos * HIGH_LATENCY
+                || dropped > 0 || queueDepth >= CONGESTED_QUEUE_DEPTH;
+        if (congested) {
+            mGoodIntervals = 0;
+            return stepDown(now);
+        }
+
+        if (mLatency < mTargetLatencyNanos * LOW_LATENCY && queueDepth == 0) {
+            mGoodIntervals++;
+            if (mGoodIntervals >= STEP_UP_INTERVALS && mLevel > 0
+                    && now - mLastStepDownTime >= TimeUnit.MILLISECONDS.toNanos(
+                    MIN_STEP_UP_DELAY)
+                    && (mLevel - 1 > mFailedLevel || now >= mFailedUntil)) {
+                return stepUp();
+            }
+        } else {
+            mGoodIntervals = 0;
+        }
+        return false;
+    }
+
+    private boolean stepDown(long now) {
+        mLastStepDownTime = now;
+        if (mLastStepWasUp) {
+            // The last step up was too much for the link: wait longer before trying it again
+            mFailedDelayNanos = Math.min(Math.max(mFailedDelayNanos * 2,
+                    TimeUnit.MILLISECONDS.toNanos(MIN_STEP_UP_DELAY * 2)),
+                    TimeUnit.MILLISECONDS.toNanos(MAX_STEP_UP_DELAY));
+            mFailedLevel = mLevel;
+            mFailedUntil = now + mFailedDelayNanos;
+            mLastStepWasUp = false;
+        }
+        if (mLevel == mLadder.length - 1) {
+            return false;
+        }
+
+        int level = mLevel + 1;
+        if (mBytesPerCost > 0 && mThroughput > 0) {
+            // Go straight to what the link was measured to carry
+            float budget = mThroughput * THROUGHPUT_MARGIN / mBytesPerCost;
+            while (level < mLadder.length - 1 && mLadder[level].getCost() > budget) {
+                level++;
+            }
+        }
+        changeLevel(level);
+        return true;
+    }
+
+    private boolean stepUp() {
+        if (mLevel == mFailedLevel) {
+            // The level that failed held this time: the link got better
+            mFailedLevel = -1;
+            mFailedDelayNanos = 0;
+        }
+        mLastStepWasUp = true;
+        changeLevel(mLevel - 1);
+        return true;
+    }
+
+    private void changeLevel(int level) {
+        mLevel = level;
+        mChangeCount++;
+        mGoodIntervals = 0;
+        mSettling = true;
+        // Measurements of the old level say little about the new one
+        mLatency = -1;
+    }
+
+    private void remember(long now, long acknowledged, long latencySumNanos, long bytesSent,
+                          long droppedCount) {
+        mLastTime = now;
+        mLastAcknowledged = acknowledged;
+        mLastLatencySum = latencySumNanos;
+        mLastBytes = bytesSent;
+        mLastDropped = droppedCount;
+    }
+
+    private static float smooth(float average, float sample) {
+        return average < 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+}
@@ -0,0 +1,182 @@
+package seongdokim.remotecamera;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The addresses of the receivers, resolved once and kept for a while, so that connecting again
+ * after a lost connection does not wait for the name service. A host whose entry expired is
+ * resolved again; if that fails, its last addresses are used rather than failing, since a
+ * receiver seldom changes address while the network is down.
+ *
+ * <p>The addresses of a host are ordered for connecting to them in turn: the first family the
+ * name service answered with first, then alternating with the other family, as
+ * {@link SocketConnector} expects. Instances are thread-safe.</p>
+ */
+public class AddressCache {
+    /**
+     * How long resolved addresses are kept, in milliseconds, unless told otherwise.
+     */
+    public static final long DEFAULT_TTL = 60000;
+
+    /**
+     * Resolves host names, {@link InetAddress#getAllByName} unless replaced.
+     */
+    public interface Resolver {
+        /**
+         * Resolve a host.
+         *
+         * @param host The name or literal address of the host
+         * @return Its addresses, at least one
+         * @throws UnknownHostException If the host cannot be resolved
+         */
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+
+    private static final Resolver SYSTEM_RESOLVER = new Resolver() {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    /**
+     * The addresses of a host, and when they were resolved.
+     */
+    private static class Entry {
+        final List<InetAddress> addresses;
+        final long resolvedTime;
+
+        Entry(List<InetAddress> addresses, long resolvedTime) {
+            this.addresses = addresses;
+            this.resolvedTime = resolvedTime;
+        }
+    }
+
+    private final Resolver mResolver;
+    private final long mTtlNanos;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    /**
+     * Create a cache resolving with the name service of the system, keeping addresses for
+     * {@link #DEFAULT_TTL}.
+     */
+    public AddressCache() {
+        this(SYSTEM_RESOLVER, DEFAULT_TTL);
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param resolver  The resolver of the hosts not cached
+     * @param ttlMillis How long resolved addresses are kept, in milliseconds
+     */
+    public AddressCache(Resolver resolver, long ttlMillis) {
+        mResolver = resolver;
+        mTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Get the addresses of a host, resolving it if it is not cached or its entry expired.
+     *
+     * @param host The name or literal address of the host
+     * @return Its addresses, in the order to try them
+     * @throws UnknownHostException If the host cannot be resolved and was never resolved before
+     */
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+        long now = System.nanoTime();
+        Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(host);
+            if (entry != null && now - entry.resolvedTime < mTtlNanos) {
+                mHits++;
+                return entry.addresses;
+            }
+            mMisses++;
+        }
+
+        // Resolved without holding the lock, which may take seconds
+        List<InetAddress> addresses;
+        try {
+            addresses = interleave(mResolver.resolve(host));
+        } catch (UnknownHostException e) {
+            if (entry != null) {
+                return entry.addresses;
+            }
+            throw e;
+        }
+        synchronized (mEntries) {
+            mEntries.put(host, new Entry(addresses, now));
+        }
+        return addresses;
+    }
+
+    /**
+     * Forget the addresses of a host, once none of them could be reached, so that it is
+     * resolved again next time.
+     *
+     * @param host The host
+     */
+    public void invalidate(String host) {
+        synchronized (mEntries) {
+            mEntries.remove(host);
+        }
+    }
+
+    /**
+     * Get the number of lookups answered from the cache.
+     *
+     * @return The number of hits
+     */
+    public int getHitCount() {
+        synchronized (mEntries) {
+            return mHits;
+        }
+    }
+
+    /**
+     * Get the number of lookups that went to the resolver.
+     *
+     * @return The number of misses
+     */
+    public int getMissCount() {
+        synchronized (mEntries) {
+            return mMisses;
+        }
+    }
+
+    /**
+     * Order addresses alternating between IPv6 and IPv4, starting with the family of the first.
+     */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                ordered.add(first.get(i));
+            }
+            if (i < second.size()) {
+                ordered.add(second.get(i));
+            }
+        }
+        return Collections.unmodifiableList(ordered);
+    }
+}
@@ -16,6 +16,7 @@ import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
@@ -29,11 +30,13 @@ import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
+import android.media.MediaCodec;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.content.ContextCompat;
@@ -46,6 +49,7 @@ import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.widget.Button;
 import android.widget.TextView;
@@ -60,7 +64,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -95,6 +101,11 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
      */
     private static final int REQUEST_CONNECT = 0;
 
+    /**
+     * Request code for the settings
+     */
+    private static final int REQUEST_SETTINGS = 1;
+
     /**
      * Camera state: Showing camera preview.
      */
@@ -130,6 +141,62 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
      */
     private static final int MAX_PREVIEW_HEIGHT = 1080;
 
+    /**
+     * Capture mode: the camera encodes JPEG images itself
+     */
+    public static final int CAPTURE_MODE_JPEG = 0;
+
+    /**
+     * Capture mode: the camera gives YUV_420_888 images, encoded by an {@link EncoderStage}
+     */
+    public static final int CAPTURE_MODE_YUV = 1;
+
+    /**
+     * Capture mode: the camera renders into a hardware video encoder, whose H.264 or HEVC
+     * stream is sent in place of JPEG images. Falls back to {@link #CAPTURE_MODE_JPEG} if the
+     * device has no such encoder.
+     */
+    public static final int CAPTURE_MODE_VIDEO = 2;
+
+    /**
+     * The largest video size in {@link #CAPTURE_MODE_VIDEO}, and the full resolution of the
+     * images when the stream adapts to the network
+     */
+    private static final int VIDEO_MAX_WIDTH = 1280;
+    private static final int VIDEO_MAX_HEIGHT = 720;
+
+    /**
+     * How long to wait for the encoder threads when the camera closes, in milliseconds
+     */
+    private static final long ENCODER_JOIN_TIMEOUT = 1000;
+
+    /**
+     * How often the adaptive controller looks at the connection, in milliseconds
+     */
+    private static final long ADAPTIVE_INTERVAL = 1000;
+
+    /**
+     * How often the stats are sent to the receivers and shown, in milliseconds
+     */
+    private static final long STATS_INTERVAL = 1000;
+
+    /**
+     * The fraction of the frame interval under which an image is skipped, for the jitter of the
+     * camera timestamps
+     */
+    private static final float FRAME_INTERVAL_TOLERANCE = 0.9f;
+
+    /**
+     * The output sizes a receiver may switch between, in pixels relative to the full
+     * resolution, on top of the size the camera opens with
+     */
+    private static final float[] FORMAT_PRESET_SCALES = {1f, 0.5f, 0.25f};
+
+    /**
+     * The size of the overview stream, in pixels relative to the full resolution
+     */
+    private static final float OVERVIEW_AREA_SCALE = 1f / 16;
+
     /**
      * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on a
      * {@link TextureView}.
@@ -166,11 +233,43 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
      */
     private TextView mTextView;
 
+    /**
+     * Shows the stats of the stream over the preview
+     */
+    private TextView mStatsView;
+
+    /**
+     * Whether {@link #mStatsView} is shown
+     */
+    private volatile boolean mStatsOverlay = false;
+
     /**
      * An {@link Button} for a user
      */
     private Button mConnectButton;
 
+    /**
+     * One of the {@code ConnectionThread.TRANSPORT_} constants, applied to the connections
+     */
+    private int mTransport = ConnectionThread.TRANSPORT_STREAM;
+
+    /**
+     * Whether parity packets are sent over the datagram transport
+     */
+    private boolean mForwardErrorCorrection = false;
+
+    /**
+     * Whether the sockets are tuned with {@link TransportProfile#lowLatency} rather than left
+     * to the system
+     */
+    private boolean mLowLatencyProfile = true;
+
+    /**
+     * Whether a lost connection is made again on its own. Unattended cameras must come back
+     * after a network outage, so it is on unless the user turns it off.
+     */
+    private boolean mAutoReconnect = true;
+
     /**
      * An {@link AutoFitTextureView} for camera preview.
      */
@@ -201,6 +300,39 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
      */
     private int mSensorOrientation;
 
+    /**
+     * The clock of the sensor timestamps, a {@code CaptureMetadata.TIMESTAMP_SOURCE_} constant
+     */
+    private int mTimestampSource = CaptureMetadata.TIMESTAMP_SOURCE_UNKNOWN;
+
+    /**
+     * The metadata of the last captures, written by {@link #mCaptureCallback} and looked up by
+     * the image paths with the timestamp of the image.
+     */
+    private final CaptureMetadataTable mCaptureMetadata = new CaptureMetadataTable(32);
+
+    /**
+     * The longest time in milliseconds a JPEG image waits for its capture result, which the
+     * camera may deliver after the image
+     */
+    private static final long METADATA_WAIT = 30;
+
+    /**
+     * A JPEG image whose capture result had not come yet, held on the background thread until
+     * it comes, the next image comes or {@link #METADATA_WAIT} is over; {@code null} if none
+     */
+    private FrameBuffer mMetadataPending;
+
+    /**
+     * Sends {@link #mMetadataPending} without its metadata once it waited long enough.
+     */
+    private final Runnable mFlushPendingFrame = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingFrame();
+        }
+    };
+
     /**
      * An additional thread for running tasks that shouldn't block the UI.
      */
@@ -238,120 +370,981 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
                     break;
             }
         }
-    };
+    };
+
+    /**
+     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     */
+    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+
+    /**
+     * {@link CaptureRequest.Builder} for the camera preview
+     */
+    private CaptureRequest.Builder mPreviewRequestBuilder;
+
+    /**
+     * {@link CaptureRequest} generated by {@link #mPreviewRequestBuilder}
+     */
+    private CaptureRequest mPreviewRequest;
+
+    /**
+     * A {@code ConnectionThread} to control the WiFi connection
+     */
+    private ConnectionThread mConnectionThread = null;
+
+    /**
+     * One of the {@code CAPTURE_MODE_} constants, applied when the camera opens
+     */
+    private int mCaptureMode = CAPTURE_MODE_JPEG;
+
+    /**
+     * The quality of the images encoded in {@link #CAPTURE_MODE_YUV}
+     */
+    private int mEncoderQuality = JpegEncoder.DEFAULT_QUALITY;
+
+    /**
+     * The number of encoder threads in {@link #CAPTURE_MODE_YUV}, one per core by default
+     */
+    private int mEncoderThreads = EncoderStage.defaultThreadCount();
+
+    /**
+     * Whether the encoder threads share each image, coding a stripe each, rather than take
+     * whole images in turn
+     */
+    private boolean mStripedEncoding = false;
+
+    /**
+     * The encoders of the YUV images, while the camera is open in {@link #CAPTURE_MODE_YUV}
+     */
+    private EncoderStage mEncoderStage;
+
+    /**
+     * The codec in {@link #CAPTURE_MODE_VIDEO}, {@link FrameHeader#CODEC_H264} or
+     * {@link FrameHeader#CODEC_HEVC}
+     */
+    private int mVideoCodec = FrameHeader.CODEC_H264;
+
+    /**
+     * The target bitrate in {@link #CAPTURE_MODE_VIDEO}, in bits per second
+     */
+    private int mVideoBitrate = MediaCodecVideoEncoder.DEFAULT_BITRATE;
+
+    /**
+     * The video encoder and the packetizer of its output, while the camera is open in
+     * {@link #CAPTURE_MODE_VIDEO}
+     */
+    private MediaCodecVideoEncoder mVideoEncoder;
+    private VideoPacketizer mVideoPacketizer;
+
+    /**
+     * The JPEG encoders of {@link #mEncoderStage}, whose quality the adaptive controller
+     * changes
+     */
+    private JpegEncoder[] mJpegEncoders;
+
+    /**
+     * Steps the quality, resolution and frame rate to hold a target latency, {@code null} to
+     * stream at the configured settings
+     */
+    private volatile AdaptiveController mAdaptiveController;
+
+    /**
+     * The send statistics of the connection, refreshed on every adaptive tick
+     */
+    private final SendStats mSendStats = new SendStats();
+
+    /**
+     * The latencies and counters of the stream, recorded by the camera side and by every
+     * connection made
+     */
+    private final StreamMetrics mMetrics = new StreamMetrics();
+
+    /**
+     * What {@link #mMetrics} recorded during the last stats interval
+     */
+    private final StreamMetrics.Snapshot mMetricsSnapshot = new StreamMetrics.Snapshot();
+
+    /**
+     * The shortest time in nanoseconds between two images sent, zero to send every image
+     */
+    private volatile long mMinFrameInterval = 0;
+
+    /**
+     * The timestamp of the last image sent
+     */
+    private long mLastImageTimestamp;
+
+    /**
+     * The number of pixels of the output relative to the full resolution
+     */
+    private volatile float mAreaScale = 1f;
+
+    /**
+     * Chooses the format a receiver asks for among the sizes and frame rates of the camera,
+     * and measures the switches
+     */
+    private FormatSwitcher mFormatSwitcher;
+
+    /**
+     * The output size asked for by a receiver, {@code null} for the default one
+     */
+    private volatile Size mRequestedSize;
+
+    /**
+     * The target frame rate range asked for by a receiver, {@code null} for the default one
+     */
+    private Range<Integer> mFrameRateRange;
+
+    /**
+     * The image readers made for the output sizes so far, kept until the camera closes so
+     * that switching back to a size does not build its reader again
+     */
+    private final Map<Size, ImageReader> mReaders = new HashMap<>();
+
+    /**
+     * The output sizes of the image reader format of the open camera, {@code null} in
+     * {@link #CAPTURE_MODE_VIDEO} or while the camera is closed
+     */
+    private volatile Size[] mReaderSizes;
+
+    /**
+     * A second reader configured in the capture session but not targeted by the requests, so
+     * that switching to its size only changes the repeating request. {@code null} if the
+     * format or the device does not allow it.
+     */
+    private ImageReader mStandbyReader;
+
+    /**
+     * Whether the device refused a session with a standby reader
+     */
+    private boolean mStandbyUnsupported = false;
+
+    /**
+     * Whether a downscaled view of the whole field of view is streamed next to the main stream
+     * in {@link #CAPTURE_MODE_YUV}
+     */
+    private boolean mOverviewEnabled = false;
+
+    /**
+     * The reader and the encoder of the overview stream, while the camera is open with it
+     */
+    private ImageReader mOverviewReader;
+    private EncoderStage mOverviewStage;
+
+    /**
+     * The region of the field of view a receiver asked to get in the main stream
+     */
+    private volatile StreamRegion mRegion = StreamRegion.FULL;
+
+    /**
+     * The pixels of the sensor the crop region of the requests is relative to
+     */
+    private Rect mActiveArray;
+
+    /**
+     * The format and the number of images of the readers
+     */
+    private int mReaderFormat;
+    private int mReaderMaxImages;
+
+    /**
+     * The current state of camera state for taking pictures.
+     *
+     * @see #mCaptureCallback
+     */
+    private int mState = STATE_PREVIEW;
+
+    /**
+     * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its state.
+     */
+    private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(@NonNull CameraDevice cameraDevice) {
+            // This method is called when the camera is opened.  We start camera preview here.
+            mCameraOpenCloseLock.release();
+            mCameraDevice = cameraDevice;
+            createCameraPreviewSession();
+        }
+
+        @Override
+        public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+            mCameraOpenCloseLock.release();
+            cameraDevice.close();
+            mCameraDevice = null;
+        }
+
+        @Override
+        public void onError(@NonNull CameraDevice cameraDevice, int error) {
+            mCameraOpenCloseLock.release();
+            cameraDevice.close();
+            mCameraDevice = null;
+            Activity activity = getActivity();
+            if (null != activity) {
+                activity.finish();
+            }
+        }
+    };
+
+    /**
+     * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
+     */
+    private CameraCaptureSession.CaptureCallback mCaptureCallback
+            = new CameraCaptureSession.CaptureCallback() {
+
+        /**
+         * The metadata of the last result, reused to fill {@link #mCaptureMetadata}
+         */
+        private final CaptureMetadata mMetadata = new CaptureMetadata();
+
+        private void process(CaptureResult result) {
+            switch (mState) {
+                case STATE_PREVIEW: {
+                    // We have nothing to do when the camera preview is working normally.
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void onCaptureProgressed(@NonNull CameraCaptureSession session,
+                                        @NonNull CaptureRequest request,
+                                        @NonNull CaptureResult partialResult) {
+            process(partialResult);
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            process(result);
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (timestamp == null) {
+                return;
+            }
+            Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            Float focusDistance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+            Integer focusState = result.get(CaptureResult.CONTROL_AF_STATE);
+            mMetadata.set(result.getFrameNumber(),
+                    exposureTime != null ? exposureTime : 0,
+                    sensitivity != null ? sensitivity : 0,
+                    focusDistance != null ? focusDistance : 0f,
+                    focusState != null ? focusState : CaptureResult.CONTROL_AF_STATE_INACTIVE,
+                    mTimestampSource);
+            mCaptureMetadata.put(timestamp, mMetadata);
+
+            FrameBuffer pending = mMetadataPending;
+            if (pending != null && pending.getTimestamp() == timestamp) {
+                // The image came first, and waited for this result
+                mMetadataPending = null;
+                pending.getMetadata().set(mMetadata);
+                pending.setHasMetadata(true);
+                pushPendingFrame(pending);
+            }
+        }
+
+    };
+
+    /**
+     * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
+     * still image is ready to be sent.
+     */
+    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            FormatSwitcher switcher = mFormatSwitcher;
+            if (switcher != null && switcher.onFrame(System.nanoTime(), image.getWidth(),
+                    image.getHeight())) {
+                Log.i(TAG, "Switched to " + image.getWidth() + "x" + image.getHeight() + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(switcher.getLastSwitchNanos())
+                        + " ms, " + switcher.getLastDroppedFrames() + " frames lost");
+            }
+            long interval = mMinFrameInterval;
+            if (interval > 0 && image.getTimestamp() - mLastImageTimestamp < interval) {
+                // Above the frame rate the network can take
+                image.close();
+                return;
+            }
+            mLastImageTimestamp = image.getTimestamp();
+            if (mConnectionThread != null &&
+                    mConnectionThread.getState() == ConnectionThread.STATE_CONNECTED &&
+                    mConnectionThread.canAcceptImage()) {
+                if (image.getFormat() == ImageFormat.YUV_420_888 && mEncoderStage != null) {
+                    // The stage closes the image once it is encoded
+                    mEncoderStage.submit(mRegion.crop(imageToYuvPlanes(image)), image);
+                    return;
+                }
+                FrameBuffer frame = imageToFrameBuffer(image, mConnectionThread);
+                recordCaptureLatency(frame.getTimestamp());
+                // Images go out in order: the one still waiting for its result goes first
+                flushPendingFrame();
+                if (frame.hasMetadata()) {
+                    mConnectionThread.pushImage(frame);
+                } else {
+                    mMetadataPending = frame;
+                    mBackgroundHandler.postDelayed(mFlushPendingFrame, METADATA_WAIT);
+                }
+            } else if (mConnectionThread != null &&
+                    mConnectionThread.getState() == ConnectionThread.STATE_CONNECTED) {
+                mMetrics.increment(StreamMetrics.COUNTER_FRAMES_DROPPED);
+            }
+            image.close();
+        }
+    };
+
+    /**
+     * Hands the images of the overview stream to {@link #mOverviewStage}.
+     */
+    private final ImageReader.OnImageAvailableListener mOnOverviewAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            EncoderStage stage = mOverviewStage;
+            if (stage != null && mConnectionThread != null &&
+                    mConnectionThread.getState() == ConnectionThread.STATE_CONNECTED &&
+                    mConnectionThread.canAcceptImage()) {
+                stage.submit(imageToYuvPlanes(image), image);
+                return;
+            }
+            image.close();
+        }
+    };
+
+    /**
+     * Receives the images encoded by {@link #mOverviewStage}.
+     */
+    private final EncoderStage.Sink mOverviewImageSink = new EncoderStage.Sink() {
+        @Override
+        public void onFrameEncoded(ByteBuffer data, int width, int height, long timestamp) {
+            pushEncodedImage(data, width, height, timestamp, FrameHeader.STREAM_OVERVIEW);
+        }
+    };
+
+    /**
+     * Receives the images encoded by {@link #mEncoderStage}.
+     */
+    private final EncoderStage.Sink mEncodedImageSink = new EncoderStage.Sink() {
+        @Override
+        public void onFrameEncoded(ByteBuffer data, int width, int height, long timestamp) {
+            pushEncodedImage(data, width, height, timestamp, 0);
+        }
+    };
+
+    /**
+     * Copy an image encoded by an {@link EncoderStage} into a pooled buffer of the connection,
+     * with the metadata of its capture, and push it.
+     *
+     * @param data      The encoded bytes
+     * @param width     The width of the image
+     * @param height    The height of the image
+     * @param timestamp The sensor timestamp of the image
+     * @param flags     The {@link FrameHeader} flags of the image
+     */
+    private void pushEncodedImage(ByteBuffer data, int width, int height, long timestamp,
+                                  int flags) {
+        ConnectionThread connection = mConnectionThread;
+        if (connection == null || connection.getState() != ConnectionThread.STATE_CONNECTED) {
+            return;
+        }
+        FrameBuffer frame = connection.acquireFrameBuffer(data.remaining());
+        frame.getBuffer().put(data.duplicate());
+        frame.getBuffer().flip();
+        frame.setImageInfo(width, height, timestamp).setFlags(flags);
+        frame.setHasMetadata(mCaptureMetadata.get(timestamp, frame.getMetadata()));
+        if (!frame.hasMetadata()) {
+            mMetrics.increment(StreamMetrics.COUNTER_METADATA_MISSES);
+        }
+        recordCaptureLatency(timestamp);
+        connection.pushImage(frame);
+    }
+
+    /**
+     * Send the JPEG image waiting for its capture result without it, if any, on the
+     * background thread.
+     */
+    private void flushPendingFrame() {
+        FrameBuffer pending = mMetadataPending;
+        if (pending == null) {
+            return;
+        }
+        mMetadataPending = null;
+        mMetrics.increment(StreamMetrics.COUNTER_METADATA_MISSES);
+        pushPendingFrame(pending);
+    }
+
+    /**
+     * Push an image that waited for its capture result, or give it back to its pool if the
+     * connection is gone meanwhile.
+     */
+    private void pushPendingFrame(FrameBuffer frame) {
+        Handler handler = mBackgroundHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mFlushPendingFrame);
+        }
+        ConnectionThread connection = mConnectionThread;
+        if (connection != null && connection.getState() == ConnectionThread.STATE_CONNECTED) {
+            connection.pushImage(frame);
+        } else {
+            frame.release();
+        }
+    }
+
+    /**
+     * Record the time from the capture of an image to now, when it enters the send queue, if
+     * the sensor timestamps are on the boot time clock.
+     *
+     * @param timestamp The sensor timestamp of the image
+     */
+    private void recordCaptureLatency(long timestamp) {
+        if (mTimestampSource == CaptureMetadata.TIMESTAMP_SOURCE_REALTIME) {
+            mMetrics.recordLatency(StreamMetrics.LATENCY_CAPTURE,
+                    SystemClock.elapsedRealtimeNanos() - timestamp);
+        }
+    }
+
+    /**
+     * Copy the JPEG bytes of an image into a pooled buffer of the connection.
+     *
+     * @param image      The JPEG image
+     * @param connection The connection providing the buffer
+     * @return The flipped buffer holding the image
+     */
+    public FrameBuffer imageToFrameBuffer(Image image, ConnectionThread connection) {
+        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+        FrameBuffer frame = connection.acquireFrameBuffer(buffer.remaining());
+        frame.getBuffer().put(buffer);
+        frame.getBuffer().flip();
+        frame.setImageInfo(image.getWidth(), image.getHeight(), image.getTimestamp());
+        return frame.setHasMetadata(
+                mCaptureMetadata.get(image.getTimestamp(), frame.getMetadata()));
+    }
+
+    /**
+     * Wrap the planes of a YUV_420_888 image, without copying them.
+     *
+     * @param image The YUV image, which must stay open while the planes are used
+     * @return The planes of the image
+     */
+    public YuvPlanes imageToYuvPlanes(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        return new YuvPlanes()
+                .set(image.getWidth(), image.getHeight(), image.getTimestamp())
+                .setLuma(planes[0].getBuffer(), planes[0].getRowStride())
+                .setChroma(planes[1].getBuffer(), planes[2].getBuffer(),
+                        planes[1].getRowStride(), planes[1].getPixelStride());
+    }
+
+    /**
+     * Choose how images are captured and encoded. Takes effect the next time the camera opens.
+     *
+     * @param mode    One of the {@code CAPTURE_MODE_} constants
+     * @param quality The JPEG quality from 1 to 100 in {@link #CAPTURE_MODE_YUV}
+     * @param threads The number of encoder threads in {@link #CAPTURE_MODE_YUV}
+     */
+    public void setCaptureMode(int mode, int quality, int threads) {
+        if (quality < 1 || quality > 100 || threads < 1) {
+            throw new IllegalArgumentException("Invalid encoder settings: quality " + quality
+                    + ", " + threads + " threads");
+        }
+        mCaptureMode = mode;
+        mEncoderQuality = quality;
+        mEncoderThreads = threads;
+    }
+
+    /**
+     * Choose whether to stream a downscaled view of the whole field of view next to the main
+     * stream, for receivers that asked for a region of it. Only in {@link #CAPTURE_MODE_YUV};
+     * takes effect the next time the camera opens.
+     *
+     * @param enabled True to add the overview stream
+     */
+    public void setOverviewStream(boolean enabled) {
+        mOverviewEnabled = enabled;
+    }
+
+    /**
+     * Choose how the encoder threads of {@link #CAPTURE_MODE_YUV} share the work. Takes effect
+     * the next time the camera opens.
+     *
+     * @param striped True to cut every image into stripes coded at once, which lowers the
+     *                latency of each image; false to encode whole images in parallel, which
+     *                raises the frame rate the encoders sustain
+     */
+    public void setStripedEncoding(boolean striped) {
+        mStripedEncoding = striped;
+    }
+
+    /**
+     * Choose the video codec of {@link #CAPTURE_MODE_VIDEO}. Takes effect the next time the
+     * camera opens.
+     *
+     * @param codec   {@link FrameHeader#CODEC_H264} or {@link FrameHeader#CODEC_HEVC}
+     * @param bitrate The target bitrate in bits per second
+     */
+    public void setVideoCodec(int codec, int bitrate) {
+        if (codec != FrameHeader.CODEC_H264 && codec != FrameHeader.CODEC_HEVC) {
+            throw new IllegalArgumentException("Not a video codec: " + codec);
+        }
+        mVideoCodec = codec;
+        mVideoBitrate = bitrate;
+    }
+
+    /**
+     * Let the quality, resolution and frame rate follow the network, to hold a target latency
+     * from capture to acknowledgement. Resolution steps switch the format the way receiver
+     * requests do; in {@link #CAPTURE_MODE_VIDEO} they reopen the camera, and the bitrate
+     * follows the cost of the level rather than the JPEG quality and frame rate.
+     *
+     * @param targetLatency The latency to hold in milliseconds, or zero to stop adapting
+     */
+    public void setAdaptive(long targetLatency) {
+        if (targetLatency <= 0) {
+            mAdaptiveController = null;
+            mMinFrameInterval = 0;
+            return;
+        }
+        mAdaptiveController = new AdaptiveController(targetLatency);
+        if (mBackgroundHandler != null) {
+            mBackgroundHandler.removeCallbacks(mAdaptiveTick);
+            mBackgroundHandler.postDelayed(mAdaptiveTick, ADAPTIVE_INTERVAL);
+        }
+    }
+
+    /**
+     * Feeds the adaptive controller with the statistics of the connection, on the background
+     * thread.
+     */
+    private final Runnable mAdaptiveTick = new Runnable() {
+        @Override
+        public void run() {
+            AdaptiveController controller = mAdaptiveController;
+            Handler handler = mBackgroundHandler;
+            if (controller == null || handler == null) {
+                return;
+            }
+            ConnectionThread connection = mConnectionThread;
+            if (connection != null &&
+                    connection.getState() == ConnectionThread.STATE_CONNECTED) {
+                connection.getSendStats(mSendStats);
+                EncoderStage stage = mEncoderStage;
+                long dropped = connection.getDroppedImageCount()
+                        + (stage != null ? stage.getDroppedCount() : 0);
+                if (controller.update(System.nanoTime(), mSendStats.getFramesAcknowledged(),
+                        mSendStats.getLatencyNanos(), mSendStats.getBytesSent(),
+                        connection.getQueuedImageCount(), dropped)) {
+                    Log.i(TAG, "Adapting to " + controller.getLevel() + ", latency "
+                            + TimeUnit.NANOSECONDS.toMillis(controller.getLatencyNanos())
+                            + " ms, " + controller.getThroughput() / 1024 + " KiB/s");
+                    applyLevel(controller);
+                }
+            }
+            handler.postDelayed(this, ADAPTIVE_INTERVAL);
+        }
+    };
+
+    /**
+     * Show the stats of the stream over the preview, refreshed every {@link #STATS_INTERVAL}.
+     *
+     * @param enabled Whether to show them
+     */
+    public void setStatsOverlay(boolean enabled) {
+        mStatsOverlay = enabled;
+        if (mStatsView != null) {
+            mStatsView.setVisibility(enabled ? View.VISIBLE : View.GONE);
+        }
+    }
+
+    /**
+     * Sends what {@link #mMetrics} recorded since the last tick to the receivers and shows it
+     * on the overlay, on the background thread.
+     */
+    private final Runnable mStatsTick = new Runnable() {
+        @Override
+        public void run() {
+            Handler handler = mBackgroundHandler;
+            if (handler == null) {
+                return;
+            }
+            mMetrics.snapshot(mMetricsSnapshot, System.nanoTime());
+            ConnectionThread connection = mConnectionThread;
+            if (connection != null &&
+                    connection.getState() == ConnectionThread.STATE_CONNECTED) {
+                connection.sendStats(mMetricsSnapshot.toJson());
+            }
+            Activity activity = getActivity();
+            if (mStatsOverlay && activity != null) {
+                final String text = mMetricsSnapshot.format();
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mStatsView != null) {
+                            mStatsView.setText(text);
+                        }
+                    }
+                });
+            }
+            handler.postDelayed(this, STATS_INTERVAL);
+        }
+    };
+
+    /**
+     * Apply the level of the adaptive controller to the capture, on the background thread.
+     *
+     * @param controller The controller
+     */
+    private void applyLevel(AdaptiveController controller) {
+        AdaptiveController.Level level = controller.getLevel();
+        mMinFrameInterval = (long) (TimeUnit.SECONDS.toNanos(1) * FRAME_INTERVAL_TOLERANCE
+                / level.getFrameRate());
+        if (level.getAreaScale() != mAreaScale) {
+            mAreaScale = level.getAreaScale();
+            // The network decides the size from now on
+            mRequestedSize = null;
+            Size[] sizes = mReaderSizes;
+            if (sizes != null) {
+                // Switched as a receiver request is, through the reader on standby when it
+                // has the size, so the camera stays open and the stream barely stalls
+                Size size = chooseScaledSize(sizes, mAreaScale);
+                switchFormat(new StreamFormat(size.getWidth(), size.getHeight(), 0));
+            } else {
+                // The video encoder is rebuilt with the camera, at the size and bitrate of
+                // the level
+                if (reopenCamera()) {
+                    return;
+                }
+            }
+        }
+
+        if (mVideoEncoder != null) {
+            float top = controller.getLadder()[0].getCost();
+            mVideoEncoder.setBitrate((int) (mVideoBitrate * level.getCost() / top));
+            return;
+        }
+        JpegEncoder[] encoders = mJpegEncoders;
+        if (encoders != null) {
+            for (JpegEncoder encoder : encoders) {
+                encoder.setQuality(level.getQuality());
+            }
+        } else if (mCaptureSession != null && mPreviewRequestBuilder != null) {
+            mPreviewRequestBuilder.set(CaptureRequest.JPEG_QUALITY, (byte) level.getQuality());
+            mPreviewRequest = mPreviewRequestBuilder.build();
+            try {
+                mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
+                        mBackgroundHandler);
+            } catch (CameraAccessException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
     /**
-     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     * Reopen the camera from the UI thread, to rebuild every output at the current settings.
+     *
+     * @return False if the fragment is detached and nothing is done
      */
-    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private boolean reopenCamera() {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return false;
+        }
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mCameraDevice != null && mTextureView.isAvailable()) {
+                    closeCamera();
+                    openCamera(mTextureView.getWidth(), mTextureView.getHeight());
+                }
+            }
+        });
+        return true;
+    }
 
     /**
-     * {@link CaptureRequest.Builder} for the camera preview
+     * Receives the format requests of the receivers on the network thread, and switches on
+     * the background thread.
      */
-    private CaptureRequest.Builder mPreviewRequestBuilder;
+    private final StreamFormat.Listener mFormatRequestListener = new StreamFormat.Listener() {
+        @Override
+        public void onFormatRequested(final StreamFormat format) {
+            Handler handler = mBackgroundHandler;
+            if (handler != null) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        switchFormat(format);
+                    }
+                });
+            }
+        }
+    };
 
     /**
-     * {@link CaptureRequest} generated by {@link #mPreviewRequestBuilder}
+     * Receives the region requests of the receivers on the network thread.
      */
-    private CaptureRequest mPreviewRequest;
+    private final StreamRegion.Listener mRegionRequestListener = new StreamRegion.Listener() {
+        @Override
+        public void onRegionRequested(final StreamRegion region) {
+            mRegion = region;
+            Handler handler = mBackgroundHandler;
+            if (handler != null) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        switchRegion();
+                    }
+                });
+            }
+        }
+    };
 
     /**
-     * A {@code ConnectionThread} to control the WiFi connection
+     * Apply the region a receiver asked for to the capture requests, on the background
+     * thread. YUV images are cropped as they are encoded instead, which leaves the whole field
+     * of view to the overview stream; the camera crops the JPEG images and the video itself.
      */
-    private ConnectionThread mConnectionThread = null;
+    private void switchRegion() {
+        if (!mCameraOpenCloseLock.tryAcquire()) {
+            return;
+        }
+        try {
+            if (mCameraDevice == null || mPreviewRequestBuilder == null
+                    || mEncoderStage != null) {
+                return;
+            }
+            setCropRegion();
+            setRepeatingRequest();
+        } finally {
+            mCameraOpenCloseLock.release();
+        }
+    }
 
     /**
-     * The current state of camera state for taking pictures.
-     *
-     * @see #mCaptureCallback
+     * Set the crop region of the requests from {@link #mRegion}.
      */
-    private int mState = STATE_PREVIEW;
+    private void setCropRegion() {
+        Rect active = mActiveArray;
+        if (active == null) {
+            return;
+        }
+        int[] bounds = mRegion.getBounds(active.width(), active.height());
+        mPreviewRequestBuilder.set(CaptureRequest.SCALER_CROP_REGION,
+                new Rect(active.left + bounds[0], active.top + bounds[1],
+                        active.left + bounds[2], active.top + bounds[3]));
+    }
 
     /**
-     * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its state.
+     * Switch to the size and frame rate a receiver asked for, on the background thread. A new
+     * frame rate range and a size whose reader is on standby only change the repeating
+     * request; another size rebuilds the capture session around a cached reader, and in
+     * {@link #CAPTURE_MODE_VIDEO} reopens the camera.
+     *
+     * @param format The format asked for
      */
-    private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
-        @Override
-        public void onOpened(@NonNull CameraDevice cameraDevice) {
-            // This method is called when the camera is opened.  We start camera preview here.
-            mCameraOpenCloseLock.release();
-            mCameraDevice = cameraDevice;
-            createCameraPreviewSession();
+    private void switchFormat(StreamFormat format) {
+        FormatSwitcher switcher = mFormatSwitcher;
+        if (switcher == null || !mCameraOpenCloseLock.tryAcquire()) {
+            Log.d(TAG, "Camera not ready, ignoring " + format);
+            return;
         }
+        try {
+            if (mCameraDevice == null || mPreviewRequestBuilder == null) {
+                return;
+            }
+            boolean changed = false;
+            if (format.getFrameRate() > 0) {
+                int[] range = switcher.chooseFrameRateRange(format.getFrameRate());
+                if (range != null) {
+                    mFrameRateRange = new Range<>(range[0], range[1]);
+                    mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                            mFrameRateRange);
+                    changed = true;
+                }
+            }
 
-        @Override
-        public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+            Size size = null;
+            if (format.hasSize()) {
+                int[] chosen = switcher.chooseSize(format.getWidth(), format.getHeight());
+                size = new Size(chosen[0], chosen[1]);
+                Size current = mVideoEncoder != null
+                        ? new Size(mVideoEncoder.getWidth(), mVideoEncoder.getHeight())
+                        : new Size(mImageReader.getWidth(), mImageReader.getHeight());
+                if (size.equals(current)) {
+                    size = null;
+                }
+            }
+            if (size == null && !changed) {
+                return;
+            }
+            Log.i(TAG, "Switching to " + (size != null ? size : "the same size") + " at "
+                    + (mFrameRateRange != null ? mFrameRateRange : "the default") + " fps");
+            switcher.beginSwitch(System.nanoTime(), size != null ? size.getWidth() : 0,
+                    size != null ? size.getHeight() : 0);
+            if (size == null) {
+                setRepeatingRequest();
+                return;
+            }
+
+            mRequestedSize = size;
+            if (mVideoEncoder != null) {
+                reopenCamera();
+                return;
+            }
+            ImageReader previous = mImageReader;
+            if (mStandbyReader != null && size.getWidth() == mStandbyReader.getWidth()
+                    && size.getHeight() == mStandbyReader.getHeight()) {
+                // Both readers are in the session: only the target of the requests changes
+                mPreviewRequestBuilder.removeTarget(previous.getSurface());
+                mPreviewRequestBuilder.addTarget(mStandbyReader.getSurface());
+                mImageReader = mStandbyReader;
+                mStandbyReader = previous;
+                setRepeatingRequest();
+                return;
+            }
+
+            if (mCaptureSession != null) {
+                mCaptureSession.close();
+                mCaptureSession = null;
+            }
+            mImageReader = obtainReader(size);
+            mStandbyReader = mReaderFormat == ImageFormat.YUV_420_888 && !mStandbyUnsupported
+                    ? previous : null;
+            createCameraPreviewSession();
+        } finally {
             mCameraOpenCloseLock.release();
-            cameraDevice.close();
-            mCameraDevice = null;
         }
+    }
 
-        @Override
-        public void onError(@NonNull CameraDevice cameraDevice, int error) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
-            mCameraDevice = null;
-            Activity activity = getActivity();
-            if (null != activity) {
-                activity.finish();
-            }
+    /**
+     * Send the current preview request again, after changing it.
+     */
+    private void setRepeatingRequest() {
+        if (mCaptureSession == null) {
+            return;
         }
-    };
+        mPreviewRequest = mPreviewRequestBuilder.build();
+        try {
+            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
+                    mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
 
     /**
-     * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
+     * Get the reader of an output size, made on first use and then kept until the camera
+     * closes.
+     *
+     * @param size The size of the images
+     * @return The reader
      */
-    private CameraCaptureSession.CaptureCallback mCaptureCallback
-            = new CameraCaptureSession.CaptureCallback() {
+    private ImageReader obtainReader(Size size) {
+        ImageReader reader = mReaders.get(size);
+        if (reader == null) {
+            reader = ImageReader.newInstance(size.getWidth(), size.getHeight(), mReaderFormat,
+                    mReaderMaxImages);
+            reader.setOnImageAvailableListener(mOnImageAvailableListener, mBackgroundHandler);
+            mReaders.put(size, reader);
+        }
+        return reader;
+    }
 
-        private void process(CaptureResult result) {
-            switch (mState) {
-                case STATE_PREVIEW: {
-                    // We have nothing to do when the camera preview is working normally.
-                    break;
-                }
+    /**
+     * Enumerate the output sizes a receiver may switch between.
+     *
+     * @param sizes   The sizes the camera offers for the output
+     * @param current The size the camera opens with
+     * @return The distinct preset sizes, {@code {width, height}}
+     */
+    private static int[][] presetSizes(Size[] sizes, Size current) {
+        List<Size> presets = new ArrayList<>();
+        presets.add(current);
+        for (float scale : FORMAT_PRESET_SCALES) {
+            Size size = chooseScaledSize(sizes, scale);
+            if (!presets.contains(size)) {
+                presets.add(size);
             }
         }
-
-        @Override
-        public void onCaptureProgressed(@NonNull CameraCaptureSession session,
-                                        @NonNull CaptureRequest request,
-                                        @NonNull CaptureResult partialResult) {
-            process(partialResult);
+        int[][] result = new int[presets.size()][];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new int[]{presets.get(i).getWidth(), presets.get(i).getHeight()};
         }
+        return result;
+    }
 
-        @Override
-        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-                                       @NonNull CaptureRequest request,
-                                       @NonNull TotalCaptureResult result) {
-            process(result);
+    /**
+     * Get the target frame rate ranges of the camera.
+     *
+     * @param characteristics The characteristics of the camera
+     * @return The ranges, {@code {min, max}}
+     */
+    private static int[][] frameRateRanges(CameraCharacteristics characteristics) {
+        Range<Integer>[] ranges = characteristics.get(
+                CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (ranges == null) {
+            return new int[0][];
         }
+        int[][] result = new int[ranges.length][];
+        for (int i = 0; i < ranges.length; i++) {
+            result[i] = new int[]{ranges[i].getLower(), ranges[i].getUpper()};
+        }
+        return result;
+    }
 
-    };
+    /**
+     * Offer the receivers the sizes and frame rates of the camera just opened.
+     */
+    private void setFormatOptions(int[][] sizes, CameraCharacteristics characteristics) {
+        if (mFormatSwitcher == null) {
+            mFormatSwitcher = new FormatSwitcher(sizes, frameRateRanges(characteristics));
+        } else {
+            mFormatSwitcher.setOptions(sizes, frameRateRanges(characteristics));
+        }
+    }
 
     /**
-     * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
-     * still image is ready to be sent.
+     * Get the format switches measured so far.
+     *
+     * @return The switcher, {@code null} until the camera opens
      */
-    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
-            = new ImageReader.OnImageAvailableListener() {
+    public FormatSwitcher getFormatSwitcher() {
+        return mFormatSwitcher;
+    }
 
-        @Override
-        public void onImageAvailable(ImageReader reader) {
-            Image image = reader.acquireNextImage();
-            if (mConnectionThread != null &&
-                    mConnectionThread.getState() == ConnectionThread.STATE_CONNECTED) {
-                mConnectionThread.pushImage(imageToCompressedByteArray(image), image.getWidth(), image.getHeight());
+    /**
+     * Choose the output size of the adaptive stream: the largest size up to
+     * {@link #VIDEO_MAX_WIDTH}x{@link #VIDEO_MAX_HEIGHT} is the full resolution, and the
+     * largest size with at most {@code areaScale} times its pixels is chosen.
+     *
+     * @param sizes     The sizes the camera offers for the output
+     * @param areaScale The number of pixels relative to the full resolution
+     * @return The size of the output
+     */
+    static Size chooseScaledSize(Size[] sizes, float areaScale) {
+        List<Size> fitting = new ArrayList<>();
+        for (Size option : sizes) {
+            if (option.getWidth() <= VIDEO_MAX_WIDTH && option.getHeight() <= VIDEO_MAX_HEIGHT) {
+                fitting.add(option);
             }
-            image.close();
         }
-    };
-
-    public byte[] imageToCompressedByteArray(Image image) {
-        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-        byte[] bytes = new byte[buffer.remaining()];
-        buffer.get(bytes);
-        return bytes;
+        if (fitting.isEmpty()) {
+            return Collections.min(Arrays.asList(sizes), new CompareSizesByArea());
+        }
+        Size full = Collections.max(fitting, new CompareSizesByArea());
+        // Sizes are not exact halves, leave some room
+        double area = (double) full.getWidth() * full.getHeight() * areaScale * 1.1;
+        List<Size> scaled = new ArrayList<>();
+        for (Size option : fitting) {
+            if ((double) option.getWidth() * option.getHeight() <= area) {
+                scaled.add(option);
+            }
+        }
+        return scaled.isEmpty() ? Collections.min(fitting, new CompareSizesByArea())
+                : Collections.max(scaled, new CompareSizesByArea());
     }
 
     /**
@@ -384,9 +1377,12 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
     public void onViewCreated(final View view, Bundle savedInstanceState) {
         mConnectButton = (Button) view.findViewById(R.id.frag_main_button_connect);
         mTextView = (TextView) view.findViewById(R.id.textview_conn_status);
+        mStatsView = (TextView) view.findViewById(R.id.textview_stats);
+        mStatsView.setVisibility(mStatsOverlay ? View.VISIBLE : View.GONE);
         mTextureView = (AutoFitTextureView) view.findViewById(R.id.texture);
 
         mConnectButton.setOnClickListener(this);
+        view.findViewById(R.id.frag_main_button_settings).setOnClickListener(this);
 
         if (mConnectionThread != null &&
                 mConnectionThread.getState() == ConnectionThread.STATE_CONNECTED) {
@@ -543,9 +1539,18 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
                 mCameraDevice.close();
                 mCameraDevice = null;
             }
-            if (null != mImageReader) {
-                mImageReader.close();
-                mImageReader = null;
+            stopEncoderStage();
+            stopVideoEncoder();
+            for (ImageReader reader : mReaders.values()) {
+                reader.close();
+            }
+            mReaders.clear();
+            mImageReader = null;
+            mStandbyReader = null;
+            mReaderSizes = null;
+            if (mOverviewReader != null) {
+                mOverviewReader.close();
+                mOverviewReader = null;
             }
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
@@ -554,6 +1559,163 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
         }
     }
 
+    /**
+     * Starts the encoder threads of {@link #CAPTURE_MODE_YUV}.
+     */
+    private void startEncoderStage() {
+        AdaptiveController controller = mAdaptiveController;
+        int quality = controller != null ? controller.getLevel().getQuality() : mEncoderQuality;
+        JpegEncoder[] encoders;
+        if (mStripedEncoding) {
+            encoders = new JpegEncoder[]{new StripedJpegEncoder(quality, mEncoderThreads)};
+        } else {
+            encoders = new JpegEncoder[mEncoderThreads];
+            for (int i = 0; i < encoders.length; i++) {
+                encoders[i] = new JpegEncoder(quality);
+            }
+        }
+        mJpegEncoders = encoders;
+        mEncoderStage = new EncoderStage(encoders, mEncodedImageSink);
+        mEncoderStage.setMetrics(mMetrics);
+        mEncoderStage.start();
+        if (mOverviewReader != null) {
+            mOverviewStage = new EncoderStage(new FrameEncoder[]{new JpegEncoder(quality)},
+                    mOverviewImageSink);
+            mOverviewStage.setMetrics(mMetrics);
+            mOverviewStage.start();
+        }
+    }
+
+    /**
+     * Stops the encoder threads, waiting for them to close the images they hold.
+     */
+    private void stopEncoderStage() {
+        if (mEncoderStage == null) {
+            return;
+        }
+        mEncoderStage.shutdown();
+        try {
+            mEncoderStage.join(ENCODER_JOIN_TIMEOUT);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        for (JpegEncoder encoder : mJpegEncoders) {
+            if (encoder instanceof StripedJpegEncoder) {
+                ((StripedJpegEncoder) encoder).shutdown();
+            }
+        }
+        Log.d(TAG, "Encoded " + mEncoderStage.getEncodedCount() + " images in "
+                + TimeUnit.NANOSECONDS.toMicros(mEncoderStage.getMeanEncodeNanos())
+                + " us on average, dropped " + mEncoderStage.getDroppedCount());
+        mEncoderStage = null;
+        mJpegEncoders = null;
+        stopOverviewStage();
+    }
+
+    /**
+     * Stops the encoder thread of the overview stream, waiting for it to close its image.
+     */
+    private void stopOverviewStage() {
+        if (mOverviewStage == null) {
+            return;
+        }
+        mOverviewStage.shutdown();
+        try {
+            mOverviewStage.join(ENCODER_JOIN_TIMEOUT);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mOverviewStage = null;
+    }
+
+    /**
+     * Starts the video encoder of {@link #CAPTURE_MODE_VIDEO} at the largest size the camera
+     * offers up to {@link #VIDEO_MAX_WIDTH}x{@link #VIDEO_MAX_HEIGHT}.
+     *
+     * @param map The output configurations of the camera
+     * @return The size of the video, or {@code null} if the device cannot encode it, in which
+     * case JPEG is used
+     */
+    private Size startVideoEncoder(StreamConfigurationMap map) {
+        List<Size> fitting = new ArrayList<>();
+        Size[] sizes = map.getOutputSizes(MediaCodec.class);
+        for (Size option : sizes) {
+            if (option.getWidth() <= VIDEO_MAX_WIDTH && option.getHeight() <= VIDEO_MAX_HEIGHT) {
+                fitting.add(option);
+            }
+        }
+        Size size = fitting.isEmpty()
+                ? Collections.min(Arrays.asList(sizes), new CompareSizesByArea())
+                : Collections.max(fitting, new CompareSizesByArea());
+        int bitrate = mVideoBitrate;
+        AdaptiveController controller = mAdaptiveController;
+        if (controller != null) {
+            size = chooseScaledSize(sizes, mAreaScale);
+            bitrate = (int) (bitrate * controller.getLevel().getCost()
+                    / controller.getLadder()[0].getCost());
+        }
+        Size requested = mRequestedSize;
+        if (requested != null) {
+            size = requested;
+        }
+
+        MediaCodecVideoEncoder encoder;
+        try {
+            encoder = new MediaCodecVideoEncoder(mVideoCodec, size.getWidth(), size.getHeight(),
+                    bitrate, MediaCodecVideoEncoder.DEFAULT_FRAME_RATE);
+        } catch (IOException e) {
+            Log.e(TAG, "No video encoder, falling back to JPEG", e);
+            return null;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Video encoder not configured, falling back to JPEG", e);
+            return null;
+        }
+
+        VideoPacketizer packetizer = new VideoPacketizer(encoder);
+        try {
+            packetizer.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Video encoder not started, falling back to JPEG", e);
+            encoder.stop();
+            return null;
+        }
+        Log.d(TAG, "Video encoder started at " + size);
+        mVideoEncoder = encoder;
+        mVideoPacketizer = packetizer;
+        attachVideoPacketizer();
+        return size;
+    }
+
+    /**
+     * Stops the video encoder, if any.
+     */
+    private void stopVideoEncoder() {
+        if (mVideoPacketizer == null) {
+            return;
+        }
+        mVideoPacketizer.setSink(null);
+        if (mConnectionThread != null) {
+            mConnectionThread.setKeyframeListener(null);
+        }
+        mVideoPacketizer.stop();
+        Log.d(TAG, "Sent " + mVideoPacketizer.getFrameCount() + " video frames, "
+                + mVideoPacketizer.getKeyframeCount() + " keyframes, "
+                + mVideoPacketizer.getByteCount() / 1024 + " KiB");
+        mVideoPacketizer = null;
+        mVideoEncoder = null;
+    }
+
+    /**
+     * Sends the video frames, if any, to the current connection, which asks for keyframes when
+     * a receiver needs one.
+     */
+    private void attachVideoPacketizer() {
+        if (mVideoPacketizer != null && mConnectionThread != null) {
+            mConnectionThread.setKeyframeListener(mVideoPacketizer);
+            mVideoPacketizer.setSink(mConnectionThread);
+        }
+    }
+
     /**
      * Starts a background thread and its {@link Handler}.
      */
@@ -561,12 +1723,18 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
         mBackgroundThread = new HandlerThread("CameraBackground");
         mBackgroundThread.start();
         mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        if (mAdaptiveController != null) {
+            mBackgroundHandler.postDelayed(mAdaptiveTick, ADAPTIVE_INTERVAL);
+        }
+        mBackgroundHandler.postDelayed(mStatsTick, STATS_INTERVAL);
     }
 
     /**
      * Stops the background thread and its {@link Handler}.
      */
     private void stopBackgroundThread() {
+        // Run before quitting, for an image waiting for its capture result not to leak
+        mBackgroundHandler.post(mFlushPendingFrame);
         mBackgroundThread.quitSafely();
         try {
             mBackgroundThread.join();
@@ -603,20 +1771,73 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
                     continue;
                 }
 
-                // For still image captures, we use the largest available size.
-                Size largest = Collections.min(
-                        Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                        new CompareSizesByArea());
-                mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                        ImageFormat.JPEG, /*maxImages*/2);
-                mImageReader.setOnImageAvailableListener(
-                        mOnImageAvailableListener, mBackgroundHandler);
+                // The camera encodes JPEG images, or gives YUV images to encode here, in which
+                // case every encoder thread may hold one image on top of the pending one.
+                // In video mode, the camera renders into the encoder instead.
+                Size largest = null;
+                if (mCaptureMode == CAPTURE_MODE_VIDEO) {
+                    largest = startVideoEncoder(map);
+                }
+                if (largest == null) {
+                    int format = ImageFormat.JPEG;
+                    int maxImages = 2;
+                    if (mCaptureMode == CAPTURE_MODE_YUV) {
+                        format = ImageFormat.YUV_420_888;
+                        maxImages = (mStripedEncoding ? 1 : mEncoderThreads) + 2;
+                    }
+
+                    // For still image captures, we use the largest available size.
+                    Size[] sizes = map.getOutputSizes(format);
+                    if (mRequestedSize != null) {
+                        largest = mRequestedSize;
+                    } else if (mAdaptiveController != null) {
+                        largest = chooseScaledSize(sizes, mAreaScale);
+                    } else {
+                        largest = Collections.min(Arrays.asList(sizes),
+                                new CompareSizesByArea());
+                    }
+                    mReaderFormat = format;
+                    mReaderMaxImages = maxImages;
+                    mReaderSizes = sizes;
+                    mImageReader = obtainReader(largest);
+                    int[][] presets = presetSizes(sizes, largest);
+                    setFormatOptions(presets, characteristics);
+
+                    // A YUV reader of another size waits in the session, so that a receiver
+                    // switching to it does not stall the stream
+                    if (mCaptureMode == CAPTURE_MODE_YUV && !mStandbyUnsupported
+                            && presets.length > 1) {
+                        mStandbyReader = obtainReader(new Size(presets[1][0], presets[1][1]));
+                    }
+                    if (mCaptureMode == CAPTURE_MODE_YUV && mOverviewEnabled) {
+                        Size overview = chooseScaledSize(sizes, OVERVIEW_AREA_SCALE);
+                        mOverviewReader = ImageReader.newInstance(overview.getWidth(),
+                                overview.getHeight(), ImageFormat.YUV_420_888, 3);
+                        mOverviewReader.setOnImageAvailableListener(
+                                mOnOverviewAvailableListener, mBackgroundHandler);
+                    }
+                    if (mCaptureMode == CAPTURE_MODE_YUV) {
+                        startEncoderStage();
+                    }
+                } else {
+                    setFormatOptions(presetSizes(map.getOutputSizes(MediaCodec.class),
+                            largest), characteristics);
+                }
 
                 // Find out if we need to swap dimension to get the preview size relative to sensor
                 // coordinate.
                 int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
                 //noinspection ConstantConditions
                 mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+                Integer timestampSource = characteristics.get(
+                        CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+                mTimestampSource = timestampSource != null
+                        && timestampSource == CameraCharacteristics
+                        .SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME
+                        ? CaptureMetadata.TIMESTAMP_SOURCE_REALTIME
+                        : CaptureMetadata.TIMESTAMP_SOURCE_UNKNOWN;
+                mActiveArray = characteristics.get(
+                        CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
                 boolean swappedDimensions = false;
                 switch (displayRotation) {
                     case Surface.ROTATION_0:
@@ -738,10 +1959,31 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
             mPreviewRequestBuilder
                     = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             mPreviewRequestBuilder.addTarget(surface);
-            mPreviewRequestBuilder.addTarget(mImageReader.getSurface());
+            Surface output = mVideoEncoder != null
+                    ? mVideoEncoder.getInputSurface() : mImageReader.getSurface();
+            mPreviewRequestBuilder.addTarget(output);
+            if (mOverviewReader != null) {
+                mPreviewRequestBuilder.addTarget(mOverviewReader.getSurface());
+            }
+            if (mEncoderStage == null && !mRegion.isFull()) {
+                setCropRegion();
+            }
+            if (mFrameRateRange != null) {
+                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                        mFrameRateRange);
+            }
+            List<Surface> outputs = new ArrayList<>(Arrays.asList(surface, output));
+            final boolean standby = mStandbyReader != null && mVideoEncoder == null;
+            if (standby) {
+                outputs.add(mStandbyReader.getSurface());
+            }
+            final boolean overview = mOverviewReader != null;
+            if (overview) {
+                outputs.add(mOverviewReader.getSurface());
+            }
 
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
+            mCameraDevice.createCaptureSession(outputs,
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -757,6 +1999,12 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
                                 // Auto focus should be continuous for camera preview.
                                 mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
                                         CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                                AdaptiveController controller = mAdaptiveController;
+                                if (controller != null && mImageReader != null
+                                        && mJpegEncoders == null) {
+                                    mPreviewRequestBuilder.set(CaptureRequest.JPEG_QUALITY,
+                                            (byte) controller.getLevel().getQuality());
+                                }
 
                                 // Finally, we start displaying the camera preview.
                                 mPreviewRequest = mPreviewRequestBuilder.build();
@@ -770,6 +2018,23 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
                         @Override
                         public void onConfigureFailed(
                                 @NonNull CameraCaptureSession cameraCaptureSession) {
+                            if (standby && mCameraDevice != null) {
+                                // The device cannot keep a reader on standby: do without it
+                                Log.w(TAG, "Capture session refused a standby reader");
+                                mStandbyUnsupported = true;
+                                mStandbyReader = null;
+                                createCameraPreviewSession();
+                                return;
+                            }
+                            if (overview && mCameraDevice != null) {
+                                // Too many outputs for the device: stream the main one only
+                                Log.w(TAG, "Capture session refused the overview stream");
+                                stopOverviewStage();
+                                mOverviewReader.close();
+                                mOverviewReader = null;
+                                createCameraPreviewSession();
+                                return;
+                            }
                             showToast("Failed");
                         }
                     }, null
@@ -791,11 +2056,19 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
                 }
                 else {
                     // if connection exists, disconnect the current connection
+                    if (mVideoPacketizer != null) {
+                        mVideoPacketizer.setSink(null);
+                    }
                     mConnectionThread.stop();
                     mConnectionThread = null;
                     mConnectButton.setText(R.string.btn_caption_connect);
                 }
                 break;
+            case R.id.frag_main_button_settings:
+                DialogFragment dialog = SettingsDialog.newInstance(getSettings());
+                dialog.setTargetFragment(this, REQUEST_SETTINGS);
+                dialog.show(getFragmentManager(), "Settings");
+                break;
         }
     }
 
@@ -805,13 +2078,103 @@ public class CameraPreviewFragment extends Fragment implements View.OnClickListe
             case REQUEST_CONNECT:
                 if (resultCode == Activity.RESULT_OK) {
                     mConnectionThread = new ConnectionThread(getActivity(), mMessageHandler);
+                    mConnectionThread.setMetrics(mMetrics);
+                    mConnectionThread.setFormatListener(mFormatRequestListener);
+                    mConnectionThread.setRegionListener(mRegionRequestListener);
+                    applyConnectionSettings(mConnectionThread);
+                    attachVideoPacketizer();
                     mConnectionThread.connect(data.getStringExtra("IPAddress"));
                 } else if (resultCode == Activity.RESULT_CANCELED){
                     // Do nothing by default
                 }
 
                 break;
+            case REQUEST_SETTINGS:
+                if (resultCode == Activity.RESULT_OK) {
+                    applySettings(data);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Get the current settings for {@link SettingsDialog}.
+     *
+     * @return The settings, under the {@code SettingsDialog.EXTRA_} keys
+     */
+    private Bundle getSettings() {
+        Bundle settings = new Bundle();
+        settings.putInt(SettingsDialog.EXTRA_CAPTURE_MODE, mCaptureMode);
+        settings.putInt(SettingsDialog.EXTRA_VIDEO_CODEC, mVideoCodec);
+        settings.putInt(SettingsDialog.EXTRA_TRANSPORT, mTransport);
+        settings.putBoolean(SettingsDialog.EXTRA_ADAPTIVE, mAdaptiveController != null);
+        settings.putBoolean(SettingsDialog.EXTRA_OVERVIEW_STREAM, mOverviewEnabled);
+        settings.putBoolean(SettingsDialog.EXTRA_STRIPED_ENCODING, mStripedEncoding);
+        settings.putBoolean(SettingsDialog.EXTRA_FORWARD_ERROR_CORRECTION,
+                mForwardErrorCorrection);
+        settings.putBoolean(SettingsDialog.EXTRA_LOW_LATENCY, mLowLatencyProfile);
+        settings.putBoolean(SettingsDialog.EXTRA_AUTO_RECONNECT, mAutoReconnect);
+        settings.putBoolean(SettingsDialog.EXTRA_STATS_OVERLAY, mStatsOverlay);
+        return settings;
+    }
+
+    /**
+     * Apply the settings chosen in {@link SettingsDialog}. The camera is reopened if the way
+     * images are captured or encoded changed; the connection settings take effect on the next
+     * connection.
+     *
+     * @param data The result of the dialog
+     */
+    private void applySettings(Intent data) {
+        int captureMode = data.getIntExtra(SettingsDialog.EXTRA_CAPTURE_MODE, mCaptureMode);
+        int videoCodec = data.getIntExtra(SettingsDialog.EXTRA_VIDEO_CODEC, mVideoCodec);
+        boolean overview = data.getBooleanExtra(SettingsDialog.EXTRA_OVERVIEW_STREAM,
+                mOverviewEnabled);
+        boolean striped = data.getBooleanExtra(SettingsDialog.EXTRA_STRIPED_ENCODING,
+                mStripedEncoding);
+        boolean captureChanged = captureMode != mCaptureMode || videoCodec != mVideoCodec
+                || overview != mOverviewEnabled || striped != mStripedEncoding;
+        setCaptureMode(captureMode, mEncoderQuality, mEncoderThreads);
+        setVideoCodec(videoCodec, mVideoBitrate);
+        setOverviewStream(overview);
+        setStripedEncoding(striped);
+
+        boolean adapting = mAdaptiveController != null;
+        boolean adaptive = data.getBooleanExtra(SettingsDialog.EXTRA_ADAPTIVE, adapting);
+        if (adaptive != adapting) {
+            setAdaptive(adaptive ? AdaptiveController.DEFAULT_TARGET_LATENCY : 0);
         }
+        setStatsOverlay(data.getBooleanExtra(SettingsDialog.EXTRA_STATS_OVERLAY,
+                mStatsOverlay));
+
+        mTransport = data.getIntExtra(SettingsDialog.EXTRA_TRANSPORT, mTransport);
+        mForwardErrorCorrection = data.getBooleanExtra(
+                SettingsDialog.EXTRA_FORWARD_ERROR_CORRECTION, mForwardErrorCorrection);
+        mLowLatencyProfile = data.getBooleanExtra(SettingsDialog.EXTRA_LOW_LATENCY,
+                mLowLatencyProfile);
+        mAutoReconnect = data.getBooleanExtra(SettingsDialog.EXTRA_AUTO_RECONNECT,
+                mAutoReconnect);
+        if (mConnectionThread != null) {
+            applyConnectionSettings(mConnectionThread);
+        }
+
+        if (captureChanged) {
+            reopenCamera();
+        }
+    }
+
+    /**
+     * Set up a connection with the current settings.
+     *
+     * @param connection The connection
+     */
+    private void applyConnectionSettings(ConnectionThread connection) {
+        connection.setTransport(mTransport);
+        connection.setForwardErrorCorrection(mForwardErrorCorrection);
+        connection.setTransportProfile(mLowLatencyProfile
+                ? TransportProfile.lowLatency(TransportProfile.TYPICAL_FRAME_SIZE)
+                : TransportProfile.systemDefault());
+        connection.setAutoReconnect(mAutoReconnect);
     }
 
     /**
@@ -0,0 +1,179 @@
+package seongdokim.remotecamera;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * What the camera reported about the capture of a frame, sent to the receivers of version 3
+ * and later in front of the payload when {@link FrameHeader#FLAG_METADATA} is set. The
+ * timestamp of the header is the sensor timestamp the metadata was matched with.
+ *
+ * <pre>
+ * offset  size  field
+ *      0     8  frame number of the capture
+ *      8     8  exposure time in nanoseconds
+ *     16     4  sensitivity, ISO
+ *     20     4  focus distance in diopters, a float
+ *     24     1  auto-focus state, as in CaptureResult.CONTROL_AF_STATE
+ *     25     1  timestamp source, one of the {@code TIMESTAMP_SOURCE_} constants
+ *     26     2  reserved, zero
+ *     28     4  time in microseconds the frame waited in the sender, from encoded to sent
+ * </pre>
+ *
+ * All fields are written in network byte order. An instance is mutable so that the metadata of
+ * every frame is carried without allocation.
+ */
+public class CaptureMetadata {
+    /**
+     * The number of bytes of encoded metadata.
+     */
+    public static final int LENGTH = 32;
+
+    /**
+     * Timestamp source: the sensor clock, only comparable with other frames of the camera.
+     */
+    public static final int TIMESTAMP_SOURCE_UNKNOWN = 0;
+
+    /**
+     * Timestamp source: the boot time clock of the sender, {@code elapsedRealtimeNanos()}.
+     */
+    public static final int TIMESTAMP_SOURCE_REALTIME = 1;
+
+    private long mFrameNumber;
+    private long mExposureTime;
+    private int mSensitivity;
+    private float mFocusDistance;
+    private int mFocusState;
+    private int mTimestampSource;
+    private int mSendDelayMicros;
+
+    /**
+     * Set the values reported by the camera.
+     *
+     * @param frameNumber     The frame number of the capture
+     * @param exposureTime    The exposure time in nanoseconds
+     * @param sensitivity     The sensitivity, ISO
+     * @param focusDistance   The focus distance in diopters
+     * @param focusState      The auto-focus state
+     * @param timestampSource The clock of the timestamps, a {@code TIMESTAMP_SOURCE_} constant
+     * @return This metadata
+     */
+    public CaptureMetadata set(long frameNumber, long exposureTime, int sensitivity,
+                               float focusDistance, int focusState, int timestampSource) {
+        mFrameNumber = frameNumber;
+        mExposureTime = exposureTime;
+        mSensitivity = sensitivity;
+        mFocusDistance = focusDistance;
+        mFocusState = focusState;
+        mTimestampSource = timestampSource;
+        mSendDelayMicros = 0;
+        return this;
+    }
+
+    /**
+     * Copy the values of other metadata.
+     *
+     * @param other The metadata to copy
+     * @return This metadata
+     */
+    public CaptureMetadata set(CaptureMetadata other) {
+        set(other.mFrameNumber, other.mExposureTime, other.mSensitivity, other.mFocusDistance,
+                other.mFocusState, other.mTimestampSource);
+        mSendDelayMicros = other.mSendDelayMicros;
+        return this;
+    }
+
+    /**
+     * Set how long the frame waited in the sender, written just before it is sent.
+     *
+     * @param nanos The time from encoded to sent in nanoseconds
+     */
+    public void setSendDelay(long nanos) {
+        mSendDelayMicros = (int) Math.min(Integer.MAX_VALUE, Math.max(0, nanos / 1000));
+    }
+
+    /**
+     * Write the metadata at the current position of {@code dst}, advancing the position by
+     * {@link #LENGTH}.
+     *
+     * @param dst The buffer to write to
+     * @throws BufferOverflowException If fewer than {@link #LENGTH} bytes remain
+     */
+    public void encode(ByteBuffer dst) {
+        if (dst.remaining() < LENGTH) {
+            throw new BufferOverflowException();
+        }
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        dst.putLong(mFrameNumber);
+        dst.putLong(mExposureTime);
+        dst.putInt(mSensitivity);
+        dst.putFloat(mFocusDistance);
+        dst.put((byte) mFocusState);
+        dst.put((byte) mTimestampSource);
+        dst.putShort((short) 0);
+        dst.putInt(mSendDelayMicros);
+        dst.order(order);
+    }
+
+    /**
+     * Read metadata from the current position of {@code src}, advancing the position by
+     * {@link #LENGTH}.
+     *
+     * @param src The buffer to read from
+     * @throws BufferUnderflowException If fewer than {@link #LENGTH} bytes remain
+     */
+    public void decode(ByteBuffer src) {
+        if (src.remaining() < LENGTH) {
+            throw new BufferUnderflowException();
+        }
+        ByteOrder order = src.order();
+        src.order(ByteOrder.BIG_ENDIAN);
+        mFrameNumber = src.getLong();
+        mExposureTime = src.getLong();
+        mSensitivity = src.getInt();
+        mFocusDistance = src.getFloat();
+        mFocusState = src.get() & 0xFF;
+        mTimestampSource = src.get() & 0xFF;
+        src.getShort();
+        mSendDelayMicros = src.getInt();
+        src.order(order);
+    }
+
+    public long getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    public long getExposureTime() {
+        return mExposureTime;
+    }
+
+    public int getSensitivity() {
+        return mSensitivity;
+    }
+
+    public float getFocusDistance() {
+        return mFocusDistance;
+    }
+
+    public int getFocusState() {
+        return mFocusState;
+    }
+
+    public int getTimestampSource() {
+        return mTimestampSource;
+    }
+
+    public int getSendDelayMicros() {
+        return mSendDelayMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureMetadata{#" + mFrameNumber + ", " + mExposureTime + " ns, ISO "
+                + mSensitivity + ", " + mFocusDistance + " D, af=" + mFocusState
+                + ", source=" + mTimestampSource + ", delay=" + mSendDelayMicros + " us}";
+    }
+}
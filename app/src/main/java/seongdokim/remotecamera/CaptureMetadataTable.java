@@ -0,0 +1,105 @@
+package seongdokim.remotecamera;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The metadata of the last few captures, looked up by sensor timestamp to match the capture
+ * results of the camera with the images, which come through another path and in no particular
+ * order relative to them.
+ *
+ * <p>The table is a ring of fixed size overwritten by the newest captures, so it never grows
+ * and never allocates. It is written by a single thread, the capture callback thread, and read
+ * by any thread without locking: each slot carries a sequence number, odd while the slot is
+ * written, and a reader that sees it change discards what it read.</p>
+ */
+public class CaptureMetadataTable {
+    private static final int SLOT_SIZE = 8;
+    private static final int SEQUENCE = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int FRAME_NUMBER = 2;
+    private static final int EXPOSURE_TIME = 3;
+    private static final int SENSITIVITY = 4;
+    private static final int FOCUS_DISTANCE = 5;
+    private static final int STATES = 6;
+
+    private final AtomicLongArray mSlots;
+    private final int mMask;
+
+    /**
+     * The number of captures put so far, written by the writer only
+     */
+    private volatile long mCount = 0;
+
+    /**
+     * Create a table.
+     *
+     * @param capacity The number of captures kept, a power of two
+     */
+    public CaptureMetadataTable(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mSlots = new AtomicLongArray(capacity * SLOT_SIZE);
+        mMask = capacity - 1;
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Add the metadata of a capture, replacing the oldest one. Must be called from a single
+     * thread.
+     *
+     * @param timestamp The sensor timestamp of the capture
+     * @param metadata  The metadata, copied
+     */
+    public void put(long timestamp, CaptureMetadata metadata) {
+        long count = mCount;
+        int base = (int) (count & mMask) * SLOT_SIZE;
+        long sequence = mSlots.get(base + SEQUENCE);
+        mSlots.set(base + SEQUENCE, sequence + 1);
+        mSlots.set(base + TIMESTAMP, timestamp);
+        mSlots.set(base + FRAME_NUMBER, metadata.getFrameNumber());
+        mSlots.set(base + EXPOSURE_TIME, metadata.getExposureTime());
+        mSlots.set(base + SENSITIVITY, metadata.getSensitivity());
+        mSlots.set(base + FOCUS_DISTANCE, Float.floatToIntBits(metadata.getFocusDistance()));
+        mSlots.set(base + STATES, (metadata.getFocusState() & 0xFF)
+                | (metadata.getTimestampSource() & 0xFF) << 8);
+        mSlots.set(base + SEQUENCE, sequence + 2);
+        mCount = count + 1;
+    }
+
+    /**
+     * Find the metadata of a capture, from the newest capture back.
+     *
+     * @param timestamp The sensor timestamp of the capture
+     * @param out       Where to copy the metadata
+     * @return False if the capture is not in the table, or no longer
+     */
+    public boolean get(long timestamp, CaptureMetadata out) {
+        long count = mCount;
+        long oldest = Math.max(0, count - mMask - 1);
+        for (long i = count - 1; i >= oldest; i--) {
+            int base = (int) (i & mMask) * SLOT_SIZE;
+            long sequence = mSlots.get(base + SEQUENCE);
+            if ((sequence & 1) != 0 || mSlots.get(base + TIMESTAMP) != timestamp) {
+                continue;
+            }
+            long frameNumber = mSlots.get(base + FRAME_NUMBER);
+            long exposureTime = mSlots.get(base + EXPOSURE_TIME);
+            long sensitivity = mSlots.get(base + SENSITIVITY);
+            long focusDistance = mSlots.get(base + FOCUS_DISTANCE);
+            long states = mSlots.get(base + STATES);
+            if (mSlots.get(base + SEQUENCE) != sequence) {
+                // Overwritten by a newer capture while reading: this one is gone
+                return false;
+            }
+            out.set(frameNumber, exposureTime, (int) sensitivity,
+                    Float.intBitsToFloat((int) focusDistance), (int) (states & 0xFF),
+                    (int) (states >> 8 & 0xFF));
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,115 @@
+package seongdokim.remotecamera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A {@link FrameTransport} over a non-blocking {@link SocketChannel}. A header and its payload
+ * go out in a single gathering write, and a payload held in a direct buffer is handed to the
+ * kernel without the copy into a temporary buffer that a stream write of a heap array costs.
+ * Reads that find nothing to read return at once instead of asking the socket for the number of
+ * available bytes first.
+ *
+ * <p>The channel is switched to non-blocking mode; a private {@link Selector} is used to wait
+ * when the socket buffer is full or a blocking read finds nothing.</p>
+ */
+public class ChannelTransport implements FrameTransport {
+    private final SocketChannel mChannel;
+    private final Selector mSelector;
+    private final SelectionKey mKey;
+
+    /**
+     * The header and payload of the message being written, reused for every message.
+     */
+    private final ByteBuffer[] mVectors = new ByteBuffer[2];
+
+    /**
+     * Take over a connected channel.
+     *
+     * @param channel The connected channel
+     * @throws IOException If the channel cannot be made non-blocking
+     */
+    public ChannelTransport(SocketChannel channel) throws IOException {
+        mChannel = channel;
+        mChannel.configureBlocking(false);
+        mSelector = Selector.open();
+        mKey = mChannel.register(mSelector, 0);
+    }
+
+    @Override
+    public void write(ByteBuffer header, ByteBuffer payload) throws IOException {
+        if (header == null && payload == null) {
+            return;
+        }
+
+        int position = payload != null ? payload.position() : 0;
+        try {
+            if (header == null || payload == null) {
+                ByteBuffer buffer = header != null ? header : payload;
+                while (buffer.hasRemaining()) {
+                    if (mChannel.write(buffer) == 0) {
+                        await(SelectionKey.OP_WRITE);
+                    }
+                }
+                return;
+            }
+
+            mVectors[0] = header;
+            mVectors[1] = payload;
+            while (header.hasRemaining() || payload.hasRemaining()) {
+                if (mChannel.write(mVectors) == 0) {
+                    await(SelectionKey.OP_WRITE);
+                }
+            }
+        } finally {
+            mVectors[0] = null;
+            mVectors[1] = null;
+            if (payload != null) {
+                payload.position(position);
+            }
+        }
+    }
+
+    @Override
+    public int read(FrameDecoder decoder, boolean block) throws IOException {
+        int bytes = decoder.read(mChannel);
+        while (bytes == 0 && block) {
+            await(SelectionKey.OP_READ);
+            bytes = decoder.read(mChannel);
+        }
+        return bytes;
+    }
+
+    /**
+     * Wait until the channel is ready for {@code ops}.
+     */
+    private void await(int ops) throws IOException {
+        try {
+            mKey.interestOps(ops);
+            mSelector.select();
+            mSelector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new ClosedChannelException();
+        } catch (CancelledKeyException e) {
+            throw new ClosedChannelException();
+        }
+        if (!mChannel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mChannel.close();
+        } finally {
+            mSelector.close();
+        }
+    }
+}
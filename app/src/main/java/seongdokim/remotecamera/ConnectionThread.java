@@ -2,6 +2,7 @@ package seongdokim.remotecamera;
 
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
@@ -11,30 +12,39 @@ import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
-import java.util.concurrent.Semaphore;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Seongdo Kim
  */
-public class ConnectionThread {
+public class ConnectionThread implements VideoPacketizer.Sink {
     /**
      * Tag for the {@link Log}.
      */
     private static final String TAG = "Camera2BasicFragment";
 
     // Constants that indicate the current connection state
-    public static final int STATE_NONE = 0;       // we're doing nothing
-    public static final int STATE_CONNECTING = 1; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 2;  // now connected to a remote device
+    public static final int STATE_NONE = Constants.STATE_NONE;
+    public static final int STATE_CONNECTING = Constants.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = Constants.STATE_CONNECTED;
+
+    // Constants that indicate how bytes are sent to the receiver
+    public static final int TRANSPORT_STREAM = 0;  // blocking socket streams
+    public static final int TRANSPORT_CHANNEL = 1; // NIO channel with gathering writes
+    public static final int TRANSPORT_SELECTOR = 2; // one selector thread for every connection
+    public static final int TRANSPORT_DATAGRAM = 3; // fragmented UDP, late frames dropped
 
     /**
      * Predefined buffer size to send/receive default network message
@@ -71,6 +81,110 @@ public class ConnectionThread {
      */
     private int mTimeout = 3000;
 
+    /**
+     * The options of the sockets to the receivers, applied to the connections made from then on.
+     */
+    private volatile TransportProfile mProfile = TransportProfile.lowLatency(
+            TransportProfile.TYPICAL_FRAME_SIZE);
+
+    /**
+     * The resolved addresses of the receivers, kept across connections so that connecting again
+     * does not wait for the name service.
+     */
+    private final AddressCache mAddressCache = new AddressCache();
+
+    /**
+     * When the current connection attempt started, in {@link System#nanoTime()}, until its first
+     * frame is sent; 0 otherwise.
+     */
+    private volatile long mConnectStartTime = 0;
+
+    /**
+     * The maximum number of frames to send before waiting for an acknowledgement. A window of
+     * one keeps the lockstep protocol of header, acknowledgement, image and acknowledgement.
+     */
+    private int mStreamingWindow = Constants.DEFAULT_STREAMING_WINDOW;
+
+    /**
+     * The time in milliseconds without a new image after which a keep-alive message is sent to
+     * the receiver. Zero disables keep-alive messages.
+     */
+    private long mIdleTimeout = Constants.DEFAULT_IDLE_TIMEOUT;
+
+    /**
+     * How bytes are sent to the receiver, one of the {@code TRANSPORT_} constants.
+     */
+    private int mTransport = TRANSPORT_STREAM;
+
+    /**
+     * Whether the datagram transport sends parity packets, as many as the loss rate calls for.
+     */
+    private boolean mForwardErrorCorrection = false;
+
+    /**
+     * Whether to connect again, after a delay, when the connection is lost or cannot be made.
+     */
+    private boolean mAutoReconnect = false;
+
+    /**
+     * The delays between the attempts to connect again.
+     */
+    private final ReconnectBackoff mBackoff = new ReconnectBackoff();
+
+    /**
+     * Whether the connection was stopped on purpose, so that it is not made again.
+     */
+    private boolean mStopped = false;
+
+    /**
+     * Whether an attempt to connect again is posted to the handler.
+     */
+    private boolean mReconnectPending = false;
+
+    /**
+     * Connects again once the delay of the backoff is over.
+     */
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            reconnect();
+        }
+    };
+
+    /**
+     * The name of the stream, the same on every connection made again for it, so that the
+     * receiver can tell it carries on.
+     */
+    private String mSession;
+
+    /**
+     * The sequence number the next connection of the stream starts from.
+     */
+    private volatile int mNextSequence = 0;
+
+    /**
+     * When the connection was lost, in {@link System#nanoTime()} units, or 0 unless connecting
+     * again.
+     */
+    private volatile long mLostTime = 0;
+
+    /**
+     * The longest time in milliseconds the network thread waits for an image before checking
+     * for other requests, such as a disconnection.
+     */
+    private static final long IMAGE_WAIT_INTERVAL = 1000;
+
+    /**
+     * The interval in milliseconds between two reports of the CPU usage of the network thread.
+     */
+    private static final long CPU_REPORT_INTERVAL = 5000;
+
+    /**
+     * The fraction of the wall time the network thread spent on the CPU during the last report
+     * interval.
+     */
+    private volatile float mNetworkCpuUsage = 0;
+
     /**
      * A {@link Socket} connecting an application with the IP {@code mIPAddress} and the Port
      * {@code mPort}
@@ -88,35 +202,176 @@ public class ConnectionThread {
     private ConnectedThread mConnectedThread;
 
     /**
-     * Image queue
+     * The maximum number of images waiting to be sent. Older images are dropped beyond it.
      */
-    private LinkedList<ImageData> mImageQueue = new LinkedList<ImageData>();
+    private static final int IMAGE_QUEUE_CAPACITY = 4;
 
     /**
-     * Mutex for the image queue to synchronize the access to the queue.
+     * Image queue, filled by the camera thread and drained by the {@link ConnectedThread}.
      */
-    private Semaphore mImageQueueLock = new Semaphore(1);
+    private final FrameRing<FrameBuffer> mImageQueue;
 
     /**
-     * Constructor. Prepares a new BluetoothChat session.
+     * The number of free image buffers kept per size class: enough for a full queue, the image
+     * being sent and the image being captured.
+     */
+    private static final int FRAME_POOL_SIZE = IMAGE_QUEUE_CAPACITY + 2;
+
+    /**
+     * The pool of image buffers, tracking leaks in debug builds. Buffers are direct when the
+     * channel transport is used, so that they reach the socket without another copy.
+     */
+    private volatile FrameBufferPool mFramePool = new FrameBufferPool(FRAME_POOL_SIZE,
+            BuildConfig.DEBUG);
+
+    /**
+     * The engine running {@link #mFanout}, started on the first connection with
+     * {@link #TRANSPORT_SELECTOR}.
+     */
+    private volatile TransportEngine mEngine;
+
+    /**
+     * The receivers with {@link #TRANSPORT_SELECTOR}, in place of the ConnectThread and the
+     * ConnectedThread. Images are shared between them, each with its own queue.
+     */
+    private volatile FrameFanout mFanout;
+
+    /**
+     * The number of receivers of {@link #mFanout} lost and waiting to be connected again.
+     */
+    private int mReconnectingReceivers = 0;
+
+    /**
+     * Whom the receivers ask for a keyframe when they wait for one, {@code null} unless video
+     * is streamed.
+     */
+    private volatile KeyframeGate.Listener mKeyframeListener;
+
+    /**
+     * Passes the keyframe requests of the receivers on to {@link #mKeyframeListener}.
+     */
+    private final KeyframeGate.Listener mKeyframeForwarder = new KeyframeGate.Listener() {
+        @Override
+        public void onKeyframeNeeded() {
+            KeyframeGate.Listener listener = mKeyframeListener;
+            if (listener != null) {
+                listener.onKeyframeNeeded();
+            }
+        }
+    };
+
+    /**
+     * Whom to tell when a receiver asks for another size or frame rate, {@code null} to
+     * ignore such requests.
+     */
+    private volatile StreamFormat.Listener mFormatListener;
+
+    /**
+     * Passes the format requests of the receivers on to {@link #mFormatListener}.
+     */
+    private final StreamFormat.Listener mFormatForwarder = new StreamFormat.Listener() {
+        @Override
+        public void onFormatRequested(StreamFormat format) {
+            Log.i(TAG, "Receiver asks for " + format);
+            StreamFormat.Listener listener = mFormatListener;
+            if (listener != null) {
+                listener.onFormatRequested(format);
+            }
+        }
+    };
+
+    /**
+     * Whom to tell when a receiver asks for a region of the field of view, {@code null} to
+     * ignore such requests.
+     */
+    private volatile StreamRegion.Listener mRegionListener;
+
+    /**
+     * Passes the region requests of the receivers on to {@link #mRegionListener}.
+     */
+    private final StreamRegion.Listener mRegionForwarder = new StreamRegion.Listener() {
+        @Override
+        public void onRegionRequested(StreamRegion region) {
+            Log.i(TAG, "Receiver asks for " + region);
+            StreamRegion.Listener listener = mRegionListener;
+            if (listener != null) {
+                listener.onRegionRequested(region);
+            }
+        }
+    };
+
+    /**
+     * What the connected thread gets through, over all its connections.
+     */
+    private final SendStats mSendStats = new SendStats();
+
+    /**
+     * The latencies and counters of the stream, over all its connections.
+     */
+    private volatile StreamMetrics mMetrics = new StreamMetrics();
+
+    /**
+     * The stats waiting for the connected thread to send them, or {@code null}.
+     */
+    private volatile byte[] mPendingStats;
+
+    /**
+     * The age in milliseconds beyond which an image buffer not released is reported as leaked.
+     */
+    private static final long FRAME_LEAK_AGE = 10000;
+
+    /**
+     * Constructor. Prepares a new BluetoothChat session that drops the oldest waiting image
+     * when the network falls behind.
      *
      * @param context The UI Activity Context
      * @param handler A Handler to send messages back to the UI Activity
      */
     public ConnectionThread(Context context, Handler handler) {
+        this(context, handler, FrameRing.POLICY_DROP_OLDEST);
+    }
+
+    /**
+     * Constructor. Prepares a new BluetoothChat session.
+     *
+     * @param context        The UI Activity Context
+     * @param handler        A Handler to send messages back to the UI Activity
+     * @param deliveryPolicy What to do with images when the network falls behind, one of the
+     *                       {@code FrameRing.POLICY_} constants
+     */
+    public ConnectionThread(Context context, Handler handler, int deliveryPolicy) {
         mState = STATE_NONE;
         mHandler = handler;
+        mImageQueue = new FrameRing<>(IMAGE_QUEUE_CAPACITY, deliveryPolicy);
+        mSendStats.setMetrics(mMetrics);
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Start the ConnectThread to initiate a connection to a remote device. Several devices
+     * may be given, separated by commas, each with an optional port; they are then all served
+     * by {@link #TRANSPORT_SELECTOR}, whatever transport was chosen.
      *
-     * @param targetIpAddress The IP address of the device to connect
+     * @param targetIpAddress The IP address of the device to connect, or a list of them such as
+     *                        {@code "192.168.0.2,192.168.0.3:1051"}
      */
     public synchronized void connect(String targetIpAddress) {
         Log.d(TAG, "connect to: " + targetIpAddress);
 
         mIPAddress = targetIpAddress;
+        mStopped = false;
+        cancelReconnect();
+        mBackoff.reset();
+        mLostTime = 0;
+        mSession = UUID.randomUUID().toString();
+        mNextSequence = 0;
+        startConnection();
+    }
+
+    /**
+     * Start connecting to {@link #mIPAddress}, dropping the current connection if any.
+     */
+    private synchronized void startConnection() {
+        String targetIpAddress = mIPAddress;
 
         // Cancel any thread attempting to make a connection
         if (mConnectThread != null) {
@@ -130,8 +385,29 @@ public class ConnectionThread {
             mConnectedThread = null;
         }
 
+        // Close any receiver of the selector transport
+        closeFanout();
+
+        List<InetSocketAddress> targets;
+        try {
+            targets = FrameFanout.parseTargets(targetIpAddress, mPort);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid target list: " + targetIpAddress, e);
+            // Connecting again would fail the same way
+            mStopped = true;
+            connectionFailed();
+            return;
+        }
+
+        mConnectStartTime = System.nanoTime();
+        if (mTransport == TRANSPORT_SELECTOR || targets.size() > 1) {
+            setState(STATE_CONNECTING);
+            startFanout(targets);
+            return;
+        }
+
         // Initialize the thread to connect with the given device
-        mConnectThread = new ConnectThread();
+        mConnectThread = new ConnectThread(targets.get(0));
         mConnectThread.start();
         setState(STATE_CONNECTING);
     }
@@ -149,6 +425,17 @@ public class ConnectionThread {
         mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
     }
 
+    /**
+     * Set how the sockets to the receivers are tuned, for the connections made from now on.
+     *
+     * @param profile The options, {@link TransportProfile#lowLatency} sized for a 1080p JPEG
+     *                unless set
+     */
+    public void setTransportProfile(TransportProfile profile) {
+        Log.d(TAG, "transport profile: " + profile);
+        mProfile = profile;
+    }
+
     /**
      * Get the current state of the connection
      * @return An integer defining the current connection state
@@ -157,11 +444,135 @@ public class ConnectionThread {
         return mState;
     }
 
+    /**
+     * Set the maximum number of frames in flight. The window actually used is negotiated with
+     * the receiver in the welcome handshake, and takes effect on the next connection.
+     *
+     * @param window The number of unacknowledged frames allowed, 1 for the lockstep protocol
+     */
+    public synchronized void setStreamingWindow(int window) {
+        mStreamingWindow = Math.max(1, window);
+    }
+
+    /**
+     * Set the time without a new image after which a keep-alive message is sent to the receiver,
+     * so that it can tell a stalled camera from a lost connection. Keep-alive messages are only
+     * sent to receivers that negotiated the pipelined or binary protocol.
+     *
+     * @param idleTimeout The idle time in milliseconds, or zero to disable keep-alive messages
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        mIdleTimeout = Math.max(0, idleTimeout);
+    }
+
+    /**
+     * Choose how bytes are sent to the receiver, taking effect on the next connection. The
+     * channel transport writes each header and image in a single gathering write from a direct
+     * buffer, so the image is copied once, from the camera into the pool, on its way to the
+     * socket. The stream transport is the plain socket streams. The datagram transport sends
+     * each frame as UDP datagrams to a receiver on the same port, so that a lost packet costs
+     * one frame instead of stalling the ones after it; frames are not acknowledged.
+     *
+     * @param transport One of the {@code TRANSPORT_} constants
+     */
+    public synchronized void setTransport(int transport) {
+        if (transport != TRANSPORT_STREAM && transport != TRANSPORT_CHANNEL
+                && transport != TRANSPORT_SELECTOR && transport != TRANSPORT_DATAGRAM) {
+            throw new IllegalArgumentException("Unknown transport: " + transport);
+        }
+        if (transport != mTransport) {
+            // Buffers still in use go back to the old pool and are collected with it
+            mFramePool = new FrameBufferPool(FRAME_POOL_SIZE, BuildConfig.DEBUG,
+                    transport != TRANSPORT_STREAM);
+            mTransport = transport;
+        }
+    }
+
+    /**
+     * Connect again whenever the connection is lost or cannot be made, until {@link #stop()}.
+     * The attempts are spaced by a jittered exponential backoff, from
+     * {@link ReconnectBackoff#DEFAULT_INITIAL_DELAY} up to
+     * {@link ReconnectBackoff#DEFAULT_MAX_DELAY}, and the state stays
+     * {@link #STATE_CONNECTING} in between, so that the camera keeps running. A receiver that
+     * negotiated the pipelined protocol is told that the new connection carries on the stream
+     * of the lost one, with the same session and the following sequence numbers.
+     *
+     * @param enabled Whether to connect again
+     */
+    public synchronized void setAutoReconnect(boolean enabled) {
+        mAutoReconnect = enabled;
+    }
+
+    /**
+     * Send parity packets with every frame over the datagram transport, so that the receiver
+     * rebuilds lost packets without waiting for a retransmission. Their number adapts to the
+     * loss rate the receiver reports. Takes effect on the next connection.
+     *
+     * @param enabled Whether to send parity packets
+     */
+    public synchronized void setForwardErrorCorrection(boolean enabled) {
+        mForwardErrorCorrection = enabled;
+    }
+
+    /**
+     * Set whom to ask for a keyframe when a receiver needs one to decode the video frames
+     * pushed, for instance after connecting or after its queue dropped a frame.
+     *
+     * @param listener The listener, typically the {@link VideoPacketizer} pushing the frames,
+     *                 or {@code null}
+     */
+    public void setKeyframeListener(KeyframeGate.Listener listener) {
+        mKeyframeListener = listener;
+    }
+
+    /**
+     * Set whom to tell when a receiver asks for another size or frame rate with a
+     * {@link Constants#REQUEST_FORMAT} message.
+     *
+     * @param listener The listener, called on the network thread, or {@code null}
+     */
+    public void setFormatListener(StreamFormat.Listener listener) {
+        mFormatListener = listener;
+    }
+
+    /**
+     * Set whom to tell when a receiver asks for a region of the field of view with a
+     * {@link Constants#REQUEST_REGION} message.
+     *
+     * @param listener The listener, called on the network thread, or {@code null}
+     */
+    public void setRegionListener(StreamRegion.Listener listener) {
+        mRegionListener = listener;
+    }
+
+    /**
+     * Get the CPU usage of the network thread, measured over the last few seconds. A thread
+     * waiting for images should be close to zero.
+     *
+     * @return The fraction of the wall time spent on the CPU, between 0 and 1
+     */
+    public float getNetworkCpuUsage() {
+        return mNetworkCpuUsage;
+    }
+
     /**
      * Start the ConnectedThread to begin managing a WiFi connection
      *
      */
     public synchronized void connected(Socket socket) {
+        connected(new ConnectedThread(socket));
+    }
+
+    /**
+     * Start the ConnectedThread over a transport that needs no socket, such as datagrams.
+     *
+     * @param transport The transport to the receiver
+     */
+    private synchronized void connected(FrameTransport transport) {
+        connected(new ConnectedThread(transport));
+    }
+
+    private synchronized void connected(ConnectedThread thread) {
         Log.d(TAG, "connected, IP address: " + mIPAddress);
 
         // Cancel the thread that completed the connection
@@ -176,7 +587,7 @@ public class ConnectionThread {
         }
 
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
+        mConnectedThread = thread;
         mConnectedThread.start();
 
         // Send the name of the connected device back to the UI Activity
@@ -189,12 +600,200 @@ public class ConnectionThread {
         setState(STATE_CONNECTED);
     }
 
+    /**
+     * Start streaming to every target on the engine. The connection counts as made once one
+     * receiver streams, and as lost once every receiver is gone.
+     *
+     * @param targets The unresolved addresses of the receivers, resolved on a
+     *                {@link ResolveThread} since the engine thread must never block
+     */
+    private void startFanout(List<InetSocketAddress> targets) {
+        try {
+            if (mEngine == null) {
+                TransportEngine engine = new TransportEngine();
+                engine.start();
+                mEngine = engine;
+            }
+            mEngine.setProfile(mProfile);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start the transport engine", e);
+            connectionFailed();
+            return;
+        }
+
+        FrameFanout fanout = new FrameFanout(mEngine, new FrameFanout.Listener() {
+            @Override
+            public void onReceiverStreaming(FrameFanout.Receiver receiver) {
+                receiverStreaming(receiver);
+            }
+
+            @Override
+            public void onReceiverClosed(FrameFanout.Receiver receiver, IOException cause) {
+                receiverClosed(receiver, cause);
+            }
+        });
+        fanout.setKeyframeListener(mKeyframeForwarder);
+        fanout.setFormatListener(mFormatForwarder);
+        fanout.setRegionListener(mRegionForwarder);
+        fanout.setMetrics(mMetrics);
+        fanout.setSession(mSession);
+        mFanout = fanout;
+        new ResolveThread(fanout, targets).start();
+    }
+
+    /**
+     * Start streaming to the receivers whose addresses were resolved, unless the fan-out was
+     * closed meanwhile.
+     *
+     * @param fanout    The fan-out the addresses were resolved for
+     * @param addresses The resolved addresses of the receivers
+     * @param startTime When the connection attempt started, in {@link System#nanoTime()}
+     */
+    private synchronized void addReceivers(FrameFanout fanout, List<InetSocketAddress> addresses,
+                                           long startTime) {
+        if (mFanout != fanout) {
+            return;
+        }
+        if (addresses.isEmpty()) {
+            mFanout = null;
+            connectionFailed();
+            return;
+        }
+        for (InetSocketAddress address : addresses) {
+            fanout.addReceiver(address, IMAGE_QUEUE_CAPACITY, mImageQueue.getPolicy(),
+                    mStreamingWindow, mIdleTimeout, mTimeout, startTime);
+        }
+    }
+
+    /**
+     * Disconnect every receiver, if any, without reporting their end.
+     */
+    private void closeFanout() {
+        FrameFanout fanout = mFanout;
+        if (fanout != null) {
+            mFanout = null;
+            mReconnectingReceivers = 0;
+            fanout.close();
+        }
+    }
+
+    /**
+     * Connect to a lost receiver again after the next delay of its own backoff, carrying on
+     * its stream, while the other receivers go on streaming.
+     */
+    private synchronized void scheduleReceiverReconnect(final FrameFanout fanout,
+                                                        final FrameFanout.Receiver receiver) {
+        ReconnectBackoff backoff = receiver.getBackoff();
+        long delay;
+        int attempts;
+        synchronized (backoff) {
+            delay = backoff.nextDelay();
+            attempts = backoff.getAttempts();
+        }
+        Log.i(TAG, "Connecting to receiver " + receiver.getAddress() + " again in " + delay
+                + " ms, attempt " + attempts);
+        mReconnectingReceivers++;
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                new ResolveThread(fanout, receiver).start();
+            }
+        }, delay);
+    }
+
+    /**
+     * Connect to a lost receiver again once its address was resolved, unless the fan-out was
+     * closed meanwhile.
+     *
+     * @param fanout    The fan-out of the receiver
+     * @param receiver  The lost receiver
+     * @param address   Its resolved address, or {@code null} if it could not be resolved
+     * @param startTime When the attempt started, in {@link System#nanoTime()}
+     */
+    private synchronized void receiverResolved(FrameFanout fanout, FrameFanout.Receiver receiver,
+                                               InetSocketAddress address, long startTime) {
+        if (mFanout != fanout) {
+            return;
+        }
+        mReconnectingReceivers--;
+        if (address == null) {
+            scheduleReceiverReconnect(fanout, receiver);
+            return;
+        }
+        fanout.reconnectReceiver(receiver, address, startTime);
+    }
+
+    private synchronized void receiverStreaming(FrameFanout.Receiver receiver) {
+        StreamSession session = receiver.getSession();
+        Log.d(TAG, "receiver " + receiver.getAddress() + " streaming, window: "
+                + session.getWindow() + (session.isBinaryHeader() ? ", binary headers" : ""));
+        FrameFanout fanout = mFanout;
+        if (fanout == null || !fanout.getReceivers().contains(receiver)
+                || mState == STATE_CONNECTED) {
+            return;
+        }
+
+        mHandler.obtainMessage(Constants.MESSAGE_CONNECTED).sendToTarget();
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.DEVICE_NAME, "Default device");
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+
+        setState(STATE_CONNECTED);
+        streaming();
+    }
+
+    private synchronized void receiverClosed(FrameFanout.Receiver receiver, IOException cause) {
+        Log.d(TAG, "receiver " + receiver.getAddress() + " closed", cause);
+        if (cause != null && receiver.getSession().getFramesSent() == 0
+                && receiver.getAddress() instanceof InetSocketAddress) {
+            // Never served: its address may have changed meanwhile
+            mAddressCache.invalidate(((InetSocketAddress) receiver.getAddress()).getHostString());
+        }
+        FrameFanout fanout = mFanout;
+        if (fanout != receiver.getFanout()) {
+            // Stopped locally
+            return;
+        }
+        if (cause != null && mAutoReconnect && !mStopped) {
+            scheduleReceiverReconnect(fanout, receiver);
+            if (mState == STATE_CONNECTED && fanout.getStreamingCount() == 0) {
+                // No receiver left to stream to until one is back
+                notifyLost();
+                setState(STATE_CONNECTING);
+            }
+            return;
+        }
+        if (!fanout.getReceivers().isEmpty() || mReconnectingReceivers > 0) {
+            // Other receivers still get the stream, or will again
+            return;
+        }
+        mFanout = null;
+
+        if (mState == STATE_CONNECTED) {
+            connectionLost();
+        } else {
+            connectionFailed();
+        }
+    }
+
     /**
      * Stop all threads
      */
     public synchronized void stop() {
         Log.d(TAG, "stop");
 
+        mStopped = true;
+        cancelReconnect();
+
+        closeFanout();
+        if (mEngine != null) {
+            // Tasks still queued, such as the disconnection, run before the engine closes
+            mEngine.shutdown();
+            mEngine = null;
+        }
+
         if (mConnectThread != null) {
             mConnectThread.cancel();
             mConnectThread = null;
@@ -209,9 +808,95 @@ public class ConnectionThread {
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * Post an attempt to connect again after the next delay of the backoff, if connecting
+     * again is enabled and the connection was not stopped.
+     *
+     * @return False if the connection is not made again
+     */
+    private synchronized boolean scheduleReconnect() {
+        if (!mAutoReconnect || mStopped || mIPAddress == null) {
+            return false;
+        }
+        notifyLost();
+        long delay = mBackoff.nextDelay();
+        Log.i(TAG, "Connecting again in " + delay + " ms, attempt " + mBackoff.getAttempts());
+        cancelReconnect();
+        mReconnectPending = true;
+        mHandler.postDelayed(mReconnect, delay);
+        setState(STATE_CONNECTING);
+        return true;
+    }
+
+    /**
+     * Note when the connection was lost and tell the UI Activity it is being made again, once
+     * per loss.
+     */
+    private synchronized void notifyLost() {
+        if (mLostTime == 0) {
+            mLostTime = System.nanoTime();
+            Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.TOAST, "Device connection was lost, connecting again");
+            msg.setData(bundle);
+            mHandler.sendMessage(msg);
+        }
+    }
+
+    private synchronized void reconnect() {
+        if (!mReconnectPending) {
+            // Stopped or connected by hand meanwhile
+            return;
+        }
+        mReconnectPending = false;
+        startConnection();
+    }
+
+    private synchronized void cancelReconnect() {
+        if (mReconnectPending) {
+            mReconnectPending = false;
+            mHandler.removeCallbacks(mReconnect);
+        }
+    }
+
+    /**
+     * Count a connection made again once it streams: the time since the loss, and a new
+     * backoff.
+     */
+    private synchronized void streaming() {
+        mBackoff.reset();
+        long lostTime = mLostTime;
+        if (lostTime != 0) {
+            mLostTime = 0;
+            long elapsed = System.nanoTime() - lostTime;
+            mMetrics.recordLatency(StreamMetrics.LATENCY_RECONNECT, elapsed);
+            mMetrics.increment(StreamMetrics.COUNTER_RECONNECTS);
+            Log.i(TAG, "Streaming again after " + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                    + " ms, from sequence " + mNextSequence);
+        }
+    }
+
+    /**
+     * Record the time to the first frame of the connection, once it is sent.
+     */
+    private void firstFrameSent() {
+        long start = mConnectStartTime;
+        if (start != 0) {
+            mConnectStartTime = 0;
+            long elapsed = System.nanoTime() - start;
+            mMetrics.recordLatency(StreamMetrics.LATENCY_FIRST_FRAME, elapsed);
+            Log.i(TAG, "First frame sent " + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                    + " ms after connecting");
+        }
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the UI Activity, unless it is
+     * made again.
      */
     private void connectionFailed() {
+        if (scheduleReconnect()) {
+            return;
+        }
         // Send a failure message back to the parent fragment
         Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -223,9 +908,13 @@ public class ConnectionThread {
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Indicate that the connection was lost and notify the UI Activity, unless it is made
+     * again.
      */
     private void connectionLost() {
+        if (scheduleReconnect()) {
+            return;
+        }
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -242,48 +931,210 @@ public class ConnectionThread {
      * succeeds or fails.
      */
     private class ConnectThread extends Thread {
-        private final Socket mSocket;
+        /**
+         * The receiver, its host not resolved yet
+         */
+        private final InetSocketAddress mTarget;
+
+        /**
+         * Connects to the first address of the receiver to answer, {@code null} over datagrams
+         */
+        private final SocketConnector mConnector;
 
-        public ConnectThread() {
-            mSocket = new Socket();
+        /**
+         * The channel of the datagram transport, in place of the connector, or {@code null}
+         */
+        private final DatagramChannel mDatagramChannel;
+
+        /**
+         * Whether the attempt was abandoned for another, so its failure is not reported
+         */
+        private volatile boolean mCancelled = false;
+
+        public ConnectThread(InetSocketAddress target) {
+            mTarget = target;
+            DatagramChannel datagramChannel = null;
+            if (mTransport == TRANSPORT_DATAGRAM) {
+                try {
+                    datagramChannel = DatagramChannel.open();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to open a datagram channel, use a plain socket", e);
+                }
+            }
+            mDatagramChannel = datagramChannel;
+
+            final boolean channel = mTransport == TRANSPORT_CHANNEL;
+            mConnector = datagramChannel != null ? null : new SocketConnector(
+                    new SocketConnector.SocketFactory() {
+                        @Override
+                        public Socket createSocket() throws IOException {
+                            if (channel) {
+                                try {
+                                    // A socket created by its channel keeps the channel for the
+                                    // ConnectedThread
+                                    return SocketChannel.open().socket();
+                                } catch (IOException e) {
+                                    Log.e(TAG, "Unable to open a socket channel, use a plain "
+                                            + "socket", e);
+                                }
+                            }
+                            return new Socket();
+                        }
+                    });
+            if (mConnector != null) {
+                mConnector.setProfile(mProfile);
+            }
         }
 
         public void run() {
             Log.i(TAG, "BEGIN ConnectThread");
+            long start = System.nanoTime();
+            String host = mTarget.getHostName();
 
+            List<InetAddress> addresses;
             try {
-                InetAddress inetAddress = InetAddress.getByName(mIPAddress);
-                SocketAddress socketAddress = new InetSocketAddress(inetAddress, mPort);
-                mSocket.connect(socketAddress, mTimeout);
+                addresses = mAddressCache.resolve(host);
             } catch (UnknownHostException e) {
-                Log.e(TAG, "Invalid IP address", e);
-                e.printStackTrace();
+                Log.e(TAG, "Invalid IP address: " + host, e);
+                closeDatagramChannel();
+                failed();
+                return;
+            }
+
+            if (mDatagramChannel != null) {
+                connectDatagram(new InetSocketAddress(addresses.get(0), mTarget.getPort()));
+                return;
+            }
+
+            List<InetSocketAddress> candidates = new ArrayList<>(addresses.size());
+            for (InetAddress address : addresses) {
+                candidates.add(new InetSocketAddress(address, mTarget.getPort()));
+            }
+            Socket socket;
+            try {
+                socket = mConnector.connect(candidates, mTimeout);
             } catch (IOException e) {
                 Log.e(TAG, "Unable to connect the device with IP and port number of: "
-                        + mIPAddress + ":" + mPort);
-                e.printStackTrace();
-                try {
-                    mSocket.close();
-                } catch (IOException e1) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e1);
-                }
-                connectionFailed();
+                        + host + ":" + mTarget.getPort(), e);
+                // Its address may have changed meanwhile
+                mAddressCache.invalidate(host);
+                failed();
                 return;
             }
+            long elapsed = System.nanoTime() - start;
+            mMetrics.recordLatency(StreamMetrics.LATENCY_CONNECT, elapsed);
+            Log.i(TAG, "Connected to " + candidates.get(mConnector.getConnectedIndex()) + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+                    + mConnector.getAttemptCount() + " of " + candidates.size()
+                    + " addresses tried");
 
-            if (!mSocket.isConnected() || mSocket.isClosed()) {
-                connectionFailed();
+            // Start the connected thread
+            connected(socket);
+        }
+
+        /**
+         * Point the datagram channel at the receiver. Nothing is exchanged until the transport
+         * sends its hello, so this only fails if the address cannot be resolved.
+         */
+        private void connectDatagram(InetSocketAddress address) {
+            try {
+                mDatagramChannel.connect(address);
+                DatagramTransport transport = new DatagramTransport(mDatagramChannel);
+                if (mForwardErrorCorrection) {
+                    transport.setAdaptiveParity(DatagramTransport.DEFAULT_MIN_PARITY,
+                            DatagramTransport.DEFAULT_MAX_PARITY);
+                }
+                connected(transport);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to send datagrams to " + address, e);
+                closeDatagramChannel();
+                failed();
             }
+        }
 
-            // Start the connected thread
-            connected(mSocket);
+        /**
+         * Report the failure of the attempt, unless it was cancelled.
+         */
+        private void failed() {
+            if (!mCancelled) {
+                connectionFailed();
+            }
         }
 
-        public void cancel() {
+        private void closeDatagramChannel() {
+            if (mDatagramChannel == null) {
+                return;
+            }
             try {
-                mSocket.close();
+                mDatagramChannel.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+                Log.e(TAG, "unable to close() channel during connection failure", e);
+            }
+        }
+
+        public void cancel() {
+            mCancelled = true;
+            if (mConnector != null) {
+                mConnector.cancel();
+            }
+            if (mDatagramChannel != null) {
+                try {
+                    mDatagramChannel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of connect channel failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves the receivers of a fan-out through {@link #mAddressCache}, then hands them to
+     * it: every target of a new fan-out, or one receiver lost to connect again. Each receiver
+     * is connected to the first of its addresses.
+     */
+    private class ResolveThread extends Thread {
+        private final FrameFanout mTargetFanout;
+        private final List<InetSocketAddress> mTargets;
+
+        /**
+         * The lost receiver to connect again, or {@code null} for a new fan-out
+         */
+        private final FrameFanout.Receiver mLost;
+        private final long mStartTime = System.nanoTime();
+
+        public ResolveThread(FrameFanout fanout, List<InetSocketAddress> targets) {
+            super("ResolveThread");
+            mTargetFanout = fanout;
+            mTargets = targets;
+            mLost = null;
+        }
+
+        public ResolveThread(FrameFanout fanout, FrameFanout.Receiver lost) {
+            super("ResolveThread");
+            InetSocketAddress address = (InetSocketAddress) lost.getAddress();
+            mTargetFanout = fanout;
+            mTargets = Collections.singletonList(
+                    InetSocketAddress.createUnresolved(address.getHostString(),
+                            address.getPort()));
+            mLost = lost;
+        }
+
+        public void run() {
+            List<InetSocketAddress> addresses = new ArrayList<>(mTargets.size());
+            for (InetSocketAddress target : mTargets) {
+                String host = target.getHostString();
+                try {
+                    addresses.add(new InetSocketAddress(mAddressCache.resolve(host).get(0),
+                            target.getPort()));
+                } catch (UnknownHostException e) {
+                    Log.e(TAG, "Invalid IP address: " + host, e);
+                }
+            }
+            if (mLost != null) {
+                receiverResolved(mTargetFanout, mLost,
+                        addresses.isEmpty() ? null : addresses.get(0), mStartTime);
+            } else {
+                addReceivers(mTargetFanout, addresses, mStartTime);
             }
         }
     }
@@ -294,8 +1145,11 @@ public class ConnectionThread {
      */
     private class ConnectedThread extends Thread {
         private final Socket mSocket;
-        private final InputStream mInStream;
-        private final OutputStream mOutStream;
+
+        /**
+         * The transport over {@link #mSocket}, {@code null} if it could not be set up.
+         */
+        private final FrameTransport mTransport;
 
         /**
          * Request Queue
@@ -307,42 +1161,161 @@ public class ConnectionThread {
          */
         private Object requestLock = new Object();
 
+        /**
+         * Sends the frames with the negotiated protocol, {@code null} without a transport.
+         */
+        private final FrameSender mSender;
+
+        /**
+         * Holds video frames back until the receiver can decode them.
+         */
+        private final KeyframeGate mGate = new KeyframeGate(mKeyframeForwarder);
+
+        /**
+         * The welcome message of the receiver, {@code null} until it is received.
+         */
+        private JSONObject mWelcome = null;
+
+        /**
+         * Thread CPU time and wall time at the start of the current CPU report interval.
+         */
+        private long mCpuSampleTime;
+        private long mCpuSampleWall;
+
+        /**
+         * The number of bytes allocated by the image pool at the start of the current report
+         * interval.
+         */
+        private long mAllocatedBytesSample;
+
+        /**
+         * The time at which the last message was sent to the receiver.
+         */
+        private long mLastSendTime;
+
+        /**
+         * Handles the requests of the receiver past the welcome message.
+         */
+        private final ReceiverRequests.Handler mRequests = new ReceiverRequests.Handler() {
+            @Override
+            public void onAcknowledged() {
+                mSender.onAcknowledged();
+            }
+
+            @Override
+            public void onFormatRequested(StreamFormat format) {
+                mFormatForwarder.onFormatRequested(format);
+            }
+
+            @Override
+            public void onRegionRequested(StreamRegion region) {
+                mRegionForwarder.onRegionRequested(region);
+            }
+        };
+
+        /**
+         * Decoder of the messages sent by the receiver.
+         */
+        private final FrameDecoder mDecoder = new FrameDecoder(DEFAULT_BUFFER_SIZE,
+                new FrameDecoder.Listener() {
+                    @Override
+                    public void onJsonMessage(ByteBuffer message) {
+                        if (mWelcome == null) {
+                            String text = new String(message.array(),
+                                    message.arrayOffset() + message.position(), message.remaining());
+                            try {
+                                mWelcome = new JSONObject(text);
+                            } catch (JSONException e) {
+                                Log.e(TAG, "Failed to parse the welcome message: " + text);
+                                mWelcome = new JSONObject();
+                            }
+                        } else {
+                            ReceiverRequests.dispatch(message, mRequests);
+                        }
+                    }
+
+                    @Override
+                    public void onHeader(FrameHeader header) {
+                        if (!ReceiverRequests.dispatch(header, mRequests)) {
+                            Log.e(TAG, "Invalid request: " + header);
+                        }
+                    }
+
+                    @Override
+                    public void onPayload(ByteBuffer chunk, int remaining) {
+                        // Acknowledgements carry no payload worth keeping
+                    }
+                });
+
         public ConnectedThread(Socket socket) {
             Log.d(TAG, "create ConnectedThread");
             mSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+            FrameTransport transport = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Use the channel of the socket if it was opened with one
             try {
-                tmpIn = mSocket.getInputStream();
-                tmpOut = mSocket.getOutputStream();
+                SocketChannel channel = mSocket.getChannel();
+                if (channel != null) {
+                    transport = new ChannelTransport(channel);
+                } else {
+                    StreamTransport stream = new StreamTransport(mSocket);
+                    stream.setCoalescing(mProfile.isCoalescing());
+                    transport = stream;
+                }
             } catch (IOException e) {
                 Log.e(TAG, "socket does not created: " + e.getMessage(), e);
             }
 
-            mInStream = tmpIn;
-            mOutStream = tmpOut;
+            mTransport = transport;
+            mSender = transport != null
+                    ? new FrameSender(transport, mDecoder, mSendStats, mMetrics) : null;
+            if (mSender != null) {
+                mSender.setSession(mSession, mNextSequence);
+            }
+        }
+
+        /**
+         * Run a connection over a transport that needs no socket. Such transports are datagram
+         * transports, which do not deliver every message.
+         *
+         * @param transport The transport to the receiver
+         */
+        public ConnectedThread(FrameTransport transport) {
+            Log.d(TAG, "create ConnectedThread over datagrams");
+            mSocket = null;
+            mTransport = transport;
+            mSender = new FrameSender(transport, mDecoder, mSendStats, mMetrics);
+            mSender.setReliable(false);
+            mSender.setSession(mSession, mNextSequence);
         }
 
         public void run() {
             Log.i(TAG, "BEGIN ConnectedThread");
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            byte[] largeBuffer = new byte[LARGE_SIZE_BUFFER_SIZE];
-            int bytes, remainingBytes = -1;
+
+            if (mTransport == null) {
+                connectionLost();
+                return;
+            }
 
             mHandler.obtainMessage(Constants.MESSAGE_CONNECTED).sendToTarget();
             pushRequest(Constants.REQUEST_STREAMING);
+            mCpuSampleTime = Debug.threadCpuTimeNanos();
+            mCpuSampleWall = System.nanoTime();
+            mLastSendTime = mCpuSampleWall;
+            mAllocatedBytesSample = mFramePool.getAllocatedBytes();
 
             try {
-                bytes = mInStream.read(buffer);
+                while (mWelcome == null) {
+                    if (mTransport.read(mDecoder, true) < 0) {
+                        throw new IOException("Connection closed before the welcome message");
+                    }
+                }
 
-                JSONObject jsonObj = new JSONObject(new String(buffer, 0, bytes));
-                Log.i(TAG, "Welcome message: " + jsonObj.getString("welcome"));
+                Log.i(TAG, "Welcome message: " + mWelcome.optString(Constants.REQUEST_WELCOME_NAME));
+                negotiate(mWelcome);
+                streaming();
             } catch (IOException e) {
                 Log.e(TAG, "Failed to get a stream instance: " + e.getMessage());
-            } catch (JSONException e) {
-                Log.e(TAG, "Failed to parse the welcome message");
             }
 
             boolean run = true;
@@ -355,44 +1328,42 @@ public class ConnectionThread {
 
                     switch (request_code) {
                         case Constants.REQUEST_STREAMING:
-                            ImageData imageData = null;
-                            while (imageData == null) {
-                                imageData = popImage();
-                            }
-
-                            jsonObjSend = new JSONObject();
-                            try {
-                                jsonObjSend.put(Constants.REQUEST_FIELD, Constants.REQUEST_STREAMING);
-                                jsonObjSend.put(Constants.REQUEST_FIELD_BYTE, imageData.ImageData.length);
-                                jsonObjSend.put(Constants.REQUEST_FIELD_WIDTH, imageData.Width);
-                                jsonObjSend.put(Constants.REQUEST_FIELD_HEIGHT, imageData.Height);
-                            } catch (JSONException e) {
-                                e.printStackTrace();
-                            }
-                            write(jsonObjSend.toString().getBytes());
-
-                            // Receive an acknowledgement
-                            bytes = mInStream.read(buffer);
-                            try {
-                                JSONObject jsonObjReceive = new JSONObject(new String(buffer, 0, bytes));
-                            } catch (JSONException e) {
-                                e.printStackTrace();
+                            FrameBuffer frame = waitForImage();
+                            // Frames of another stream are only for receivers that tell
+                            // them apart
+                            if (frame != null && (!FrameHeader.isUnderstoodBy(
+                                    frame.getFlags(), mSender.getHeaderVersion())
+                                    || !mGate.admit(frame, mImageQueue.getDroppedCount(),
+                                    mSender.isBinaryHeader()))) {
+                                frame.release();
+                                frame = null;
                             }
-                            mOutStream.write(imageData.ImageData);
-
-                            // Receive an acknowledgement
-                            bytes = mInStream.read(buffer);
-                            try {
-                                JSONObject jsonObjReceive = new JSONObject(new String(buffer, 0, bytes));
-                            } catch (JSONException e) {
-                                e.printStackTrace();
+                            if (frame != null) {
+                                mLastSendTime = System.nanoTime();
+                                try {
+                                    mSender.send(frame);
+                                } finally {
+                                    frame.release();
+                                }
+                                firstFrameSent();
                             }
 
+                            // Come back for the next image after serving other requests
                             pushRequest(Constants.REQUEST_STREAMING);
+                            break;
 
+                        case Constants.REQUEST_STATS:
+                            sendStats();
                             break;
 
                         case Constants.REQUEST_DISCONNECT:
+                            if (mSender.isBinaryHeader()) {
+                                mSender.sendMessage(Constants.REQUEST_DISCONNECT);
+                                resetRequest();
+                                run = false;
+                                break;
+                            }
+
                             // Send a streaming request
                             jsonObjSend = new JSONObject();
                             try {
@@ -409,14 +1380,137 @@ public class ConnectionThread {
                             break;
                     }
 
+                    reportCpuUsage();
+
                     // Send the obtained bytes to the UI Activity
                     //mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
+                } catch (InterruptedException e) {
+                    Log.i(TAG, "Interrupted while waiting for an image");
+                    break;
                 } catch (IOException e) {
                     Log.e(TAG, "disconnected", e);
+                    // The next connection carries on the stream from there
+                    mNextSequence = mSender.getSequence();
                     connectionLost();
                     break;
                 }
             }
+
+            // Give the images nobody will send back to the pool
+            FrameBuffer frame;
+            while ((frame = mImageQueue.poll()) != null) {
+                frame.release();
+            }
+        }
+
+        /**
+         * Send the pending stats to the receiver if it negotiated header version 4 or later,
+         * and drop them otherwise.
+         *
+         * @throws IOException If the write fails
+         */
+        private void sendStats() throws IOException {
+            byte[] stats = mPendingStats;
+            mPendingStats = null;
+            if (stats != null) {
+                mSender.sendStats(stats);
+            }
+        }
+
+        /**
+         * Wait for the camera to deliver an image, parked rather than spinning. If the wait
+         * exceeds the idle timeout, a keep-alive message is sent to the receiver.
+         *
+         * @return The next image, or {@code null} if none came in {@link #IMAGE_WAIT_INTERVAL}
+         * @throws IOException If the keep-alive message cannot be sent
+         * @throws InterruptedException If the thread is interrupted while waiting
+         */
+        private FrameBuffer waitForImage() throws IOException, InterruptedException {
+            long wait = IMAGE_WAIT_INTERVAL;
+            boolean keepAlive = mIdleTimeout > 0 && mSender.isPipelined();
+            if (keepAlive) {
+                long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mLastSendTime);
+                wait = Math.max(0, Math.min(wait, mIdleTimeout - idle));
+            }
+
+            FrameBuffer frame = popImage(wait);
+            if (frame == null && keepAlive && TimeUnit.NANOSECONDS.toMillis(
+                    System.nanoTime() - mLastSendTime) >= mIdleTimeout) {
+                sendKeepAlive();
+            }
+            return frame;
+        }
+
+        /**
+         * Tell the receiver that the connection is alive although no image is available.
+         *
+         * @throws IOException If the write fails
+         */
+        private void sendKeepAlive() throws IOException {
+            Log.d(TAG, "No image for " + mIdleTimeout + "ms, send a keep-alive message");
+            if (mSender.isBinaryHeader()) {
+                mSender.sendMessage(Constants.REQUEST_IDLE);
+            } else {
+                JSONObject jsonObjSend = new JSONObject();
+                try {
+                    jsonObjSend.put(Constants.REQUEST_FIELD, Constants.REQUEST_IDLE);
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+                write(jsonObjSend.toString().getBytes());
+            }
+            mLastSendTime = System.nanoTime();
+        }
+
+        /**
+         * Log the CPU usage of this thread once per {@link #CPU_REPORT_INTERVAL}. The ratio of
+         * CPU time to wall time shows whether the thread spins while waiting for images.
+         */
+        private void reportCpuUsage() {
+            long wall = System.nanoTime();
+            long elapsed = wall - mCpuSampleWall;
+            if (elapsed < TimeUnit.MILLISECONDS.toNanos(CPU_REPORT_INTERVAL)) {
+                return;
+            }
+
+            long cpu = Debug.threadCpuTimeNanos();
+            mNetworkCpuUsage = Math.min(1f, (float) (cpu - mCpuSampleTime) / elapsed);
+            Log.d(TAG, "Network thread CPU usage: " + Math.round(mNetworkCpuUsage * 100) + "%, "
+                    + mImageQueue.getEvictedCount() + " images overwritten, "
+                    + mImageQueue.getRejectedCount() + " images rejected");
+
+            long allocated = mFramePool.getAllocatedBytes();
+            Log.d(TAG, "Image buffers: " + mFramePool.getAllocationCount() + " allocated for "
+                    + mFramePool.getAcquiredCount() + " images, "
+                    + (allocated - mAllocatedBytesSample) * 1000000000L / elapsed / 1024
+                    + " KiB/s allocated");
+            for (Throwable leak : mFramePool.findLeaks(
+                    TimeUnit.MILLISECONDS.toNanos(FRAME_LEAK_AGE))) {
+                Log.w(TAG, "Image buffer not released", leak);
+            }
+
+            mCpuSampleTime = cpu;
+            mCpuSampleWall = wall;
+            mAllocatedBytesSample = allocated;
+        }
+
+        /**
+         * Agree on the protocol with the receiver from its welcome message, sending the
+         * handshake if it supports pipelining. See {@link FrameSender#negotiate}.
+         *
+         * @param welcome The welcome message from the receiver
+         */
+        private void negotiate(JSONObject welcome) {
+            JSONObject handshake = mSender.negotiate(welcome, mStreamingWindow);
+            if (handshake == null) {
+                Log.i(TAG, "Receiver does not support pipelining, use the lockstep protocol");
+                return;
+            }
+
+            write(handshake.toString().getBytes());
+            Log.i(TAG, "Pipelined streaming with a window of " + mSender.getWindow() + " frames, "
+                    + (mSender.isBinaryHeader()
+                    ? "binary headers v" + mSender.getHeaderVersion() : "JSON headers"));
         }
 
         /**
@@ -427,8 +1521,7 @@ public class ConnectionThread {
         public void write(byte[] buffer) {
             try {
                 Log.d(TAG, "Write " + buffer.length + "bytes");
-                mOutStream.write(buffer);
-                mOutStream.flush();
+                mTransport.write(null, ByteBuffer.wrap(buffer));
             } catch (IOException e) {
                 Log.e(TAG, "Exception during write", e);
             }
@@ -438,19 +1531,30 @@ public class ConnectionThread {
             try {
                 pushRequest(Constants.REQUEST_DISCONNECT);
                 this.join(2000);
-                mSocket.close();
+                close();
             } catch (IOException e) {
                 Log.e(TAG, "close() of connect socket failed", e);
             } catch (InterruptedException e) {
                 Log.e(TAG, "Thread does not respond, force to stop the thread", e);
                 try {
-                    mSocket.close();
+                    close();
                 } catch (IOException e1) {
                     Log.e(TAG, "close() of connect socket failed", e);
                 }
             }
         }
 
+        /**
+         * Close the transport, or the socket if the transport could not be set up.
+         */
+        private void close() throws IOException {
+            if (mTransport != null) {
+                mTransport.close();
+            } else {
+                mSocket.close();
+            }
+        }
+
         /******************************************
          * Network Request Functions
          ******************************************/
@@ -495,45 +1599,182 @@ public class ConnectionThread {
         }
     }
 
-    public void pushImage(byte[] raw_data, int width, int height) {
-        try {
-            if (!mImageQueueLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                throw new RuntimeException("Time out waiting to lock the image queue");
-            }
-            if (mImageQueue.size() > 3) {
-                mImageQueue.poll();
-            }
-            mImageQueue.push(new ImageData(raw_data, width, height));
-            mImageQueueLock.release();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    public boolean pushImage(byte[] raw_data, int width, int height) {
+        return pushImage(raw_data, width, height, System.nanoTime());
+    }
+
+    public boolean pushImage(byte[] raw_data, int width, int height, long timestamp) {
+        return pushImage(FrameBuffer.wrap(raw_data).setImageInfo(width, height, timestamp));
+    }
+
+    /**
+     * Copy an encoded image into a pooled buffer and add it to the queue.
+     *
+     * @param data      The bytes of the image between position and limit, left unchanged
+     * @param width     The width of the image
+     * @param height    The height of the image
+     * @param timestamp The capture timestamp of the image
+     * @return {@code false} if the image was rejected by {@link FrameRing#POLICY_BACKPRESSURE}
+     * everywhere
+     */
+    public boolean pushImage(ByteBuffer data, int width, int height, long timestamp) {
+        return pushImage(data, width, height, timestamp, 0);
+    }
+
+    /**
+     * Copy an encoded image into a pooled buffer and add it to the queue.
+     *
+     * @param data      The bytes of the image between position and limit, left unchanged
+     * @param width     The width of the image
+     * @param height    The height of the image
+     * @param timestamp The capture timestamp of the image
+     * @param flags     The {@link FrameHeader} flags of the image, such as its stream
+     * @return {@code false} if the image was rejected by {@link FrameRing#POLICY_BACKPRESSURE}
+     * everywhere
+     */
+    public boolean pushImage(ByteBuffer data, int width, int height, long timestamp,
+                             int flags) {
+        FrameBuffer frame = acquireFrameBuffer(data.remaining());
+        frame.getBuffer().put(data.duplicate());
+        frame.getBuffer().flip();
+        return pushImage(frame.setImageInfo(width, height, timestamp).setFlags(flags));
+    }
+
+    /**
+     * Get a pooled buffer to copy an image into before pushing it with
+     * {@link #pushImage(FrameBuffer)}.
+     *
+     * @param size The number of bytes of the image
+     * @return A cleared buffer of at least {@code size} bytes
+     */
+    @Override
+    public FrameBuffer acquireFrameBuffer(int size) {
+        return mFramePool.acquire(size);
+    }
+
+    /**
+     * Add an image to the queue, or to the queue of every receiver, applying the delivery policy
+     * if a queue is full. Must be called from a single thread, the camera thread. The queue takes
+     * over the reference of the caller, and releases the image once it is sent or dropped.
+     *
+     * @param frame The image, flipped so that its bytes lie between position and limit
+     * @return {@code false} if the image was rejected by {@link FrameRing#POLICY_BACKPRESSURE}
+     * everywhere
+     */
+    @Override
+    public boolean pushImage(FrameBuffer frame) {
+        FrameFanout fanout = mFanout;
+        if (fanout != null) {
+            return fanout.publish(frame);
+        }
+
+        FrameBuffer dropped = mImageQueue.offer(frame);
+        if (dropped != null) {
+            dropped.release();
+            mMetrics.increment(StreamMetrics.COUNTER_FRAMES_DROPPED);
         }
+        return dropped != frame;
     }
 
-    private ImageData popImage() {
-        ImageData imageData = null;
-        try {
-            if (!mImageQueueLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                throw new RuntimeException("Time out waiting to lock the image queue");
-            }
-            imageData = mImageQueue.poll();
-            mImageQueueLock.release();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /**
+     * Whether an image pushed now would be queued. The camera thread checks it to skip copying
+     * images while the network pushes back.
+     *
+     * @return {@code false} if the queue is full and rejects new images
+     */
+    public boolean canAcceptImage() {
+        FrameFanout fanout = mFanout;
+        if (fanout != null) {
+            return fanout.canAccept();
+        }
+        return mImageQueue.getPolicy() != FrameRing.POLICY_BACKPRESSURE || !mImageQueue.isFull();
+    }
+
+    /**
+     * Get the number of images dropped by the delivery policy so far, over all the receivers.
+     *
+     * @return The number of images overwritten or rejected
+     */
+    public long getDroppedImageCount() {
+        FrameFanout fanout = mFanout;
+        return mImageQueue.getDroppedCount() + (fanout != null ? fanout.getDroppedCount() : 0);
+    }
+
+    /**
+     * Record the latencies and counters of the stream into a registry shared with the camera
+     * side, rather than into one of its own. Must be called before {@link #connect}.
+     *
+     * @param metrics The registry
+     */
+    public void setMetrics(StreamMetrics metrics) {
+        mMetrics = metrics;
+        mSendStats.setMetrics(metrics);
+    }
+
+    /**
+     * Get the latencies and counters of the stream, over all the receivers.
+     *
+     * @return The live registry
+     */
+    public StreamMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Send stats to every receiver that negotiated header version 4 or later, in a
+     * {@link Constants#REQUEST_STATS} message. Stats not sent yet by the connected thread are
+     * replaced.
+     *
+     * @param stats The stats, typically the last {@link StreamMetrics.Snapshot}
+     */
+    public synchronized void sendStats(JSONObject stats) {
+        byte[] message = stats.toString().getBytes();
+        FrameFanout fanout = mFanout;
+        if (fanout != null) {
+            fanout.sendStats(message);
+        }
+        if (mConnectedThread != null) {
+            mPendingStats = message;
+            mConnectedThread.pushRequest(Constants.REQUEST_STATS);
         }
-        return imageData;
     }
 
-    private class ImageData {
-        public byte[] ImageData;
-        public int Width;
-        public int Height;
+    /**
+     * Get what was sent so far, over all the receivers, for the adaptive controller.
+     *
+     * @param out The snapshot to fill, reset first
+     * @return {@code out}
+     */
+    public SendStats getSendStats(SendStats out) {
+        out.reset();
+        out.accumulate(mSendStats);
+        FrameFanout fanout = mFanout;
+        if (fanout != null) {
+            for (FrameFanout.Receiver receiver : fanout.getReceivers()) {
+                out.accumulate(receiver.getSession().getSendStats());
+            }
+        }
+        return out;
+    }
 
-        ImageData(byte[] data, int width, int height) {
-            ImageData = data;
-            Width = width;
-            Height = height;
+    /**
+     * Get the number of images waiting to be sent, to the slowest receiver.
+     *
+     * @return The number of images queued
+     */
+    public int getQueuedImageCount() {
+        FrameFanout fanout = mFanout;
+        if (fanout == null) {
+            return mImageQueue.size();
         }
+        int queued = 0;
+        for (FrameFanout.Receiver receiver : fanout.getReceivers()) {
+            queued = Math.max(queued, receiver.getQueuedCount());
+        }
+        return queued;
+    }
 
+    private FrameBuffer popImage(long timeout) throws InterruptedException {
+        return mImageQueue.take(timeout, TimeUnit.MILLISECONDS);
     }
 }
@@ -7,6 +7,10 @@ package seongdokim.remotecamera;
 public class Constants {
     // Pre-defined WiFi messages
     public static final int REQUEST_STREAMING = 1;
+    public static final int REQUEST_HANDSHAKE = 2;
+    public static final int REQUEST_FORMAT = 3;
+    public static final int REQUEST_REGION = 4;
+    public static final int REQUEST_STATS = 5;
     public static final int REQUEST_DISCONNECT = 9;
     public static final int REQUEST_OK = 98;
     public static final int REQUEST_IDLE = 99;
@@ -16,7 +20,26 @@ public class Constants {
     public static final String REQUEST_FIELD_BYTE = "bytes";
     public static final String REQUEST_FIELD_WIDTH = "width";
     public static final String REQUEST_FIELD_HEIGHT = "height";
+    public static final String REQUEST_FIELD_WINDOW = "window";
+    public static final String REQUEST_FIELD_VERSION = "version";
+    public static final String REQUEST_FIELD_FRAME_RATE = "fps";
+    public static final String REQUEST_FIELD_LEFT = "left";
+    public static final String REQUEST_FIELD_TOP = "top";
+    public static final String REQUEST_FIELD_SESSION = "session";
+    public static final String REQUEST_FIELD_SEQUENCE = "sequence";
     public static final String REQUEST_ACKNOWLEDGE_NAME = "acknowledge";
+    public static final String REQUEST_WELCOME_NAME = "welcome";
+
+    // Maximum number of frames on the wire before an acknowledgement is required
+    public static final int DEFAULT_STREAMING_WINDOW = 4;
+
+    // Time in milliseconds without an image before a keep-alive message is sent
+    public static final long DEFAULT_IDLE_TIMEOUT = 2000;
+
+    // Connection states, shared by every transport
+    public static final int STATE_NONE = 0;       // we're doing nothing
+    public static final int STATE_CONNECTING = 1; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED = 2;  // now connected to a remote device
 
     // Message types sent from the Handler
     public static final int MESSAGE_STATE_CHANGE = 1;
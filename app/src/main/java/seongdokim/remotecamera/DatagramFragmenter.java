@@ -0,0 +1,330 @@
+package seongdokim.remotecamera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Splits the messages of the protocol into datagrams small enough to cross the network without
+ * IP fragmentation, so that the loss of a packet costs one frame rather than stalling the ones
+ * after it as it would on TCP. A {@link FrameReassembler} puts them back together.
+ *
+ * <p>Every datagram starts with a packet header, followed by up to
+ * {@code packetSize - PACKET_HEADER_LENGTH} bytes of the message:</p>
+ *
+ * <pre>
+ * offset  size  field
+ *      0     4  magic, 0x52434447 ("RCDG")
+ *      4     4  message id, increasing by one for each message of a sender
+ *      8     2  fragment index, from 0
+ *     10     2  fragment count
+ *     12     4  offset of the fragment in the message
+ *     16     4  length of the message
+ * </pre>
+ *
+ * All fields are written in network byte order. A message of zero bytes is a single fragment
+ * with no data.
+ *
+ * <p>With a parity ratio set, the fragments of a message are followed by parity packets, so that
+ * the receiver can rebuild a lost fragment at once instead of asking for it again, which would
+ * cost a round trip a live frame cannot wait for. The fragments are dealt into as many groups as
+ * there are parity packets, fragment {@code i} into group {@code i % groups}, and each parity
+ * packet carries the XOR of the fragments of its group, each padded with zeros to the fragment
+ * size. One lost fragment per group can be rebuilt; dealing the fragments out spreads a burst of
+ * consecutive losses over the groups. A parity packet has the same header with another magic
+ * number and other meanings:</p>
+ *
+ * <pre>
+ * offset  size  field
+ *      0     4  magic, 0x52434450 ("RCDP")
+ *      4     4  message id
+ *      8     2  group index, from 0
+ *     10     2  fragment count
+ *     12     4  group count
+ *     16     4  length of the message
+ * </pre>
+ *
+ * Its data is as long as a full fragment, which tells the receiver the fragment size, or as long
+ * as the message if it has a single fragment.
+ *
+ * <p>The receiver tells the sender how many fragments it lost, in reports of
+ * {@link #REPORT_LENGTH} bytes: the magic number 0x52434452 ("RCDR"), then the number of
+ * fragments expected and the number lost since the start, both on 8 bytes, so that a lost or
+ * reordered report costs nothing.</p>
+ *
+ * Instances are not thread-safe.
+ */
+public class DatagramFragmenter {
+    /**
+     * The magic number starting every packet.
+     */
+    public static final int MAGIC = 0x52434447;
+
+    /**
+     * The magic number starting every parity packet.
+     */
+    public static final int PARITY_MAGIC = 0x52434450;
+
+    /**
+     * The magic number starting every loss report.
+     */
+    public static final int REPORT_MAGIC = 0x52434452;
+
+    /**
+     * The number of bytes of a loss report.
+     */
+    public static final int REPORT_LENGTH = 20;
+
+    /**
+     * The number of bytes of the packet header.
+     */
+    public static final int PACKET_HEADER_LENGTH = 20;
+
+    /**
+     * The largest datagram sent by default: an Ethernet MTU of 1500 bytes, less the IPv4 and UDP
+     * headers.
+     */
+    public static final int DEFAULT_PACKET_SIZE = 1472;
+
+    /**
+     * The largest number of fragments of a message.
+     */
+    public static final int MAX_FRAGMENTS = 0xFFFF;
+
+    /**
+     * Sends the datagrams made by a {@link DatagramFragmenter}.
+     */
+    public interface Sink {
+        /**
+         * Send one datagram made of the bytes between position and limit of the buffers, in
+         * order. The buffers are views of the message and must be left as they are.
+         *
+         * @param packet The packet header, then one or two parts of the message
+         * @param count  The number of buffers of the datagram
+         * @throws IOException If the datagram cannot be sent
+         */
+        void sendPacket(ByteBuffer[] packet, int count) throws IOException;
+    }
+
+    private final int mPacketSize;
+    private final ByteBuffer mHeader = ByteBuffer.allocateDirect(PACKET_HEADER_LENGTH)
+            .order(ByteOrder.BIG_ENDIAN);
+    private final ByteBuffer[] mPacket = new ByteBuffer[3];
+    private int mNextId = 1;
+
+    /**
+     * The number of parity packets per fragment, 0 for none
+     */
+    private double mParityRatio = 0;
+
+    /**
+     * The parity of every group of the message being sent, one fragment size apart
+     */
+    private ByteBuffer mParity = ByteBuffer.allocateDirect(0);
+
+    /**
+     * Create a fragmenter.
+     *
+     * @param packetSize The largest datagram, header included
+     */
+    public DatagramFragmenter(int packetSize) {
+        if (packetSize <= PACKET_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Packet size too small: " + packetSize);
+        }
+        mPacketSize = packetSize;
+    }
+
+    public int getPacketSize() {
+        return mPacketSize;
+    }
+
+    /**
+     * Get the number of message bytes carried by a full packet.
+     *
+     * @return The packet size less the packet header
+     */
+    public int getFragmentSize() {
+        return mPacketSize - PACKET_HEADER_LENGTH;
+    }
+
+    /**
+     * Set how many parity packets follow the fragments of each message.
+     *
+     * @param ratio The number of parity packets per fragment, from 0 for none to 1 for a copy of
+     *              every fragment; every message of at least one fragment gets one parity packet
+     *              when positive
+     */
+    public void setParityRatio(double ratio) {
+        mParityRatio = Math.max(0, Math.min(1, ratio));
+    }
+
+    public double getParityRatio() {
+        return mParityRatio;
+    }
+
+    /**
+     * Get the number of parity packets of a message.
+     *
+     * @param count The number of fragments of the message
+     * @return The number of groups its fragments are dealt into
+     */
+    public int getParityCount(int count) {
+        if (mParityRatio <= 0) {
+            return 0;
+        }
+        return Math.max(1, Math.min(count, (int) Math.ceil(count * mParityRatio)));
+    }
+
+    /**
+     * Send a message, the header followed by the payload, as a run of datagrams. The header is
+     * consumed, while the position of the payload is left untouched, as
+     * {@link FrameTransport#write} does.
+     *
+     * @param header  The first bytes of the message between position and limit, or {@code null}
+     * @param payload The rest of the message between position and limit, or {@code null}
+     * @param sink    Where to send the datagrams
+     * @return The number of datagrams sent, parity packets included
+     * @throws IOException If the message has too many fragments or a datagram cannot be sent
+     */
+    public int send(ByteBuffer header, ByteBuffer payload, Sink sink) throws IOException {
+        int headerLength = header != null ? header.remaining() : 0;
+        int payloadLength = payload != null ? payload.remaining() : 0;
+        long length = (long) headerLength + payloadLength;
+        int fragmentSize = getFragmentSize();
+        long count = Math.max(1, (length + fragmentSize - 1) / fragmentSize);
+        if (count > MAX_FRAGMENTS) {
+            throw new IOException("Message too long for datagrams: " + length + " bytes");
+        }
+
+        int id = mNextId++;
+        int groups = getParityCount((int) count);
+        startParity(groups, fragmentSize);
+        int headerPosition = header != null ? header.position() : 0;
+        int headerLimit = header != null ? header.limit() : 0;
+        int payloadPosition = payload != null ? payload.position() : 0;
+        int payloadLimit = payload != null ? payload.limit() : 0;
+        try {
+            for (int index = 0; index < count; index++) {
+                long start = (long) index * fragmentSize;
+                long end = Math.min(length, start + fragmentSize);
+                mHeader.clear();
+                mHeader.putInt(MAGIC);
+                mHeader.putInt(id);
+                mHeader.putShort((short) index);
+                mHeader.putShort((short) count);
+                mHeader.putInt((int) start);
+                mHeader.putInt((int) length);
+                mHeader.flip();
+
+                int parts = 0;
+                mPacket[parts++] = mHeader;
+                if (start < headerLength) {
+                    header.limit(headerPosition + (int) Math.min(end, headerLength));
+                    header.position(headerPosition + (int) start);
+                    mPacket[parts++] = header;
+                }
+                if (end > headerLength) {
+                    payload.limit(payloadPosition + (int) (end - headerLength));
+                    payload.position(payloadPosition + (int) Math.max(0, start - headerLength));
+                    mPacket[parts++] = payload;
+                }
+                if (groups > 0) {
+                    int parity = (index % groups) * fragmentSize;
+                    for (int i = 1; i < parts; i++) {
+                        ByteBuffer part = mPacket[i];
+                        xor(part, part.position(), mParity, parity, part.remaining());
+                        parity += part.remaining();
+                    }
+                }
+                sink.sendPacket(mPacket, parts);
+            }
+            for (int group = 0; group < groups; group++) {
+                mHeader.clear();
+                mHeader.putInt(PARITY_MAGIC);
+                mHeader.putInt(id);
+                mHeader.putShort((short) group);
+                mHeader.putShort((short) count);
+                mHeader.putInt(groups);
+                mHeader.putInt((int) length);
+                mHeader.flip();
+                // A message of a single fragment is protected by a copy as long as it
+                mParity.limit(group * fragmentSize + (int) Math.min(fragmentSize, length));
+                mParity.position(group * fragmentSize);
+                mPacket[1] = mParity;
+                sink.sendPacket(mPacket, 2);
+            }
+        } finally {
+            mPacket[1] = null;
+            mPacket[2] = null;
+            if (header != null) {
+                header.limit(headerLimit);
+                header.position(headerLimit);
+            }
+            if (payload != null) {
+                payload.limit(payloadLimit);
+                payload.position(payloadPosition);
+            }
+        }
+        return (int) count + groups;
+    }
+
+    /**
+     * Clear the parity of every group of a new message.
+     */
+    private void startParity(int groups, int fragmentSize) {
+        int length = groups * fragmentSize;
+        if (mParity.capacity() < length) {
+            mParity = ByteBuffer.allocateDirect(length);
+        }
+        mParity.clear();
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            mParity.putLong(i, 0);
+        }
+        for (; i < length; i++) {
+            mParity.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * XOR bytes of a buffer into another, eight at a time, leaving positions and limits as
+     * they are.
+     *
+     * @param src      The buffer read
+     * @param srcIndex The index of the first byte read
+     * @param dst      The buffer updated
+     * @param dstIndex The index of the first byte updated
+     * @param length   The number of bytes
+     */
+    public static void xor(ByteBuffer src, int srcIndex, ByteBuffer dst, int dstIndex,
+                           int length) {
+        boolean swap = src.order() != dst.order();
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long value = src.getLong(srcIndex + i);
+            if (swap) {
+                value = Long.reverseBytes(value);
+            }
+            dst.putLong(dstIndex + i, dst.getLong(dstIndex + i) ^ value);
+        }
+        for (; i < length; i++) {
+            dst.put(dstIndex + i, (byte) (dst.get(dstIndex + i) ^ src.get(srcIndex + i)));
+        }
+    }
+
+    /**
+     * Write a loss report.
+     *
+     * @param dst      Where to write the {@link #REPORT_LENGTH} bytes of the report
+     * @param expected The number of fragments of the messages received or given up on
+     * @param lost     How many of them never arrived
+     */
+    public static void putReport(ByteBuffer dst, long expected, long lost) {
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        dst.putInt(REPORT_MAGIC);
+        dst.putLong(expected);
+        dst.putLong(lost);
+        dst.order(order);
+    }
+}
@@ -0,0 +1,313 @@
+package seongdokim.remotecamera;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link FrameTransport} over UDP for live preview on a busy network: each message is split
+ * into datagrams by a {@link DatagramFragmenter}, and a lost datagram costs the frame it belongs
+ * to instead of holding back every frame after it until TCP has retransmitted it. Nothing is
+ * retransmitted, so the receiver does not acknowledge frames; see
+ * {@link FrameSender#setReliable}.
+ *
+ * <p>The receiver speaks first on TCP; over UDP it cannot know the sender before hearing from
+ * it, so an empty message is sent as a hello when the transport is created, and again while a
+ * blocking read waits for the first answer. What the receiver sends is put back together by a
+ * {@link FrameReassembler} and fed to the decoder one whole message at a time.</p>
+ *
+ * <p>Parity packets may follow the fragments of each message, so that the receiver rebuilds a
+ * lost fragment without a retransmission; see {@link DatagramFragmenter}. Their number can be
+ * fixed, or adapted to the loss rate the receiver reports: enough parity to make up for about
+ * {@link #PARITY_PER_LOSS} times the measured loss, within bounds.</p>
+ *
+ * <p>The channel is switched to non-blocking mode; a private {@link Selector} is used to wait
+ * when the socket buffer is full or a blocking read finds nothing.</p>
+ */
+public class DatagramTransport implements FrameTransport {
+    /**
+     * The fewest parity packets per fragment sent with adaptive parity, for a loss-free network.
+     */
+    public static final double DEFAULT_MIN_PARITY = 0.05;
+
+    /**
+     * The most parity packets per fragment sent with adaptive parity.
+     */
+    public static final double DEFAULT_MAX_PARITY = 0.5;
+
+    /**
+     * The parity packets sent per fragment lost with adaptive parity. One lost fragment per group
+     * can be rebuilt, so a group must be small enough to rarely lose two.
+     */
+    private static final double PARITY_PER_LOSS = 3;
+
+    /**
+     * The weight of the latest report in the measured loss rate.
+     */
+    private static final double LOSS_SMOOTHING = 0.25;
+
+    /**
+     * The time in milliseconds between two hellos while the receiver has not answered.
+     */
+    private static final long HELLO_INTERVAL = 500;
+
+    /**
+     * The number of hellos sent before giving up on a silent receiver.
+     */
+    private static final int HELLO_ATTEMPTS = 6;
+
+    /**
+     * The largest message expected from the receiver, which only sends small messages.
+     */
+    private static final int MAX_RECEIVED_MESSAGE = 64 * 1024;
+
+    /**
+     * The time in milliseconds a message from the receiver may take to complete.
+     */
+    private static final long RECEIVE_DEADLINE = 1000;
+
+    private final DatagramChannel mChannel;
+    private final Selector mSelector;
+    private final SelectionKey mKey;
+    private final DatagramFragmenter mFragmenter;
+    private final FrameReassembler mReassembler;
+    private final ByteBuffer mReceiveBuffer;
+    private final DatagramFragmenter.Sink mSink = new DatagramFragmenter.Sink() {
+        @Override
+        public void sendPacket(ByteBuffer[] packet, int count) throws IOException {
+            while (mChannel.write(packet, 0, count) == 0) {
+                await(SelectionKey.OP_WRITE, 0);
+            }
+        }
+    };
+
+    /**
+     * The decoder of the current read, fed by the reassembler
+     */
+    private FrameDecoder mDecoder;
+    private IOException mDecodeFailure;
+    private boolean mHeard = false;
+    private int mHellos = 0;
+    private long mPacketsSent = 0;
+
+    private boolean mAdaptiveParity = false;
+    private double mMinParity;
+    private double mMaxParity;
+
+    /**
+     * The smoothed loss rate of the fragments, -1 until the receiver reports one
+     */
+    private double mLossRate = -1;
+    private long mReportedExpected = 0;
+    private long mReportedLost = 0;
+
+    /**
+     * Take over a connected channel, sending datagrams of at most
+     * {@link DatagramFragmenter#DEFAULT_PACKET_SIZE} bytes.
+     *
+     * @param channel The channel, connected to the receiver
+     * @throws IOException If the channel cannot be made non-blocking or the hello not sent
+     */
+    public DatagramTransport(DatagramChannel channel) throws IOException {
+        this(channel, DatagramFragmenter.DEFAULT_PACKET_SIZE);
+    }
+
+    /**
+     * Take over a connected channel.
+     *
+     * @param channel    The channel, connected to the receiver
+     * @param packetSize The largest datagram sent, headers included
+     * @throws IOException If the channel cannot be made non-blocking or the hello not sent
+     */
+    public DatagramTransport(DatagramChannel channel, int packetSize) throws IOException {
+        mChannel = channel;
+        mFragmenter = new DatagramFragmenter(packetSize);
+        mReceiveBuffer = ByteBuffer.allocate(Math.max(packetSize,
+                DatagramFragmenter.DEFAULT_PACKET_SIZE));
+        mReassembler = new FrameReassembler(4, MAX_RECEIVED_MESSAGE,
+                TimeUnit.MILLISECONDS.toNanos(RECEIVE_DEADLINE), new FrameReassembler.Listener() {
+            @Override
+            public void onMessage(ByteBuffer message) {
+                try {
+                    mDecoder.feed(message);
+                } catch (IOException e) {
+                    mDecodeFailure = e;
+                }
+            }
+        });
+        mChannel.configureBlocking(false);
+        mSelector = Selector.open();
+        mKey = mChannel.register(mSelector, 0);
+        sendHello();
+    }
+
+    private void sendHello() throws IOException {
+        mHellos++;
+        write(null, null);
+    }
+
+    @Override
+    public void write(ByteBuffer header, ByteBuffer payload) throws IOException {
+        mPacketsSent += mFragmenter.send(header, payload, mSink);
+    }
+
+    @Override
+    public int read(FrameDecoder decoder, boolean block) throws IOException {
+        mDecoder = decoder;
+        try {
+            while (true) {
+                mReceiveBuffer.clear();
+                if (mChannel.receive(mReceiveBuffer) != null) {
+                    int bytes = mReceiveBuffer.position();
+                    mReceiveBuffer.flip();
+                    mHeard = true;
+                    if (bytes == DatagramFragmenter.REPORT_LENGTH
+                            && mReceiveBuffer.getInt(0) == DatagramFragmenter.REPORT_MAGIC) {
+                        onReport(mReceiveBuffer.getLong(4), mReceiveBuffer.getLong(12));
+                        return bytes;
+                    }
+                    mReassembler.feed(mReceiveBuffer, System.nanoTime());
+                    if (mDecodeFailure != null) {
+                        throw mDecodeFailure;
+                    }
+                    return bytes;
+                }
+                if (!block) {
+                    return 0;
+                }
+                if (mHeard) {
+                    await(SelectionKey.OP_READ, 0);
+                } else if (!await(SelectionKey.OP_READ, HELLO_INTERVAL)) {
+                    if (mHellos >= HELLO_ATTEMPTS) {
+                        throw new SocketTimeoutException("No answer from the receiver");
+                    }
+                    sendHello();
+                }
+            }
+        } finally {
+            mDecoder = null;
+        }
+    }
+
+    /**
+     * Wait until the channel is ready for {@code ops}.
+     *
+     * @param timeout The longest wait in milliseconds, 0 to wait as long as needed
+     * @return False if the wait timed out
+     */
+    private boolean await(int ops, long timeout) throws IOException {
+        int selected;
+        try {
+            mKey.interestOps(ops);
+            selected = mSelector.select(timeout);
+            mSelector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new ClosedChannelException();
+        } catch (CancelledKeyException e) {
+            throw new ClosedChannelException();
+        }
+        if (!mChannel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        return selected > 0;
+    }
+
+    /**
+     * Take in a loss report of the receiver, adapting the parity to it.
+     *
+     * @param expected The number of fragments the receiver expected since the start
+     * @param lost     The number of them it did not receive
+     */
+    private void onReport(long expected, long lost) {
+        long newExpected = expected - mReportedExpected;
+        if (newExpected <= 0) {
+            // Nothing new, or a report overtaken by a later one
+            return;
+        }
+        double rate = Math.max(0, Math.min(1, (double) (lost - mReportedLost) / newExpected));
+        mReportedExpected = expected;
+        mReportedLost = lost;
+        mLossRate = mLossRate < 0 ? rate
+                : mLossRate + LOSS_SMOOTHING * (rate - mLossRate);
+        if (mAdaptiveParity) {
+            mFragmenter.setParityRatio(Math.max(mMinParity,
+                    Math.min(mMaxParity, PARITY_PER_LOSS * mLossRate)));
+        }
+    }
+
+    /**
+     * Send a fixed number of parity packets with every message.
+     *
+     * @param ratio The number of parity packets per fragment, 0 for none
+     */
+    public void setParityRatio(double ratio) {
+        mAdaptiveParity = false;
+        mFragmenter.setParityRatio(ratio);
+    }
+
+    /**
+     * Adapt the number of parity packets sent with every message to the loss rate the receiver
+     * reports, starting from the least.
+     *
+     * @param minRatio The fewest parity packets per fragment
+     * @param maxRatio The most parity packets per fragment
+     */
+    public void setAdaptiveParity(double minRatio, double maxRatio) {
+        mAdaptiveParity = true;
+        mMinParity = minRatio;
+        mMaxParity = Math.max(minRatio, maxRatio);
+        mFragmenter.setParityRatio(mMinParity);
+    }
+
+    /**
+     * Get the number of parity packets per fragment currently sent.
+     *
+     * @return The parity ratio, 0 for none
+     */
+    public double getParityRatio() {
+        return mFragmenter.getParityRatio();
+    }
+
+    /**
+     * Get the loss rate of the fragments reported by the receiver, smoothed over the reports.
+     *
+     * @return The fraction of the fragments lost, or -1 until the receiver reported one
+     */
+    public double getLossRate() {
+        return mLossRate;
+    }
+
+    /**
+     * Get the number of datagrams sent, hellos included.
+     *
+     * @return The number of datagrams
+     */
+    public long getPacketsSent() {
+        return mPacketsSent;
+    }
+
+    /**
+     * Get the reassembler of the messages of the receiver, to read its counters.
+     *
+     * @return The reassembler
+     */
+    public FrameReassembler getReassembler() {
+        return mReassembler;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mChannel.close();
+        } finally {
+            mSelector.close();
+        }
+    }
+}
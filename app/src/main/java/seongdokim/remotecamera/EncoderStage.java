@@ -0,0 +1,336 @@
+package seongdokim.remotecamera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodes camera images on dedicated threads, one per {@link FrameEncoder}, so that the camera
+ * thread only hands images over and never waits for an encoder.
+ *
+ * <p>There is a single pending slot: an image submitted while every encoder is busy replaces
+ * the one waiting, which is dropped, so the stage always encodes the latest image and holds at
+ * most one image per encoder plus the pending one. With several encoders the images are
+ * encoded in parallel but delivered in capture order: an encoder that finishes before the
+ * encoders of earlier images waits for them, holding its output, rather than dropping it.</p>
+ */
+public class EncoderStage {
+    /**
+     * Where the encoded images go.
+     */
+    public interface Sink {
+        /**
+         * An image was encoded. Called on an encoder thread, one call at a time, in capture
+         * order.
+         *
+         * @param data      The encoded bytes between position and limit, only valid during the
+         *                  call
+         * @param width     The width of the image
+         * @param height    The height of the image
+         * @param timestamp The capture timestamp of the image
+         */
+        void onFrameEncoded(ByteBuffer data, int width, int height, long timestamp);
+    }
+
+    private final FrameEncoder[] mEncoders;
+    private final Sink mSink;
+    private final Thread[] mThreads;
+
+    /**
+     * Guards the pending image and the running flag
+     */
+    private final Object mLock = new Object();
+    private YuvPlanes mPending;
+    private AutoCloseable mPendingOwner;
+    private boolean mRunning = false;
+    private long mNextTakeSequence = 0;
+
+    /**
+     * Guards the delivery to the sink
+     */
+    private final Object mSinkLock = new Object();
+    private long mNextDeliverSequence = 0;
+
+    private volatile long mSubmittedCount = 0;
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private volatile long mEncodedCount = 0;
+    private volatile long mEncodeNanos = 0;
+    private volatile RuntimeException mLastError;
+
+    /**
+     * Where to record the encode times and the dropped images too, or {@code null}
+     */
+    private volatile StreamMetrics mMetrics;
+
+    /**
+     * Create a stage.
+     *
+     * @param encoders The encoders, each run by its own thread
+     * @param sink     Where the encoded images go
+     */
+    public EncoderStage(FrameEncoder[] encoders, Sink sink) {
+        if (encoders.length == 0) {
+            throw new IllegalArgumentException("No encoder");
+        }
+        mEncoders = encoders.clone();
+        mSink = sink;
+        mThreads = new Thread[encoders.length];
+    }
+
+    /**
+     * Record the encode times and the dropped images into a registry as well.
+     *
+     * @param metrics The registry, or {@code null} to stop
+     */
+    public void setMetrics(StreamMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Get the number of encoder threads that keeps every core busy.
+     *
+     * @return The number of processors available, at least one
+     */
+    public static int defaultThreadCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Start the encoder threads.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mRunning || mThreads[0] != null) {
+                throw new IllegalStateException("Stage already started");
+            }
+            mRunning = true;
+        }
+        for (int i = 0; i < mEncoders.length; i++) {
+            final FrameEncoder encoder = mEncoders[i];
+            mThreads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop(encoder);
+                }
+            }, "EncoderStage-" + i);
+            mThreads[i].start();
+        }
+    }
+
+    /**
+     * Stop the encoder threads once they are done with their current image, and close the
+     * pending image. This does not wait for the threads to finish.
+     */
+    public void shutdown() {
+        YuvPlanes pending;
+        AutoCloseable owner;
+        synchronized (mLock) {
+            mRunning = false;
+            pending = mPending;
+            owner = mPendingOwner;
+            mPending = null;
+            mPendingOwner = null;
+            mLock.notifyAll();
+        }
+        if (pending != null) {
+            mDroppedCount.incrementAndGet();
+            close(owner);
+        }
+    }
+
+    /**
+     * Wait for the encoder threads to finish after {@link #shutdown()}. Once they are, every
+     * submitted image is closed.
+     *
+     * @param millis The longest time to wait for each thread
+     * @throws InterruptedException If the calling thread is interrupted
+     */
+    public void join(long millis) throws InterruptedException {
+        for (Thread thread : mThreads) {
+            if (thread != null) {
+                thread.join(millis);
+            }
+        }
+    }
+
+    /**
+     * Hand an image over to the encoders. Must be called from a single thread, the camera
+     * thread.
+     *
+     * @param image The image, whose planes must stay valid until its owner is closed
+     * @param owner What to close once the image is encoded or dropped, such as the camera
+     *              image the planes belong to, or {@code null}
+     * @return False if the image was dropped because the stage is not running
+     */
+    public boolean submit(YuvPlanes image, AutoCloseable owner) {
+        YuvPlanes replaced;
+        AutoCloseable replacedOwner;
+        synchronized (mLock) {
+            if (!mRunning) {
+                replaced = image;
+                replacedOwner = owner;
+            } else {
+                replaced = mPending;
+                replacedOwner = mPendingOwner;
+                mPending = image;
+                mPendingOwner = owner;
+                mLock.notify();
+            }
+        }
+        mSubmittedCount++;
+        if (replaced != null) {
+            onDropped();
+            close(replacedOwner);
+        }
+        return replaced != image;
+    }
+
+    /**
+     * Tell whether an image submitted now would be taken without replacing another.
+     *
+     * @return False if an image is already waiting for an encoder
+     */
+    public boolean canAccept() {
+        synchronized (mLock) {
+            return mPending == null;
+        }
+    }
+
+    private void loop(FrameEncoder encoder) {
+        while (true) {
+            YuvPlanes image;
+            AutoCloseable owner;
+            long sequence;
+            synchronized (mLock) {
+                while (mRunning && mPending == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                image = mPending;
+                owner = mPendingOwner;
+                mPending = null;
+                mPendingOwner = null;
+                sequence = mNextTakeSequence++;
+            }
+
+            long start = System.nanoTime();
+            ByteBuffer data = null;
+            try {
+                data = encoder.encode(image);
+            } catch (RuntimeException e) {
+                // A broken image must not stop the stream
+                mLastError = e;
+                onDropped();
+            } finally {
+                close(owner);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            synchronized (mSinkLock) {
+                // The images taken before this one are being encoded and will all come here,
+                // failed or not, so the wait is bounded by the slowest of them
+                boolean interrupted = false;
+                while (sequence != mNextDeliverSequence) {
+                    try {
+                        mSinkLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                try {
+                    if (data != null) {
+                        mEncodeNanos += elapsed;
+                        mEncodedCount++;
+                        StreamMetrics metrics = mMetrics;
+                        if (metrics != null) {
+                            metrics.recordLatency(StreamMetrics.LATENCY_ENCODE, elapsed);
+                        }
+                        mSink.onFrameEncoded(data, image.getWidth(), image.getHeight(),
+                                image.getTimestamp());
+                    }
+                } finally {
+                    mNextDeliverSequence++;
+                    mSinkLock.notifyAll();
+                }
+                if (interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void onDropped() {
+        mDroppedCount.incrementAndGet();
+        StreamMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.increment(StreamMetrics.COUNTER_FRAMES_DROPPED);
+        }
+    }
+
+    private static void close(AutoCloseable owner) {
+        if (owner == null) {
+            return;
+        }
+        try {
+            owner.close();
+        } catch (Exception e) {
+            // The image is gone either way
+        }
+    }
+
+    public int getThreadCount() {
+        return mEncoders.length;
+    }
+
+    /**
+     * Get the number of images submitted so far.
+     *
+     * @return The number of calls to {@link #submit(YuvPlanes, AutoCloseable)}
+     */
+    public long getSubmittedCount() {
+        return mSubmittedCount;
+    }
+
+    /**
+     * Get the number of images dropped so far: replaced while pending, failed, or
+     * submitted while stopped.
+     *
+     * @return The number of images not delivered
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Get the number of images delivered to the sink so far.
+     *
+     * @return The number of images encoded and delivered
+     */
+    public long getEncodedCount() {
+        return mEncodedCount;
+    }
+
+    /**
+     * Get the mean time an encoder took per image.
+     *
+     * @return The mean encoding time in nanoseconds, or zero before the first image
+     */
+    public long getMeanEncodeNanos() {
+        long encoded = mEncodedCount;
+        return encoded == 0 ? 0 : mEncodeNanos / encoded;
+    }
+
+    /**
+     * Get the last failure of an encoder.
+     *
+     * @return The exception thrown by the last image that failed, or {@code null}
+     */
+    public RuntimeException getLastError() {
+        return mLastError;
+    }
+}
@@ -0,0 +1,224 @@
+package seongdokim.remotecamera;
+
+/**
+ * Maps the format requests of the receivers onto the output sizes and frame rate ranges
+ * enumerated from the camera, and measures each switch: the time from the request to the first
+ * frame in the new format, and the number of frames lost on the way.
+ *
+ * <p>Sizes and ranges are given as {@code {width, height}} and {@code {min, max}} pairs so
+ * that this class stays free of the camera classes. {@link #beginSwitch} and {@link #onFrame}
+ * are called from a single thread, the camera thread; the measurements may be read from any
+ * thread.</p>
+ */
+public class FormatSwitcher {
+    /**
+     * The weight of the last frame interval in the estimate of the interval
+     */
+    private static final float INTERVAL_SMOOTHING = 0.1f;
+
+    private volatile int[][] mSizes;
+    private volatile int[][] mFrameRateRanges;
+
+    /**
+     * The switch in progress: when it began and the size it waits for, 0x0 for any frame
+     */
+    private boolean mSwitching = false;
+    private long mSwitchStart;
+    private int mTargetWidth;
+    private int mTargetHeight;
+
+    private long mLastFrameTime = -1;
+    private float mFrameInterval = -1;
+
+    private volatile int mSwitchCount = 0;
+    private volatile long mLastSwitchNanos = 0;
+    private volatile long mMaxSwitchNanos = 0;
+    private volatile long mTotalSwitchNanos = 0;
+    private volatile int mLastDroppedFrames = 0;
+    private volatile long mDroppedFrames = 0;
+
+    /**
+     * Create a switcher.
+     *
+     * @param sizes           The output sizes offered to the receivers, {@code {width, height}}
+     * @param frameRateRanges The target frame rate ranges of the camera, {@code {min, max}},
+     *                        or none if the frame rate cannot be chosen
+     */
+    public FormatSwitcher(int[][] sizes, int[][] frameRateRanges) {
+        setOptions(sizes, frameRateRanges);
+    }
+
+    /**
+     * Change the sizes and ranges to choose from, when the camera opens again, keeping the
+     * measurements and the switch in progress.
+     *
+     * @param sizes           The output sizes offered to the receivers, {@code {width, height}}
+     * @param frameRateRanges The target frame rate ranges of the camera, {@code {min, max}}
+     */
+    public void setOptions(int[][] sizes, int[][] frameRateRanges) {
+        if (sizes.length == 0) {
+            throw new IllegalArgumentException("No output size");
+        }
+        mSizes = sizes.clone();
+        mFrameRateRanges = frameRateRanges.clone();
+    }
+
+    /**
+     * Choose the offered size closest to the one asked for: the largest that fits in it, or the
+     * smallest offered if none fits.
+     *
+     * @param width  The width asked for
+     * @param height The height asked for
+     * @return The size, {@code {width, height}}
+     */
+    public int[] chooseSize(int width, int height) {
+        int[][] sizes = mSizes;
+        int[] best = null;
+        int[] smallest = sizes[0];
+        for (int[] size : sizes) {
+            if (area(size) < area(smallest)) {
+                smallest = size;
+            }
+            if (size[0] <= width && size[1] <= height
+                    && (best == null || area(size) > area(best))) {
+                best = size;
+            }
+        }
+        return best != null ? best : smallest;
+    }
+
+    /**
+     * Choose the frame rate range that gives the rate asked for: preferably a fixed rate, else
+     * the steadiest range reaching it, else the fastest range.
+     *
+     * @param frameRate The number of frames per second asked for
+     * @return The range, {@code {min, max}}, or {@code null} if none is known
+     */
+    public int[] chooseFrameRateRange(int frameRate) {
+        int[] best = null;
+        int[] fastest = null;
+        for (int[] range : mFrameRateRanges) {
+            if (fastest == null || range[1] > fastest[1]
+                    || (range[1] == fastest[1] && range[0] > fastest[0])) {
+                fastest = range;
+            }
+            if (range[1] < frameRate) {
+                continue;
+            }
+            // The closest maximum, then the highest minimum
+            if (best == null || range[1] < best[1]
+                    || (range[1] == best[1] && range[0] > best[0])) {
+                best = range;
+            }
+        }
+        return best != null ? best : fastest;
+    }
+
+    private static long area(int[] size) {
+        return (long) size[0] * size[1];
+    }
+
+    /**
+     * Start measuring a switch.
+     *
+     * @param now    The time of the request in {@link System#nanoTime()} units
+     * @param width  The width of the new format, 0 if the size does not change
+     * @param height The height of the new format, 0 if the size does not change
+     */
+    public void beginSwitch(long now, int width, int height) {
+        mSwitching = true;
+        mSwitchStart = now;
+        mTargetWidth = width;
+        mTargetHeight = height;
+    }
+
+    /**
+     * Tell that a frame came from the camera, to end the switch in progress when it is in the
+     * new format.
+     *
+     * @param now    The time the frame came in {@link System#nanoTime()} units
+     * @param width  The width of the frame
+     * @param height The height of the frame
+     * @return True if the frame ended a switch
+     */
+    public boolean onFrame(long now, int width, int height) {
+        long last = mLastFrameTime;
+        mLastFrameTime = now;
+        boolean ended = mSwitching && (mTargetWidth == 0
+                || (width == mTargetWidth && height == mTargetHeight));
+        if (!ended) {
+            if (last >= 0) {
+                long interval = now - last;
+                mFrameInterval = mFrameInterval < 0 ? interval
+                        : mFrameInterval + INTERVAL_SMOOTHING * (interval - mFrameInterval);
+            }
+            return false;
+        }
+
+        mSwitching = false;
+        long latency = now - mSwitchStart;
+        int dropped = 0;
+        if (last >= 0 && mFrameInterval > 0) {
+            // The frames that would have come in the gap at the old rate
+            dropped = Math.max(0, Math.round((now - last) / mFrameInterval) - 1);
+        }
+        mSwitchCount++;
+        mLastSwitchNanos = latency;
+        mMaxSwitchNanos = Math.max(mMaxSwitchNanos, latency);
+        mTotalSwitchNanos += latency;
+        mLastDroppedFrames = dropped;
+        mDroppedFrames += dropped;
+        // The rate may have changed: learn it again
+        mFrameInterval = -1;
+        return true;
+    }
+
+    public boolean isSwitching() {
+        return mSwitching;
+    }
+
+    public int getSwitchCount() {
+        return mSwitchCount;
+    }
+
+    /**
+     * Get the time the last switch took.
+     *
+     * @return The time from the request to the first frame in the new format, in nanoseconds
+     */
+    public long getLastSwitchNanos() {
+        return mLastSwitchNanos;
+    }
+
+    public long getMaxSwitchNanos() {
+        return mMaxSwitchNanos;
+    }
+
+    /**
+     * Get the average time a switch took.
+     *
+     * @return The mean switch time in nanoseconds, 0 before the first switch
+     */
+    public long getMeanSwitchNanos() {
+        int count = mSwitchCount;
+        return count == 0 ? 0 : mTotalSwitchNanos / count;
+    }
+
+    /**
+     * Get the number of frames lost during the last switch.
+     *
+     * @return The number of frame intervals without a frame in the switch
+     */
+    public int getLastDroppedFrames() {
+        return mLastDroppedFrames;
+    }
+
+    /**
+     * Get the number of frames lost during all the switches.
+     *
+     * @return The total of the frames lost in switches
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+}
@@ -0,0 +1,214 @@
+package seongdokim.remotecamera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted buffer holding one encoded frame along with its size and capture time.
+ * Buffers come from a {@link FrameBufferPool} and go back to it when the last reference is
+ * released, so the camera side can fill a buffer, hand it over to the network side, and forget
+ * about it.
+ *
+ * <p>A newly acquired buffer has a single reference owned by the caller. Each additional owner
+ * calls {@link #retain()}, and every owner calls {@link #release()} exactly once when done.</p>
+ */
+public class FrameBuffer {
+    private final FrameBufferPool mPool;
+    private final ByteBuffer mBuffer;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    private int mWidth;
+    private int mHeight;
+    private long mTimestamp;
+    private int mFlags;
+    private final CaptureMetadata mMetadata = new CaptureMetadata();
+    private boolean mHasMetadata;
+
+    /**
+     * Where the buffer was last acquired, when the pool tracks leaks.
+     */
+    Throwable mAcquireSite;
+
+    /**
+     * When the buffer was last acquired, in {@link System#nanoTime()} units.
+     */
+    long mAcquireTime;
+
+    FrameBuffer(FrameBufferPool pool, ByteBuffer buffer) {
+        mPool = pool;
+        mBuffer = buffer;
+    }
+
+    /**
+     * Wrap an existing array in a buffer that belongs to no pool, for callers that already hold
+     * the bytes of a frame.
+     *
+     * @param data The encoded frame
+     * @return A buffer with one reference, whose content is {@code data}
+     */
+    public static FrameBuffer wrap(byte[] data) {
+        FrameBuffer frame = new FrameBuffer(null, ByteBuffer.wrap(data));
+        frame.mRefCount.set(1);
+        frame.mAcquireTime = System.nanoTime();
+        return frame;
+    }
+
+    /**
+     * Get the bytes of the frame. After acquisition the buffer is cleared and ready to be
+     * written; the writer flips it so that the frame lies between position and limit.
+     *
+     * @return The underlying buffer
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Set the description of the frame held in the buffer.
+     *
+     * @param width     The width of the image
+     * @param height    The height of the image
+     * @param timestamp The capture timestamp in nanoseconds
+     * @return This buffer
+     */
+    public FrameBuffer setImageInfo(int width, int height, long timestamp) {
+        mWidth = width;
+        mHeight = height;
+        mTimestamp = timestamp;
+        return this;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Set the {@code FLAG_} bits of {@link FrameHeader} describing the frame, such as its codec
+     * and whether it is a keyframe. A JPEG image needs none.
+     *
+     * @param flags The flags of the frame
+     * @return This buffer
+     */
+    public FrameBuffer setFlags(int flags) {
+        mFlags = flags;
+        return this;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * Get the capture metadata of the frame, to fill in or to read.
+     *
+     * @return The metadata owned by the buffer, valid if {@link #hasMetadata()}
+     */
+    public CaptureMetadata getMetadata() {
+        return mMetadata;
+    }
+
+    /**
+     * Tell whether the metadata of the frame was filled in.
+     *
+     * @return True if {@link #getMetadata()} describes the capture of the frame
+     */
+    public boolean hasMetadata() {
+        return mHasMetadata;
+    }
+
+    /**
+     * Mark the metadata of the frame as filled in or not.
+     *
+     * @param hasMetadata Whether {@link #getMetadata()} describes the capture of the frame
+     * @return This buffer
+     */
+    public FrameBuffer setHasMetadata(boolean hasMetadata) {
+        mHasMetadata = hasMetadata;
+        return this;
+    }
+
+    /**
+     * Get when the buffer was acquired, that is when the frame was handed over by the camera,
+     * to measure how long it takes to get it across.
+     *
+     * @return The time in {@link System#nanoTime()} units
+     */
+    public long getAcquireTime() {
+        return mAcquireTime;
+    }
+
+    /**
+     * Get the number of bytes of the frame, assuming the buffer has been flipped.
+     *
+     * @return The number of bytes between position and limit
+     */
+    public int getLength() {
+        return mBuffer.remaining();
+    }
+
+    /**
+     * Add a reference for a new owner.
+     *
+     * @return This buffer
+     * @throws IllegalStateException If the buffer was already released
+     */
+    public FrameBuffer retain() {
+        while (true) {
+            int count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Retain of a released frame buffer");
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Drop a reference. The buffer goes back to its pool when the last reference is dropped,
+     * after which it must not be touched.
+     *
+     * @throws IllegalStateException If the buffer was already released
+     */
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            if (mPool != null) {
+                mPool.recycle(this);
+            }
+        } else if (count < 0) {
+            mRefCount.incrementAndGet();
+            throw new IllegalStateException("Release of a released frame buffer");
+        }
+    }
+
+    /**
+     * Get the number of references held.
+     *
+     * @return The reference count, zero once the buffer is back in its pool
+     */
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+
+    /**
+     * Prepare a pooled buffer for a new owner.
+     */
+    void reset() {
+        mBuffer.clear();
+        mWidth = 0;
+        mHeight = 0;
+        mTimestamp = 0;
+        mFlags = 0;
+        mHasMetadata = false;
+        mRefCount.set(1);
+    }
+}
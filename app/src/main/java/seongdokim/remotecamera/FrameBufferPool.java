@@ -0,0 +1,252 @@
+package seongdokim.remotecamera;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of {@link FrameBuffer}s sorted into power-of-two size classes, so that streaming at
+ * a steady frame size allocates nothing once the pool is warm. A request is served from the
+ * smallest class that fits it; requests larger than the largest class are allocated on demand
+ * and left to the garbage collector.
+ *
+ * <p>The pool counts acquisitions and allocations so that the allocation rate can be reported,
+ * and in debug builds it remembers where every outstanding buffer was acquired so that buffers
+ * never released can be tracked down.</p>
+ */
+public class FrameBufferPool {
+    /**
+     * The smallest size class, 16 KiB.
+     */
+    public static final int MIN_SIZE_CLASS = 1 << 14;
+
+    /**
+     * The largest size class, 16 MiB.
+     */
+    public static final int MAX_SIZE_CLASS = 1 << 24;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE_CLASS);
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE_CLASS) - MIN_SHIFT + 1;
+
+    /**
+     * Free buffers of each size class, used as stacks so that the most recently used, and
+     * most likely cached, buffer is reused first.
+     */
+    private final FrameBuffer[][] mFree;
+    private final int[] mFreeCount;
+
+    private final boolean mTrackLeaks;
+    private final boolean mDirect;
+
+    /**
+     * Buffers acquired and not released yet, only filled when tracking leaks.
+     */
+    private final Set<FrameBuffer> mOutstanding;
+
+    private final AtomicLong mAcquired = new AtomicLong();
+    private final AtomicLong mAllocations = new AtomicLong();
+    private final AtomicLong mAllocatedBytes = new AtomicLong();
+
+    /**
+     * Create a pool.
+     *
+     * @param maxFreePerClass The number of free buffers kept in each size class; buffers released
+     *                        beyond it are left to the garbage collector
+     * @param trackLeaks      Whether to record where buffers are acquired, for debug builds
+     */
+    public FrameBufferPool(int maxFreePerClass, boolean trackLeaks) {
+        this(maxFreePerClass, trackLeaks, false);
+    }
+
+    /**
+     * Create a pool, optionally of direct buffers. Direct buffers can be handed to a channel
+     * without being copied into a temporary native buffer first, but cost more to allocate and
+     * are not backed by an array.
+     *
+     * @param maxFreePerClass The number of free buffers kept in each size class; buffers released
+     *                        beyond it are left to the garbage collector
+     * @param trackLeaks      Whether to record where buffers are acquired, for debug builds
+     * @param direct          Whether to allocate direct buffers
+     */
+    public FrameBufferPool(int maxFreePerClass, boolean trackLeaks, boolean direct) {
+        mFree = new FrameBuffer[CLASS_COUNT][maxFreePerClass];
+        mFreeCount = new int[CLASS_COUNT];
+        mTrackLeaks = trackLeaks;
+        mDirect = direct;
+        mOutstanding = trackLeaks
+                ? Collections.newSetFromMap(new IdentityHashMap<FrameBuffer, Boolean>())
+                : null;
+    }
+
+    /**
+     * Get a buffer of at least {@code size} bytes, cleared and holding one reference.
+     *
+     * @param size The number of bytes needed
+     * @return A buffer whose remaining capacity is at least {@code size}
+     */
+    public FrameBuffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size: " + size);
+        }
+        mAcquired.incrementAndGet();
+
+        int sizeClass = sizeClassOf(size);
+        FrameBuffer frame = null;
+        if (sizeClass >= 0) {
+            synchronized (mFree[sizeClass]) {
+                int count = mFreeCount[sizeClass];
+                if (count > 0) {
+                    frame = mFree[sizeClass][--count];
+                    mFree[sizeClass][count] = null;
+                    mFreeCount[sizeClass] = count;
+                }
+            }
+        }
+        if (frame == null) {
+            int capacity = sizeClass >= 0 ? MIN_SIZE_CLASS << sizeClass : size;
+            // Oversized buffers come back too, to be forgotten by the leak tracking
+            frame = new FrameBuffer(this, allocate(capacity));
+            mAllocations.incrementAndGet();
+            mAllocatedBytes.addAndGet(capacity);
+        }
+
+        frame.reset();
+        frame.mAcquireTime = System.nanoTime();
+        if (mTrackLeaks) {
+            frame.mAcquireSite = new Throwable("Frame buffer acquired here");
+            synchronized (mOutstanding) {
+                mOutstanding.add(frame);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Allocate the memory of a new buffer.
+     *
+     * @param capacity The size of the buffer
+     * @return A new buffer
+     */
+    protected ByteBuffer allocate(int capacity) {
+        return mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Take back a buffer whose last reference was released.
+     */
+    void recycle(FrameBuffer frame) {
+        if (mTrackLeaks) {
+            synchronized (mOutstanding) {
+                mOutstanding.remove(frame);
+            }
+            frame.mAcquireSite = null;
+        }
+
+        int sizeClass = sizeClassOf(frame.getBuffer().capacity());
+        if (sizeClass < 0) {
+            // Larger than any class, left to the garbage collector
+            return;
+        }
+        synchronized (mFree[sizeClass]) {
+            int count = mFreeCount[sizeClass];
+            if (count < mFree[sizeClass].length) {
+                mFree[sizeClass][count] = frame;
+                mFreeCount[sizeClass] = count + 1;
+            }
+        }
+    }
+
+    /**
+     * Get the buffers acquired longer than {@code maxAgeNanos} ago and not released yet. Only
+     * available when the pool tracks leaks.
+     *
+     * @param maxAgeNanos The age beyond which an outstanding buffer is considered leaked
+     * @return For each leaked buffer, the stack trace of its acquisition
+     */
+    public List<Throwable> findLeaks(long maxAgeNanos) {
+        List<Throwable> leaks = new ArrayList<>();
+        if (!mTrackLeaks) {
+            return leaks;
+        }
+        long now = System.nanoTime();
+        synchronized (mOutstanding) {
+            for (FrameBuffer frame : mOutstanding) {
+                if (now - frame.mAcquireTime > maxAgeNanos && frame.mAcquireSite != null) {
+                    leaks.add(frame.mAcquireSite);
+                }
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * Tell whether the pool allocates direct buffers.
+     *
+     * @return True if buffers are direct
+     */
+    public boolean isDirect() {
+        return mDirect;
+    }
+
+    /**
+     * Get the number of buffers handed out since the pool was created.
+     *
+     * @return The number of calls to {@link #acquire(int)}
+     */
+    public long getAcquiredCount() {
+        return mAcquired.get();
+    }
+
+    /**
+     * Get the number of buffers the pool had to allocate because no free buffer fit.
+     *
+     * @return The number of allocations
+     */
+    public long getAllocationCount() {
+        return mAllocations.get();
+    }
+
+    /**
+     * Get the number of bytes allocated since the pool was created. Sampled at two points in
+     * time, it gives the allocation rate of the frame path.
+     *
+     * @return The total size of allocated buffers
+     */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes.get();
+    }
+
+    /**
+     * Get the number of buffers acquired and not released yet. Only available when the pool
+     * tracks leaks.
+     *
+     * @return The number of outstanding buffers, or -1 if leaks are not tracked
+     */
+    public int getOutstandingCount() {
+        if (!mTrackLeaks) {
+            return -1;
+        }
+        synchronized (mOutstanding) {
+            return mOutstanding.size();
+        }
+    }
+
+    /**
+     * Get the index of the smallest size class holding {@code size} bytes.
+     *
+     * @return The size class, or -1 if the size is larger than {@link #MAX_SIZE_CLASS}
+     */
+    private static int sizeClassOf(int size) {
+        if (size <= MIN_SIZE_CLASS) {
+            return 0;
+        }
+        if (size > MAX_SIZE_CLASS) {
+            return -1;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,333 @@
+package seongdokim.remotecamera;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * An incremental decoder for the byte stream sent by a receiver or a camera. The stream is a
+ * sequence of JSON messages, used for the welcome handshake and by older peers, and binary
+ * {@link FrameHeader}s each followed by the number of payload bytes given in the header.
+ *
+ * <p>TCP gives no guarantee on how the stream is split into reads, so the decoder keeps its state
+ * across calls: a read may end in the middle of a header or a JSON message, or hold several
+ * messages at once. Bytes are parsed in place in a single reused buffer, and payloads are passed
+ * to the {@link Listener} as views of that buffer in as many chunks as needed, so a payload may be
+ * far larger than the buffer itself.</p>
+ *
+ * <p>Instances are not thread-safe; use one decoder per connection from a single thread.</p>
+ */
+public class FrameDecoder {
+    /**
+     * Receives the messages found by a {@link FrameDecoder}. The buffers passed to the listener
+     * are views of the decoder's own buffer, valid only until the callback returns.
+     */
+    public interface Listener {
+        /**
+         * Called for each complete JSON message.
+         *
+         * @param message The bytes of the message between its position and limit
+         */
+        void onJsonMessage(ByteBuffer message);
+
+        /**
+         * Called for each binary header, before any of its payload.
+         *
+         * @param header The decoded header, reused for every header
+         */
+        void onHeader(FrameHeader header);
+
+        /**
+         * Called for each chunk of the payload following the last header. Payloads of zero bytes
+         * produce no call.
+         *
+         * @param chunk     The bytes of the chunk between its position and limit
+         * @param remaining The number of payload bytes still to come after this chunk
+         */
+        void onPayload(ByteBuffer chunk, int remaining);
+    }
+
+    /**
+     * Decoder state: waiting for the first byte of a message.
+     */
+    private static final int STATE_IDLE = 0;
+
+    /**
+     * Decoder state: reading a JSON message.
+     */
+    private static final int STATE_JSON = 1;
+
+    /**
+     * Decoder state: reading a binary header.
+     */
+    private static final int STATE_HEADER = 2;
+
+    /**
+     * Decoder state: reading the payload of the last header.
+     */
+    private static final int STATE_PAYLOAD = 3;
+
+    private final Listener mListener;
+
+    /**
+     * Received bytes not parsed yet lie between the position and the limit.
+     */
+    private final ByteBuffer mBuffer;
+
+    private final FrameHeader mHeader = new FrameHeader();
+
+    private int mState = STATE_IDLE;
+
+    /**
+     * The number of payload bytes still expected in {@link #STATE_PAYLOAD}.
+     */
+    private int mPayloadRemaining;
+
+    /**
+     * The number of bytes of the current JSON message already scanned, so that a message split
+     * across reads is not scanned twice.
+     */
+    private int mJsonScanned;
+    private int mJsonDepth;
+    private boolean mJsonInString;
+    private boolean mJsonEscaped;
+
+    /**
+     * Create a decoder.
+     *
+     * @param bufferSize The size of the receive buffer. It bounds the size of a JSON message, and
+     *                   must hold at least one {@link FrameHeader}.
+     * @param listener   The listener of decoded messages
+     */
+    public FrameDecoder(int bufferSize, Listener listener) {
+        if (bufferSize < FrameHeader.HEADER_LENGTH) {
+            throw new IllegalArgumentException("Buffer too small for a header: " + bufferSize);
+        }
+        mListener = listener;
+        mBuffer = ByteBuffer.allocate(bufferSize);
+        mBuffer.flip();
+    }
+
+    /**
+     * Read once from {@code in} and decode whatever was received. This blocks as long as
+     * {@link InputStream#read(byte[], int, int)} does.
+     *
+     * @param in The stream to read from
+     * @return The number of bytes read, or -1 at the end of the stream
+     * @throws IOException If the read fails or the bytes are not a valid message
+     */
+    public int read(InputStream in) throws IOException {
+        prepareForWrite();
+        int bytes = in.read(mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position(),
+                mBuffer.remaining());
+        if (bytes > 0) {
+            mBuffer.position(mBuffer.position() + bytes);
+        }
+        mBuffer.flip();
+        if (bytes > 0) {
+            decode();
+        }
+        return bytes;
+    }
+
+    /**
+     * Read once from {@code channel} and decode whatever was received. On a non-blocking channel
+     * this returns 0 at once when nothing is available.
+     *
+     * @param channel The channel to read from
+     * @return The number of bytes read, or -1 at the end of the stream
+     * @throws IOException If the read fails or the bytes are not a valid message
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        prepareForWrite();
+        int bytes = channel.read(mBuffer);
+        mBuffer.flip();
+        if (bytes > 0) {
+            decode();
+        }
+        return bytes;
+    }
+
+    /**
+     * Decode bytes received by other means, such as a channel.
+     *
+     * @param src The received bytes between its position and limit; all of them are consumed
+     * @throws ProtocolException If the bytes are not a valid message
+     */
+    public void feed(ByteBuffer src) throws ProtocolException {
+        while (src.hasRemaining()) {
+            prepareForWrite();
+            int length = Math.min(src.remaining(), mBuffer.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + length);
+            mBuffer.put(src);
+            src.limit(limit);
+            mBuffer.flip();
+            decode();
+        }
+    }
+
+    /**
+     * Decode bytes received by other means.
+     *
+     * @param src    The received bytes
+     * @param offset The offset of the first byte
+     * @param length The number of bytes
+     * @throws ProtocolException If the bytes are not a valid message
+     */
+    public void feed(byte[] src, int offset, int length) throws ProtocolException {
+        int end = offset + length;
+        while (offset < end) {
+            prepareForWrite();
+            int count = Math.min(end - offset, mBuffer.remaining());
+            mBuffer.put(src, offset, count);
+            offset += count;
+            mBuffer.flip();
+            decode();
+        }
+    }
+
+    /**
+     * Treat the next {@code length} bytes as a payload, as they follow a JSON header which the
+     * decoder cannot read the length of. Meant to be called from
+     * {@link Listener#onJsonMessage(ByteBuffer)}; the bytes are then passed to
+     * {@link Listener#onPayload(ByteBuffer, int)} like the payload of a binary header.
+     *
+     * @param length The number of payload bytes
+     */
+    public void expectPayload(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative payload length: " + length);
+        }
+        mPayloadRemaining = length;
+        mState = length > 0 ? STATE_PAYLOAD : STATE_IDLE;
+    }
+
+    /**
+     * Forget any partially received message.
+     */
+    public void reset() {
+        mBuffer.clear();
+        mBuffer.flip();
+        mState = STATE_IDLE;
+        mPayloadRemaining = 0;
+        resetJson();
+    }
+
+    /**
+     * Move the unparsed bytes to the front of the buffer and switch it to write mode.
+     */
+    private void prepareForWrite() throws ProtocolException {
+        if (mBuffer.position() == 0 && mBuffer.limit() == mBuffer.capacity()) {
+            // Only a JSON message can fill the buffer without being parsed.
+            throw new ProtocolException("Message larger than " + mBuffer.capacity() + " bytes");
+        }
+        mBuffer.compact();
+    }
+
+    /**
+     * Parse as many messages as the buffer holds, leaving an incomplete one in place.
+     */
+    private void decode() throws ProtocolException {
+        while (mBuffer.hasRemaining()) {
+            switch (mState) {
+                case STATE_IDLE:
+                    byte first = mBuffer.get(mBuffer.position());
+                    if (first == '{') {
+                        mState = STATE_JSON;
+                    } else if (first == (byte) (FrameHeader.MAGIC >>> 24)) {
+                        mState = STATE_HEADER;
+                    } else if (first == ' ' || first == '\n' || first == '\r' || first == '\t'
+                            || first == 0) {
+                        // Some receivers terminate their JSON messages
+                        mBuffer.get();
+                    } else {
+                        throw new ProtocolException("Unexpected byte 0x"
+                                + Integer.toHexString(first & 0xFF) + " at start of message");
+                    }
+                    break;
+
+                case STATE_JSON:
+                    if (!decodeJson()) {
+                        return;
+                    }
+                    break;
+
+                case STATE_HEADER:
+                    if (!mHeader.decode(mBuffer)) {
+                        return;
+                    }
+                    mPayloadRemaining = mHeader.getPayloadLength();
+                    mState = mPayloadRemaining > 0 ? STATE_PAYLOAD : STATE_IDLE;
+                    mListener.onHeader(mHeader);
+                    break;
+
+                case STATE_PAYLOAD:
+                    int length = Math.min(mBuffer.remaining(), mPayloadRemaining);
+                    int limit = mBuffer.limit();
+                    int end = mBuffer.position() + length;
+                    mPayloadRemaining -= length;
+                    if (mPayloadRemaining == 0) {
+                        mState = STATE_IDLE;
+                    }
+                    mBuffer.limit(end);
+                    try {
+                        mListener.onPayload(mBuffer, mPayloadRemaining);
+                    } finally {
+                        mBuffer.limit(limit);
+                        mBuffer.position(end);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Scan the current JSON message for its closing brace.
+     *
+     * @return {@code true} if the message was complete and delivered
+     */
+    private boolean decodeJson() {
+        int start = mBuffer.position();
+        int limit = mBuffer.limit();
+        for (int i = start + mJsonScanned; i < limit; i++) {
+            byte b = mBuffer.get(i);
+            if (mJsonInString) {
+                if (mJsonEscaped) {
+                    mJsonEscaped = false;
+                } else if (b == '\\') {
+                    mJsonEscaped = true;
+                } else if (b == '"') {
+                    mJsonInString = false;
+                }
+            } else if (b == '"') {
+                mJsonInString = true;
+            } else if (b == '{') {
+                mJsonDepth++;
+            } else if (b == '}' && --mJsonDepth == 0) {
+                int end = i + 1;
+                resetJson();
+                mState = STATE_IDLE;
+                mBuffer.limit(end);
+                try {
+                    mListener.onJsonMessage(mBuffer);
+                } finally {
+                    mBuffer.limit(limit);
+                    mBuffer.position(end);
+                }
+                return true;
+            }
+        }
+        mJsonScanned = limit - start;
+        return false;
+    }
+
+    private void resetJson() {
+        mJsonScanned = 0;
+        mJsonDepth = 0;
+        mJsonInString = false;
+        mJsonEscaped = false;
+    }
+}
@@ -0,0 +1,17 @@
+package seongdokim.remotecamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a captured YUV image into the bytes sent to receivers. Implementations keep state
+ * between calls, such as their output buffer, so an instance must only be used by one thread.
+ */
+public interface FrameEncoder {
+    /**
+     * Encode one image.
+     *
+     * @param image The image to encode
+     * @return The encoded bytes between position and limit, valid until the next call
+     */
+    ByteBuffer encode(YuvPlanes image);
+}
@@ -0,0 +1,451 @@
+package seongdokim.remotecamera;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams one camera to several receivers at once. Each receiver has its own {@link FrameRing}
+ * with its own delivery policy and its own {@link StreamSession} with its own window, all run by
+ * one {@link TransportEngine}; a published frame is shared by reference, retained once per
+ * receiver, so it is encoded and copied once whatever the number of receivers.
+ *
+ * <p>A receiver that falls behind only fills its own ring, where its policy drops frames for it
+ * alone; the other receivers are served as fast as they acknowledge.</p>
+ *
+ * <p>{@link #publish(FrameBuffer)} must be called from a single thread, the camera thread.</p>
+ */
+public class FrameFanout {
+    /**
+     * The events of the receivers, called on the engine thread.
+     */
+    public interface Listener {
+        /**
+         * A receiver negotiated the protocol and now gets frames.
+         *
+         * @param receiver The receiver
+         */
+        void onReceiverStreaming(Receiver receiver);
+
+        /**
+         * A receiver is gone, or could not be reached. It no longer gets frames, unless it is
+         * given to {@link #reconnectReceiver} later.
+         *
+         * @param receiver The receiver
+         * @param cause    The failure, or {@code null} if it was removed locally
+         */
+        void onReceiverClosed(Receiver receiver, IOException cause);
+    }
+
+    /**
+     * One destination of the stream.
+     */
+    public final class Receiver implements StreamSession.Listener {
+        private final SocketAddress mAddress;
+        private final FrameRing<FrameBuffer> mQueue;
+        private final StreamSession mSession;
+        private final int mQueueCapacity;
+        private final int mWindow;
+        private final long mIdleTimeout;
+        private final long mConnectTimeout;
+
+        /**
+         * The delays between the attempts to connect to this receiver again, kept from one
+         * attempt to the next and reset once it streams
+         */
+        private final ReconnectBackoff mBackoff;
+        private volatile boolean mClosed = false;
+
+        private Receiver(SocketAddress address, int queueCapacity, int policy, int window,
+                         long idleTimeout, long connectTimeout, ReconnectBackoff backoff) {
+            mAddress = address;
+            mQueue = new FrameRing<>(queueCapacity, policy);
+            mSession = new StreamSession(mQueue, window, idleTimeout, this);
+            mQueueCapacity = queueCapacity;
+            mWindow = window;
+            mIdleTimeout = idleTimeout;
+            mConnectTimeout = connectTimeout;
+            mBackoff = backoff;
+        }
+
+        public SocketAddress getAddress() {
+            return mAddress;
+        }
+
+        public StreamSession getSession() {
+            return mSession;
+        }
+
+        public FrameFanout getFanout() {
+            return FrameFanout.this;
+        }
+
+        /**
+         * Get the delays between the attempts to connect to this receiver again. It is reset
+         * on the engine thread once the receiver streams, so use it synchronized on itself.
+         *
+         * @return The backoff, shared with the receivers made again from this one
+         */
+        public ReconnectBackoff getBackoff() {
+            return mBackoff;
+        }
+
+        /**
+         * Get the number of frames dropped for this receiver by its delivery policy.
+         *
+         * @return The number of frames overwritten or rejected
+         */
+        public long getDroppedCount() {
+            return mQueue.getDroppedCount();
+        }
+
+        /**
+         * Get the number of frames waiting to be sent to this receiver.
+         *
+         * @return The number of frames in its queue
+         */
+        public int getQueuedCount() {
+            return mQueue.size();
+        }
+
+        /**
+         * Tell whether the receiver is connected and gets frames.
+         *
+         * @return True once the protocol is negotiated, until the receiver is closed
+         */
+        public boolean isStreaming() {
+            return !mClosed && mSession.isStreaming();
+        }
+
+        public boolean isClosed() {
+            return mClosed;
+        }
+
+        @Override
+        public void onStreaming(StreamSession session) {
+            synchronized (mBackoff) {
+                mBackoff.reset();
+            }
+            mListener.onReceiverStreaming(this);
+        }
+
+        @Override
+        public void onClosed(StreamSession session, IOException cause) {
+            mClosed = true;
+            mReceivers.remove(this);
+            mListener.onReceiverClosed(this, cause);
+        }
+
+        /**
+         * Queue a frame for this receiver, adding a reference for it.
+         *
+         * @return False if the frame was rejected
+         */
+        private boolean offer(FrameBuffer frame) {
+            if (mClosed) {
+                return false;
+            }
+            frame.retain();
+            FrameBuffer dropped = mQueue.offer(frame);
+            if (dropped != null) {
+                dropped.release();
+                StreamMetrics metrics = mMetrics;
+                if (metrics != null) {
+                    metrics.increment(StreamMetrics.COUNTER_FRAMES_DROPPED);
+                }
+            }
+            if (mClosed) {
+                // The session drained its ring when it closed, maybe before this frame came in
+                drain();
+            }
+            return dropped != frame;
+        }
+
+        private void drain() {
+            FrameBuffer frame;
+            while ((frame = mQueue.poll()) != null) {
+                frame.release();
+            }
+        }
+    }
+
+    private final TransportEngine mEngine;
+    private final Listener mListener;
+    private final CopyOnWriteArrayList<Receiver> mReceivers = new CopyOnWriteArrayList<>();
+    private volatile KeyframeGate.Listener mKeyframeListener;
+    private volatile StreamFormat.Listener mFormatListener;
+    private volatile StreamRegion.Listener mRegionListener;
+    private volatile StreamMetrics mMetrics;
+    private volatile String mSession;
+
+    /**
+     * Create a fan-out with no receivers.
+     *
+     * @param engine   The engine running the connections to the receivers
+     * @param listener The listener of the receiver events
+     */
+    public FrameFanout(TransportEngine engine, Listener listener) {
+        mEngine = engine;
+        mListener = listener;
+    }
+
+    /**
+     * Parse a list of receivers such as {@code "192.168.0.2, 192.168.0.3:1051"}.
+     *
+     * @param targets     Comma-separated host names or addresses, each with an optional port
+     * @param defaultPort The port of the targets that give none
+     * @return The unresolved addresses of the receivers
+     * @throws IllegalArgumentException If a target is empty or its port is not a number
+     */
+    public static List<InetSocketAddress> parseTargets(String targets, int defaultPort) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String target : targets.split(",")) {
+            target = target.trim();
+            int port = defaultPort;
+            int colon = target.lastIndexOf(':');
+            if (colon >= 0) {
+                try {
+                    port = Integer.parseInt(target.substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid port in target: " + target);
+                }
+                target = target.substring(0, colon).trim();
+            }
+            if (target.isEmpty()) {
+                throw new IllegalArgumentException("Empty target in: " + targets);
+            }
+            addresses.add(InetSocketAddress.createUnresolved(target, port));
+        }
+        return addresses;
+    }
+
+    /**
+     * Set whom to ask for a keyframe when a receiver needs one to decode video frames, for the
+     * receivers added from now on.
+     *
+     * @param listener The listener, typically the {@link VideoPacketizer} of the stream
+     */
+    public void setKeyframeListener(KeyframeGate.Listener listener) {
+        mKeyframeListener = listener;
+    }
+
+    /**
+     * Set whom to tell when a receiver asks for another size or frame rate, for the receivers
+     * added from now on. Every receiver gets the same stream, so the last request wins.
+     *
+     * @param listener The listener, called on the engine thread
+     */
+    public void setFormatListener(StreamFormat.Listener listener) {
+        mFormatListener = listener;
+    }
+
+    /**
+     * Set whom to tell when a receiver asks for a region of the field of view, for the
+     * receivers added from now on. The last request wins here too.
+     *
+     * @param listener The listener, called on the engine thread
+     */
+    public void setRegionListener(StreamRegion.Listener listener) {
+        mRegionListener = listener;
+    }
+
+    /**
+     * Set where to record the latencies and the dropped frames of the receivers, for the
+     * receivers added from now on; the frames dropped are counted for every receiver.
+     *
+     * @param metrics The registry, or {@code null}
+     */
+    public void setMetrics(StreamMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Name the stream, for the receivers added from now on to tell a connection made again by
+     * {@link #reconnectReceiver} from a new stream.
+     *
+     * @param session The name of the stream, or {@code null}
+     */
+    public void setSession(String session) {
+        mSession = session;
+    }
+
+    /**
+     * Send a {@link Constants#REQUEST_STATS} message to every receiver that understands it.
+     *
+     * @param stats The UTF-8 JSON of the stats
+     */
+    public void sendStats(byte[] stats) {
+        for (Receiver receiver : mReceivers) {
+            receiver.mSession.sendStats(stats);
+        }
+    }
+
+    /**
+     * Start streaming to one more receiver.
+     *
+     * @param address        The resolved address of the receiver
+     * @param queueCapacity  The number of frames that may wait for this receiver
+     * @param policy         What to do with frames when it falls behind, one of the
+     *                       {@code FrameRing.POLICY_} constants
+     * @param window         The largest number of frames in flight to accept from it
+     * @param idleTimeout    The time in milliseconds without a frame after which a keep-alive
+     *                       message is sent to it, or zero
+     * @param connectTimeout The longest time in milliseconds to wait for the connection
+     * @return The receiver, connecting
+     */
+    public Receiver addReceiver(SocketAddress address, int queueCapacity, int policy, int window,
+                                long idleTimeout, long connectTimeout) {
+        return addReceiver(address, queueCapacity, policy, window, idleTimeout, connectTimeout,
+                System.nanoTime());
+    }
+
+    /**
+     * Start streaming to one more receiver, whose connection attempt started earlier, such as
+     * before its address was resolved.
+     *
+     * @param address        The resolved address of the receiver
+     * @param queueCapacity  The number of frames that may wait for this receiver
+     * @param policy         What to do with frames when it falls behind, one of the
+     *                       {@code FrameRing.POLICY_} constants
+     * @param window         The largest number of frames in flight to accept from it
+     * @param idleTimeout    The time in milliseconds without a frame after which a keep-alive
+     *                       message is sent to it, or zero
+     * @param connectTimeout The longest time in milliseconds to wait for the connection
+     * @param startTime      When the attempt started, in {@link System#nanoTime()}, for the
+     *                       time to connect and to the first frame
+     * @return The receiver, connecting
+     */
+    public Receiver addReceiver(SocketAddress address, int queueCapacity, int policy, int window,
+                                long idleTimeout, long connectTimeout, long startTime) {
+        Receiver receiver = new Receiver(address, queueCapacity, policy, window, idleTimeout,
+                connectTimeout, new ReconnectBackoff());
+        return start(receiver, 0, startTime);
+    }
+
+    /**
+     * Start streaming again to a receiver that was lost, with its settings and its backoff,
+     * carrying on its stream from the sequence number its session stopped at.
+     *
+     * @param lost      The receiver, closed
+     * @param address   The resolved address of the receiver, which may have changed
+     * @param startTime When the attempt started, in {@link System#nanoTime()}
+     * @return The receiver made again, connecting
+     */
+    public Receiver reconnectReceiver(Receiver lost, SocketAddress address, long startTime) {
+        if (!lost.mClosed) {
+            throw new IllegalStateException("Receiver not closed: " + lost.mAddress);
+        }
+        Receiver receiver = new Receiver(address, lost.mQueueCapacity,
+                lost.mQueue.getPolicy(), lost.mWindow, lost.mIdleTimeout, lost.mConnectTimeout,
+                lost.mBackoff);
+        return start(receiver, lost.mSession.getSequence(), startTime);
+    }
+
+    private Receiver start(Receiver receiver, int sequence, long startTime) {
+        String session = mSession;
+        if (session != null) {
+            receiver.mSession.setSession(session, sequence);
+        }
+        receiver.mSession.setKeyframeListener(mKeyframeListener);
+        receiver.mSession.setFormatListener(mFormatListener);
+        receiver.mSession.setRegionListener(mRegionListener);
+        receiver.mSession.setMetrics(mMetrics);
+        mReceivers.add(receiver);
+        receiver.mSession.connect(mEngine, receiver.mAddress, receiver.mConnectTimeout,
+                startTime);
+        return receiver;
+    }
+
+    /**
+     * Stop streaming to a receiver, telling it so.
+     *
+     * @param receiver The receiver
+     */
+    public void removeReceiver(Receiver receiver) {
+        receiver.mSession.disconnect();
+    }
+
+    /**
+     * Stop streaming to every receiver.
+     */
+    public void close() {
+        for (Receiver receiver : mReceivers) {
+            removeReceiver(receiver);
+        }
+    }
+
+    /**
+     * Hand a frame to every receiver. The caller's reference is taken over: it is released
+     * once every receiver has sent or dropped the frame.
+     *
+     * @param frame The frame, flipped so that its bytes lie between position and limit
+     * @return True if at least one receiver queued the frame
+     */
+    public boolean publish(FrameBuffer frame) {
+        boolean queued = false;
+        try {
+            for (Receiver receiver : mReceivers) {
+                queued |= receiver.offer(frame);
+            }
+        } finally {
+            frame.release();
+        }
+        mEngine.wakeup();
+        return queued;
+    }
+
+    /**
+     * Tell whether a frame published now would be queued by at least one receiver.
+     *
+     * @return False if every receiver rejects new frames
+     */
+    public boolean canAccept() {
+        for (Receiver receiver : mReceivers) {
+            if (receiver.mQueue.getPolicy() != FrameRing.POLICY_BACKPRESSURE
+                    || !receiver.mQueue.isFull()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the receivers not closed yet.
+     *
+     * @return A snapshot of the receivers
+     */
+    public List<Receiver> getReceivers() {
+        return new ArrayList<>(mReceivers);
+    }
+
+    /**
+     * Get the number of receivers currently getting frames.
+     *
+     * @return The number of streaming receivers
+     */
+    public int getStreamingCount() {
+        int count = 0;
+        for (Receiver receiver : mReceivers) {
+            if (receiver.isStreaming()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of frames dropped over all the receivers not closed yet.
+     *
+     * @return The sum of the dropped frames of the receivers
+     */
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (Receiver receiver : mReceivers) {
+            dropped += receiver.getDroppedCount();
+        }
+        return dropped;
+    }
+}
@@ -0,0 +1,305 @@
+package seongdokim.remotecamera;
+
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A fixed-layout binary header sent in front of every network message, replacing the JSON
+ * headers of the original protocol. An instance is mutable so that a single header can be
+ * encoded into, and decoded from, a reused {@link ByteBuffer} without allocation.
+ *
+ * <pre>
+ * offset  size  field
+ *      0     4  magic, "RCAM"
+ *      4     1  version
+ *      5     1  type, one of the request codes in {@link Constants}
+ *      6     2  flags
+ *      8     4  sequence number
+ *     12     8  capture timestamp in nanoseconds
+ *     20     2  width
+ *     22     2  height
+ *     24     4  payload length in bytes
+ * </pre>
+ *
+ * All fields are written in network byte order.
+ *
+ * <p>The flags tell how to decode the payload of a frame: the low bits say whether it is a
+ * keyframe and whether it starts with the codec configuration, and {@link #FLAG_CODEC_MASK}
+ * holds its codec. JPEG images, the original payload, have no flags.</p>
+ *
+ * <p>A format request of a receiver, {@link Constants#REQUEST_FORMAT}, has no payload: it
+ * carries the size it asks for in the width and height, and the frame rate in the flags.</p>
+ *
+ * <p>Version 2 keeps the layout and adds several streams of one camera:
+ * {@link #FLAG_STREAM_MASK} tells which stream a frame belongs to, and frames of a stream other
+ * than {@link #STREAM_MAIN} are only sent to receivers that negotiated version 2. It also adds
+ * the region request, {@link Constants#REQUEST_REGION}, with no payload either: the width and
+ * height of the region in the width and height, and its left and top edges in the upper and
+ * lower 16 bits of the timestamp, all in units of {@link StreamRegion#SCALE}.</p>
+ *
+ * <p>Version 3 adds the capture metadata of a frame: with {@link #FLAG_METADATA}, the payload
+ * starts with the {@link CaptureMetadata#LENGTH} bytes of its {@link CaptureMetadata}, counted
+ * in the payload length, and the image follows. Frames are only sent with metadata to
+ * receivers that negotiated version 3.</p>
+ *
+ * <p>Version 4 adds the stats message of a sender, {@link Constants#REQUEST_STATS}, sent once in
+ * a while to the receivers that negotiated version 4 and never acknowledged: its payload is the
+ * UTF-8 JSON of a {@link StreamMetrics.Snapshot}.</p>
+ */
+public class FrameHeader {
+    /**
+     * The first four bytes of every header, "RCAM" in ASCII.
+     */
+    public static final int MAGIC = 0x5243414D;
+
+    /**
+     * The version of the header layout written by this codec.
+     */
+    public static final int VERSION = 4;
+
+    /**
+     * The number of bytes of an encoded header.
+     */
+    public static final int HEADER_LENGTH = 28;
+
+    /**
+     * The largest width or height that fits in the header.
+     */
+    public static final int MAX_DIMENSION = 0xFFFF;
+
+    /**
+     * Flag: the frame decodes on its own, without the frames before it.
+     */
+    public static final int FLAG_KEYFRAME = 0x01;
+
+    /**
+     * Flag: the payload starts with the configuration of the codec, the parameter sets of an
+     * H.264 or HEVC stream, which a receiver needs before it can decode anything.
+     */
+    public static final int FLAG_CODEC_CONFIG = 0x02;
+
+    /**
+     * Flag: the payload starts with the {@link CaptureMetadata} of the frame. Version 3 and
+     * later.
+     */
+    public static final int FLAG_METADATA = 0x1000;
+
+    /**
+     * The bits of the flags holding the codec of the payload, one of the {@code CODEC_}
+     * constants.
+     */
+    public static final int FLAG_CODEC_MASK = 0xF0;
+
+    /**
+     * The bits of the flags holding the stream of a frame, one of the {@code STREAM_}
+     * constants. Version 2 and later.
+     */
+    public static final int FLAG_STREAM_MASK = 0x0F00;
+
+    /**
+     * Stream: the frames at the size and region the receivers asked for, the only stream of
+     * version 1.
+     */
+    public static final int STREAM_MAIN = 0x000;
+
+    /**
+     * Stream: a downscaled view of the whole field of view, next to a main stream that may be
+     * a region of it.
+     */
+    public static final int STREAM_OVERVIEW = 0x100;
+
+    /**
+     * Codec: a whole JPEG image.
+     */
+    public static final int CODEC_JPEG = 0x00;
+
+    /**
+     * Codec: an H.264 access unit in Annex B byte stream format.
+     */
+    public static final int CODEC_H264 = 0x10;
+
+    /**
+     * Codec: an HEVC access unit in Annex B byte stream format.
+     */
+    public static final int CODEC_HEVC = 0x20;
+
+    private int mVersion = VERSION;
+    private int mType;
+    private int mFlags;
+    private int mSequence;
+    private long mTimestamp;
+    private int mWidth;
+    private int mHeight;
+    private int mPayloadLength;
+
+    /**
+     * Set every field of the header at once, but the version.
+     *
+     * @param type          The message type, one of the request codes in {@link Constants}
+     * @param sequence      The sequence number of the message
+     * @param timestamp     The capture timestamp in nanoseconds
+     * @param width         The width of the image, 0 if the message has no image
+     * @param height        The height of the image, 0 if the message has no image
+     * @param payloadLength The number of bytes following the header
+     * @return This header
+     */
+    public FrameHeader set(int type, int sequence, long timestamp, int width, int height,
+                           int payloadLength) {
+        mType = type;
+        mFlags = 0;
+        mSequence = sequence;
+        mTimestamp = timestamp;
+        mWidth = width;
+        mHeight = height;
+        mPayloadLength = payloadLength;
+        return this;
+    }
+
+    /**
+     * Write the header at the current position of {@code dst}, advancing the position by
+     * {@link #HEADER_LENGTH}.
+     *
+     * @param dst The buffer to write to
+     * @throws BufferOverflowException If fewer than {@link #HEADER_LENGTH} bytes remain
+     * @throws IllegalStateException If a field does not fit in the header
+     */
+    public void encode(ByteBuffer dst) {
+        if (mWidth < 0 || mWidth > MAX_DIMENSION || mHeight < 0 || mHeight > MAX_DIMENSION) {
+            throw new IllegalStateException("Image size out of range: " + mWidth + "x" + mHeight);
+        }
+        if (mPayloadLength < 0) {
+            throw new IllegalStateException("Negative payload length: " + mPayloadLength);
+        }
+        if (dst.remaining() < HEADER_LENGTH) {
+            throw new BufferOverflowException();
+        }
+
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        dst.putInt(MAGIC);
+        dst.put((byte) mVersion);
+        dst.put((byte) mType);
+        dst.putShort((short) mFlags);
+        dst.putInt(mSequence);
+        dst.putLong(mTimestamp);
+        dst.putShort((short) mWidth);
+        dst.putShort((short) mHeight);
+        dst.putInt(mPayloadLength);
+        dst.order(order);
+    }
+
+    /**
+     * Read a header from the current position of {@code src}. If a whole header is not
+     * available yet, nothing is consumed and {@code false} is returned so that the caller can
+     * wait for more bytes.
+     *
+     * @param src The buffer to read from
+     * @return {@code true} if a header was decoded, {@code false} if more bytes are needed
+     * @throws ProtocolException If the bytes are not a header this codec understands
+     */
+    public boolean decode(ByteBuffer src) throws ProtocolException {
+        if (src.remaining() < HEADER_LENGTH) {
+            return false;
+        }
+
+        int start = src.position();
+        ByteOrder order = src.order();
+        src.order(ByteOrder.BIG_ENDIAN);
+        try {
+            int magic = src.getInt(start);
+            if (magic != MAGIC) {
+                throw new ProtocolException("Invalid frame header magic: 0x"
+                        + Integer.toHexString(magic));
+            }
+            int version = src.get(start + 4) & 0xFF;
+            if (version < 1 || version > VERSION) {
+                throw new ProtocolException("Unsupported frame header version: " + version);
+            }
+            int payloadLength = src.getInt(start + 24);
+            if (payloadLength < 0) {
+                throw new ProtocolException("Invalid payload length: " + payloadLength);
+            }
+
+            mVersion = version;
+            mType = src.get(start + 5) & 0xFF;
+            mFlags = src.getShort(start + 6) & 0xFFFF;
+            mSequence = src.getInt(start + 8);
+            mTimestamp = src.getLong(start + 12);
+            mWidth = src.getShort(start + 20) & 0xFFFF;
+            mHeight = src.getShort(start + 22) & 0xFFFF;
+            mPayloadLength = payloadLength;
+            src.position(start + HEADER_LENGTH);
+            return true;
+        } finally {
+            src.order(order);
+        }
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Set the version written by {@link #encode}, the one negotiated with the receiver.
+     *
+     * @param version From 1 to {@link #VERSION}
+     */
+    public void setVersion(int version) {
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported frame header version: " + version);
+        }
+        mVersion = version;
+    }
+
+    /**
+     * Tell whether a receiver can tell the stream of a frame apart.
+     *
+     * @param flags   The flags of the frame
+     * @param version The header version negotiated with the receiver, 0 for JSON headers
+     * @return False if the frame belongs to a stream the receiver would take for the main one
+     */
+    public static boolean isUnderstoodBy(int flags, int version) {
+        return (flags & FLAG_STREAM_MASK) == STREAM_MAIN || version >= 2;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public void setFlags(int flags) {
+        mFlags = flags & 0xFFFF;
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameHeader{v" + mVersion + ", type=" + mType + ", flags=" + mFlags
+                + ", seq=" + mSequence + ", ts=" + mTimestamp + ", " + mWidth + "x" + mHeight
+                + ", bytes=" + mPayloadLength + "}";
+    }
+}
@@ -0,0 +1,483 @@
+package seongdokim.remotecamera;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Puts the datagrams of a {@link DatagramFragmenter} back together into messages, in whatever
+ * order they arrive, in a bounded number of slots. A fragment lost from a group that has its
+ * parity packet and no other loss is rebuilt from them as soon as the last of them arrives.
+ *
+ * <p>Live images are worth nothing late, so nothing is ever waited for:</p>
+ * <ul>
+ * <li>a message is delivered as soon as its last fragment arrives;</li>
+ * <li>a message still incomplete when a newer one is delivered, or when its deadline has passed
+ * since its first fragment arrived, is dropped;</li>
+ * <li>when every slot is taken, the oldest message is dropped to make room;</li>
+ * <li>fragments of a message delivered or dropped already, duplicates and packets that are not
+ * fragments are ignored.</li>
+ * </ul>
+ *
+ * Instances are not thread-safe; use one per sender from a single thread.
+ */
+public class FrameReassembler {
+    /**
+     * Receives the messages put back together.
+     */
+    public interface Listener {
+        /**
+         * Called for each complete message, in increasing id order.
+         *
+         * @param message The bytes of the message between position and limit, a view of a slot
+         *                valid only until the callback returns
+         */
+        void onMessage(ByteBuffer message);
+    }
+
+    /**
+     * A message being put back together.
+     */
+    private static class Slot {
+        boolean used;
+        int id;
+        int length;
+        int count;
+        int received;
+        int receivedBytes;
+        int recovered;
+        long firstSeen;
+        long[] fragments = new long[1];
+        byte[] data = new byte[0];
+        ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+
+        /**
+         * The number of parity groups and the fragment size, 0 until a parity packet arrives
+         */
+        int groups;
+        int fragmentSize;
+        long[] parityPackets = new long[1];
+        byte[] parity = new byte[0];
+        ByteBuffer parityBuffer = ByteBuffer.wrap(parity);
+
+        /**
+         * Get the number of bytes of a fragment, once the fragment size is known.
+         */
+        int fragmentLength(int index) {
+            return Math.min(fragmentSize, length - index * fragmentSize);
+        }
+    }
+
+    private final Slot[] mSlots;
+    private final int mMaxMessageLength;
+    private final long mDeadlineNanos;
+    private final Listener mListener;
+
+    /**
+     * The id of the newest message delivered or dropped; fragments of messages up to it are late
+     */
+    private int mLastDone;
+    private boolean mStarted = false;
+
+    private long mDelivered = 0;
+    private long mDropped = 0;
+    private long mLatePackets = 0;
+    private long mInvalidPackets = 0;
+    private long mExpectedPackets = 0;
+    private long mLostPackets = 0;
+    private long mRecoveredPackets = 0;
+
+    /**
+     * Create a reassembler.
+     *
+     * @param slots            The number of messages put back together at once
+     * @param maxMessageLength The largest message accepted; longer ones are ignored
+     * @param deadlineNanos    How long after its first fragment a message may still complete
+     * @param listener         The listener of the complete messages
+     */
+    public FrameReassembler(int slots, int maxMessageLength, long deadlineNanos,
+                            Listener listener) {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("No slot");
+        }
+        mSlots = new Slot[slots];
+        for (int i = 0; i < slots; i++) {
+            mSlots[i] = new Slot();
+        }
+        mMaxMessageLength = maxMessageLength;
+        mDeadlineNanos = deadlineNanos;
+        mListener = listener;
+    }
+
+    /**
+     * Take in one datagram.
+     *
+     * @param packet The bytes of the datagram between position and limit, all consumed
+     * @param now    The current time in {@link System#nanoTime()} units
+     * @return True if the packet was a fragment or a parity packet used for a message
+     */
+    public boolean feed(ByteBuffer packet, long now) {
+        expire(now);
+        int packetLength = packet.remaining();
+        if (packetLength < DatagramFragmenter.PACKET_HEADER_LENGTH) {
+            return invalid(packet);
+        }
+        ByteOrder order = packet.order();
+        packet.order(ByteOrder.BIG_ENDIAN);
+        int magic = packet.getInt();
+        int id = packet.getInt();
+        int index = packet.getShort() & 0xFFFF;
+        int count = packet.getShort() & 0xFFFF;
+        int offset = packet.getInt();
+        int length = packet.getInt();
+        packet.order(order);
+        int dataLength = packet.remaining();
+        if (magic == DatagramFragmenter.PARITY_MAGIC) {
+            return feedParity(packet, id, index, count, offset, length, now);
+        }
+        if (magic != DatagramFragmenter.MAGIC || count == 0 || index >= count || offset < 0
+                || length < 0 || offset > length - dataLength) {
+            return invalid(packet);
+        }
+        if (length > mMaxMessageLength) {
+            mDropped += index == 0 ? 1 : 0;
+            packet.position(packet.limit());
+            return false;
+        }
+        if (mStarted && id - mLastDone <= 0) {
+            mLatePackets++;
+            packet.position(packet.limit());
+            return false;
+        }
+
+        Slot slot = find(id);
+        if (slot == null) {
+            slot = allocate(id);
+            if (slot == null) {
+                // Older than every message in progress, with no room left
+                mLatePackets++;
+                packet.position(packet.limit());
+                return false;
+            }
+            start(slot, id, length, count, now);
+        } else if (slot.length != length || slot.count != count) {
+            return invalid(packet);
+        }
+
+        int word = index >>> 6;
+        long bit = 1L << (index & 63);
+        if ((slot.fragments[word] & bit) != 0) {
+            mLatePackets++;
+            packet.position(packet.limit());
+            return false;
+        }
+        slot.fragments[word] |= bit;
+        packet.get(slot.data, offset, dataLength);
+        slot.received++;
+        slot.receivedBytes += dataLength;
+
+        if (slot.groups > 0) {
+            recover(slot, index % slot.groups);
+        }
+        if (slot.received == slot.count) {
+            complete(slot);
+        }
+        return true;
+    }
+
+    /**
+     * Take in a parity packet, rebuilding the fragment missing from its group if it is the only
+     * one.
+     */
+    private boolean feedParity(ByteBuffer packet, int id, int group, int count, int groups,
+                               int length, long now) {
+        int fragmentSize = packet.remaining();
+        if (count == 0 || groups <= 0 || groups > count || group >= groups || length < 0
+                || (count == 1 ? fragmentSize != length : fragmentSize == 0
+                || ((long) length + fragmentSize - 1) / fragmentSize != count)) {
+            return invalid(packet);
+        }
+        if (length > mMaxMessageLength || mStarted && id - mLastDone <= 0) {
+            // Parity packets of a message delivered already are expected, not late
+            packet.position(packet.limit());
+            return false;
+        }
+
+        Slot slot = find(id);
+        if (slot == null) {
+            slot = allocate(id);
+            if (slot == null) {
+                mLatePackets++;
+                packet.position(packet.limit());
+                return false;
+            }
+            start(slot, id, length, count, now);
+        } else if (slot.length != length || slot.count != count) {
+            return invalid(packet);
+        }
+        if (slot.groups == 0) {
+            startParity(slot, groups, fragmentSize);
+        } else if (slot.groups != groups || slot.fragmentSize != fragmentSize) {
+            return invalid(packet);
+        }
+
+        int word = group >>> 6;
+        long bit = 1L << (group & 63);
+        if ((slot.parityPackets[word] & bit) != 0) {
+            mLatePackets++;
+            packet.position(packet.limit());
+            return false;
+        }
+        slot.parityPackets[word] |= bit;
+        packet.get(slot.parity, group * fragmentSize, fragmentSize);
+
+        recover(slot, group);
+        if (slot.received == slot.count) {
+            complete(slot);
+        }
+        return true;
+    }
+
+    private static boolean has(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << (index & 63))) != 0;
+    }
+
+    /**
+     * Rebuild the fragment missing from a group, if its parity is in and no other fragment of
+     * the group is missing.
+     */
+    private void recover(Slot slot, int group) {
+        if (!has(slot.parityPackets, group)) {
+            return;
+        }
+        int missing = -1;
+        for (int i = group; i < slot.count; i += slot.groups) {
+            if (!has(slot.fragments, i)) {
+                if (missing >= 0) {
+                    return;
+                }
+                missing = i;
+            }
+        }
+        if (missing < 0) {
+            return;
+        }
+
+        // The parity of the group is used up: it becomes the missing fragment
+        int fragmentSize = slot.fragmentSize;
+        int parity = group * fragmentSize;
+        for (int i = group; i < slot.count; i += slot.groups) {
+            if (i != missing) {
+                DatagramFragmenter.xor(slot.dataBuffer, i * fragmentSize, slot.parityBuffer,
+                        parity, slot.fragmentLength(i));
+            }
+        }
+        int length = slot.fragmentLength(missing);
+        System.arraycopy(slot.parity, parity, slot.data, missing * fragmentSize, length);
+        slot.fragments[missing >>> 6] |= 1L << (missing & 63);
+        slot.received++;
+        slot.receivedBytes += length;
+        slot.recovered++;
+        mRecoveredPackets++;
+    }
+
+    /**
+     * Drop the messages whose deadline has passed.
+     *
+     * @param now The current time in {@link System#nanoTime()} units
+     */
+    public void expire(long now) {
+        for (Slot slot : mSlots) {
+            if (slot.used && now - slot.firstSeen > mDeadlineNanos) {
+                drop(slot);
+            }
+        }
+    }
+
+    private boolean invalid(ByteBuffer packet) {
+        mInvalidPackets++;
+        packet.position(packet.limit());
+        return false;
+    }
+
+    private Slot find(int id) {
+        for (Slot slot : mSlots) {
+            if (slot.used && slot.id == id) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a slot for a new message, dropping the oldest message in progress if none is free.
+     *
+     * @return The slot, or {@code null} if the new message is older than every one in progress
+     */
+    private Slot allocate(int id) {
+        Slot oldest = null;
+        for (Slot slot : mSlots) {
+            if (!slot.used) {
+                return slot;
+            }
+            if (oldest == null || slot.id - oldest.id < 0) {
+                oldest = slot;
+            }
+        }
+        if (id - oldest.id < 0) {
+            return null;
+        }
+        drop(oldest);
+        return oldest;
+    }
+
+    private void start(Slot slot, int id, int length, int count, long now) {
+        slot.used = true;
+        slot.id = id;
+        slot.length = length;
+        slot.count = count;
+        slot.received = 0;
+        slot.receivedBytes = 0;
+        slot.recovered = 0;
+        slot.groups = 0;
+        slot.fragmentSize = 0;
+        slot.firstSeen = now;
+        int words = (count + 63) >>> 6;
+        if (slot.fragments.length < words) {
+            slot.fragments = new long[words];
+        } else {
+            for (int i = 0; i < words; i++) {
+                slot.fragments[i] = 0;
+            }
+        }
+        if (slot.data.length < length) {
+            slot.data = new byte[Math.min(mMaxMessageLength,
+                    Math.max(length, slot.data.length * 2))];
+            slot.dataBuffer = ByteBuffer.wrap(slot.data);
+        }
+    }
+
+    private void startParity(Slot slot, int groups, int fragmentSize) {
+        slot.groups = groups;
+        slot.fragmentSize = fragmentSize;
+        int words = (groups + 63) >>> 6;
+        if (slot.parityPackets.length < words) {
+            slot.parityPackets = new long[words];
+        } else {
+            for (int i = 0; i < words; i++) {
+                slot.parityPackets[i] = 0;
+            }
+        }
+        int length = groups * fragmentSize;
+        if (slot.parity.length < length) {
+            slot.parity = new byte[length];
+            slot.parityBuffer = ByteBuffer.wrap(slot.parity);
+        }
+    }
+
+    private void complete(Slot slot) {
+        int id = slot.id;
+        if (slot.receivedBytes != slot.length) {
+            // The fragments overlap or leave a gap: not a message of a DatagramFragmenter
+            mInvalidPackets++;
+            drop(slot);
+            return;
+        }
+
+        // Anything older still in progress would now arrive out of order
+        for (Slot other : mSlots) {
+            if (other.used && other != slot && other.id - id < 0) {
+                drop(other);
+            }
+        }
+        slot.used = false;
+        done(id);
+        countLoss(slot);
+        mDelivered++;
+        mListener.onMessage(ByteBuffer.wrap(slot.data, 0, slot.length));
+    }
+
+    private void drop(Slot slot) {
+        slot.used = false;
+        mDropped++;
+        done(slot.id);
+        countLoss(slot);
+    }
+
+    private void countLoss(Slot slot) {
+        mExpectedPackets += slot.count;
+        mLostPackets += slot.count - (slot.received - slot.recovered);
+    }
+
+    private void done(int id) {
+        if (!mStarted || id - mLastDone > 0) {
+            mLastDone = id;
+            mStarted = true;
+        }
+    }
+
+    /**
+     * Get the number of messages delivered.
+     *
+     * @return The number of complete messages passed to the listener
+     */
+    public long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    /**
+     * Get the number of messages given up on, because a fragment was lost or came too late.
+     *
+     * @return The number of messages dropped
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Get the number of fragments that came after their message was delivered or dropped, or
+     * twice.
+     *
+     * @return The number of fragments ignored
+     */
+    public long getLatePacketCount() {
+        return mLatePackets;
+    }
+
+    /**
+     * Get the number of datagrams that were not valid fragments.
+     *
+     * @return The number of packets ignored
+     */
+    public long getInvalidPacketCount() {
+        return mInvalidPackets;
+    }
+
+    /**
+     * Get the number of fragments of the messages delivered or dropped, parity packets excluded.
+     *
+     * @return The number of fragments sent, as far as the messages seen tell
+     */
+    public long getExpectedPacketCount() {
+        return mExpectedPackets;
+    }
+
+    /**
+     * Get the number of fragments of the messages delivered or dropped that never arrived,
+     * rebuilt from parity or not; with {@link #getExpectedPacketCount()}, the loss rate the
+     * parity has to make up for.
+     *
+     * @return The number of fragments lost
+     */
+    public long getLostPacketCount() {
+        return mLostPackets;
+    }
+
+    /**
+     * Get the number of lost fragments rebuilt from parity packets.
+     *
+     * @return The number of fragments rebuilt
+     */
+    public long getRecoveredPacketCount() {
+        return mRecoveredPackets;
+    }
+}
@@ -0,0 +1,270 @@
+package seongdokim.remotecamera;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring of frames handed from one producer thread, the camera callback, to
+ * one consumer thread, the network thread. Frames are always taken in the order they were
+ * offered; what happens when the ring is full depends on the delivery policy:
+ * <ul>
+ * <li>{@link #POLICY_LATEST}: the ring holds a single frame, replaced by every new frame, for the
+ * lowest latency.</li>
+ * <li>{@link #POLICY_DROP_OLDEST}: the producer overwrites the oldest frame, so a slow consumer
+ * gets the most recent frames and the camera is never blocked.</li>
+ * <li>{@link #POLICY_BACKPRESSURE}: the new frame is rejected, so every frame that gets in is
+ * delivered, and the producer can check {@link #isFull()} to skip work on frames that would be
+ * rejected anyway.</li>
+ * </ul>
+ *
+ * <p>Only the producer advances the tail. The head is advanced by the consumer when it takes a
+ * frame and by the producer when it evicts one, so both sides claim the oldest slot with a
+ * compare-and-set; whoever loses simply retries.</p>
+ *
+ * <p>A consumer with nothing to do parks in {@link #take(long, TimeUnit)} and the producer
+ * unparks it on the next frame, so waiting for the camera costs no CPU.</p>
+ *
+ * @param <T> The type of frames held in the ring
+ */
+public class FrameRing<T> {
+    // Delivery policies applied when the ring is full
+    public static final int POLICY_LATEST = 0;      // keep only the newest frame
+    public static final int POLICY_DROP_OLDEST = 1; // overwrite the oldest frame
+    public static final int POLICY_BACKPRESSURE = 2; // reject the new frame
+
+    private final AtomicReferenceArray<T> mSlots;
+    private final int mMask;
+    private final int mPolicy;
+
+    /**
+     * The sequence of the oldest frame in the ring.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * The sequence of the next frame to be offered. Written by the producer only.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * The number of frames overwritten before the consumer could take them.
+     */
+    private final AtomicLong mEvicted = new AtomicLong();
+
+    /**
+     * The number of frames rejected because the ring was full.
+     */
+    private final AtomicLong mRejected = new AtomicLong();
+
+    /**
+     * The consumer thread parked in {@link #take(long, TimeUnit)}, if any.
+     */
+    private volatile Thread mWaiter;
+
+    /**
+     * Create a ring that overwrites the oldest frame when full.
+     *
+     * @param capacity The maximum number of frames held, rounded up to a power of two
+     */
+    public FrameRing(int capacity) {
+        this(capacity, POLICY_DROP_OLDEST);
+    }
+
+    /**
+     * Create a ring.
+     *
+     * @param capacity The maximum number of frames held, rounded up to a power of two. It is
+     *                 ignored by {@link #POLICY_LATEST}, which always holds a single frame.
+     * @param policy   What to do when the ring is full, one of the {@code POLICY_} constants
+     */
+    public FrameRing(int capacity, int policy) {
+        if (policy != POLICY_LATEST && policy != POLICY_DROP_OLDEST
+                && policy != POLICY_BACKPRESSURE) {
+            throw new IllegalArgumentException("Invalid delivery policy: " + policy);
+        }
+        if (policy == POLICY_LATEST) {
+            capacity = 1;
+        }
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mPolicy = policy;
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mSlots = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+    }
+
+    /**
+     * Add a frame, applying the delivery policy if the ring is full. Must only be called from
+     * the producer thread.
+     *
+     * @param frame The frame to add
+     * @return The frame dropped to honor the policy, which is either an overwritten frame or
+     * {@code frame} itself if it was rejected, or {@code null} if nothing was dropped
+     */
+    public T offer(T frame) {
+        if (frame == null) {
+            throw new NullPointerException("frame");
+        }
+
+        long tail = mTail.get();
+        T evicted = null;
+        while (true) {
+            long head = mHead.get();
+            if (tail - head <= mMask) {
+                break;
+            }
+            if (mPolicy == POLICY_BACKPRESSURE) {
+                mRejected.incrementAndGet();
+                return frame;
+            }
+            T oldest = mSlots.get((int) head & mMask);
+            if (mHead.compareAndSet(head, head + 1)) {
+                evicted = oldest;
+                mEvicted.incrementAndGet();
+                break;
+            }
+        }
+
+        mSlots.set((int) tail & mMask, frame);
+        // A full volatile write: the tail must be visible before the waiter is read, or a
+        // consumer going to sleep at the same time would miss the frame.
+        mTail.set(tail + 1);
+
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return evicted;
+    }
+
+    /**
+     * Take the oldest frame. Must only be called from the consumer thread.
+     *
+     * @return The oldest frame, or {@code null} if the ring is empty
+     */
+    public T poll() {
+        while (true) {
+            long head = mHead.get();
+            if (head >= mTail.get()) {
+                return null;
+            }
+            T frame = mSlots.get((int) head & mMask);
+            if (mHead.compareAndSet(head, head + 1)) {
+                return frame;
+            }
+        }
+    }
+
+    /**
+     * Take the oldest frame, parking the calling thread until a frame is offered or the
+     * timeout elapses. Must only be called from the consumer thread.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit    The unit of {@code timeout}
+     * @return The oldest frame, or {@code null} if none was offered in time
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public T take(long timeout, TimeUnit unit) throws InterruptedException {
+        T frame = poll();
+        if (frame != null) {
+            return frame;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        mWaiter = Thread.currentThread();
+        try {
+            while (true) {
+                // Check again after publishing the waiter, in case the frame came in between
+                frame = poll();
+                if (frame != null) {
+                    return frame;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            mWaiter = null;
+        }
+    }
+
+    /**
+     * Get the number of frames in the ring. The value may be stale by the time it is used.
+     *
+     * @return The number of frames waiting
+     */
+    public int size() {
+        long head = mHead.get();
+        long tail = mTail.get();
+        return (int) Math.max(0, Math.min(tail - head, mMask + 1));
+    }
+
+    /**
+     * Whether the ring is full, in which case the next offer drops a frame. The value may be
+     * stale by the time it is used, but it only ever becomes stale towards not full when read
+     * from the producer thread.
+     *
+     * @return {@code true} if the ring is full
+     */
+    public boolean isFull() {
+        return mTail.get() - mHead.get() > mMask;
+    }
+
+    /**
+     * Get the maximum number of frames held.
+     *
+     * @return The capacity of the ring
+     */
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Get the delivery policy of the ring.
+     *
+     * @return One of the {@code POLICY_} constants
+     */
+    public int getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Get the number of frames overwritten by newer frames since the ring was created, under
+     * {@link #POLICY_LATEST} and {@link #POLICY_DROP_OLDEST}.
+     *
+     * @return The number of overwritten frames
+     */
+    public long getEvictedCount() {
+        return mEvicted.get();
+    }
+
+    /**
+     * Get the number of frames rejected since the ring was created, under
+     * {@link #POLICY_BACKPRESSURE}.
+     *
+     * @return The number of rejected frames
+     */
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * Get the number of frames dropped for any reason since the ring was created.
+     *
+     * @return The number of dropped frames
+     */
+    public long getDroppedCount() {
+        return mEvicted.get() + mRejected.get();
+    }
+}
@@ -0,0 +1,434 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends frames over a blocking {@link FrameTransport} with the protocol negotiated with the
+ * receiver: the lockstep protocol with JSON headers, where the header and the image are each
+ * acknowledged before going on, or the pipelined protocol, where up to a window of frames are
+ * in flight and the receiver acknowledges each one once it has the whole image.
+ *
+ * <p>This is the send loop of the {@code ConnectedThread} of {@link ConnectionThread}, kept
+ * free of the Android classes so that it can be measured on a plain JVM. It is used by a single
+ * thread. The acknowledgements are read through the {@link FrameDecoder} of the connection,
+ * whose listener must call {@link #onAcknowledged()} for each one.</p>
+ */
+public class FrameSender {
+    private final FrameTransport mTransport;
+    private final FrameDecoder mDecoder;
+    private final SendStats mSendStats;
+    private final StreamMetrics mMetrics;
+
+    /**
+     * The number of frames that may be in flight, 1 for the lockstep protocol.
+     */
+    private int mWindow = 1;
+
+    /**
+     * The number of frames sent and not acknowledged yet.
+     */
+    private int mInFlight = 0;
+
+    /**
+     * Whether the receiver accepted binary {@link FrameHeader}s in place of JSON headers.
+     */
+    private boolean mBinaryHeader = false;
+
+    /**
+     * The negotiated {@link FrameHeader} version, 0 with JSON headers.
+     */
+    private int mHeaderVersion = 0;
+
+    /**
+     * Whether the transport delivers every message, so that the receiver acknowledges frames.
+     */
+    private boolean mReliable = true;
+
+    /**
+     * The header of the outgoing frame, reused for every frame.
+     */
+    private final FrameHeader mHeader = new FrameHeader();
+
+    /**
+     * The encoded bytes of {@link #mHeader} and of the metadata following it, direct so that
+     * the channel transport can gather it with the image.
+     */
+    private final ByteBuffer mHeaderBuffer = ByteBuffer.allocateDirect(
+            FrameHeader.HEADER_LENGTH + CaptureMetadata.LENGTH);
+
+    /**
+     * The metadata of the outgoing frame, with the time it waited here.
+     */
+    private final CaptureMetadata mMetadata = new CaptureMetadata();
+
+    /**
+     * The sequence number of the next message.
+     */
+    private int mSequence = 0;
+
+    /**
+     * The name of the stream the connection carries, {@code null} if it is not named.
+     */
+    private String mSession;
+
+    /**
+     * The number of acknowledgements received since the connection was made.
+     */
+    private int mAcknowledged = 0;
+
+    /**
+     * Create a sender speaking the lockstep protocol until {@link #configure} is called.
+     *
+     * @param transport The connection to the receiver
+     * @param decoder   The decoder of what the receiver sends
+     * @param sendStats Where to count the frames sent and acknowledged
+     * @param metrics   Where to record the latencies of the frames
+     */
+    public FrameSender(FrameTransport transport, FrameDecoder decoder, SendStats sendStats,
+                       StreamMetrics metrics) {
+        mTransport = transport;
+        mDecoder = decoder;
+        mSendStats = sendStats;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Switch to the protocol negotiated with the receiver.
+     *
+     * @param window  The number of frames that may be in flight
+     * @param version The {@link FrameHeader} version, or 0 for JSON headers
+     */
+    public void configure(int window, int version) {
+        mWindow = Math.max(1, window);
+        mInFlight = 0;
+        mSendStats.clearInFlight();
+        mBinaryHeader = version >= 1;
+        if (mBinaryHeader) {
+            mHeaderVersion = version;
+            mHeader.setVersion(version);
+        }
+    }
+
+    /**
+     * Name the stream this connection carries, so that a receiver can tell a connection made
+     * again after a loss from a new stream, and go on numbering from where the lost connection
+     * stopped. The name and the first sequence number are sent in the handshake; receivers of
+     * the lockstep protocol, which get no handshake, see a new stream.
+     *
+     * @param session  The name of the stream, the same on every connection made for it
+     * @param sequence The sequence number of the next message, from {@link #getSequence()} of
+     *                 the sender of the lost connection
+     */
+    public void setSession(String session, int sequence) {
+        mSession = session;
+        mSequence = sequence;
+    }
+
+    public String getSession() {
+        return mSession;
+    }
+
+    /**
+     * Get the sequence number of the next message, to carry on a stream on a new connection.
+     *
+     * @return The sequence number
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Decide the number of frames in flight and the header format from the welcome message of
+     * the receiver, and switch to them. A receiver advertising a window larger than one, or a
+     * binary header version, must be told what was picked with the returned handshake, along
+     * with the session set by {@link #setSession}; otherwise, the lockstep protocol with JSON
+     * headers is kept and nothing is sent, so older receivers see no difference.
+     *
+     * @param welcome   The welcome message of the receiver
+     * @param maxWindow The largest number of frames the sender lets in flight
+     * @return The handshake to send, or {@code null} to keep the lockstep protocol
+     */
+    public JSONObject negotiate(JSONObject welcome, int maxWindow) {
+        JSONObject handshake = createHandshake(welcome, maxWindow, mSession, mSequence);
+        if (handshake != null) {
+            configure(handshake.optInt(Constants.REQUEST_FIELD_WINDOW, 1),
+                    handshake.optInt(Constants.REQUEST_FIELD_VERSION, 0));
+        }
+        return handshake;
+    }
+
+    /**
+     * Build the handshake answering the welcome message of a receiver, for every transport to
+     * negotiate the same way. The window and header version picked are in the
+     * {@link Constants#REQUEST_FIELD_WINDOW} and {@link Constants#REQUEST_FIELD_VERSION} fields,
+     * the version being 0 when absent.
+     *
+     * @param welcome   The welcome message of the receiver
+     * @param maxWindow The largest number of frames the sender lets in flight
+     * @param session   The name of the stream, or {@code null} for a new unnamed stream
+     * @param sequence  The sequence number of the next frame of the stream
+     * @return The handshake to send, or {@code null} to keep the lockstep protocol
+     */
+    public static JSONObject createHandshake(JSONObject welcome, int maxWindow, String session,
+                                             int sequence) {
+        int window = Math.max(1, Math.min(
+                welcome.optInt(Constants.REQUEST_FIELD_WINDOW, 1), maxWindow));
+        int version = Math.min(welcome.optInt(Constants.REQUEST_FIELD_VERSION, 0),
+                FrameHeader.VERSION);
+        if (window <= 1 && version < 1) {
+            return null;
+        }
+
+        JSONObject handshake = new JSONObject();
+        try {
+            handshake.put(Constants.REQUEST_FIELD, Constants.REQUEST_HANDSHAKE);
+            handshake.put(Constants.REQUEST_FIELD_WINDOW, window);
+            if (version >= 1) {
+                handshake.put(Constants.REQUEST_FIELD_VERSION, version);
+            }
+            if (session != null) {
+                handshake.put(Constants.REQUEST_FIELD_SESSION, session);
+                handshake.put(Constants.REQUEST_FIELD_SEQUENCE, sequence);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return handshake;
+    }
+
+    /**
+     * Tell whether the transport delivers every message. Over an unreliable transport the
+     * receiver does not acknowledge frames, as a lost acknowledgement would stall the window
+     * for good: frames are sent as they come, JSON headers together with their image, and the
+     * ones lost are lost.
+     *
+     * @param reliable False for a datagram transport
+     */
+    public void setReliable(boolean reliable) {
+        mReliable = reliable;
+        mInFlight = 0;
+        mSendStats.clearInFlight();
+    }
+
+    public boolean isReliable() {
+        return mReliable;
+    }
+
+    public int getWindow() {
+        return mWindow;
+    }
+
+    public boolean isBinaryHeader() {
+        return mBinaryHeader;
+    }
+
+    public int getHeaderVersion() {
+        return mHeaderVersion;
+    }
+
+    /**
+     * Tell whether frames are sent without waiting for each acknowledgement.
+     *
+     * @return True unless the lockstep protocol is used
+     */
+    public boolean isPipelined() {
+        return mBinaryHeader || mWindow > 1 || !mReliable;
+    }
+
+    /**
+     * Count an acknowledgement of the receiver. Called by the listener of the decoder.
+     */
+    public void onAcknowledged() {
+        mAcknowledged++;
+    }
+
+    /**
+     * Send one image with the negotiated protocol. The caller keeps its reference to the image
+     * and releases it afterwards.
+     *
+     * @param frame The image to send
+     * @throws IOException If the connection is broken
+     */
+    public void send(FrameBuffer frame) throws IOException {
+        ByteBuffer payload = frame.getBuffer();
+        long start = System.nanoTime();
+        mMetrics.recordLatency(StreamMetrics.LATENCY_QUEUE, start - frame.getAcquireTime());
+
+        if (isPipelined()) {
+            if (mReliable) {
+                // Wait only when the window is full
+                while (mInFlight >= mWindow) {
+                    mInFlight -= readAcknowledgements(true);
+                }
+                mInFlight -= readAcknowledgements(false);
+            } else {
+                // Take in the requests of the receiver
+                readAcknowledgements(false);
+            }
+
+            // Header and image go out together
+            start = System.nanoTime();
+            ByteBuffer header;
+            if (mBinaryHeader) {
+                boolean metadata = mHeaderVersion >= 3 && frame.hasMetadata();
+                mHeader.set(Constants.REQUEST_STREAMING, mSequence++, frame.getTimestamp(),
+                        frame.getWidth(), frame.getHeight(), frame.getLength()
+                                + (metadata ? CaptureMetadata.LENGTH : 0));
+                mHeader.setFlags(frame.getFlags() | (metadata ? FrameHeader.FLAG_METADATA : 0));
+                header = encodeHeader();
+                if (metadata) {
+                    header = appendMetadata(frame);
+                }
+            } else {
+                header = ByteBuffer.wrap(createJsonHeader(frame).toString().getBytes());
+            }
+            int length = header.remaining() + payload.remaining();
+            long written = System.nanoTime();
+            mMetrics.recordLatency(StreamMetrics.LATENCY_HEADER, written - start);
+            mTransport.write(header, payload);
+            mMetrics.recordLatency(StreamMetrics.LATENCY_PAYLOAD, System.nanoTime() - written);
+            if (mReliable) {
+                mSendStats.onSent(frame, length);
+                mInFlight++;
+            } else {
+                mSendStats.onSentUnacknowledged(length);
+            }
+            return;
+        }
+
+        byte[] header = createJsonHeader(frame).toString().getBytes();
+        mTransport.write(null, ByteBuffer.wrap(header));
+        mMetrics.recordLatency(StreamMetrics.LATENCY_HEADER, System.nanoTime() - start);
+
+        // Receive an acknowledgement, of the header: no frame is in flight yet
+        readAcknowledgements(true);
+        start = System.nanoTime();
+        mTransport.write(null, payload);
+        mMetrics.recordLatency(StreamMetrics.LATENCY_PAYLOAD, System.nanoTime() - start);
+        mSendStats.onSent(frame, header.length + payload.remaining());
+
+        // Receive an acknowledgement
+        readAcknowledgements(true);
+    }
+
+    /**
+     * Send a binary header without a payload, such as a keep-alive or a disconnection
+     * message. Only valid with binary headers.
+     *
+     * @param type The type of the message
+     * @throws IOException If the write fails
+     */
+    public void sendMessage(int type) throws IOException {
+        mHeader.set(type, mSequence++, System.nanoTime(), 0, 0, 0);
+        mTransport.write(encodeHeader(), null);
+    }
+
+    /**
+     * Send a {@link Constants#REQUEST_STATS} message if the receiver negotiated header version
+     * 4 or later, and drop it otherwise.
+     *
+     * @param stats The UTF-8 JSON of the stats
+     * @throws IOException If the write fails
+     */
+    public void sendStats(byte[] stats) throws IOException {
+        if (mHeaderVersion < 4) {
+            return;
+        }
+        mHeader.set(Constants.REQUEST_STATS, mSequence++, System.nanoTime(), 0, 0,
+                stats.length);
+        mTransport.write(encodeHeader(), ByteBuffer.wrap(stats));
+    }
+
+    /**
+     * Wait until the receiver acknowledged every frame sent.
+     *
+     * @throws IOException If the connection is closed or broken
+     */
+    public void drain() throws IOException {
+        while (mInFlight > 0) {
+            mInFlight -= readAcknowledgements(true);
+        }
+    }
+
+    public int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * Read the acknowledgements sent by the receiver. Several acknowledgements may arrive in a
+     * single read, and an acknowledgement may be split across reads, which the
+     * {@link FrameDecoder} takes care of.
+     *
+     * @param block Whether to wait for at least one acknowledgement if none is available yet
+     * @return The number of acknowledgements received
+     * @throws IOException If the connection is closed or broken
+     */
+    public int readAcknowledgements(boolean block) throws IOException {
+        int acknowledged = mAcknowledged;
+        while (true) {
+            boolean wait = block && mAcknowledged == acknowledged;
+            int bytes = mTransport.read(mDecoder, wait);
+            if (bytes < 0) {
+                throw new IOException("Connection closed by the receiver");
+            }
+            if (bytes == 0 && !wait) {
+                if (mAcknowledged != acknowledged) {
+                    mSendStats.onAcknowledged(mAcknowledged - acknowledged, System.nanoTime());
+                }
+                return mAcknowledged - acknowledged;
+            }
+        }
+    }
+
+    /**
+     * Build the JSON header of a frame for receivers without binary header support.
+     *
+     * @param frame The frame to describe
+     * @return The JSON header
+     */
+    public static JSONObject createJsonHeader(FrameBuffer frame) {
+        JSONObject jsonObjSend = new JSONObject();
+        try {
+            jsonObjSend.put(Constants.REQUEST_FIELD, Constants.REQUEST_STREAMING);
+            jsonObjSend.put(Constants.REQUEST_FIELD_BYTE, frame.getLength());
+            jsonObjSend.put(Constants.REQUEST_FIELD_WIDTH, frame.getWidth());
+            jsonObjSend.put(Constants.REQUEST_FIELD_HEIGHT, frame.getHeight());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return jsonObjSend;
+    }
+
+    /**
+     * Encode {@link #mHeader} into the reused header buffer.
+     *
+     * @return The header buffer, flipped for writing
+     */
+    private ByteBuffer encodeHeader() {
+        mHeaderBuffer.clear();
+        mHeader.encode(mHeaderBuffer);
+        mHeaderBuffer.flip();
+        return mHeaderBuffer;
+    }
+
+    /**
+     * Append the metadata of a frame to the header buffer, after {@link #encodeHeader()}.
+     *
+     * @param frame The frame about to be sent
+     * @return The header buffer, flipped for writing
+     */
+    private ByteBuffer appendMetadata(FrameBuffer frame) {
+        mHeaderBuffer.position(mHeaderBuffer.limit());
+        mHeaderBuffer.limit(mHeaderBuffer.capacity());
+        mMetadata.set(frame.getMetadata());
+        mMetadata.setSendDelay(System.nanoTime() - frame.getAcquireTime());
+        mMetadata.encode(mHeaderBuffer);
+        mHeaderBuffer.flip();
+        return mHeaderBuffer;
+    }
+}
@@ -0,0 +1,38 @@
+package seongdokim.remotecamera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The byte transport under a connection to a receiver. It sends a header and a payload as one
+ * message, and feeds whatever the receiver sends into a {@link FrameDecoder}.
+ */
+public interface FrameTransport {
+    /**
+     * Send a message and flush it. Either part may be {@code null}. The header is consumed, while
+     * the position of the payload is left untouched so that it can be sent to other receivers.
+     *
+     * @param header  The header bytes between position and limit, or {@code null}
+     * @param payload The payload bytes between position and limit, or {@code null}
+     * @throws IOException If the connection is broken
+     */
+    void write(ByteBuffer header, ByteBuffer payload) throws IOException;
+
+    /**
+     * Read what the receiver sent into {@code decoder}.
+     *
+     * @param decoder The decoder of the received bytes
+     * @param block   Whether to wait for bytes if none are available yet
+     * @return The number of bytes read, 0 if none were available and {@code block} is false, or
+     * -1 at the end of the stream
+     * @throws IOException If the connection is broken or the bytes are not a valid message
+     */
+    int read(FrameDecoder decoder, boolean block) throws IOException;
+
+    /**
+     * Close the connection, waking up a thread blocked in {@link #read} or {@link #write}.
+     *
+     * @throws IOException If the connection cannot be closed
+     */
+    void close() throws IOException;
+}
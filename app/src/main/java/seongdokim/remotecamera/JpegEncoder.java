@@ -0,0 +1,709 @@
+package seongdokim.remotecamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A baseline JPEG encoder for YUV 4:2:0 images, in pure Java so that it runs and can be measured
+ * on the JVM as well as on the device.
+ *
+ * <p>The image is coded as JFIF with 2x2 subsampled chroma, which is what the camera gives, so
+ * the planes are only transformed, never converted. Each 16x16 MCU of four luma blocks and one
+ * block of each chroma plane goes through a floating point AAN forward DCT, quantization with the
+ * standard tables scaled by the quality the way libjpeg does it, and Huffman coding with the
+ * standard tables. Images whose size is not a multiple of 16 are padded by repeating their last
+ * row and column.</p>
+ *
+ * <p>The entropy-coded data may be cut into restart intervals of one MCU row each, so that
+ * horizontal stripes of an image can be coded independently and joined, which
+ * {@link StripedJpegEncoder} does on several threads.</p>
+ */
+public class JpegEncoder implements FrameEncoder {
+    /**
+     * The default quality, as understood by libjpeg
+     */
+    public static final int DEFAULT_QUALITY = 80;
+
+    /**
+     * The largest number of bytes one MCU may take once coded, byte stuffing included
+     */
+    private static final int MAX_MCU_LENGTH = 6 * 420;
+
+    /**
+     * The natural index of each coefficient in zigzag order
+     */
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    /**
+     * The luminance quantization table of the JPEG standard, in natural order
+     */
+    private static final int[] LUMA_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    /**
+     * The chrominance quantization table of the JPEG standard, in natural order
+     */
+    private static final int[] CHROMA_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    /**
+     * The scale factors of the AAN DCT outputs
+     */
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    private static final HuffmanTable LUMA_DC = new HuffmanTable(0x00,
+            new int[]{0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0},
+            new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+
+    private static final HuffmanTable CHROMA_DC = new HuffmanTable(0x01,
+            new int[]{0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0},
+            new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+
+    private static final HuffmanTable LUMA_AC = new HuffmanTable(0x10,
+            new int[]{0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d},
+            new int[]{
+                    0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+                    0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+                    0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+                    0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+                    0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+                    0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+                    0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+                    0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+                    0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+                    0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+                    0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+                    0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+                    0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+                    0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+                    0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+                    0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+                    0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+                    0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+                    0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+                    0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                    0xf9, 0xfa
+            });
+
+    private static final HuffmanTable CHROMA_AC = new HuffmanTable(0x11,
+            new int[]{0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77},
+            new int[]{
+                    0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+                    0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+                    0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+                    0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+                    0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+                    0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+                    0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+                    0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+                    0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+                    0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+                    0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+                    0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+                    0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+                    0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+                    0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+                    0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+                    0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+                    0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+                    0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+                    0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                    0xf9, 0xfa
+            });
+
+    /**
+     * A Huffman table of the JPEG standard, with the code of each symbol.
+     */
+    private static class HuffmanTable {
+        /**
+         * The class and identifier of the table, as written in the DHT segment
+         */
+        final int id;
+        /**
+         * The number of codes of each length from 1 to 16
+         */
+        final int[] bits;
+        /**
+         * The symbols by increasing code length
+         */
+        final int[] values;
+        /**
+         * The code of each symbol
+         */
+        final int[] codes = new int[256];
+        /**
+         * The length of the code of each symbol
+         */
+        final int[] sizes = new int[256];
+
+        HuffmanTable(int id, int[] bits, int[] values) {
+            this.id = id;
+            this.bits = bits;
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    codes[values[k]] = code;
+                    sizes[values[k]] = length;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    /**
+     * The quality asked for, and the quality the tables are scaled for. They differ after
+     * {@link #setQuality} until the next image.
+     */
+    private volatile int mQuality;
+    private int mTableQuality;
+
+    /**
+     * The quantization tables in zigzag order, as written in the DQT segment
+     */
+    private final int[] mLumaTable = new int[64];
+    private final int[] mChromaTable = new int[64];
+
+    /**
+     * The reciprocals of the quantization steps of the AAN DCT outputs, in natural order
+     */
+    private final float[] mLumaScale = new float[64];
+    private final float[] mChromaScale = new float[64];
+
+    /**
+     * One MCU row of each plane, padded to a whole number of MCUs
+     */
+    private byte[] mRowY = new byte[0];
+    private byte[] mRowU = new byte[0];
+    private byte[] mRowV = new byte[0];
+    private byte[] mChromaScratch = new byte[0];
+    private int mRowWidth;
+
+    private final float[] mBlock = new float[64];
+
+    private byte[] mOutput = new byte[64 * 1024];
+    private int mLength;
+    private int mBitBuffer;
+    private int mBitCount;
+    private int mPredictionY;
+    private int mPredictionU;
+    private int mPredictionV;
+
+    /**
+     * Create an encoder of the default quality.
+     */
+    public JpegEncoder() {
+        this(DEFAULT_QUALITY);
+    }
+
+    /**
+     * Create an encoder.
+     *
+     * @param quality The quality from 1 to 100, as understood by libjpeg
+     */
+    public JpegEncoder(int quality) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Invalid quality: " + quality);
+        }
+        mQuality = quality;
+        mTableQuality = quality;
+        scaleTable(LUMA_QUANTIZATION, quality, mLumaTable, mLumaScale);
+        scaleTable(CHROMA_QUANTIZATION, quality, mChromaTable, mChromaScale);
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Change the quality, from the next image on. Unlike {@link #encode}, safe from any thread.
+     *
+     * @param quality The quality from 1 to 100, as understood by libjpeg
+     */
+    public void setQuality(int quality) {
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Invalid quality: " + quality);
+        }
+        mQuality = quality;
+    }
+
+    private static void scaleTable(int[] base, int quality, int[] table, float[] scale) {
+        int factor = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        for (int i = 0; i < 64; i++) {
+            int natural = ZIGZAG[i];
+            int step = Math.min(Math.max((base[natural] * factor + 50) / 100, 1), 255);
+            table[i] = step;
+            scale[natural] = (float) (1.0 / (step * AAN_SCALE[natural >> 3]
+                    * AAN_SCALE[natural & 7] * 8.0));
+        }
+    }
+
+    @Override
+    public ByteBuffer encode(YuvPlanes image) {
+        startImage(image, mQuality, false);
+        encodeRows(image, 0, getMcuRows(image), false);
+        return finishImage();
+    }
+
+    /**
+     * Get the number of MCU rows of an image.
+     *
+     * @param image The image
+     * @return The height of the image in MCUs
+     */
+    static int getMcuRows(YuvPlanes image) {
+        return (image.getHeight() + 15) >> 4;
+    }
+
+    /**
+     * Start coding an image: scale the tables and write the headers.
+     *
+     * @param image       The image
+     * @param quality     The quality from 1 to 100
+     * @param restartRows Whether the image is cut into restart intervals of one MCU row
+     */
+    void startImage(YuvPlanes image, int quality, boolean restartRows) {
+        applyQuality(quality);
+        mLength = 0;
+        ensureCapacity(1024);
+        writeHeaders(image.getWidth(), image.getHeight(),
+                restartRows ? (image.getWidth() + 15) >> 4 : 0);
+    }
+
+    /**
+     * Start coding a stripe of an image started by another encoder: the output holds
+     * entropy-coded data only.
+     *
+     * @param quality The quality the image was started with
+     */
+    void startStripe(int quality) {
+        applyQuality(quality);
+        mLength = 0;
+    }
+
+    private void applyQuality(int quality) {
+        if (quality != mTableQuality) {
+            mTableQuality = quality;
+            scaleTable(LUMA_QUANTIZATION, quality, mLumaTable, mLumaScale);
+            scaleTable(CHROMA_QUANTIZATION, quality, mChromaTable, mChromaScale);
+        }
+    }
+
+    /**
+     * Code a run of MCU rows, appending to the output.
+     *
+     * @param image       The image
+     * @param firstRow    The first MCU row
+     * @param endRow      The MCU row after the last one
+     * @param restartRows Whether a restart marker follows every MCU row but the last of the
+     *                    image, as announced by {@link #startImage}
+     */
+    void encodeRows(YuvPlanes image, int firstRow, int endRow, boolean restartRows) {
+        int mcuColumns = (image.getWidth() + 15) >> 4;
+        int mcuRows = getMcuRows(image);
+        prepareRows(mcuColumns << 4, image);
+
+        mBitBuffer = 0;
+        mBitCount = 0;
+        mPredictionY = 0;
+        mPredictionU = 0;
+        mPredictionV = 0;
+        ByteBuffer y = image.getY().duplicate();
+        ByteBuffer u = image.getU().duplicate();
+        ByteBuffer v = image.getV().duplicate();
+        for (int row = firstRow; row < endRow; row++) {
+            loadRow(image, y, u, v, row);
+            ensureCapacity(mLength + mcuColumns * MAX_MCU_LENGTH + 2);
+            for (int column = 0; column < mcuColumns; column++) {
+                encodeMcu(column);
+            }
+            if (restartRows && row < mcuRows - 1) {
+                // RST0 to RST7 in turn, after which the decoder resets its predictions
+                flushBits();
+                writeMarker(0xd0 + (row & 7));
+                mPredictionY = 0;
+                mPredictionU = 0;
+                mPredictionV = 0;
+            }
+        }
+        flushBits();
+    }
+
+    /**
+     * Append bytes coded by another encoder to the output.
+     *
+     * @param data The bytes between position and limit
+     */
+    void append(ByteBuffer data) {
+        ensureCapacity(mLength + data.remaining());
+        int length = data.remaining();
+        data.duplicate().get(mOutput, mLength, length);
+        mLength += length;
+    }
+
+    /**
+     * Get the output so far.
+     *
+     * @return The bytes coded since the image or stripe started, valid until the next one
+     */
+    ByteBuffer getOutput() {
+        return ByteBuffer.wrap(mOutput, 0, mLength);
+    }
+
+    /**
+     * End the image.
+     *
+     * @return The whole image, valid until the next one
+     */
+    ByteBuffer finishImage() {
+        ensureCapacity(mLength + 2);
+        writeMarker(0xd9);
+        return getOutput();
+    }
+
+    private void prepareRows(int rowWidth, YuvPlanes image) {
+        mRowWidth = rowWidth;
+        if (mRowY.length < rowWidth * 16) {
+            mRowY = new byte[rowWidth * 16];
+            mRowU = new byte[rowWidth * 4];
+            mRowV = new byte[rowWidth * 4];
+        }
+        int scratch = ((image.getWidth() + 1) / 2 - 1) * image.getUvPixelStride() + 1;
+        if (mChromaScratch.length < scratch) {
+            mChromaScratch = new byte[scratch];
+        }
+    }
+
+    /**
+     * Copy the 16 luma rows and 8 chroma rows of an MCU row, repeating the last row and column
+     * of the image past its edges.
+     */
+    private void loadRow(YuvPlanes image, ByteBuffer y, ByteBuffer u, ByteBuffer v, int mcuRow) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int stride = image.getYRowStride();
+        for (int i = 0; i < 16; i++) {
+            int line = Math.min((mcuRow << 4) + i, height - 1);
+            int offset = i * mRowWidth;
+            y.position(line * stride);
+            y.get(mRowY, offset, width);
+            pad(mRowY, offset, width, mRowWidth);
+        }
+
+        int chromaWidth = (width + 1) >> 1;
+        int chromaHeight = (height + 1) >> 1;
+        int chromaRowWidth = mRowWidth >> 1;
+        for (int i = 0; i < 8; i++) {
+            int line = Math.min((mcuRow << 3) + i, chromaHeight - 1);
+            int offset = i * chromaRowWidth;
+            loadChroma(image, u, line, mRowU, offset, chromaWidth);
+            loadChroma(image, v, line, mRowV, offset, chromaWidth);
+            pad(mRowU, offset, chromaWidth, chromaRowWidth);
+            pad(mRowV, offset, chromaWidth, chromaRowWidth);
+        }
+    }
+
+    private void loadChroma(YuvPlanes image, ByteBuffer plane, int line, byte[] row, int offset,
+                            int width) {
+        int pixelStride = image.getUvPixelStride();
+        plane.position(line * image.getUvRowStride());
+        if (pixelStride == 1) {
+            plane.get(row, offset, width);
+            return;
+        }
+        // Interleaved samples: the last one of a row may be the last byte of the buffer
+        byte[] scratch = mChromaScratch;
+        plane.get(scratch, 0, (width - 1) * pixelStride + 1);
+        for (int i = 0, j = 0; i < width; i++, j += pixelStride) {
+            row[offset + i] = scratch[j];
+        }
+    }
+
+    private static void pad(byte[] row, int offset, int width, int rowWidth) {
+        byte last = row[offset + width - 1];
+        for (int i = width; i < rowWidth; i++) {
+            row[offset + i] = last;
+        }
+    }
+
+    private void encodeMcu(int column) {
+        int x = column << 4;
+        mPredictionY = encodeBlock(mRowY, x, mRowWidth, mLumaScale, mPredictionY,
+                LUMA_DC, LUMA_AC);
+        mPredictionY = encodeBlock(mRowY, x + 8, mRowWidth, mLumaScale, mPredictionY,
+                LUMA_DC, LUMA_AC);
+        mPredictionY = encodeBlock(mRowY, 8 * mRowWidth + x, mRowWidth, mLumaScale,
+                mPredictionY, LUMA_DC, LUMA_AC);
+        mPredictionY = encodeBlock(mRowY, 8 * mRowWidth + x + 8, mRowWidth, mLumaScale,
+                mPredictionY, LUMA_DC, LUMA_AC);
+        int chromaWidth = mRowWidth >> 1;
+        mPredictionU = encodeBlock(mRowU, column << 3, chromaWidth, mChromaScale, mPredictionU,
+                CHROMA_DC, CHROMA_AC);
+        mPredictionV = encodeBlock(mRowV, column << 3, chromaWidth, mChromaScale, mPredictionV,
+                CHROMA_DC, CHROMA_AC);
+    }
+
+    /**
+     * Transform, quantize and code one 8x8 block.
+     *
+     * @return The quantized DC coefficient, the prediction of the next block of the component
+     */
+    private int encodeBlock(byte[] samples, int offset, int stride, float[] scale,
+                            int prediction, HuffmanTable dcTable, HuffmanTable acTable) {
+        float[] block = mBlock;
+        for (int row = 0, i = 0; row < 8; row++, offset += stride) {
+            for (int column = 0; column < 8; column++, i++) {
+                block[i] = (samples[offset + column] & 0xff) - 128;
+            }
+        }
+        forwardDct(block);
+
+        int dc = quantize(block[0] * scale[0]);
+        int diff = dc - prediction;
+        int category = category(diff);
+        writeBits(dcTable.codes[category], dcTable.sizes[category]);
+        if (category > 0) {
+            writeBits(diff < 0 ? diff - 1 : diff, category);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int natural = ZIGZAG[k];
+            int value = quantize(block[natural] * scale[natural]);
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                writeBits(acTable.codes[0xf0], acTable.sizes[0xf0]);
+                run -= 16;
+            }
+            category = category(value);
+            int symbol = (run << 4) | category;
+            writeBits(acTable.codes[symbol], acTable.sizes[symbol]);
+            writeBits(value < 0 ? value - 1 : value, category);
+            run = 0;
+        }
+        if (run > 0) {
+            writeBits(acTable.codes[0], acTable.sizes[0]);
+        }
+        return dc;
+    }
+
+    private static int quantize(float value) {
+        // Round to nearest without Math.round, as libjpeg does
+        return (int) (value + 16384.5f) - 16384;
+    }
+
+    private static int category(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+    }
+
+    /**
+     * The floating point forward DCT of Arai, Agui and Nakajima, in place. The outputs are
+     * scaled by the AAN factors, which the quantization steps include.
+     */
+    private static void forwardDct(float[] data) {
+        for (int i = 0; i < 64; i += 8) {
+            dct(data, i, 1);
+        }
+        for (int i = 0; i < 8; i++) {
+            dct(data, i, 8);
+        }
+    }
+
+    private static void dct(float[] d, int o, int s) {
+        float tmp0 = d[o] + d[o + 7 * s];
+        float tmp7 = d[o] - d[o + 7 * s];
+        float tmp1 = d[o + s] + d[o + 6 * s];
+        float tmp6 = d[o + s] - d[o + 6 * s];
+        float tmp2 = d[o + 2 * s] + d[o + 5 * s];
+        float tmp5 = d[o + 2 * s] - d[o + 5 * s];
+        float tmp3 = d[o + 3 * s] + d[o + 4 * s];
+        float tmp4 = d[o + 3 * s] - d[o + 4 * s];
+
+        // Even part
+        float tmp10 = tmp0 + tmp3;
+        float tmp13 = tmp0 - tmp3;
+        float tmp11 = tmp1 + tmp2;
+        float tmp12 = tmp1 - tmp2;
+        d[o] = tmp10 + tmp11;
+        d[o + 4 * s] = tmp10 - tmp11;
+        float z1 = (tmp12 + tmp13) * 0.707106781f;
+        d[o + 2 * s] = tmp13 + z1;
+        d[o + 6 * s] = tmp13 - z1;
+
+        // Odd part
+        tmp10 = tmp4 + tmp5;
+        tmp11 = tmp5 + tmp6;
+        tmp12 = tmp6 + tmp7;
+        float z5 = (tmp10 - tmp12) * 0.382683433f;
+        float z2 = 0.541196100f * tmp10 + z5;
+        float z4 = 1.306562965f * tmp12 + z5;
+        float z3 = tmp11 * 0.707106781f;
+        float z11 = tmp7 + z3;
+        float z13 = tmp7 - z3;
+        d[o + 5 * s] = z13 + z2;
+        d[o + 3 * s] = z13 - z2;
+        d[o + s] = z11 + z4;
+        d[o + 7 * s] = z11 - z4;
+    }
+
+    private void writeHeaders(int width, int height, int restartInterval) {
+        writeMarker(0xd8);
+
+        // JFIF, no density
+        writeMarker(0xe0);
+        writeShort(16);
+        writeByte('J');
+        writeByte('F');
+        writeByte('I');
+        writeByte('F');
+        writeByte(0);
+        writeByte(1);
+        writeByte(1);
+        writeByte(0);
+        writeShort(1);
+        writeShort(1);
+        writeByte(0);
+        writeByte(0);
+
+        writeMarker(0xdb);
+        writeShort(2 + 2 * 65);
+        writeByte(0);
+        for (int i = 0; i < 64; i++) {
+            writeByte(mLumaTable[i]);
+        }
+        writeByte(1);
+        for (int i = 0; i < 64; i++) {
+            writeByte(mChromaTable[i]);
+        }
+
+        // Baseline, Y sampled 2x2, Cb and Cr 1x1
+        writeMarker(0xc0);
+        writeShort(17);
+        writeByte(8);
+        writeShort(height);
+        writeShort(width);
+        writeByte(3);
+        writeByte(1);
+        writeByte(0x22);
+        writeByte(0);
+        writeByte(2);
+        writeByte(0x11);
+        writeByte(1);
+        writeByte(3);
+        writeByte(0x11);
+        writeByte(1);
+
+        HuffmanTable[] tables = {LUMA_DC, LUMA_AC, CHROMA_DC, CHROMA_AC};
+        int length = 2;
+        for (HuffmanTable table : tables) {
+            length += 17 + table.values.length;
+        }
+        writeMarker(0xc4);
+        writeShort(length);
+        for (HuffmanTable table : tables) {
+            writeByte(table.id);
+            for (int count : table.bits) {
+                writeByte(count);
+            }
+            for (int value : table.values) {
+                writeByte(value);
+            }
+        }
+
+        if (restartInterval > 0) {
+            writeMarker(0xdd);
+            writeShort(4);
+            writeShort(restartInterval);
+        }
+
+        writeMarker(0xda);
+        writeShort(12);
+        writeByte(3);
+        writeByte(1);
+        writeByte(0x00);
+        writeByte(2);
+        writeByte(0x11);
+        writeByte(3);
+        writeByte(0x11);
+        writeByte(0);
+        writeByte(63);
+        writeByte(0);
+    }
+
+    private void writeMarker(int marker) {
+        mOutput[mLength++] = (byte) 0xff;
+        mOutput[mLength++] = (byte) marker;
+    }
+
+    private void writeShort(int value) {
+        mOutput[mLength++] = (byte) (value >> 8);
+        mOutput[mLength++] = (byte) value;
+    }
+
+    private void writeByte(int value) {
+        mOutput[mLength++] = (byte) value;
+    }
+
+    /**
+     * Append the low {@code size} bits of {@code bits} to the entropy-coded data, stuffing a
+     * zero byte after every 0xFF byte.
+     */
+    private void writeBits(int bits, int size) {
+        mBitBuffer = (mBitBuffer << size) | (bits & ((1 << size) - 1));
+        mBitCount += size;
+        while (mBitCount >= 8) {
+            mBitCount -= 8;
+            int b = (mBitBuffer >> mBitCount) & 0xff;
+            mOutput[mLength++] = (byte) b;
+            if (b == 0xff) {
+                mOutput[mLength++] = 0;
+            }
+        }
+    }
+
+    /**
+     * Pad the last byte of the entropy-coded data with ones.
+     */
+    private void flushBits() {
+        if (mBitCount > 0) {
+            writeBits(0x7f, 8 - mBitCount);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mOutput.length) {
+            byte[] output = new byte[Math.max(capacity, mOutput.length * 2)];
+            System.arraycopy(mOutput, 0, output, 0, mLength);
+            mOutput = output;
+        }
+    }
+}
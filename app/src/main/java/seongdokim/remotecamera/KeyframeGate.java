@@ -0,0 +1,102 @@
+package seongdokim.remotecamera;
+
+/**
+ * Decides which frames taken from a queue may go to one receiver so that it can decode them.
+ * A video frame other than a keyframe only decodes after the frames before it, so a receiver
+ * that just connected, or whose queue dropped a frame, gets nothing until the next keyframe
+ * carrying the codec configuration, and a keyframe is requested meanwhile. JPEG images always
+ * pass.
+ *
+ * <p>An instance belongs to the thread sending to the receiver.</p>
+ */
+public class KeyframeGate {
+    /**
+     * Asks the encoder for a keyframe.
+     */
+    public interface Listener {
+        /**
+         * A receiver waits for a keyframe. Called on the sending thread.
+         */
+        void onKeyframeNeeded();
+    }
+
+    private final Listener mListener;
+
+    /**
+     * Whether the receiver needs a keyframe before any other video frame
+     */
+    private boolean mWaiting = true;
+
+    /**
+     * Whether the listener was told since the receiver started waiting
+     */
+    private boolean mRequested = false;
+
+    private long mDroppedCount = 0;
+    private long mSkippedCount = 0;
+
+    /**
+     * Create a gate waiting for a keyframe.
+     *
+     * @param listener The listener to ask for keyframes, or {@code null}
+     */
+    public KeyframeGate(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Decide whether to send a frame just taken from the queue of the receiver. A frame that is
+     * not admitted is skipped, and its reference is still the caller's to release.
+     *
+     * @param frame        The frame
+     * @param droppedCount The number of frames dropped so far by the queue of the receiver
+     * @param binaryHeader Whether the receiver gets binary headers, the only ones that carry
+     *                     the flags telling video frames apart
+     * @return True if the frame is to be sent
+     */
+    public boolean admit(FrameBuffer frame, long droppedCount, boolean binaryHeader) {
+        int flags = frame.getFlags();
+        if ((flags & FrameHeader.FLAG_CODEC_MASK) == FrameHeader.CODEC_JPEG) {
+            return true;
+        }
+        if (!binaryHeader) {
+            mSkippedCount++;
+            return false;
+        }
+
+        boolean dropped = droppedCount != mDroppedCount;
+        mDroppedCount = droppedCount;
+        int keyframe = FrameHeader.FLAG_KEYFRAME | FrameHeader.FLAG_CODEC_CONFIG;
+        if ((flags & keyframe) == keyframe) {
+            mWaiting = false;
+            mRequested = false;
+            return true;
+        }
+        if (dropped) {
+            // The frames of the receiver no longer follow each other
+            mWaiting = true;
+        }
+        if (mWaiting) {
+            if (!mRequested && mListener != null) {
+                mRequested = true;
+                mListener.onKeyframeNeeded();
+            }
+            mSkippedCount++;
+            return false;
+        }
+        return true;
+    }
+
+    public boolean isWaiting() {
+        return mWaiting;
+    }
+
+    /**
+     * Get the number of frames the receiver could not use and was not sent.
+     *
+     * @return The number of frames skipped
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+}
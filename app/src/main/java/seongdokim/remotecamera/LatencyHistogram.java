@@ -0,0 +1,159 @@
+package seongdokim.remotecamera;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in the manner of HdrHistogram: the values are counted in buckets
+ * whose width grows with the value, 16 to 32 buckets per power of two, so that any percentile
+ * is known within about 6% from a microsecond to over an hour with a few hundred counters.
+ *
+ * <p>Recording is lock-free and allocation-free, and safe from any number of threads. Reading
+ * is meant for a single thread, which typically drains the histogram into another one once per
+ * reporting interval with {@link #drainTo}.</p>
+ */
+public class LatencyHistogram {
+    /**
+     * Values below this number of microseconds get a bucket each
+     */
+    private static final int SUB_BUCKETS = 32;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * The largest value in microseconds told apart from larger ones, about 71 minutes
+     */
+    private static final long MAX_MICROS = (1L << 32) - 1;
+
+    private static final int BUCKET_COUNT = bucketOf(MAX_MICROS) + 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros) - (SUB_BUCKET_BITS - 1);
+        return magnitude * HALF_SUB_BUCKETS + (int) (micros >>> magnitude);
+    }
+
+    /**
+     * Get the largest value counted in a bucket.
+     *
+     * @param bucket The index of the bucket
+     * @return The upper bound of the bucket in microseconds
+     */
+    private static long highestOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / HALF_SUB_BUCKETS - 1;
+        long subBucket = bucket - magnitude * HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+
+    /**
+     * Count a latency.
+     *
+     * @param nanos The latency in nanoseconds, negative values counted as zero
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(Math.min(MAX_MICROS, nanos / 1000)));
+        mTotalNanos.addAndGet(nanos);
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    /**
+     * Move the counts of this histogram into another one, leaving this one empty. Latencies
+     * recorded meanwhile end up in either histogram, never in both or in none.
+     *
+     * @param out The histogram to add the counts to
+     */
+    public void drainTo(LatencyHistogram out) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = mCounts.getAndSet(i, 0);
+            if (count != 0) {
+                out.mCounts.addAndGet(i, count);
+            }
+        }
+        out.mTotalNanos.addAndGet(mTotalNanos.getAndSet(0));
+        long max = mMaxNanos.getAndSet(0);
+        if (max > out.mMaxNanos.get()) {
+            out.mMaxNanos.set(max);
+        }
+    }
+
+    /**
+     * Forget every latency counted.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    /**
+     * Get the number of latencies counted.
+     *
+     * @return The count
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Get the latency below which a share of the latencies counted lie.
+     *
+     * @param percentile The share, from 0 to 100
+     * @return The latency in nanoseconds, rounded up to the end of its bucket but no more than
+     * the largest latency counted, or 0 if none was counted
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(mMaxNanos.get(), highestOf(i) * 1000 + 999);
+            }
+        }
+        return mMaxNanos.get();
+    }
+
+    /**
+     * Get the mean of the latencies counted.
+     *
+     * @return The mean in nanoseconds, or 0 if none was counted
+     */
+    public long getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : mTotalNanos.get() / count;
+    }
+
+    /**
+     * Get the largest latency counted.
+     *
+     * @return The exact largest latency in nanoseconds, or 0 if none was counted
+     */
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+}
@@ -0,0 +1,210 @@
+package seongdokim.remotecamera;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hardware H.264 or HEVC encoder of the device, fed by the camera through an input
+ * {@link Surface} so that pictures never go through the application, and drained by a
+ * dedicated thread.
+ */
+public class MediaCodecVideoEncoder implements VideoEncoder {
+    /**
+     * Tag for the {@link Log}.
+     */
+    private static final String TAG = "MediaCodecVideoEncoder";
+
+    /**
+     * The default bitrate in bits per second
+     */
+    public static final int DEFAULT_BITRATE = 2000000;
+
+    /**
+     * The default frame rate
+     */
+    public static final int DEFAULT_FRAME_RATE = 30;
+
+    /**
+     * The interval in seconds between two keyframes the encoder makes on its own
+     */
+    private static final int KEYFRAME_INTERVAL = 2;
+
+    /**
+     * The longest time in microseconds the drain thread waits for an output buffer
+     */
+    private static final long DEQUEUE_TIMEOUT_US = 100000;
+
+    /**
+     * The longest time in milliseconds to wait for the drain thread when stopping
+     */
+    private static final long STOP_TIMEOUT = 1000;
+
+    private final int mCodecType;
+    private final int mWidth;
+    private final int mHeight;
+    private final MediaCodec mCodec;
+    private final Surface mInputSurface;
+
+    private Thread mDrainThread;
+    private volatile boolean mRunning = false;
+
+    /**
+     * Create and configure an encoder.
+     *
+     * @param codec     {@link FrameHeader#CODEC_H264} or {@link FrameHeader#CODEC_HEVC}
+     * @param width     The width of the pictures
+     * @param height    The height of the pictures
+     * @param bitrate   The target bitrate in bits per second
+     * @param frameRate The expected frame rate
+     * @throws IOException If the device has no such encoder
+     * @throws IllegalStateException If the encoder does not accept the configuration
+     */
+    public MediaCodecVideoEncoder(int codec, int width, int height, int bitrate, int frameRate)
+            throws IOException {
+        String mime = codec == FrameHeader.CODEC_HEVC
+                ? MediaFormat.MIMETYPE_VIDEO_HEVC : MediaFormat.MIMETYPE_VIDEO_AVC;
+        mCodecType = codec == FrameHeader.CODEC_HEVC ? codec : FrameHeader.CODEC_H264;
+        mWidth = width;
+        mHeight = height;
+
+        MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEYFRAME_INTERVAL);
+
+        mCodec = MediaCodec.createEncoderByType(mime);
+        try {
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mInputSurface = mCodec.createInputSurface();
+        } catch (RuntimeException e) {
+            mCodec.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the surface the camera renders the pictures to encode into.
+     *
+     * @return The input surface of the encoder
+     */
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    @Override
+    public void start(final Callback callback) throws IOException {
+        try {
+            mCodec.start();
+        } catch (IllegalStateException e) {
+            throw new IOException("Unable to start the encoder", e);
+        }
+        mRunning = true;
+        mDrainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain(callback);
+            }
+        }, "VideoEncoder");
+        mDrainThread.start();
+    }
+
+    private void drain(Callback callback) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            while (mRunning) {
+                int index = mCodec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (index < 0) {
+                    // No output yet, or a format change the receivers learn from the stream
+                    continue;
+                }
+
+                ByteBuffer output = mCodec.getOutputBuffer(index);
+                if (output != null && info.size > 0) {
+                    output.limit(info.offset + info.size);
+                    output.position(info.offset);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        callback.onCodecConfig(output);
+                    } else {
+                        callback.onAccessUnit(output,
+                                TimeUnit.MICROSECONDS.toNanos(info.presentationTimeUs),
+                                (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                    }
+                }
+                mCodec.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Encoder failed", e);
+        }
+    }
+
+    @Override
+    public void requestKeyframe() {
+        Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            mCodec.setParameters(parameters);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Unable to request a keyframe", e);
+        }
+    }
+
+    @Override
+    public void setBitrate(int bitrate) {
+        Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            mCodec.setParameters(parameters);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Unable to change the bitrate", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        mRunning = false;
+        Thread thread = mDrainThread;
+        if (thread != null) {
+            try {
+                thread.join(STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            mDrainThread = null;
+            try {
+                mCodec.stop();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Unable to stop the encoder", e);
+            }
+        }
+        mCodec.release();
+        mInputSurface.release();
+    }
+
+    @Override
+    public int getCodec() {
+        return mCodecType;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+}
@@ -0,0 +1,66 @@
+package seongdokim.remotecamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tells apart the messages a receiver sends once streaming: acknowledgements, format requests
+ * and region requests, either as JSON messages or as binary headers. Every transport hands
+ * them to a {@link Handler} here, so that they all understand the same requests.
+ */
+public class ReceiverRequests {
+    /**
+     * Receives the requests of a receiver, on the thread of the decoder.
+     */
+    public interface Handler extends StreamFormat.Listener, StreamRegion.Listener {
+        /**
+         * The receiver acknowledged a frame.
+         */
+        void onAcknowledged();
+    }
+
+    private ReceiverRequests() {
+    }
+
+    /**
+     * Dispatch a JSON message received past the welcome message. A message that is neither a
+     * format nor a region request is an acknowledgement, which is what older receivers send.
+     *
+     * @param message The bytes of the message between its position and limit
+     * @param handler The handler of the request
+     */
+    public static void dispatch(ByteBuffer message, Handler handler) {
+        StreamFormat format = StreamFormat.parseRequest(message);
+        if (format != null) {
+            handler.onFormatRequested(format);
+            return;
+        }
+        StreamRegion region = StreamRegion.parseRequest(message);
+        if (region != null) {
+            handler.onRegionRequested(region);
+        } else {
+            handler.onAcknowledged();
+        }
+    }
+
+    /**
+     * Dispatch a binary header. Headers of other types are ignored.
+     *
+     * @param header  The header
+     * @param handler The handler of the request
+     * @return False if the header asked for a format or region that cannot be given
+     */
+    public static boolean dispatch(FrameHeader header, Handler handler) {
+        try {
+            if (header.getType() == Constants.REQUEST_OK) {
+                handler.onAcknowledged();
+            } else if (header.getType() == Constants.REQUEST_FORMAT) {
+                handler.onFormatRequested(StreamFormat.fromHeader(header));
+            } else if (header.getType() == Constants.REQUEST_REGION) {
+                handler.onRegionRequested(StreamRegion.fromHeader(header));
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package seongdokim.remotecamera;
+
+import java.util.Random;
+
+/**
+ * The delays between the attempts to connect again after a connection was lost: exponential,
+ * so that a receiver down for long is not hammered, and jittered, so that a fleet of cameras
+ * losing the same receiver does not come back in lockstep.
+ *
+ * <p>The n-th delay is drawn uniformly between half and all of
+ * {@code min(maxDelay, initialDelay * 2^n)}, so it never drops below half the exponential curve.
+ * Instances are not thread-safe.</p>
+ */
+public class ReconnectBackoff {
+    /**
+     * The first delay in milliseconds unless told otherwise, short enough for a Wi-Fi blip.
+     */
+    public static final long DEFAULT_INITIAL_DELAY = 250;
+
+    /**
+     * The longest delay in milliseconds unless told otherwise.
+     */
+    public static final long DEFAULT_MAX_DELAY = 30000;
+
+    private final long mInitialDelay;
+    private final long mMaxDelay;
+    private final Random mRandom;
+    private int mAttempts = 0;
+
+    /**
+     * Create a backoff with the default delays.
+     */
+    public ReconnectBackoff() {
+        this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, new Random());
+    }
+
+    /**
+     * Create a backoff.
+     *
+     * @param initialDelay The ceiling of the first delay in milliseconds
+     * @param maxDelay     The ceiling of every delay in milliseconds
+     * @param random       The source of the jitter
+     */
+    public ReconnectBackoff(long initialDelay, long maxDelay, Random random) {
+        if (initialDelay <= 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid delays: " + initialDelay + ", "
+                    + maxDelay);
+        }
+        mInitialDelay = initialDelay;
+        mMaxDelay = maxDelay;
+        mRandom = random;
+    }
+
+    /**
+     * Get the delay before the next attempt, and count the attempt.
+     *
+     * @return The delay in milliseconds
+     */
+    public long nextDelay() {
+        long ceiling = mMaxDelay;
+        // Past 2^62 the shift overflows; the ceiling has long been reached anyway
+        if (mAttempts < 62 && mInitialDelay <= mMaxDelay >> mAttempts) {
+            ceiling = mInitialDelay << mAttempts;
+        }
+        mAttempts++;
+        long half = ceiling / 2;
+        return ceiling - half + (long) (mRandom.nextDouble() * (half + 1));
+    }
+
+    /**
+     * Start over from the first delay, once a connection is made.
+     */
+    public void reset() {
+        mAttempts = 0;
+    }
+
+    /**
+     * Get the number of attempts since the last reset.
+     *
+     * @return The number of delays handed out
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+}
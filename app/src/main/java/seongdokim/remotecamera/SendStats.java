@@ -0,0 +1,157 @@
+package seongdokim.remotecamera;
+
+/**
+ * Measures what a sender gets through: the frames and bytes sent, and the time from when each
+ * frame was handed over by the camera to when the receiver acknowledged it. Frames are
+ * acknowledged in the order they are sent, so the acquire times of the frames in flight are
+ * kept in a ring in that order, with the times they were sent.
+ *
+ * <p>{@link #onSent} and {@link #onAcknowledged} are called by the sending thread only; the
+ * totals may be read from any thread.</p>
+ */
+public class SendStats {
+    /**
+     * The acquire times of the frames sent and not acknowledged yet
+     */
+    private long[] mInFlight = new long[8];
+
+    /**
+     * The send times of the frames in flight, in the same slots as their acquire times
+     */
+    private long[] mSentTimes = new long[8];
+    private int mHead = 0;
+    private int mCount = 0;
+
+    /**
+     * Where to record the frames, bytes and acknowledgement latencies too, or {@code null}
+     */
+    private volatile StreamMetrics mMetrics;
+
+    private volatile long mFramesSent = 0;
+    private volatile long mBytesSent = 0;
+    private volatile long mFramesAcknowledged = 0;
+    private volatile long mLatencyNanos = 0;
+
+    /**
+     * Record a frame as sent.
+     *
+     * @param frame  The frame
+     * @param length The number of bytes of the frame, header included
+     */
+    public void onSent(FrameBuffer frame, int length) {
+        if (mCount == mInFlight.length) {
+            long[] inFlight = new long[mInFlight.length * 2];
+            long[] sentTimes = new long[inFlight.length];
+            for (int i = 0; i < mCount; i++) {
+                inFlight[i] = mInFlight[(mHead + i) % mInFlight.length];
+                sentTimes[i] = mSentTimes[(mHead + i) % mInFlight.length];
+            }
+            mInFlight = inFlight;
+            mSentTimes = sentTimes;
+            mHead = 0;
+        }
+        int slot = (mHead + mCount) % mInFlight.length;
+        mInFlight[slot] = frame.getAcquireTime();
+        mSentTimes[slot] = System.nanoTime();
+        mCount++;
+        onSentUnacknowledged(length);
+    }
+
+    /**
+     * Record a frame as sent to a receiver that does not acknowledge frames.
+     *
+     * @param length The number of bytes of the frame, header included
+     */
+    public void onSentUnacknowledged(int length) {
+        mFramesSent++;
+        mBytesSent += length;
+        StreamMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.increment(StreamMetrics.COUNTER_FRAMES_SENT);
+            metrics.add(StreamMetrics.COUNTER_BYTES_SENT, length);
+        }
+    }
+
+    /**
+     * Record the oldest frames in flight as acknowledged.
+     *
+     * @param count The number of frames acknowledged
+     * @param now   The current time in {@link System#nanoTime()} units
+     */
+    public void onAcknowledged(int count, long now) {
+        long latency = 0;
+        int acknowledged = Math.min(count, mCount);
+        StreamMetrics metrics = mMetrics;
+        for (int i = 0; i < acknowledged; i++) {
+            latency += now - mInFlight[mHead];
+            if (metrics != null) {
+                metrics.recordLatency(StreamMetrics.LATENCY_ACK, now - mSentTimes[mHead]);
+            }
+            mHead = (mHead + 1) % mInFlight.length;
+        }
+        mCount -= acknowledged;
+        mLatencyNanos += latency;
+        mFramesAcknowledged += acknowledged;
+    }
+
+    /**
+     * Record the frames sent and acknowledged into a registry as well.
+     *
+     * @param metrics The registry, or {@code null} to stop
+     */
+    public void setMetrics(StreamMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Forget the frames in flight, when the connection that carried them is gone.
+     */
+    public void clearInFlight() {
+        mHead = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Add the totals of another sender to these, to report several senders as one.
+     *
+     * @param other The other sender
+     */
+    public void accumulate(SendStats other) {
+        mFramesSent += other.mFramesSent;
+        mBytesSent += other.mBytesSent;
+        mFramesAcknowledged += other.mFramesAcknowledged;
+        mLatencyNanos += other.mLatencyNanos;
+    }
+
+    /**
+     * Reset the totals, to reuse a snapshot.
+     */
+    public void reset() {
+        clearInFlight();
+        mFramesSent = 0;
+        mBytesSent = 0;
+        mFramesAcknowledged = 0;
+        mLatencyNanos = 0;
+    }
+
+    public long getFramesSent() {
+        return mFramesSent;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public long getFramesAcknowledged() {
+        return mFramesAcknowledged;
+    }
+
+    /**
+     * Get the sum of the latencies of the acknowledged frames.
+     *
+     * @return The time from acquire to acknowledgement, summed over the frames, in nanoseconds
+     */
+    public long getLatencyNanos() {
+        return mLatencyNanos;
+    }
+}
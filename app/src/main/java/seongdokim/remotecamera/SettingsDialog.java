@@ -0,0 +1,131 @@
+package seongdokim.remotecamera;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.CheckBox;
+import android.widget.Spinner;
+
+/**
+ * Lets the user choose how images are captured and sent. The current settings come in the
+ * arguments and the chosen ones go back to the target fragment in the extras of the result,
+ * under the same keys.
+ */
+public class SettingsDialog extends DialogFragment {
+    public static final String EXTRA_CAPTURE_MODE = "CaptureMode";
+    public static final String EXTRA_VIDEO_CODEC = "VideoCodec";
+    public static final String EXTRA_TRANSPORT = "Transport";
+    public static final String EXTRA_ADAPTIVE = "Adaptive";
+    public static final String EXTRA_OVERVIEW_STREAM = "OverviewStream";
+    public static final String EXTRA_STRIPED_ENCODING = "StripedEncoding";
+    public static final String EXTRA_FORWARD_ERROR_CORRECTION = "ForwardErrorCorrection";
+    public static final String EXTRA_LOW_LATENCY = "LowLatency";
+    public static final String EXTRA_AUTO_RECONNECT = "AutoReconnect";
+    public static final String EXTRA_STATS_OVERLAY = "StatsOverlay";
+
+    /**
+     * The codecs in the order of the entries of {@code R.array.video_codecs}
+     */
+    private static final int[] VIDEO_CODECS = {FrameHeader.CODEC_H264, FrameHeader.CODEC_HEVC};
+
+    private Spinner mCaptureMode;
+    private Spinner mVideoCodec;
+    private Spinner mTransport;
+    private CheckBox mAdaptive;
+    private CheckBox mOverviewStream;
+    private CheckBox mStripedEncoding;
+    private CheckBox mForwardErrorCorrection;
+    private CheckBox mLowLatency;
+    private CheckBox mAutoReconnect;
+    private CheckBox mStatsOverlay;
+
+    /**
+     * Create a dialog showing the given settings.
+     *
+     * @param settings The current settings, under the {@code EXTRA_} keys
+     * @return The dialog
+     */
+    public static SettingsDialog newInstance(Bundle settings) {
+        SettingsDialog dialog = new SettingsDialog();
+        dialog.setArguments(settings);
+        return dialog;
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        LayoutInflater inflater = getActivity().getLayoutInflater();
+        final View dialogView = inflater.inflate(R.layout.dialog_settings, null);
+
+        mCaptureMode = (Spinner) dialogView.findViewById(R.id.spinner_capture_mode);
+        mVideoCodec = (Spinner) dialogView.findViewById(R.id.spinner_video_codec);
+        mTransport = (Spinner) dialogView.findViewById(R.id.spinner_transport);
+        mAdaptive = (CheckBox) dialogView.findViewById(R.id.checkbox_adaptive);
+        mOverviewStream = (CheckBox) dialogView.findViewById(R.id.checkbox_overview_stream);
+        mStripedEncoding = (CheckBox) dialogView.findViewById(R.id.checkbox_striped_encoding);
+        mForwardErrorCorrection =
+                (CheckBox) dialogView.findViewById(R.id.checkbox_forward_error_correction);
+        mLowLatency = (CheckBox) dialogView.findViewById(R.id.checkbox_low_latency);
+        mAutoReconnect = (CheckBox) dialogView.findViewById(R.id.checkbox_auto_reconnect);
+        mStatsOverlay = (CheckBox) dialogView.findViewById(R.id.checkbox_stats_overlay);
+
+        // The capture modes and transports are numbered in the order of their entries
+        Bundle settings = getArguments() != null ? getArguments() : new Bundle();
+        mCaptureMode.setSelection(settings.getInt(EXTRA_CAPTURE_MODE,
+                CameraPreviewFragment.CAPTURE_MODE_JPEG));
+        mVideoCodec.setSelection(Math.max(0, indexOf(VIDEO_CODECS,
+                settings.getInt(EXTRA_VIDEO_CODEC, FrameHeader.CODEC_H264))));
+        mTransport.setSelection(settings.getInt(EXTRA_TRANSPORT,
+                ConnectionThread.TRANSPORT_STREAM));
+        mAdaptive.setChecked(settings.getBoolean(EXTRA_ADAPTIVE));
+        mOverviewStream.setChecked(settings.getBoolean(EXTRA_OVERVIEW_STREAM));
+        mStripedEncoding.setChecked(settings.getBoolean(EXTRA_STRIPED_ENCODING));
+        mForwardErrorCorrection.setChecked(settings.getBoolean(EXTRA_FORWARD_ERROR_CORRECTION));
+        mLowLatency.setChecked(settings.getBoolean(EXTRA_LOW_LATENCY, true));
+        mAutoReconnect.setChecked(settings.getBoolean(EXTRA_AUTO_RECONNECT, true));
+        mStatsOverlay.setChecked(settings.getBoolean(EXTRA_STATS_OVERLAY));
+
+        builder.setView(dialogView);
+        builder.setTitle(R.string.title_settings);
+        builder.setPositiveButton(R.string.btn_caption_apply, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                Intent intent = new Intent();
+                intent.putExtra(EXTRA_CAPTURE_MODE, mCaptureMode.getSelectedItemPosition());
+                intent.putExtra(EXTRA_VIDEO_CODEC,
+                        VIDEO_CODECS[mVideoCodec.getSelectedItemPosition()]);
+                intent.putExtra(EXTRA_TRANSPORT, mTransport.getSelectedItemPosition());
+                intent.putExtra(EXTRA_ADAPTIVE, mAdaptive.isChecked());
+                intent.putExtra(EXTRA_OVERVIEW_STREAM, mOverviewStream.isChecked());
+                intent.putExtra(EXTRA_STRIPED_ENCODING, mStripedEncoding.isChecked());
+                intent.putExtra(EXTRA_FORWARD_ERROR_CORRECTION,
+                        mForwardErrorCorrection.isChecked());
+                intent.putExtra(EXTRA_LOW_LATENCY, mLowLatency.isChecked());
+                intent.putExtra(EXTRA_AUTO_RECONNECT, mAutoReconnect.isChecked());
+                intent.putExtra(EXTRA_STATS_OVERLAY, mStatsOverlay.isChecked());
+                getTargetFragment().onActivityResult(getTargetRequestCode(), Activity.RESULT_OK, intent);
+            }
+        });
+        builder.setNegativeButton(R.string.btn_caption_cancel, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                getTargetFragment().onActivityResult(getTargetRequestCode(), Activity.RESULT_CANCELED, null);
+            }
+        });
+
+        return builder.create();
+    }
+
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,248 @@
+package seongdokim.remotecamera;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to the first of several addresses of a receiver to answer, the way "happy eyeballs"
+ * does: the addresses are tried in order, each attempt starting once the previous one failed or
+ * has not succeeded within {@link #DEFAULT_ATTEMPT_DELAY}, the earlier attempts going on
+ * meanwhile. The first connection made wins and the other attempts are abandoned, so an address
+ * that does not answer, such as an IPv6 address on a network routing IPv4 only, costs a fraction
+ * of a second instead of the whole connect timeout.
+ *
+ * <p>Every socket gets the options of the {@link TransportProfile} of the connector before
+ * connecting, so that the buffer sizes are taken into account in the TCP handshake.</p>
+ *
+ * <p>A connector makes one connection. {@link #cancel()} may be called from any thread.</p>
+ */
+public class SocketConnector {
+    /**
+     * The time in milliseconds an attempt is given before the next one starts alongside, unless
+     * told otherwise.
+     */
+    public static final long DEFAULT_ATTEMPT_DELAY = 250;
+
+    /**
+     * Creates the unconnected sockets of the attempts.
+     */
+    public interface SocketFactory {
+        Socket createSocket() throws IOException;
+    }
+
+    private final SocketFactory mFactory;
+    private long mAttemptDelay = DEFAULT_ATTEMPT_DELAY;
+    private TransportProfile mProfile = TransportProfile.systemDefault();
+
+    /**
+     * The sockets of the attempts still going on, guarded by this
+     */
+    private final List<Socket> mPending = new ArrayList<>();
+    private Socket mConnected;
+    private int mConnectedIndex = -1;
+    private int mStarted = 0;
+    private int mFailed = 0;
+    private IOException mLastFailure;
+    private boolean mCancelled = false;
+
+    /**
+     * Create a connector.
+     *
+     * @param factory The factory of the sockets, creating plain sockets or those of socket
+     *                channels
+     */
+    public SocketConnector(SocketFactory factory) {
+        mFactory = factory;
+    }
+
+    /**
+     * Set the time an attempt is given before the next one starts alongside.
+     *
+     * @param delayMillis The delay in milliseconds
+     */
+    public void setAttemptDelay(long delayMillis) {
+        mAttemptDelay = delayMillis;
+    }
+
+    /**
+     * Set the options of the sockets.
+     *
+     * @param profile The options
+     */
+    public void setProfile(TransportProfile profile) {
+        mProfile = profile;
+    }
+
+    /**
+     * Connect to the first address to answer, blocking until then.
+     *
+     * @param addresses     The addresses to try, in order
+     * @param timeoutMillis The longest time to wait for a connection, 0 to wait forever
+     * @return The connected socket, with the options set
+     * @throws IOException If no address could be reached in time, with the failure of the last
+     *                     attempt, or if cancelled
+     */
+    public Socket connect(List<? extends SocketAddress> addresses, long timeoutMillis)
+            throws IOException {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No address to connect to");
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long nextStart = start;
+        synchronized (this) {
+            while (true) {
+                if (mCancelled) {
+                    throw new SocketException("Connection cancelled");
+                }
+                if (mConnected != null) {
+                    closePending();
+                    return mConnected;
+                }
+
+                long now = System.nanoTime();
+                if (timeoutMillis > 0 && now - deadline >= 0) {
+                    // Attempts still creating their socket close it instead of connecting
+                    mCancelled = true;
+                    closePending();
+                    throw new SocketTimeoutException("No address answered within "
+                            + timeoutMillis + " ms");
+                }
+                if (mStarted < addresses.size()
+                        && (now - nextStart >= 0 || mFailed == mStarted)) {
+                    long remaining = timeoutMillis > 0
+                            ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now)) : 0;
+                    startAttempt(addresses.get(mStarted), mStarted, (int) remaining);
+                    mStarted++;
+                    nextStart = now + TimeUnit.MILLISECONDS.toNanos(mAttemptDelay);
+                    continue;
+                }
+                if (mFailed == addresses.size()) {
+                    throw mLastFailure;
+                }
+
+                long wait = timeoutMillis > 0 ? deadline - now : Long.MAX_VALUE;
+                if (mStarted < addresses.size()) {
+                    wait = Math.min(wait, nextStart - now);
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                } catch (InterruptedException e) {
+                    mCancelled = true;
+                    closePending();
+                    throw new InterruptedIOException("Interrupted while connecting");
+                }
+            }
+        }
+    }
+
+    /**
+     * Abandon every attempt, and close the connection if one was made. Also done by
+     * {@link #connect} when it times out or is interrupted.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        closePending();
+        if (mConnected != null) {
+            close(mConnected);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Get the address that answered.
+     *
+     * @return The index of the address in the list given to {@link #connect}, or -1 if none did
+     */
+    public synchronized int getConnectedIndex() {
+        return mConnectedIndex;
+    }
+
+    /**
+     * Get the number of addresses tried.
+     *
+     * @return The number of attempts started
+     */
+    public synchronized int getAttemptCount() {
+        return mStarted;
+    }
+
+    private void startAttempt(final SocketAddress address, final int index,
+                              final int timeoutMillis) {
+        Thread thread = new Thread("SocketConnector-" + index) {
+            @Override
+            public void run() {
+                attempt(address, index, timeoutMillis);
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Make one attempt, on its own thread.
+     */
+    private void attempt(SocketAddress address, int index, int timeoutMillis) {
+        Socket socket = null;
+        try {
+            socket = mFactory.createSocket();
+            mProfile.apply(socket);
+            synchronized (this) {
+                if (mCancelled || mConnected != null) {
+                    close(socket);
+                    return;
+                }
+                mPending.add(socket);
+            }
+            socket.connect(address, timeoutMillis);
+            synchronized (this) {
+                mPending.remove(socket);
+                if (mCancelled || mConnected != null) {
+                    close(socket);
+                } else {
+                    mConnected = socket;
+                    mConnectedIndex = index;
+                }
+                notifyAll();
+            }
+        } catch (IOException e) {
+            failed(socket, e);
+        } catch (RuntimeException e) {
+            // Such as a security manager refusing the address, which must not leave connect()
+            // waiting for an attempt that will never report
+            failed(socket, new IOException("Attempt failed", e));
+        }
+    }
+
+    private synchronized void failed(Socket socket, IOException cause) {
+        if (socket != null) {
+            mPending.remove(socket);
+            close(socket);
+        }
+        mFailed++;
+        mLastFailure = cause;
+        notifyAll();
+    }
+
+    private void closePending() {
+        for (Socket socket : mPending) {
+            close(socket);
+        }
+        mPending.clear();
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The size and frame rate of the stream a receiver asks for with a
+ * {@link Constants#REQUEST_FORMAT} message, either a {@link FrameHeader} or, from receivers
+ * without binary headers, a JSON message such as
+ * {@code {"request": 3, "width": 640, "height": 480, "fps": 15}}.
+ *
+ * <p>A zero width and height keep the current size, and a zero frame rate the current rate.</p>
+ */
+public class StreamFormat {
+    /**
+     * Receives the format requests of the receivers.
+     */
+    public interface Listener {
+        /**
+         * A receiver asked for another format. Called on the network thread.
+         *
+         * @param format The format asked for
+         */
+        void onFormatRequested(StreamFormat format);
+    }
+
+    private static final byte[] WIDTH_KEY = ("\"" + Constants.REQUEST_FIELD_WIDTH + "\"")
+            .getBytes();
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameRate;
+
+    /**
+     * Create a format.
+     *
+     * @param width     The width, 0 to keep the current size
+     * @param height    The height, 0 to keep the current size
+     * @param frameRate The number of frames per second, 0 to keep the current rate
+     */
+    public StreamFormat(int width, int height, int frameRate) {
+        if (width < 0 || height < 0 || (width == 0) != (height == 0) || frameRate < 0
+                || width > FrameHeader.MAX_DIMENSION || height > FrameHeader.MAX_DIMENSION
+                || frameRate > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid format: " + width + "x" + height + ", "
+                    + frameRate + " fps");
+        }
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = frameRate;
+    }
+
+    /**
+     * Read a format request from a binary header.
+     *
+     * @param header A header of type {@link Constants#REQUEST_FORMAT}
+     * @return The format asked for
+     * @throws IllegalArgumentException If the header is not a valid format request
+     */
+    public static StreamFormat fromHeader(FrameHeader header) {
+        if (header.getType() != Constants.REQUEST_FORMAT) {
+            throw new IllegalArgumentException("Not a format request: " + header);
+        }
+        return new StreamFormat(header.getWidth(), header.getHeight(), header.getFlags());
+    }
+
+    /**
+     * Read a format request from a JSON message.
+     *
+     * @param json A message whose request is {@link Constants#REQUEST_FORMAT}
+     * @return The format asked for
+     * @throws IllegalArgumentException If the message is not a valid format request
+     */
+    public static StreamFormat fromJson(JSONObject json) {
+        if (json.optInt(Constants.REQUEST_FIELD, -1) != Constants.REQUEST_FORMAT) {
+            throw new IllegalArgumentException("Not a format request: " + json);
+        }
+        return new StreamFormat(json.optInt(Constants.REQUEST_FIELD_WIDTH, 0),
+                json.optInt(Constants.REQUEST_FIELD_HEIGHT, 0),
+                json.optInt(Constants.REQUEST_FIELD_FRAME_RATE, 0));
+    }
+
+    /**
+     * Parse a JSON message of a receiver if it may be a format request. Acknowledgements, by
+     * far the most frequent messages, have no width and are told apart without parsing them.
+     *
+     * @param message The bytes of the message between its position and limit
+     * @return The format asked for, or {@code null} if the message is not a format request
+     */
+    public static StreamFormat parseRequest(ByteBuffer message) {
+        if (!contains(message, WIDTH_KEY)) {
+            return null;
+        }
+        String text = new String(message.array(), message.arrayOffset() + message.position(),
+                message.remaining());
+        try {
+            JSONObject json = new JSONObject(text);
+            if (json.optInt(Constants.REQUEST_FIELD, -1) != Constants.REQUEST_FORMAT) {
+                return null;
+            }
+            return fromJson(json);
+        } catch (JSONException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean contains(ByteBuffer message, byte[] key) {
+        int end = message.limit() - key.length;
+        for (int i = message.position(); i <= end; i++) {
+            int j = 0;
+            while (j < key.length && message.get(i + j) == key[j]) {
+                j++;
+            }
+            if (j == key.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the request into a binary header.
+     *
+     * @param header   The header to fill
+     * @param sequence The sequence number of the message
+     * @return {@code header}
+     */
+    public FrameHeader toHeader(FrameHeader header, int sequence) {
+        header.set(Constants.REQUEST_FORMAT, sequence, 0, mWidth, mHeight, 0);
+        header.setFlags(mFrameRate);
+        return header;
+    }
+
+    /**
+     * Write the request as a JSON message.
+     *
+     * @return The message
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put(Constants.REQUEST_FIELD, Constants.REQUEST_FORMAT);
+            json.put(Constants.REQUEST_FIELD_WIDTH, mWidth);
+            json.put(Constants.REQUEST_FIELD_HEIGHT, mHeight);
+            json.put(Constants.REQUEST_FIELD_FRAME_RATE, mFrameRate);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * Tell whether the request changes the size of the stream.
+     *
+     * @return False if the current size is kept
+     */
+    public boolean hasSize() {
+        return mWidth > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamFormat{" + mWidth + "x" + mHeight + ", " + mFrameRate + " fps}";
+    }
+}
@@ -0,0 +1,318 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The performance counters of a sender, from the capture of a frame to its acknowledgement:
+ * a {@link LatencyHistogram} per stage of the way and counters of the frames and bytes.
+ *
+ * <p>Every stage records into the same registry from its own thread without locking or
+ * allocating. A single reader, such as a periodic reporter, takes a {@link Snapshot} of what
+ * was recorded since its previous one, which can be shown on the device or sent to the
+ * receivers in a {@link Constants#REQUEST_STATS} message.</p>
+ */
+public class StreamMetrics {
+    /**
+     * Latency: from the capture of an image, by its sensor timestamp, to its encoded bytes
+     * entering the send queue. Only known when the sensor timestamps are on the boot time clock.
+     */
+    public static final int LATENCY_CAPTURE = 0;
+
+    /**
+     * Latency: from a frame entering the send queue to the sender taking it.
+     */
+    public static final int LATENCY_QUEUE = 1;
+
+    /**
+     * Latency: the encoding of an image by an {@link EncoderStage}.
+     */
+    public static final int LATENCY_ENCODE = 2;
+
+    /**
+     * Latency: the building and, when it is written on its own, the writing of a header.
+     */
+    public static final int LATENCY_HEADER = 3;
+
+    /**
+     * Latency: the writing of a payload, with its header when both go out in one write. Only
+     * known for blocking writes.
+     */
+    public static final int LATENCY_PAYLOAD = 4;
+
+    /**
+     * Latency: from a frame being written to the receiver acknowledging it.
+     */
+    public static final int LATENCY_ACK = 5;
+
+    /**
+     * Latency: from a connection being lost to the sender streaming again on a new one.
+     */
+    public static final int LATENCY_RECONNECT = 6;
+
+    /**
+     * Latency: the resolving of the address of a receiver and the making of a connection to it.
+     */
+    public static final int LATENCY_CONNECT = 7;
+
+    /**
+     * Latency: from the start of a connection attempt to the first frame sent on the connection,
+     * the time to first frame.
+     */
+    public static final int LATENCY_FIRST_FRAME = 8;
+
+    /**
+     * The number of latencies.
+     */
+    public static final int LATENCY_COUNT = 9;
+
+    /**
+     * Counter: the frames sent to a receiver.
+     */
+    public static final int COUNTER_FRAMES_SENT = 0;
+
+    /**
+     * Counter: the bytes sent to a receiver, headers included.
+     */
+    public static final int COUNTER_BYTES_SENT = 1;
+
+    /**
+     * Counter: the frames dropped on the way, by the camera thread, the encoders or the queues.
+     */
+    public static final int COUNTER_FRAMES_DROPPED = 2;
+
+    /**
+     * Counter: the connections made again after one was lost.
+     */
+    public static final int COUNTER_RECONNECTS = 3;
+
+    /**
+     * Counter: the frames sent without the metadata of their capture, its capture result not
+     * found in time.
+     */
+    public static final int COUNTER_METADATA_MISSES = 4;
+
+    /**
+     * The number of counters.
+     */
+    public static final int COUNTER_COUNT = 5;
+
+    /**
+     * The names of the latencies in the stats messages.
+     */
+    private static final String[] LATENCY_NAMES = {
+            "capture", "queue", "encode", "header", "payload", "ack", "reconnect", "connect",
+            "ttff"
+    };
+
+    private static final String FIELD_INTERVAL = "interval";
+    private static final String FIELD_FRAMES = "frames";
+    private static final String FIELD_BYTES = "bytes";
+    private static final String FIELD_DROPPED = "dropped";
+    private static final String FIELD_RECONNECTS = "reconnects";
+    private static final String FIELD_METADATA_MISSES = "metadataMisses";
+    private static final String FIELD_LATENCY = "latency";
+    private static final String FIELD_COUNT = "count";
+    private static final String FIELD_P50 = "p50";
+    private static final String FIELD_P90 = "p90";
+    private static final String FIELD_P99 = "p99";
+    private static final String FIELD_MAX = "max";
+
+    private final LatencyHistogram[] mLatencies = new LatencyHistogram[LATENCY_COUNT];
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+
+    /**
+     * When the last snapshot was taken, touched by the reader only
+     */
+    private long mSnapshotTime;
+
+    public StreamMetrics() {
+        for (int i = 0; i < LATENCY_COUNT; i++) {
+            mLatencies[i] = new LatencyHistogram();
+        }
+        mSnapshotTime = System.nanoTime();
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param latency One of the {@code LATENCY_} constants
+     * @param nanos   The latency in nanoseconds
+     */
+    public void recordLatency(int latency, long nanos) {
+        mLatencies[latency].record(nanos);
+    }
+
+    /**
+     * Add to a counter.
+     *
+     * @param counter One of the {@code COUNTER_} constants
+     * @param delta   The amount to add
+     */
+    public void add(int counter, long delta) {
+        mCounters.addAndGet(counter, delta);
+    }
+
+    /**
+     * Add one to a counter.
+     *
+     * @param counter One of the {@code COUNTER_} constants
+     */
+    public void increment(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    /**
+     * Move what was recorded since the previous snapshot into a snapshot. Must be called from a
+     * single thread.
+     *
+     * @param out The snapshot to fill, whose previous content is replaced
+     * @param now The current time in {@link System#nanoTime()} units
+     * @return {@code out}
+     */
+    public Snapshot snapshot(Snapshot out, long now) {
+        for (int i = 0; i < LATENCY_COUNT; i++) {
+            out.mLatencies[i].reset();
+            mLatencies[i].drainTo(out.mLatencies[i]);
+        }
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            out.mCounters[i] = mCounters.getAndSet(i, 0);
+        }
+        out.mIntervalNanos = Math.max(1, now - mSnapshotTime);
+        mSnapshotTime = now;
+        return out;
+    }
+
+    /**
+     * What was recorded during an interval, reused from one interval to the next.
+     */
+    public static class Snapshot {
+        private final LatencyHistogram[] mLatencies = new LatencyHistogram[LATENCY_COUNT];
+        private final long[] mCounters = new long[COUNTER_COUNT];
+        private long mIntervalNanos = 1;
+
+        public Snapshot() {
+            for (int i = 0; i < LATENCY_COUNT; i++) {
+                mLatencies[i] = new LatencyHistogram();
+            }
+        }
+
+        /**
+         * Get the latencies recorded during the interval.
+         *
+         * @param latency One of the {@code LATENCY_} constants
+         * @return The histogram of the latency
+         */
+        public LatencyHistogram getLatency(int latency) {
+            return mLatencies[latency];
+        }
+
+        /**
+         * Get how much a counter grew during the interval.
+         *
+         * @param counter One of the {@code COUNTER_} constants
+         * @return The growth of the counter
+         */
+        public long getCounter(int counter) {
+            return mCounters[counter];
+        }
+
+        public long getIntervalNanos() {
+            return mIntervalNanos;
+        }
+
+        /**
+         * Get the rate of the frames sent during the interval.
+         *
+         * @return The frames per second
+         */
+        public float getFrameRate() {
+            return mCounters[COUNTER_FRAMES_SENT] * 1e9f / mIntervalNanos;
+        }
+
+        /**
+         * Get the throughput during the interval.
+         *
+         * @return The bytes sent per second
+         */
+        public long getByteRate() {
+            return mCounters[COUNTER_BYTES_SENT] * TimeUnit.SECONDS.toNanos(1) / mIntervalNanos;
+        }
+
+        /**
+         * Write the snapshot as the JSON body of a {@link Constants#REQUEST_STATS} message, such
+         * as {@code {"request": 5, "interval": 1000, "frames": 30, "bytes": 1500000,
+         * "dropped": 0, "reconnects": 0, "metadataMisses": 0, "latency": {"encode":
+         * {"count": 30, "p50": 8100, "p90": 9200, "p99": 12000, "max": 11800}, ...}}}, with
+         * the interval in milliseconds and the latencies in microseconds. Latencies with nothing
+         * recorded are left out.
+         *
+         * @return The message
+         */
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            try {
+                json.put(Constants.REQUEST_FIELD, Constants.REQUEST_STATS);
+                json.put(FIELD_INTERVAL, TimeUnit.NANOSECONDS.toMillis(mIntervalNanos));
+                json.put(FIELD_FRAMES, mCounters[COUNTER_FRAMES_SENT]);
+                json.put(FIELD_BYTES, mCounters[COUNTER_BYTES_SENT]);
+                json.put(FIELD_DROPPED, mCounters[COUNTER_FRAMES_DROPPED]);
+                json.put(FIELD_RECONNECTS, mCounters[COUNTER_RECONNECTS]);
+                json.put(FIELD_METADATA_MISSES, mCounters[COUNTER_METADATA_MISSES]);
+                JSONObject latencies = new JSONObject();
+                for (int i = 0; i < LATENCY_COUNT; i++) {
+                    LatencyHistogram histogram = mLatencies[i];
+                    long count = histogram.getCount();
+                    if (count == 0) {
+                        continue;
+                    }
+                    JSONObject latency = new JSONObject();
+                    latency.put(FIELD_COUNT, count);
+                    latency.put(FIELD_P50, micros(histogram.getValueAtPercentile(50)));
+                    latency.put(FIELD_P90, micros(histogram.getValueAtPercentile(90)));
+                    latency.put(FIELD_P99, micros(histogram.getValueAtPercentile(99)));
+                    latency.put(FIELD_MAX, micros(histogram.getMaxNanos()));
+                    latencies.put(LATENCY_NAMES[i], latency);
+                }
+                json.put(FIELD_LATENCY, latencies);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            return json;
+        }
+
+        private static long micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+
+        /**
+         * Write the snapshot as a few lines of text for an overlay: the rates, then the median
+         * and 99th percentile of each latency in milliseconds.
+         *
+         * @return The text
+         */
+        public String format() {
+            StringBuilder text = new StringBuilder(String.format(Locale.US,
+                    "%.1f fps  %d KiB/s  %d dropped", getFrameRate(), getByteRate() / 1024,
+                    mCounters[COUNTER_FRAMES_DROPPED]));
+            if (mCounters[COUNTER_METADATA_MISSES] > 0) {
+                text.append(String.format(Locale.US, "  %d without metadata",
+                        mCounters[COUNTER_METADATA_MISSES]));
+            }
+            for (int i = 0; i < LATENCY_COUNT; i++) {
+                LatencyHistogram histogram = mLatencies[i];
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                text.append(String.format(Locale.US, "\n%-8s p50 %6.1f  p99 %6.1f ms",
+                        LATENCY_NAMES[i], histogram.getValueAtPercentile(50) / 1e6,
+                        histogram.getValueAtPercentile(99) / 1e6));
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The region of the field of view a receiver asks to get in the main stream with a
+ * {@link Constants#REQUEST_REGION} message, either a {@link FrameHeader} of version 2 or, from
+ * receivers without binary headers, a JSON message such as
+ * {@code {"request": 4, "left": 16384, "top": 16384, "width": 32768, "height": 32768}}.
+ *
+ * <p>The edges are fractions of the whole field of view in units of {@link #SCALE}, so that a
+ * receiver does not need to know the sensor or the stream size; the example above is the
+ * centre quarter. A zero width and height ask for the whole field of view again.</p>
+ */
+public class StreamRegion {
+    /**
+     * Receives the region requests of the receivers.
+     */
+    public interface Listener {
+        /**
+         * A receiver asked for another region. Called on the network thread.
+         *
+         * @param region The region asked for
+         */
+        void onRegionRequested(StreamRegion region);
+    }
+
+    /**
+     * The width or height of the whole field of view.
+     */
+    public static final int SCALE = 0xFFFF;
+
+    /**
+     * The whole field of view.
+     */
+    public static final StreamRegion FULL = new StreamRegion(0, 0, 0, 0);
+
+    private static final byte[] LEFT_KEY = ("\"" + Constants.REQUEST_FIELD_LEFT + "\"")
+            .getBytes();
+
+    private final int mLeft;
+    private final int mTop;
+    private final int mWidth;
+    private final int mHeight;
+
+    /**
+     * Create a region.
+     *
+     * @param left   The left edge, from 0 to {@link #SCALE}
+     * @param top    The top edge, from 0 to {@link #SCALE}
+     * @param width  The width, 0 with a zero height for the whole field of view
+     * @param height The height, 0 with a zero width for the whole field of view
+     */
+    public StreamRegion(int left, int top, int width, int height) {
+        if (left < 0 || top < 0 || width < 0 || height < 0 || (width == 0) != (height == 0)
+                || (width == 0 && (left != 0 || top != 0))
+                || left + width > SCALE || top + height > SCALE) {
+            throw new IllegalArgumentException("Invalid region: " + left + "," + top + " "
+                    + width + "x" + height);
+        }
+        mLeft = left;
+        mTop = top;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Read a region request from a binary header.
+     *
+     * @param header A header of type {@link Constants#REQUEST_REGION}
+     * @return The region asked for
+     * @throws IllegalArgumentException If the header is not a valid region request
+     */
+    public static StreamRegion fromHeader(FrameHeader header) {
+        if (header.getType() != Constants.REQUEST_REGION) {
+            throw new IllegalArgumentException("Not a region request: " + header);
+        }
+        long edges = header.getTimestamp();
+        if ((edges >>> 32) != 0) {
+            throw new IllegalArgumentException("Invalid region edges: " + header);
+        }
+        return new StreamRegion((int) (edges >>> 16), (int) (edges & 0xFFFF),
+                header.getWidth(), header.getHeight());
+    }
+
+    /**
+     * Read a region request from a JSON message.
+     *
+     * @param json A message whose request is {@link Constants#REQUEST_REGION}
+     * @return The region asked for
+     * @throws IllegalArgumentException If the message is not a valid region request
+     */
+    public static StreamRegion fromJson(JSONObject json) {
+        if (json.optInt(Constants.REQUEST_FIELD, -1) != Constants.REQUEST_REGION) {
+            throw new IllegalArgumentException("Not a region request: " + json);
+        }
+        return new StreamRegion(json.optInt(Constants.REQUEST_FIELD_LEFT, 0),
+                json.optInt(Constants.REQUEST_FIELD_TOP, 0),
+                json.optInt(Constants.REQUEST_FIELD_WIDTH, 0),
+                json.optInt(Constants.REQUEST_FIELD_HEIGHT, 0));
+    }
+
+    /**
+     * Parse a JSON message of a receiver if it may be a region request. Messages without a
+     * left edge are told apart without parsing them.
+     *
+     * @param message The bytes of the message between its position and limit
+     * @return The region asked for, or {@code null} if the message is not a region request
+     */
+    public static StreamRegion parseRequest(ByteBuffer message) {
+        if (!contains(message, LEFT_KEY)) {
+            return null;
+        }
+        String text = new String(message.array(), message.arrayOffset() + message.position(),
+                message.remaining());
+        try {
+            JSONObject json = new JSONObject(text);
+            if (json.optInt(Constants.REQUEST_FIELD, -1) != Constants.REQUEST_REGION) {
+                return null;
+            }
+            return fromJson(json);
+        } catch (JSONException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean contains(ByteBuffer message, byte[] key) {
+        int end = message.limit() - key.length;
+        for (int i = message.position(); i <= end; i++) {
+            int j = 0;
+            while (j < key.length && message.get(i + j) == key[j]) {
+                j++;
+            }
+            if (j == key.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the request into a binary header.
+     *
+     * @param header   The header to fill
+     * @param sequence The sequence number of the message
+     * @return {@code header}
+     */
+    public FrameHeader toHeader(FrameHeader header, int sequence) {
+        header.set(Constants.REQUEST_REGION, sequence, ((long) mLeft << 16) | mTop, mWidth,
+                mHeight, 0);
+        return header;
+    }
+
+    /**
+     * Write the request as a JSON message.
+     *
+     * @return The message
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put(Constants.REQUEST_FIELD, Constants.REQUEST_REGION);
+            json.put(Constants.REQUEST_FIELD_LEFT, mLeft);
+            json.put(Constants.REQUEST_FIELD_TOP, mTop);
+            json.put(Constants.REQUEST_FIELD_WIDTH, mWidth);
+            json.put(Constants.REQUEST_FIELD_HEIGHT, mHeight);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    /**
+     * Map the region onto an image of the whole field of view. The edges are rounded to the
+     * nearest pixel, then widened to even pixels so that the region holds whole chroma
+     * samples.
+     *
+     * @param width  The width of the image
+     * @param height The height of the image
+     * @return The bounds of the region, {@code {left, top, right, bottom}}, at least 2x2 pixels
+     * or the whole image if it is smaller
+     */
+    public int[] getBounds(int width, int height) {
+        if (isFull()) {
+            return new int[]{0, 0, width, height};
+        }
+        int[] horizontal = span(mLeft, mWidth, width);
+        int[] vertical = span(mTop, mHeight, height);
+        return new int[]{horizontal[0], vertical[0], horizontal[1], vertical[1]};
+    }
+
+    private static int[] span(int start, int length, int size) {
+        int first = (int) (((long) start * size + SCALE / 2) / SCALE) & ~1;
+        int end = (int) (((long) (start + length) * size + SCALE / 2) / SCALE);
+        end = Math.min(end + (end & 1), size);
+        if (end - first < 2) {
+            end = Math.min(first + 2, size);
+            first = Math.max(0, end - 2);
+        }
+        return new int[]{first, end};
+    }
+
+    /**
+     * Crop an image to the region, without copying it.
+     *
+     * @param image The image of the whole field of view
+     * @return The image itself if the region is the whole field of view, otherwise a view of
+     * the region sharing its planes
+     */
+    public YuvPlanes crop(YuvPlanes image) {
+        if (isFull()) {
+            return image;
+        }
+        int[] bounds = getBounds(image.getWidth(), image.getHeight());
+        return image.crop(bounds[0], bounds[1], bounds[2] - bounds[0], bounds[3] - bounds[1]);
+    }
+
+    public int getLeft() {
+        return mLeft;
+    }
+
+    public int getTop() {
+        return mTop;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Tell whether the region is the whole field of view.
+     *
+     * @return True if the request asks for no crop
+     */
+    public boolean isFull() {
+        return mWidth == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof StreamRegion)) {
+            return false;
+        }
+        StreamRegion other = (StreamRegion) o;
+        return mLeft == other.mLeft && mTop == other.mTop && mWidth == other.mWidth
+                && mHeight == other.mHeight;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((mLeft * 31 + mTop) * 31 + mWidth) * 31 + mHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamRegion{" + mLeft + "," + mTop + " " + mWidth + "x" + mHeight + "}";
+    }
+}
@@ -0,0 +1,600 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The streaming protocol of a sender, run as a {@link TransportEngine.Handler} so that it never
+ * blocks: frames are taken from a {@link FrameRing} whenever the connection can take more, and
+ * acknowledgements move the protocol forward as they arrive.
+ *
+ * <p>The protocol is the one of the {@code ConnectedThread} of {@link ConnectionThread}: after
+ * the welcome message of the receiver, either the lockstep protocol with JSON headers, or the
+ * pipelined protocol with the negotiated window and header format.</p>
+ */
+public class StreamSession implements TransportEngine.Handler {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Lockstep phases: no frame in flight, header sent, and image sent.
+     */
+    private static final int PHASE_IDLE = 0;
+    private static final int PHASE_HEADER_SENT = 1;
+    private static final int PHASE_PAYLOAD_SENT = 2;
+
+    /**
+     * The events of a session, called on the engine thread.
+     */
+    public interface Listener {
+        /**
+         * The welcome message was received and the protocol negotiated; frames now flow.
+         *
+         * @param session The session
+         */
+        void onStreaming(StreamSession session);
+
+        /**
+         * The session is over.
+         *
+         * @param session The session
+         * @param cause   The failure, or {@code null} if the session was closed locally
+         */
+        void onClosed(StreamSession session, IOException cause);
+    }
+
+    private final FrameRing<FrameBuffer> mFrames;
+    private final int mMaxWindow;
+    private final long mIdleTimeoutNanos;
+    private final Listener mListener;
+
+    private volatile TransportEngine.Connection mConnection;
+
+    /**
+     * The welcome message of the receiver, {@code null} until it is received.
+     */
+    private JSONObject mWelcome = null;
+
+    /**
+     * Whether the protocol was negotiated and frames may be sent.
+     */
+    private volatile boolean mStreaming = false;
+
+    private int mWindow = 1;
+    private int mInFlight = 0;
+    private boolean mBinaryHeader = false;
+    private int mHeaderVersion = 0;
+
+    private int mPhase = PHASE_IDLE;
+
+    /**
+     * The frame whose header was sent in lockstep mode, waiting for its acknowledgement.
+     */
+    private FrameBuffer mPending = null;
+
+    /**
+     * Holds video frames back until the receiver can decode them
+     */
+    private KeyframeGate mGate = new KeyframeGate(null);
+
+    /**
+     * Whom to tell when the receiver asks for another format
+     */
+    private StreamFormat.Listener mFormatListener;
+
+    /**
+     * Whom to tell when the receiver asks for a region
+     */
+    private StreamRegion.Listener mRegionListener;
+
+    private final FrameHeader mHeader = new FrameHeader();
+    private final ByteBuffer mHeaderBuffer = ByteBuffer.allocate(
+            FrameHeader.HEADER_LENGTH + CaptureMetadata.LENGTH);
+    private final CaptureMetadata mMetadata = new CaptureMetadata();
+    private int mSequence = 0;
+    private long mLastSendTime;
+
+    /**
+     * The name of the stream sent in the handshake, or {@code null}
+     */
+    private String mSession;
+
+    private long mFramesSent = 0;
+    private long mAcknowledged = 0;
+
+    /**
+     * When the connection attempt started, in {@link System#nanoTime()}, until the first frame
+     * is sent; 0 afterwards
+     */
+    private long mConnectStartTime = 0;
+    private final SendStats mSendStats = new SendStats();
+
+    /**
+     * Where to record the latencies of the session, or {@code null}
+     */
+    private StreamMetrics mMetrics;
+
+    /**
+     * Create a session.
+     *
+     * @param frames      The frames to send, owned by the session once taken from the ring;
+     *                    the frames left in it are released when the session closes
+     * @param maxWindow   The largest number of frames in flight to accept from the receiver
+     * @param idleTimeout The time in milliseconds without a frame after which a keep-alive
+     *                    message is sent, or zero to send none
+     * @param listener    The listener of the session events
+     */
+    public StreamSession(FrameRing<FrameBuffer> frames, int maxWindow, long idleTimeout,
+                         Listener listener) {
+        mFrames = frames;
+        mMaxWindow = Math.max(1, maxWindow);
+        mIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, idleTimeout));
+        mListener = listener;
+    }
+
+    /**
+     * Start connecting to a receiver.
+     *
+     * @param engine        The engine to run the session on
+     * @param address       The address of the receiver
+     * @param timeoutMillis The longest time to wait for the connection to be made
+     * @return The connection
+     */
+    public TransportEngine.Connection connect(TransportEngine engine, SocketAddress address,
+                                              long timeoutMillis) {
+        return connect(engine, address, timeoutMillis, System.nanoTime());
+    }
+
+    /**
+     * Start connecting to a receiver, recording the time to connect and the time to the first
+     * frame from an earlier start, such as before resolving its address.
+     *
+     * @param engine        The engine to run the session on
+     * @param address       The resolved address of the receiver
+     * @param timeoutMillis The longest time to wait for the connection to be made
+     * @param startTime     When the attempt started, in {@link System#nanoTime()}
+     * @return The connection
+     */
+    public TransportEngine.Connection connect(TransportEngine engine, SocketAddress address,
+                                              long timeoutMillis, long startTime) {
+        mConnectStartTime = startTime;
+        mConnection = engine.connect(address, timeoutMillis, this);
+        return mConnection;
+    }
+
+    /**
+     * Get the connection of the session, {@code null} until {@link #connect} is called.
+     *
+     * @return The connection
+     */
+    public TransportEngine.Connection getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * Set whom to ask for a keyframe when the receiver needs one to decode video frames. Must
+     * be called before {@link #connect}.
+     *
+     * @param listener The listener, typically the {@link VideoPacketizer} of the stream
+     */
+    public void setKeyframeListener(KeyframeGate.Listener listener) {
+        mGate = new KeyframeGate(listener);
+    }
+
+    /**
+     * Set whom to tell when the receiver asks for another size or frame rate. Must be called
+     * before {@link #connect}.
+     *
+     * @param listener The listener, called on the engine thread, or {@code null}
+     */
+    public void setFormatListener(StreamFormat.Listener listener) {
+        mFormatListener = listener;
+    }
+
+    /**
+     * Set whom to tell when the receiver asks for a region of the field of view. Must be
+     * called before {@link #connect}.
+     *
+     * @param listener The listener, called on the engine thread, or {@code null}
+     */
+    public void setRegionListener(StreamRegion.Listener listener) {
+        mRegionListener = listener;
+    }
+
+    /**
+     * Record the queue waits, header times and acknowledgements of the session into a
+     * registry. Must be called before {@link #connect}.
+     *
+     * @param metrics The registry, or {@code null}
+     */
+    public void setMetrics(StreamMetrics metrics) {
+        mMetrics = metrics;
+        mSendStats.setMetrics(metrics);
+    }
+
+    /**
+     * Name the stream this session carries, so that a receiver can tell a session made again
+     * after a loss from a new stream, as {@link FrameSender#setSession} does. Must be called
+     * before {@link #connect}.
+     *
+     * @param session  The name of the stream, the same on every session made for it
+     * @param sequence The sequence number of the next message, from {@link #getSequence()} of
+     *                 the session lost
+     */
+    public void setSession(String session, int sequence) {
+        mSession = session;
+        mSequence = sequence;
+    }
+
+    public String getSession() {
+        return mSession;
+    }
+
+    /**
+     * Get the sequence number of the next message, to carry on the stream on a new session.
+     * Only stable once the session is closed.
+     *
+     * @return The sequence number
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Send a {@link Constants#REQUEST_STATS} message to the receiver if it negotiated header
+     * version 4 or later, and drop it otherwise. Safe from any thread.
+     *
+     * @param stats The UTF-8 JSON of the stats
+     */
+    public void sendStats(final byte[] stats) {
+        final TransportEngine.Connection connection = mConnection;
+        if (connection == null) {
+            return;
+        }
+        connection.getEngine().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mStreaming || mHeaderVersion < 4) {
+                    return;
+                }
+                mHeader.set(Constants.REQUEST_STATS, mSequence++, System.nanoTime(), 0, 0,
+                        stats.length);
+                ByteBuffer message = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH
+                        + stats.length);
+                mHeader.encode(message);
+                message.put(stats);
+                message.flip();
+                connection.send(message, null);
+            }
+        });
+    }
+
+    /**
+     * Get the number of video frames not sent because the receiver could not decode them.
+     *
+     * @return The number of frames skipped until a keyframe
+     */
+    public long getSkippedCount() {
+        return mGate.getSkippedCount();
+    }
+
+    public boolean isStreaming() {
+        return mStreaming;
+    }
+
+    public int getWindow() {
+        return mWindow;
+    }
+
+    public boolean isBinaryHeader() {
+        return mBinaryHeader;
+    }
+
+    public long getFramesSent() {
+        return mFramesSent;
+    }
+
+    public long getAcknowledgedCount() {
+        return mAcknowledged;
+    }
+
+    /**
+     * Get the frames and bytes sent, and how long the frames took to be acknowledged.
+     *
+     * @return The live totals of the session
+     */
+    public SendStats getSendStats() {
+        return mSendStats;
+    }
+
+    /**
+     * Send a disconnection message and close once it is written, or give up connecting if the
+     * connection is not made yet. Safe from any thread.
+     */
+    public void disconnect() {
+        final TransportEngine.Connection connection = mConnection;
+        if (connection == null) {
+            return;
+        }
+        connection.getEngine().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (connection.getState() != Constants.STATE_CONNECTED) {
+                    connection.close();
+                    return;
+                }
+                if (mBinaryHeader) {
+                    sendHeader(Constants.REQUEST_DISCONNECT, null);
+                } else {
+                    sendRequest(Constants.REQUEST_DISCONNECT);
+                }
+                connection.closeWhenFlushed();
+            }
+        });
+    }
+
+    @Override
+    public void onConnected(TransportEngine.Connection connection) {
+        // The engine may get here before connect() returns
+        mConnection = connection;
+        mLastSendTime = System.nanoTime();
+        if (mMetrics != null) {
+            mMetrics.recordLatency(StreamMetrics.LATENCY_CONNECT,
+                    mLastSendTime - mConnectStartTime);
+        }
+    }
+
+    @Override
+    public void onWritable(TransportEngine.Connection connection) {
+        if (!mStreaming) {
+            return;
+        }
+
+        if (mBinaryHeader || mWindow > 1) {
+            while (mInFlight < mWindow) {
+                FrameBuffer frame = mFrames.poll();
+                if (frame == null) {
+                    break;
+                }
+                if (!FrameHeader.isUnderstoodBy(frame.getFlags(), mHeaderVersion)
+                        || !mGate.admit(frame, mFrames.getDroppedCount(), mBinaryHeader)) {
+                    frame.release();
+                    continue;
+                }
+                long start = System.nanoTime();
+                if (mMetrics != null) {
+                    mMetrics.recordLatency(StreamMetrics.LATENCY_QUEUE,
+                            start - frame.getAcquireTime());
+                }
+                try {
+                    if (mBinaryHeader) {
+                        int length = sendHeader(Constants.REQUEST_STREAMING, frame);
+                        mSendStats.onSent(frame, length + frame.getLength());
+                    } else {
+                        ByteBuffer header = jsonHeader(frame);
+                        mSendStats.onSent(frame, header.remaining() + frame.getLength());
+                        connection.send(header, frame);
+                    }
+                    if (mMetrics != null) {
+                        mMetrics.recordLatency(StreamMetrics.LATENCY_HEADER,
+                                System.nanoTime() - start);
+                    }
+                } finally {
+                    frame.release();
+                }
+                mInFlight++;
+                mFramesSent++;
+                mLastSendTime = System.nanoTime();
+                firstFrameSent();
+            }
+            if (mIdleTimeoutNanos > 0 && System.nanoTime() - mLastSendTime >= mIdleTimeoutNanos) {
+                if (mBinaryHeader) {
+                    sendHeader(Constants.REQUEST_IDLE, null);
+                } else {
+                    sendRequest(Constants.REQUEST_IDLE);
+                }
+                mLastSendTime = System.nanoTime();
+            }
+            return;
+        }
+
+        if (mPhase == PHASE_IDLE) {
+            FrameBuffer frame = mFrames.poll();
+            if (frame != null && (!FrameHeader.isUnderstoodBy(frame.getFlags(), 0)
+                    || !mGate.admit(frame, mFrames.getDroppedCount(), false))) {
+                frame.release();
+                frame = null;
+            }
+            if (frame != null) {
+                mPending = frame;
+                connection.send(jsonHeader(frame), null);
+                mPhase = PHASE_HEADER_SENT;
+                mLastSendTime = System.nanoTime();
+            }
+        }
+    }
+
+    @Override
+    public void onClosed(TransportEngine.Connection connection, IOException cause) {
+        mStreaming = false;
+        if (mPending != null) {
+            mPending.release();
+            mPending = null;
+        }
+
+        // Give the frames nobody will send back to their pool
+        FrameBuffer frame;
+        while ((frame = mFrames.poll()) != null) {
+            frame.release();
+        }
+        mListener.onClosed(this, cause);
+    }
+
+    @Override
+    public void onJsonMessage(ByteBuffer message) {
+        if (mWelcome == null) {
+            String text = new String(message.array(), message.arrayOffset() + message.position(),
+                    message.remaining(), UTF_8);
+            try {
+                mWelcome = new JSONObject(text);
+            } catch (JSONException e) {
+                mWelcome = new JSONObject();
+            }
+            negotiate(mWelcome);
+            mStreaming = true;
+            mListener.onStreaming(this);
+        } else {
+            ReceiverRequests.dispatch(message, mRequests);
+        }
+    }
+
+    @Override
+    public void onHeader(FrameHeader header) {
+        // A format or region this sender cannot give is ignored
+        ReceiverRequests.dispatch(header, mRequests);
+    }
+
+    /**
+     * Handles the requests of the receiver past the welcome message.
+     */
+    private final ReceiverRequests.Handler mRequests = new ReceiverRequests.Handler() {
+        @Override
+        public void onAcknowledged() {
+            StreamSession.this.onAcknowledged();
+        }
+
+        @Override
+        public void onFormatRequested(StreamFormat format) {
+            StreamSession.this.onFormatRequested(format);
+        }
+
+        @Override
+        public void onRegionRequested(StreamRegion region) {
+            StreamSession.this.onRegionRequested(region);
+        }
+    };
+
+    private void onRegionRequested(StreamRegion region) {
+        if (mRegionListener != null) {
+            mRegionListener.onRegionRequested(region);
+        }
+    }
+
+    private void onFormatRequested(StreamFormat format) {
+        if (mFormatListener != null) {
+            mFormatListener.onFormatRequested(format);
+        }
+    }
+
+    @Override
+    public void onPayload(ByteBuffer chunk, int remaining) {
+        // Acknowledgements carry no payload worth keeping
+    }
+
+    private void onAcknowledged() {
+        mAcknowledged++;
+        if (mBinaryHeader || mWindow > 1) {
+            mInFlight = Math.max(0, mInFlight - 1);
+            mSendStats.onAcknowledged(1, System.nanoTime());
+            return;
+        }
+
+        if (mPhase == PHASE_HEADER_SENT) {
+            FrameBuffer frame = mPending;
+            mPending = null;
+            mSendStats.onSent(frame, frame.getLength());
+            mConnection.send(null, frame);
+            frame.release();
+            mFramesSent++;
+            mPhase = PHASE_PAYLOAD_SENT;
+            firstFrameSent();
+        } else if (mPhase == PHASE_PAYLOAD_SENT) {
+            mSendStats.onAcknowledged(1, System.nanoTime());
+            mPhase = PHASE_IDLE;
+        }
+    }
+
+    /**
+     * Record the time to the first frame of the connection, once it is sent.
+     */
+    private void firstFrameSent() {
+        if (mConnectStartTime != 0) {
+            if (mMetrics != null) {
+                mMetrics.recordLatency(StreamMetrics.LATENCY_FIRST_FRAME,
+                        System.nanoTime() - mConnectStartTime);
+            }
+            mConnectStartTime = 0;
+        }
+    }
+
+    /**
+     * Decide the number of frames in flight and the header format from the welcome message,
+     * with the handshake of {@link FrameSender#createHandshake}.
+     */
+    private void negotiate(JSONObject welcome) {
+        JSONObject handshake = FrameSender.createHandshake(welcome, mMaxWindow, mSession,
+                mSequence);
+        if (handshake == null) {
+            return;
+        }
+        mConnection.send(handshake.toString().getBytes(UTF_8));
+
+        int window = handshake.optInt(Constants.REQUEST_FIELD_WINDOW, 1);
+        int version = handshake.optInt(Constants.REQUEST_FIELD_VERSION, 0);
+        mWindow = window;
+        mInFlight = 0;
+        mSendStats.clearInFlight();
+        mBinaryHeader = version >= 1;
+        if (mBinaryHeader) {
+            mHeaderVersion = version;
+            mHeader.setVersion(version);
+        }
+    }
+
+    /**
+     * Send a header, followed by the metadata and the payload of a frame.
+     *
+     * @return The number of bytes sent on top of the payload
+     */
+    private int sendHeader(int type, FrameBuffer frame) {
+        boolean metadata = frame != null && mHeaderVersion >= 3 && frame.hasMetadata();
+        if (frame != null) {
+            mHeader.set(type, mSequence++, frame.getTimestamp(), frame.getWidth(),
+                    frame.getHeight(), frame.getLength()
+                            + (metadata ? CaptureMetadata.LENGTH : 0));
+            mHeader.setFlags(frame.getFlags() | (metadata ? FrameHeader.FLAG_METADATA : 0));
+        } else {
+            mHeader.set(type, mSequence++, System.nanoTime(), 0, 0, 0);
+        }
+        mHeaderBuffer.clear();
+        mHeader.encode(mHeaderBuffer);
+        if (metadata) {
+            mMetadata.set(frame.getMetadata());
+            mMetadata.setSendDelay(System.nanoTime() - frame.getAcquireTime());
+            mMetadata.encode(mHeaderBuffer);
+        }
+        mHeaderBuffer.flip();
+        int length = mHeaderBuffer.remaining();
+        mConnection.send(mHeaderBuffer, frame);
+        return length;
+    }
+
+    private void sendRequest(int request) {
+        JSONObject jsonObjSend = new JSONObject();
+        try {
+            jsonObjSend.put(Constants.REQUEST_FIELD, request);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        mConnection.send(jsonObjSend.toString().getBytes(UTF_8));
+    }
+
+    private static ByteBuffer jsonHeader(FrameBuffer frame) {
+        return ByteBuffer.wrap(FrameSender.createJsonHeader(frame).toString().getBytes(UTF_8));
+    }
+}
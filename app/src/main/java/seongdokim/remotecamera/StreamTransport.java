@@ -0,0 +1,110 @@
+package seongdokim.remotecamera;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link FrameTransport} over the blocking streams of a {@link Socket}, the way connections
+ * have always been made. Buffers backed by an array are written straight from it; other buffers
+ * are copied through a scratch array.
+ *
+ * <p>When coalescing, a header is copied into the scratch array along with the start of its
+ * payload, so that both leave in one write; otherwise, with {@code TCP_NODELAY} set, the header
+ * would go out as a small segment of its own.</p>
+ */
+public class StreamTransport implements FrameTransport {
+    private final Socket mSocket;
+    private final InputStream mInStream;
+    private final OutputStream mOutStream;
+    private final byte[] mScratch = new byte[8192];
+    private boolean mCoalescing = false;
+
+    public StreamTransport(Socket socket) throws IOException {
+        mSocket = socket;
+        mInStream = socket.getInputStream();
+        mOutStream = socket.getOutputStream();
+    }
+
+    /**
+     * Set whether a header is written together with the start of its payload.
+     *
+     * @param coalescing True to coalesce, see {@link TransportProfile#setCoalescing}
+     */
+    public void setCoalescing(boolean coalescing) {
+        mCoalescing = coalescing;
+    }
+
+    @Override
+    public void write(ByteBuffer header, ByteBuffer payload) throws IOException {
+        if (mCoalescing && header != null && payload != null
+                && header.remaining() < mScratch.length) {
+            writeCoalesced(header, payload);
+            mOutStream.flush();
+            return;
+        }
+        if (header != null) {
+            writeBuffer(header);
+            header.position(header.limit());
+        }
+        if (payload != null) {
+            writeBuffer(payload);
+        }
+        mOutStream.flush();
+    }
+
+    /**
+     * Write a header and as much of the payload as fits in the scratch array at once, then the
+     * rest of the payload. Leaves the header consumed and the payload position untouched.
+     */
+    private void writeCoalesced(ByteBuffer header, ByteBuffer payload) throws IOException {
+        int length = header.remaining();
+        header.get(mScratch, 0, length);
+        int position = payload.position();
+        int head = Math.min(payload.remaining(), mScratch.length - length);
+        payload.get(mScratch, length, head);
+        try {
+            mOutStream.write(mScratch, 0, length + head);
+            writeBuffer(payload);
+        } finally {
+            payload.position(position);
+        }
+    }
+
+    /**
+     * Write the bytes between position and limit, leaving the position untouched.
+     */
+    private void writeBuffer(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            mOutStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            return;
+        }
+
+        int position = buffer.position();
+        try {
+            while (buffer.hasRemaining()) {
+                int length = Math.min(buffer.remaining(), mScratch.length);
+                buffer.get(mScratch, 0, length);
+                mOutStream.write(mScratch, 0, length);
+            }
+        } finally {
+            buffer.position(position);
+        }
+    }
+
+    @Override
+    public int read(FrameDecoder decoder, boolean block) throws IOException {
+        if (!block && mInStream.available() <= 0) {
+            return 0;
+        }
+        return decoder.read(mInStream);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
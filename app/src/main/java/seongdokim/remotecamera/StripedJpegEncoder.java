@@ -0,0 +1,177 @@
+package seongdokim.remotecamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link JpegEncoder} that cuts every image into horizontal stripes of whole MCU rows and
+ * codes them on several threads at once, which brings the latency of one large image down
+ * rather than the throughput of many.
+ *
+ * <p>The image is written with a restart interval of one MCU row, so each stripe starts with
+ * fresh predictions and the stripes can be coded independently and joined in order into a
+ * single baseline JPEG that any decoder reads. The calling thread codes the first stripe and
+ * each helper thread one of the others.</p>
+ *
+ * <p>{@link #encode(YuvPlanes)} must be called from one thread at a time, and
+ * {@link #shutdown()} stops the helper threads once the encoder is no longer needed.</p>
+ */
+public class StripedJpegEncoder extends JpegEncoder {
+    private final JpegEncoder[] mHelpers;
+
+    /**
+     * Guards the image handed to the helpers and their progress
+     */
+    private final Object mLock = new Object();
+    private int mGeneration = 0;
+    private int mPendingStripes = 0;
+    private boolean mRunning = true;
+    private YuvPlanes mImage;
+    private int mStripeRows;
+    private int mStripeQuality;
+    private RuntimeException mError;
+
+    /**
+     * Create an encoder and start its helper threads.
+     *
+     * @param quality The quality, from 1 to 100
+     * @param stripes The largest number of stripes, which is the number of threads coding an
+     *                image including the caller
+     */
+    public StripedJpegEncoder(int quality, int stripes) {
+        super(quality);
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Invalid stripe count: " + stripes);
+        }
+        mHelpers = new JpegEncoder[stripes - 1];
+        for (int i = 0; i < mHelpers.length; i++) {
+            final JpegEncoder helper = new JpegEncoder(quality);
+            final int stripe = i + 1;
+            mHelpers[i] = helper;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop(helper, stripe);
+                }
+            }, "StripedJpegEncoder-" + stripe);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public int getStripeCount() {
+        return mHelpers.length + 1;
+    }
+
+    @Override
+    public ByteBuffer encode(YuvPlanes image) {
+        int mcuRows = getMcuRows(image);
+        int stripeRows = (mcuRows + mHelpers.length) / (mHelpers.length + 1);
+        // The quality may change at any time, but every stripe must use the same tables
+        int quality = getQuality();
+
+        synchronized (mLock) {
+            if (!mRunning) {
+                throw new IllegalStateException("Encoder shut down");
+            }
+            mImage = image;
+            mStripeRows = stripeRows;
+            mStripeQuality = quality;
+            mError = null;
+            mPendingStripes = mHelpers.length;
+            mGeneration++;
+            mLock.notifyAll();
+        }
+
+        startImage(image, quality, true);
+        RuntimeException error = null;
+        try {
+            encodeRows(image, 0, Math.min(stripeRows, mcuRows), true);
+        } catch (RuntimeException e) {
+            error = e;
+        }
+
+        boolean interrupted = false;
+        synchronized (mLock) {
+            // The helpers read the image, so they must be done with it before it is returned
+            while (mPendingStripes > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            mImage = null;
+            if (error == null) {
+                error = mError;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+
+        for (int i = 0; i < mHelpers.length && (i + 1) * stripeRows < mcuRows; i++) {
+            append(mHelpers[i].getOutput());
+        }
+        return finishImage();
+    }
+
+    private void loop(JpegEncoder helper, int stripe) {
+        int generation = 0;
+        while (true) {
+            YuvPlanes image;
+            int stripeRows;
+            int quality;
+            synchronized (mLock) {
+                // An image handed over before the shutdown is still coded: the caller waits
+                while (mGeneration == generation) {
+                    if (!mRunning) {
+                        return;
+                    }
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                generation = mGeneration;
+                image = mImage;
+                stripeRows = mStripeRows;
+                quality = mStripeQuality;
+            }
+
+            RuntimeException error = null;
+            int firstRow = stripe * stripeRows;
+            int endRow = Math.min(firstRow + stripeRows, getMcuRows(image));
+            if (firstRow < endRow) {
+                try {
+                    helper.startStripe(quality);
+                    helper.encodeRows(image, firstRow, endRow, true);
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+            }
+
+            synchronized (mLock) {
+                if (error != null && mError == null) {
+                    mError = error;
+                }
+                if (--mPendingStripes == 0) {
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the helper threads. The encoder cannot be used any more.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+        }
+    }
+}
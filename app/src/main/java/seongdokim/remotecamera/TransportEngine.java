@@ -0,0 +1,692 @@
+package seongdokim.remotecamera;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread driving any number of non-blocking connections with one {@link Selector}: it
+ * completes connections, decodes what receivers send, and writes queued messages as the sockets
+ * accept them.
+ *
+ * <p>Each {@link Connection} goes through the states {@link Constants#STATE_CONNECTING},
+ * {@link Constants#STATE_CONNECTED} and back to {@link Constants#STATE_NONE}, and reports to its
+ * {@link Handler} on the engine thread. A socket may accept only part of a message; the rest
+ * stays at the head of the queue of the connection and is written when the socket is writable
+ * again, while the other connections carry on.</p>
+ *
+ * <p>{@link #connect}, {@link #execute}, {@link #wakeup} and {@link Connection#close()} may be
+ * called from any thread; every other method of a connection must be called on the engine
+ * thread, typically from its handler.</p>
+ */
+public class TransportEngine {
+    /**
+     * The default longest time in milliseconds between two calls to
+     * {@link Handler#onWritable(Connection)} of an idle connection.
+     */
+    public static final long DEFAULT_TICK = 100;
+
+    /**
+     * The longest time in milliseconds a connection closed with
+     * {@link Connection#closeWhenFlushed()} waits for the receiver to close its side.
+     */
+    private static final long CLOSE_TIMEOUT = 2000;
+
+    /**
+     * Size of the buffer decoding the messages of each connection.
+     */
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    /**
+     * The events of a connection, called on the engine thread. The handler also receives the
+     * decoded messages of the connection as a {@link FrameDecoder.Listener}.
+     */
+    public interface Handler extends FrameDecoder.Listener {
+        /**
+         * The connection was made.
+         *
+         * @param connection The connection, now {@link Constants#STATE_CONNECTED}
+         */
+        void onConnected(Connection connection);
+
+        /**
+         * Everything queued on the connection was written, so more can be sent. Also called
+         * once per tick and after every {@link #wakeup()} while the queue is empty.
+         *
+         * @param connection The connection
+         */
+        void onWritable(Connection connection);
+
+        /**
+         * The connection was closed, or could not be made. Queued messages were dropped.
+         *
+         * @param connection The connection, now {@link Constants#STATE_NONE}
+         * @param cause      The failure, or {@code null} if the connection was closed locally
+         */
+        void onClosed(Connection connection, IOException cause);
+    }
+
+    private final long mTickNanos;
+    private final Selector mSelector;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The open connections, only touched on the engine thread.
+     */
+    private final List<Connection> mConnections = new ArrayList<>();
+
+    private volatile boolean mRunning = false;
+    private Thread mThread;
+
+    /**
+     * The options of the sockets of the connections made from now on.
+     */
+    private volatile TransportProfile mProfile = TransportProfile.systemDefault();
+
+    /**
+     * Create an engine ticking every {@link #DEFAULT_TICK} milliseconds.
+     *
+     * @throws IOException If the selector cannot be opened
+     */
+    public TransportEngine() throws IOException {
+        this(DEFAULT_TICK);
+    }
+
+    /**
+     * Create an engine.
+     *
+     * @param tickMillis The longest time between two calls to
+     *                   {@link Handler#onWritable(Connection)} of an idle connection
+     * @throws IOException If the selector cannot be opened
+     */
+    public TransportEngine(long tickMillis) throws IOException {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        }
+        mTickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        mSelector = Selector.open();
+    }
+
+    /**
+     * Set the options of the sockets of the connections made from now on.
+     *
+     * @param profile The options
+     */
+    public void setProfile(TransportProfile profile) {
+        mProfile = profile;
+    }
+
+    /**
+     * Start the engine thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("Engine already started");
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "TransportEngine");
+        mThread.start();
+    }
+
+    /**
+     * Stop the engine thread, closing every connection. This does not wait for the thread to
+     * finish, so it may be called while holding a lock that handlers take.
+     */
+    public void shutdown() {
+        mRunning = false;
+        mSelector.wakeup();
+    }
+
+    /**
+     * Wait for the engine thread to finish after {@link #shutdown()}.
+     *
+     * @param millis The longest time to wait
+     * @throws InterruptedException If the calling thread is interrupted
+     */
+    public void join(long millis) throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.join(millis);
+        }
+    }
+
+    /**
+     * Tell whether the calling thread is the engine thread.
+     *
+     * @return True on the engine thread
+     */
+    public boolean inEngineThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Start connecting to a receiver.
+     *
+     * @param address       The address of the receiver, resolved by the caller on a thread of
+     *                      its own, since the engine thread never waits for the name service.
+     *                      An unresolved address fails the connection: the handler is told so
+     *                      by {@link Handler#onClosed} with an {@link UnknownHostException}
+     * @param timeoutMillis The longest time to wait for the connection to be made, or zero to
+     *                      wait as long as the system does
+     * @param handler       The handler of the events of the connection
+     * @return The connection, {@link Constants#STATE_CONNECTING} until the handler is told
+     * otherwise
+     */
+    public Connection connect(final SocketAddress address, long timeoutMillis, Handler handler) {
+        final Connection connection = new Connection(address, handler,
+                timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis)
+                        : 0);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                connection.open();
+            }
+        });
+        return connection;
+    }
+
+    /**
+     * Run a task on the engine thread.
+     *
+     * @param task The task
+     */
+    public void execute(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Wake up the engine thread so that idle connections get a call to
+     * {@link Handler#onWritable(Connection)}, for instance after a new frame was queued.
+     */
+    public void wakeup() {
+        mSelector.wakeup();
+    }
+
+    private void loop() {
+        long nextTick = System.nanoTime() + mTickNanos;
+        while (mRunning) {
+            long now = System.nanoTime();
+            long timeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDeadline(nextTick) - now));
+            try {
+                mSelector.select(timeout);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            runTasks();
+
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                ((Connection) key.attachment()).onSelected(key);
+            }
+
+            now = System.nanoTime();
+            if (now - nextTick >= 0) {
+                nextTick = now + mTickNanos;
+            }
+
+            // Iterate over a copy: handlers may close connections or open new ones
+            Connection[] connections = mConnections.toArray(new Connection[mConnections.size()]);
+            for (Connection connection : connections) {
+                connection.onTick(now);
+            }
+        }
+
+        runTasks();
+        for (Connection connection : mConnections.toArray(new Connection[mConnections.size()])) {
+            connection.close(null);
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // A failing task must not take down the engine and every connection with it
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Get the time of the next tick or connection timeout, whichever comes first.
+     */
+    private long nextDeadline(long nextTick) {
+        long deadline = nextTick;
+        for (int i = 0; i < mConnections.size(); i++) {
+            Connection connection = mConnections.get(i);
+            if (connection.mState == Constants.STATE_CONNECTING && connection.mDeadline != 0
+                    && connection.mDeadline - deadline < 0) {
+                deadline = connection.mDeadline;
+            }
+        }
+        return deadline;
+    }
+
+    /**
+     * One connection driven by the engine.
+     */
+    public final class Connection {
+        private SocketAddress mAddress;
+        private final Handler mHandler;
+        private final FrameDecoder mDecoder;
+
+        /**
+         * When an unfinished connection times out, in {@link System#nanoTime()} units, or zero.
+         */
+        private final long mDeadline;
+
+        private volatile int mState = Constants.STATE_CONNECTING;
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+
+        /**
+         * Messages waiting to be written, the head possibly partially written.
+         */
+        private final ArrayDeque<Message> mQueue = new ArrayDeque<>();
+
+        /**
+         * Written messages kept for reuse.
+         */
+        private final ArrayDeque<Message> mFreeMessages = new ArrayDeque<>();
+
+        /**
+         * Whether to close the connection once the queue is written.
+         */
+        private boolean mCloseWhenFlushed = false;
+
+        /**
+         * When a connection whose output is shut down is closed anyway, or zero.
+         */
+        private long mCloseDeadline = 0;
+
+        private long mBytesWritten = 0;
+        private long mPartialWrites = 0;
+
+        private Connection(SocketAddress address, Handler handler, long deadline) {
+            mAddress = address;
+            mHandler = handler;
+            mDeadline = deadline;
+            mDecoder = new FrameDecoder(READ_BUFFER_SIZE, handler);
+        }
+
+        public TransportEngine getEngine() {
+            return TransportEngine.this;
+        }
+
+        public SocketAddress getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * Get the state of the connection; safe from any thread.
+         *
+         * @return One of the {@code Constants.STATE_} constants
+         */
+        public int getState() {
+            return mState;
+        }
+
+        /**
+         * Get the number of messages queued and not completely written.
+         *
+         * @return The length of the queue
+         */
+        public int getQueuedCount() {
+            return mQueue.size();
+        }
+
+        /**
+         * Get the number of bytes written to the socket.
+         *
+         * @return The number of bytes written since the connection was made
+         */
+        public long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        /**
+         * Get the number of times the socket accepted only part of a message, leaving the
+         * rest for when it becomes writable again.
+         *
+         * @return The number of partial writes
+         */
+        public long getPartialWriteCount() {
+            return mPartialWrites;
+        }
+
+        /**
+         * Queue a message and write as much of it as the socket accepts now. The header bytes
+         * are copied; the frame is retained until its bytes are written, so the caller keeps
+         * its own reference and may release it right away. Ignored unless the connection is
+         * connected and not closing.
+         *
+         * @param header The header bytes between position and limit, consumed; may be
+         *               {@code null}
+         * @param frame  The frame to send after the header, or {@code null}
+         */
+        public void send(ByteBuffer header, FrameBuffer frame) {
+            checkEngineThread();
+            if (mState != Constants.STATE_CONNECTED || mCloseWhenFlushed) {
+                return;
+            }
+
+            Message message = mFreeMessages.poll();
+            if (message == null) {
+                message = new Message();
+            }
+            message.set(header, frame);
+            mQueue.add(message);
+            if (mQueue.size() == 1) {
+                flush();
+            }
+        }
+
+        /**
+         * Queue a message with no frame, such as a JSON message.
+         *
+         * @param message The bytes of the message
+         */
+        public void send(byte[] message) {
+            send(ByteBuffer.wrap(message), null);
+        }
+
+        /**
+         * Close the connection once everything queued so far is written. The output is shut
+         * down first and what the receiver still sends is read until it closes its side, so that
+         * unread acknowledgements do not make the close reset the connection and discard the
+         * last messages.
+         */
+        public void closeWhenFlushed() {
+            checkEngineThread();
+            if (mCloseWhenFlushed || mState != Constants.STATE_CONNECTED) {
+                return;
+            }
+            mCloseWhenFlushed = true;
+            if (mQueue.isEmpty()) {
+                shutdownOutput();
+            }
+        }
+
+        /**
+         * Close the connection, dropping what is queued. Safe from any thread.
+         */
+        public void close() {
+            if (inEngineThread()) {
+                close(null);
+                return;
+            }
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    close(null);
+                }
+            });
+        }
+
+        private void checkEngineThread() {
+            if (!inEngineThread()) {
+                throw new IllegalStateException("Not on the engine thread");
+            }
+        }
+
+        /**
+         * Open the channel and start connecting.
+         */
+        private void open() {
+            if (mState != Constants.STATE_CONNECTING) {
+                return;
+            }
+            mConnections.add(this);
+            try {
+                if (mAddress instanceof InetSocketAddress
+                        && ((InetSocketAddress) mAddress).isUnresolved()) {
+                    throw new UnknownHostException("Not resolved: "
+                            + ((InetSocketAddress) mAddress).getHostString());
+                }
+                mChannel = SocketChannel.open();
+                mProfile.apply(mChannel.socket());
+                mChannel.configureBlocking(false);
+                mKey = mChannel.register(mSelector, 0, this);
+                if (mChannel.connect(mAddress)) {
+                    onConnected();
+                } else {
+                    mKey.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                close(e);
+            } catch (RuntimeException e) {
+                close(new IOException("Handler failed", e));
+            }
+        }
+
+        private void onConnected() {
+            mState = Constants.STATE_CONNECTED;
+            mKey.interestOps(SelectionKey.OP_READ);
+            mHandler.onConnected(this);
+        }
+
+        private void onSelected(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    if (!mChannel.finishConnect()) {
+                        return;
+                    }
+                    onConnected();
+                }
+                if (mState == Constants.STATE_CONNECTED && key.isReadable()) {
+                    read();
+                }
+                if (mState == Constants.STATE_CONNECTED && key.isValid() && key.isWritable()) {
+                    flush();
+                }
+            } catch (CancelledKeyException e) {
+                // Closed by a handler in the meantime
+            } catch (IOException e) {
+                close(e);
+            } catch (RuntimeException e) {
+                // A failing handler takes down its own connection, not the engine
+                close(new IOException("Handler failed", e));
+            }
+        }
+
+        private void onTick(long now) {
+            if (mState == Constants.STATE_CONNECTING) {
+                if (mDeadline != 0 && now - mDeadline >= 0) {
+                    close(new SocketTimeoutException("Connection timed out"));
+                }
+                return;
+            }
+            if (mCloseDeadline != 0 && now - mCloseDeadline >= 0) {
+                close(null);
+                return;
+            }
+            if (mState == Constants.STATE_CONNECTED && mQueue.isEmpty() && !mCloseWhenFlushed) {
+                try {
+                    mHandler.onWritable(this);
+                } catch (RuntimeException e) {
+                    close(new IOException("Handler failed", e));
+                }
+            }
+        }
+
+        /**
+         * Decode everything the socket holds.
+         */
+        private void read() throws IOException {
+            int bytes;
+            while ((bytes = mDecoder.read(mChannel)) > 0) {
+                if (mState != Constants.STATE_CONNECTED) {
+                    return;
+                }
+            }
+            if (bytes < 0) {
+                if (mCloseWhenFlushed) {
+                    close(null);
+                    return;
+                }
+                throw new IOException("Connection closed by the receiver");
+            }
+        }
+
+        /**
+         * Write queued messages until the queue is empty or the socket is full, in which case
+         * the remaining bytes wait for the socket to become writable.
+         */
+        private void flush() {
+            try {
+                while (!mQueue.isEmpty()) {
+                    Message message = mQueue.peek();
+                    long written = mChannel.write(message.mVectors, 0, message.mVectorCount);
+                    mBytesWritten += written;
+                    if (message.hasRemaining()) {
+                        mPartialWrites++;
+                        mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    mQueue.poll();
+                    message.clear();
+                    mFreeMessages.add(message);
+                }
+                mKey.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                close(e);
+                return;
+            }
+
+            // The handler hears about the room through onTick, not from within send()
+            if (mCloseWhenFlushed) {
+                shutdownOutput();
+            }
+        }
+
+        /**
+         * Send the end of the stream to the receiver and wait for its own.
+         */
+        private void shutdownOutput() {
+            if (mCloseDeadline != 0) {
+                return;
+            }
+            try {
+                mChannel.socket().shutdownOutput();
+            } catch (IOException e) {
+                close(null);
+                return;
+            }
+            mCloseDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT);
+        }
+
+        /**
+         * Close the channel, drop the queue and tell the handler.
+         *
+         * @param cause The failure, or {@code null} if closed locally
+         */
+        private void close(IOException cause) {
+            if (mState == Constants.STATE_NONE) {
+                return;
+            }
+            mState = Constants.STATE_NONE;
+            mConnections.remove(this);
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            Message message;
+            while ((message = mQueue.poll()) != null) {
+                message.clear();
+            }
+            mFreeMessages.clear();
+            try {
+                mHandler.onClosed(this, cause);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A queued message: a copy of its header and a view of its frame.
+     */
+    private static final class Message {
+        private ByteBuffer mHeader = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+        private FrameBuffer mFrame;
+        private final ByteBuffer[] mVectors = new ByteBuffer[2];
+        private int mVectorCount;
+
+        private void set(ByteBuffer header, FrameBuffer frame) {
+            mVectorCount = 0;
+            if (header != null) {
+                if (mHeader.capacity() < header.remaining()) {
+                    mHeader = ByteBuffer.allocate(header.remaining());
+                }
+                mHeader.clear();
+                mHeader.put(header);
+                mHeader.flip();
+                mVectors[mVectorCount++] = mHeader;
+            }
+            if (frame != null) {
+                mFrame = frame.retain();
+                // A view, so that other connections sending the same frame keep their position
+                mVectors[mVectorCount++] = frame.getBuffer().duplicate();
+            }
+        }
+
+        private boolean hasRemaining() {
+            for (int i = 0; i < mVectorCount; i++) {
+                if (mVectors[i].hasRemaining()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void clear() {
+            if (mFrame != null) {
+                mFrame.release();
+                mFrame = null;
+            }
+            mVectors[0] = null;
+            mVectors[1] = null;
+            mVectorCount = 0;
+        }
+    }
+}
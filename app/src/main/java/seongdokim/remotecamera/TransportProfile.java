@@ -0,0 +1,214 @@
+package seongdokim.remotecamera;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * How the sockets to the receivers are tuned. The system defaults suit bulk transfers, not a
+ * stream of frames each waited for: Nagle's algorithm holds a small header back until the
+ * previous segment is acknowledged, and the default send buffer is smaller than one 1080p JPEG,
+ * so a frame takes several round trips to leave the device.
+ *
+ * <p>{@link #lowLatency(int)} sends small writes at once, sizes the send buffer for two frames,
+ * marks the packets as interactive video for the Wi-Fi access point to queue them ahead of bulk
+ * traffic, and has {@link StreamTransport} write a header in the same segment as the start of its
+ * payload. {@link #systemDefault()} leaves the sockets as they were always left.</p>
+ *
+ * <p>Options must be applied before connecting, for the buffer sizes to be taken into account in
+ * the TCP handshake.</p>
+ */
+public class TransportProfile {
+    /**
+     * Traffic class marking packets as interactive video: DSCP AF41, queued by Wi-Fi multimedia
+     * in the video access category.
+     */
+    public static final int TRAFFIC_CLASS_VIDEO = 0x88;
+
+    /**
+     * Traffic class marking packets as needing the lowest delay: DSCP EF, queued by Wi-Fi
+     * multimedia in the voice access category.
+     */
+    public static final int TRAFFIC_CLASS_LOW_DELAY = 0xB8;
+
+    /**
+     * The size of a frame to size the buffers for when it is not known: a 1080p JPEG.
+     */
+    public static final int TYPICAL_FRAME_SIZE = 256 * 1024;
+
+    /**
+     * The bounds of the send buffer sized from the frame size, in bytes.
+     */
+    private static final int MIN_SEND_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_SEND_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private boolean mTcpNoDelay = false;
+    private boolean mKeepAlive = false;
+    private int mSendBufferSize = 0;
+    private int mReceiveBufferSize = 0;
+    private int mTrafficClass = -1;
+    private boolean mCoalescing = false;
+
+    /**
+     * Create a profile leaving every option to the system.
+     *
+     * @return The profile
+     */
+    public static TransportProfile systemDefault() {
+        return new TransportProfile();
+    }
+
+    /**
+     * Create a profile for frames sent as soon as they are ready.
+     *
+     * @param frameSize The size of a frame in bytes, to size the send buffer for
+     * @return The profile
+     */
+    public static TransportProfile lowLatency(int frameSize) {
+        return new TransportProfile()
+                .setTcpNoDelay(true)
+                .setKeepAlive(true)
+                .setSendBufferSize(sendBufferSizeFor(frameSize))
+                .setTrafficClass(TRAFFIC_CLASS_VIDEO)
+                .setCoalescing(true);
+    }
+
+    /**
+     * Get a send buffer size holding two frames, so that the next frame can be written while
+     * the previous one drains, within sensible bounds.
+     *
+     * @param frameSize The size of a frame in bytes
+     * @return The send buffer size in bytes
+     */
+    public static int sendBufferSizeFor(int frameSize) {
+        long size = 2L * frameSize;
+        return (int) Math.max(MIN_SEND_BUFFER_SIZE, Math.min(MAX_SEND_BUFFER_SIZE, size));
+    }
+
+    /**
+     * Set whether small writes are sent at once instead of being held back for more.
+     *
+     * @param tcpNoDelay True to disable Nagle's algorithm
+     * @return This profile
+     */
+    public TransportProfile setTcpNoDelay(boolean tcpNoDelay) {
+        mTcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * Set whether a silent connection is probed, to notice a receiver gone.
+     *
+     * @param keepAlive True to enable keep-alive probes
+     * @return This profile
+     */
+    public TransportProfile setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+        return this;
+    }
+
+    /**
+     * Set the size of the send buffer.
+     *
+     * @param size The size in bytes, 0 for the system default
+     * @return This profile
+     */
+    public TransportProfile setSendBufferSize(int size) {
+        mSendBufferSize = size;
+        return this;
+    }
+
+    /**
+     * Set the size of the receive buffer, which only ever holds acknowledgements and requests.
+     *
+     * @param size The size in bytes, 0 for the system default
+     * @return This profile
+     */
+    public TransportProfile setReceiveBufferSize(int size) {
+        mReceiveBufferSize = size;
+        return this;
+    }
+
+    /**
+     * Set the IP traffic class of the packets sent, such as {@link #TRAFFIC_CLASS_VIDEO}.
+     * Networks may ignore it or clear it.
+     *
+     * @param trafficClass The type of service byte, -1 for the system default
+     * @return This profile
+     */
+    public TransportProfile setTrafficClass(int trafficClass) {
+        mTrafficClass = trafficClass;
+        return this;
+    }
+
+    /**
+     * Set whether a header is written together with the start of its payload, instead of in a
+     * write of its own. The channel transport always gathers them.
+     *
+     * @param coalescing True to coalesce
+     * @return This profile
+     */
+    public TransportProfile setCoalescing(boolean coalescing) {
+        mCoalescing = coalescing;
+        return this;
+    }
+
+    public boolean isTcpNoDelay() {
+        return mTcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return mKeepAlive;
+    }
+
+    public int getSendBufferSize() {
+        return mSendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return mReceiveBufferSize;
+    }
+
+    public int getTrafficClass() {
+        return mTrafficClass;
+    }
+
+    public boolean isCoalescing() {
+        return mCoalescing;
+    }
+
+    /**
+     * Set the options of a socket not connected yet. Options left to the system are not
+     * touched.
+     *
+     * @param socket The socket
+     * @throws SocketException If the socket refuses an option
+     */
+    public void apply(Socket socket) throws SocketException {
+        if (mTcpNoDelay) {
+            socket.setTcpNoDelay(true);
+        }
+        if (mKeepAlive) {
+            socket.setKeepAlive(true);
+        }
+        if (mSendBufferSize > 0) {
+            socket.setSendBufferSize(mSendBufferSize);
+        }
+        if (mReceiveBufferSize > 0) {
+            socket.setReceiveBufferSize(mReceiveBufferSize);
+        }
+        if (mTrafficClass >= 0) {
+            try {
+                socket.setTrafficClass(mTrafficClass);
+            } catch (SocketException e) {
+                // Only a hint, which some systems do not take
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransportProfile{noDelay=" + mTcpNoDelay + ", keepAlive=" + mKeepAlive
+                + ", sendBuffer=" + mSendBufferSize + ", receiveBuffer=" + mReceiveBufferSize
+                + ", trafficClass=" + mTrafficClass + ", coalescing=" + mCoalescing + "}";
+    }
+}
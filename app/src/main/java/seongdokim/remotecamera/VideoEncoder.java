@@ -0,0 +1,71 @@
+package seongdokim.remotecamera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A video encoder producing H.264 or HEVC access units, such as the hardware encoder of the
+ * device. It is kept behind this interface so that the packetization and the protocol can run
+ * against a fake encoder on the JVM.
+ */
+public interface VideoEncoder {
+    /**
+     * Receives the output of the encoder, on a thread of the encoder, one call at a time.
+     */
+    interface Callback {
+        /**
+         * The encoder produced its configuration, the parameter sets every receiver needs before
+         * the first keyframe.
+         *
+         * @param config The configuration in Annex B format between position and limit, only
+         *               valid during the call
+         */
+        void onCodecConfig(ByteBuffer config);
+
+        /**
+         * The encoder produced one access unit.
+         *
+         * @param data      The access unit in Annex B format between position and limit, only
+         *                  valid during the call
+         * @param timestamp The capture timestamp of the picture in nanoseconds
+         * @param keyframe  Whether the access unit decodes without the ones before it
+         */
+        void onAccessUnit(ByteBuffer data, long timestamp, boolean keyframe);
+    }
+
+    /**
+     * Start encoding.
+     *
+     * @param callback Where the output goes
+     * @throws IOException If the encoder cannot start
+     */
+    void start(Callback callback) throws IOException;
+
+    /**
+     * Ask for the next access unit to be a keyframe. Safe from any thread.
+     */
+    void requestKeyframe();
+
+    /**
+     * Change the target bitrate while encoding. Safe from any thread.
+     *
+     * @param bitrate The target bitrate in bits per second
+     */
+    void setBitrate(int bitrate);
+
+    /**
+     * Stop encoding and free the encoder. No callback is made once this returns.
+     */
+    void stop();
+
+    /**
+     * Get the codec of the output.
+     *
+     * @return {@link FrameHeader#CODEC_H264} or {@link FrameHeader#CODEC_HEVC}
+     */
+    int getCodec();
+
+    int getWidth();
+
+    int getHeight();
+}
@@ -0,0 +1,182 @@
+package seongdokim.remotecamera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries the output of a {@link VideoEncoder} in the existing framing: each access unit
+ * becomes one frame whose {@link FrameHeader} flags give its codec and whether it is a keyframe.
+ * The codec configuration is put in front of every keyframe, so that whichever keyframe a
+ * receiver gets first, it has what it needs to start decoding. A {@link KeyframeGate} holds the
+ * other frames back until then and asks for a keyframe through this packetizer.
+ */
+public class VideoPacketizer implements VideoEncoder.Callback, KeyframeGate.Listener {
+    /**
+     * Where the frames go, typically a {@link ConnectionThread}.
+     */
+    public interface Sink {
+        /**
+         * Get a buffer to copy a frame into.
+         *
+         * @param size The number of bytes of the frame
+         * @return A cleared buffer of at least {@code size} bytes
+         */
+        FrameBuffer acquireFrameBuffer(int size);
+
+        /**
+         * Queue a frame, taking over the reference of the caller.
+         *
+         * @param frame The frame, flipped so that its bytes lie between position and limit
+         * @return False if the frame was rejected
+         */
+        boolean pushImage(FrameBuffer frame);
+    }
+
+    private final VideoEncoder mEncoder;
+    private volatile Sink mSink;
+
+    /**
+     * The last configuration of the encoder, used on the encoder thread only
+     */
+    private byte[] mConfig = null;
+
+    /**
+     * Whether a keyframe was asked for and has not come yet
+     */
+    private volatile boolean mKeyframeRequested = false;
+
+    private volatile long mFrameCount = 0;
+    private volatile long mKeyframeCount = 0;
+    private volatile long mRejectedCount = 0;
+    private volatile long mByteCount = 0;
+
+    /**
+     * Create a packetizer.
+     *
+     * @param encoder The encoder whose output to carry
+     */
+    public VideoPacketizer(VideoEncoder encoder) {
+        mEncoder = encoder;
+    }
+
+    /**
+     * Start the encoder, with this packetizer receiving its output.
+     *
+     * @throws IOException If the encoder cannot start
+     */
+    public void start() throws IOException {
+        mEncoder.start(this);
+    }
+
+    /**
+     * Stop the encoder.
+     */
+    public void stop() {
+        mEncoder.stop();
+    }
+
+    public VideoEncoder getEncoder() {
+        return mEncoder;
+    }
+
+    /**
+     * Change where the frames go, asking for a keyframe so that the new sink can start
+     * decoding soon. Frames are discarded while there is no sink.
+     *
+     * @param sink The new sink, or {@code null}
+     */
+    public void setSink(Sink sink) {
+        mSink = sink;
+        if (sink != null) {
+            requestKeyframe();
+        }
+    }
+
+    /**
+     * Ask the encoder for a keyframe, unless one was asked for already and has not come yet.
+     */
+    public void requestKeyframe() {
+        if (!mKeyframeRequested) {
+            mKeyframeRequested = true;
+            mEncoder.requestKeyframe();
+        }
+    }
+
+    @Override
+    public void onKeyframeNeeded() {
+        requestKeyframe();
+    }
+
+    @Override
+    public void onCodecConfig(ByteBuffer config) {
+        mConfig = new byte[config.remaining()];
+        config.duplicate().get(mConfig);
+    }
+
+    @Override
+    public void onAccessUnit(ByteBuffer data, long timestamp, boolean keyframe) {
+        byte[] config = null;
+        int flags = mEncoder.getCodec();
+        if (keyframe) {
+            mKeyframeRequested = false;
+            flags |= FrameHeader.FLAG_KEYFRAME;
+            config = mConfig;
+            if (config != null) {
+                flags |= FrameHeader.FLAG_CODEC_CONFIG;
+            }
+        }
+
+        Sink sink = mSink;
+        if (sink == null) {
+            return;
+        }
+        int length = data.remaining() + (config != null ? config.length : 0);
+        FrameBuffer frame = sink.acquireFrameBuffer(length);
+        if (config != null) {
+            frame.getBuffer().put(config);
+        }
+        frame.getBuffer().put(data.duplicate());
+        frame.getBuffer().flip();
+        frame.setImageInfo(mEncoder.getWidth(), mEncoder.getHeight(), timestamp).setFlags(flags);
+
+        mFrameCount++;
+        mByteCount += length;
+        if (keyframe) {
+            mKeyframeCount++;
+        }
+        if (!sink.pushImage(frame)) {
+            mRejectedCount++;
+        }
+    }
+
+    /**
+     * Get the number of frames handed to the sink so far.
+     *
+     * @return The number of access units packetized
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getKeyframeCount() {
+        return mKeyframeCount;
+    }
+
+    /**
+     * Get the number of frames the sink rejected so far.
+     *
+     * @return The number of frames rejected by backpressure
+     */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * Get the number of bytes handed to the sink so far.
+     *
+     * @return The size of every frame packetized, configurations included
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+}
@@ -59,18 +59,25 @@ public class WiFiConnectDialog extends DialogFragment {
     }
 
     class IPInputFiler implements InputFilter {
+        private static final String IP_ADDRESS = "\\d{1,3}(\\.\\d{1,3}){3}";
+        private static final String PARTIAL_IP_ADDRESS = "\\d{1,3}(\\.(\\d{1,3}(\\.(\\d{1,3}(\\.(\\d{1,3})?)?)?)?)?)?";
+        private static final String PORT = "(:\\d{0,5})?";
+
         @Override
         public CharSequence filter(CharSequence source, int start, int end, Spanned dest, int dstart, int dend) {
             if (end > start) {
                 String destTxt = dest.toString();
                 String resultingTxt = destTxt.substring(0, dstart) + source.subSequence(start, end) + destTxt.substring(dend);
-                if (!resultingTxt.matches ("^\\d{1,3}(\\.(\\d{1,3}(\\.(\\d{1,3}(\\.(\\d{1,3})?)?)?)?)?)?")) {
+                // A comma-separated list of addresses, each with an optional port
+                if (!resultingTxt.matches("^(" + IP_ADDRESS + PORT + ",)*" + PARTIAL_IP_ADDRESS + PORT + "$")) {
                     return "";
                 } else {
-                    String[] splits = resultingTxt.split("\\.");
-                    for (int i=0; i<splits.length; i++) {
-                        if (Integer.valueOf(splits[i]) > 255) {
-                            return "";
+                    for (String target : resultingTxt.split(",")) {
+                        String[] splits = target.split(":")[0].split("\\.");
+                        for (int i=0; i<splits.length; i++) {
+                            if (!splits[i].isEmpty() && Integer.valueOf(splits[i]) > 255) {
+                                return "";
+                            }
                         }
                     }
                 }
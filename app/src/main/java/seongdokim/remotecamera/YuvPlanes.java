@@ -0,0 +1,141 @@
+package seongdokim.remotecamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The three planes of a YUV 4:2:0 image as laid out by {@code ImageFormat.YUV_420_888}: a luma
+ * plane with a row stride, and two chroma planes of half the width and height sharing a row
+ * stride and a pixel stride, which is 2 when the chroma samples are interleaved (NV12 or NV21).
+ *
+ * <p>The buffers are used in place, typically those of an {@code android.media.Image}, so they
+ * are only valid as long as their owner is open. Their positions are left untouched.</p>
+ */
+public class YuvPlanes {
+    private int mWidth;
+    private int mHeight;
+    private long mTimestamp;
+
+    private ByteBuffer mY;
+    private int mYRowStride;
+
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private int mUvRowStride;
+    private int mUvPixelStride;
+
+    /**
+     * Set the size and capture time of the image.
+     *
+     * @param width     The width in pixels
+     * @param height    The height in pixels
+     * @param timestamp The capture timestamp in nanoseconds
+     * @return This image
+     */
+    public YuvPlanes set(int width, int height, long timestamp) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mTimestamp = timestamp;
+        return this;
+    }
+
+    /**
+     * Set the luma plane.
+     *
+     * @param y         The luma samples, the first one at index 0
+     * @param rowStride The distance in bytes between two rows
+     * @return This image
+     */
+    public YuvPlanes setLuma(ByteBuffer y, int rowStride) {
+        mY = y;
+        mYRowStride = rowStride;
+        return this;
+    }
+
+    /**
+     * Set the chroma planes.
+     *
+     * @param u           The Cb samples, the first one at index 0
+     * @param v           The Cr samples, the first one at index 0
+     * @param rowStride   The distance in bytes between two rows of both planes
+     * @param pixelStride The distance in bytes between two samples of a row, 1 or 2
+     * @return This image
+     */
+    public YuvPlanes setChroma(ByteBuffer u, ByteBuffer v, int rowStride, int pixelStride) {
+        if (pixelStride < 1) {
+            throw new IllegalArgumentException("Invalid pixel stride: " + pixelStride);
+        }
+        mU = u;
+        mV = v;
+        mUvRowStride = rowStride;
+        mUvPixelStride = pixelStride;
+        return this;
+    }
+
+    /**
+     * Get a view of a rectangle of the image, sharing its planes.
+     *
+     * @param left   The left edge, even so that the view starts on a chroma sample
+     * @param top    The top edge, even
+     * @param width  The width of the view
+     * @param height The height of the view
+     * @return A new image whose planes start at the top left corner of the rectangle
+     */
+    public YuvPlanes crop(int left, int top, int width, int height) {
+        if ((left & 1) != 0 || (top & 1) != 0 || left < 0 || top < 0 || width <= 0
+                || height <= 0 || left + width > mWidth || top + height > mHeight) {
+            throw new IllegalArgumentException("Invalid crop of a " + mWidth + "x" + mHeight
+                    + " image: " + left + "," + top + " " + width + "x" + height);
+        }
+        int chromaOffset = (top / 2) * mUvRowStride + (left / 2) * mUvPixelStride;
+        return new YuvPlanes()
+                .set(width, height, mTimestamp)
+                .setLuma(slice(mY, top * mYRowStride + left), mYRowStride)
+                .setChroma(slice(mU, chromaOffset), slice(mV, chromaOffset), mUvRowStride,
+                        mUvPixelStride);
+    }
+
+    private static ByteBuffer slice(ByteBuffer plane, int offset) {
+        ByteBuffer view = plane.duplicate();
+        view.position(offset);
+        return view.slice();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public ByteBuffer getY() {
+        return mY;
+    }
+
+    public int getYRowStride() {
+        return mYRowStride;
+    }
+
+    public ByteBuffer getU() {
+        return mU;
+    }
+
+    public ByteBuffer getV() {
+        return mV;
+    }
+
+    public int getUvRowStride() {
+        return mUvRowStride;
+    }
+
+    public int getUvPixelStride() {
+        return mUvPixelStride;
+    }
+}
@@ -0,0 +1,285 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link AdaptiveController} replaying throughput traces through a simulated link:
+ * a camera producing frames whose size follows the level, a drop-oldest queue, and a sender
+ * acknowledged one frame at a time after a round trip.
+ */
+public class AdaptiveControllerTest {
+    private static final long TARGET_LATENCY = 200;
+
+    /**
+     * The bytes of a frame at full resolution, per unit of quality cost
+     */
+    private static final int FRAME_BYTES = 50000;
+
+    private static final int QUEUE_CAPACITY = 4;
+    private static final long ROUND_TRIP = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long STEP = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long UPDATE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The capacity of the link over time.
+     */
+    private interface Trace {
+        /**
+         * @param second The time since the start
+         * @return The capacity in bytes per second
+         */
+        long capacityAt(double second);
+    }
+
+    private static Trace constant(final long capacity) {
+        return new Trace() {
+            @Override
+            public long capacityAt(double second) {
+                return capacity;
+            }
+        };
+    }
+
+    private static Trace steps(final double[] starts, final long[] capacities) {
+        return new Trace() {
+            @Override
+            public long capacityAt(double second) {
+                long capacity = capacities[0];
+                for (int i = 0; i < starts.length; i++) {
+                    if (second >= starts[i]) {
+                        capacity = capacities[i];
+                    }
+                }
+                return capacity;
+            }
+        };
+    }
+
+    /**
+     * A camera, a queue and a link driven by a controller.
+     */
+    private static class Simulation {
+        final AdaptiveController controller;
+        final Trace trace;
+
+        final ArrayDeque<long[]> queue = new ArrayDeque<>();
+        long now = 0;
+        long nextFrame = 0;
+        long nextUpdate = UPDATE_INTERVAL;
+
+        /**
+         * The frame being sent: its acquire time and the bytes left
+         */
+        long[] sending;
+        double sendingLeft;
+
+        long acknowledged;
+        long latencySum;
+        long bytesSent;
+        long dropped;
+
+        /**
+         * What happened within the current window of observation
+         */
+        long windowAcknowledged;
+        long windowLatencySum;
+        int levelSum;
+        int levelSamples;
+        int worstLevel;
+
+        Simulation(AdaptiveController controller, Trace trace) {
+            this.controller = controller;
+            this.trace = trace;
+        }
+
+        void runFor(double seconds) {
+            long end = now + (long) (seconds * 1e9);
+            while (now < end) {
+                step();
+            }
+        }
+
+        void resetWindow() {
+            windowAcknowledged = 0;
+            windowLatencySum = 0;
+            levelSum = 0;
+            levelSamples = 0;
+            worstLevel = controller.getLevelIndex();
+        }
+
+        double windowLatencyMillis() {
+            return windowAcknowledged == 0 ? 0 : windowLatencySum / 1e6 / windowAcknowledged;
+        }
+
+        private void step() {
+            AdaptiveController.Level level = controller.getLevel();
+            if (now >= nextFrame) {
+                int size = (int) (FRAME_BYTES * level.getAreaScale()
+                        * AdaptiveController.qualityCost(level.getQuality()));
+                if (queue.size() == QUEUE_CAPACITY) {
+                    queue.poll();
+                    dropped++;
+                }
+                queue.add(new long[]{now, size});
+                nextFrame += TimeUnit.SECONDS.toNanos(1) / level.getFrameRate();
+            }
+
+            if (sending == null && !queue.isEmpty()) {
+                sending = queue.poll();
+                sendingLeft = sending[1];
+            }
+            if (sending != null) {
+                sendingLeft -= trace.capacityAt(now / 1e9) * (STEP / 1e9);
+                if (sendingLeft <= 0) {
+                    long latency = now + ROUND_TRIP - sending[0];
+                    acknowledged++;
+                    latencySum += latency;
+                    bytesSent += sending[1];
+                    windowAcknowledged++;
+                    windowLatencySum += latency;
+                    sending = null;
+                }
+            }
+
+            now += STEP;
+            if (now >= nextUpdate) {
+                controller.update(now, acknowledged, latencySum, bytesSent, queue.size(),
+                        dropped);
+                nextUpdate += UPDATE_INTERVAL;
+                levelSum += controller.getLevelIndex();
+                levelSamples++;
+                worstLevel = Math.max(worstLevel, controller.getLevelIndex());
+            }
+        }
+    }
+
+    private static Simulation simulate(int initialLevel, Trace trace) {
+        return new Simulation(new AdaptiveController(AdaptiveController.defaultLadder(),
+                initialLevel, TARGET_LATENCY), trace);
+    }
+
+    @Test
+    public void ampleCapacity_staysAtTheTop() {
+        Simulation sim = simulate(0, constant(10000000));
+        sim.runFor(60);
+        assertEquals(0, sim.controller.getLevelIndex());
+        assertEquals(0, sim.controller.getChangeCount());
+        assertTrue(sim.windowLatencyMillis() < TARGET_LATENCY / 2);
+    }
+
+    @Test
+    public void ampleCapacity_climbsFromTheBottom() {
+        Simulation sim = simulate(9, constant(10000000));
+        sim.runFor(60);
+        assertEquals(0, sim.controller.getLevelIndex());
+        assertEquals(9, sim.controller.getChangeCount());
+    }
+
+    @Test
+    public void capacityDrop_stepsDownWithinSeconds() {
+        Simulation sim = simulate(0, steps(new double[]{0, 20}, new long[]{10000000, 1000000}));
+        sim.runFor(20);
+        assertEquals(0, sim.controller.getLevelIndex());
+
+        sim.runFor(4);
+        int level = sim.controller.getLevelIndex();
+        assertTrue("Level " + level, level >= 3);
+        AdaptiveController.Level reached = sim.controller.getLevel();
+        assertTrue(reached.getCost() * FRAME_BYTES <= 1000000);
+
+        // Once down, the latency is held below the target
+        sim.resetWindow();
+        sim.runFor(60);
+        assertTrue("Latency " + sim.windowLatencyMillis(),
+                sim.windowLatencyMillis() < TARGET_LATENCY);
+    }
+
+    @Test
+    public void capacityRecovery_climbsBack() {
+        Simulation sim = simulate(0, steps(new double[]{0, 10, 40},
+                new long[]{10000000, 300000, 10000000}));
+        sim.runFor(40);
+        assertTrue(sim.controller.getLevelIndex() >= 5);
+
+        sim.runFor(60);
+        assertEquals(0, sim.controller.getLevelIndex());
+    }
+
+    @Test
+    public void steadyCapacity_probesLessAndLessOften() {
+        // Enough for level 3 but not for level 2
+        Simulation sim = simulate(0, constant(1500000));
+        sim.runFor(60);
+        int early = sim.controller.getChangeCount();
+
+        sim.resetWindow();
+        int before = sim.controller.getChangeCount();
+        sim.runFor(240);
+        int late = sim.controller.getChangeCount() - before;
+
+        // Once the step up delay is at its longest, at most one failed probe per 30 s
+        assertTrue("Changes " + late, late <= 2 * (240 / 30 + 1));
+        assertTrue(early > 0);
+        // The stream spends most of its time on the level the link carries
+        assertTrue("Mean level " + (double) sim.levelSum / sim.levelSamples,
+                (double) sim.levelSum / sim.levelSamples > 2.5);
+        assertTrue(sim.worstLevel <= 6);
+        assertTrue("Latency " + sim.windowLatencyMillis(),
+                sim.windowLatencyMillis() < TARGET_LATENCY);
+    }
+
+    @Test
+    public void idleStream_keepsItsLevel() {
+        AdaptiveController controller = new AdaptiveController(
+                AdaptiveController.defaultLadder(), 4, TARGET_LATENCY);
+        long second = TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < 60; i++) {
+            assertFalse(controller.update(i * second, 100, 100 * second, 1000000, 0, 5));
+        }
+        assertEquals(4, controller.getLevelIndex());
+    }
+
+    @Test
+    public void restartedCounters_areTakenAsANewBaseline() {
+        AdaptiveController controller = new AdaptiveController(
+                AdaptiveController.defaultLadder(), 4, TARGET_LATENCY);
+        long second = TimeUnit.SECONDS.toNanos(1);
+        long latency = TimeUnit.MILLISECONDS.toNanos(20);
+        controller.update(0, 1000, 1000 * latency, 50000000, 0, 50);
+        controller.update(second, 1030, 1030 * latency, 51000000, 0, 50);
+
+        // A new connection counts from zero: no drop is seen
+        assertFalse(controller.update(2 * second, 0, 0, 0, 0, 0));
+        assertFalse(controller.update(3 * second, 30, 30 * latency, 1000000, 0, 0));
+        assertEquals(4, controller.getLevelIndex());
+    }
+
+    @Test
+    public void drops_stepDown() {
+        AdaptiveController controller = new AdaptiveController(
+                AdaptiveController.defaultLadder(), 0, TARGET_LATENCY);
+        long second = TimeUnit.SECONDS.toNanos(1);
+        long latency = TimeUnit.MILLISECONDS.toNanos(20);
+        controller.update(0, 0, 0, 0, 0, 0);
+        assertTrue(controller.update(second, 30, 30 * latency, 3000000, 0, 1));
+        assertTrue(controller.getLevelIndex() > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ladder_mustGetCheaper() {
+        new AdaptiveController(new AdaptiveController.Level[]{
+                new AdaptiveController.Level(50, 0.5f, 30),
+                new AdaptiveController.Level(50, 1f, 30)
+        }, 0, TARGET_LATENCY);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void level_rejectsInvalidQuality() {
+        new AdaptiveController.Level(0, 1f, 30);
+    }
+}
@@ -0,0 +1,102 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link AddressCache}.
+ */
+public class AddressCacheTest {
+    /**
+     * Resolves every host to the given addresses, or fails once told to.
+     */
+    private static class FakeResolver implements AddressCache.Resolver {
+        InetAddress[] mAddresses;
+        boolean mFailing = false;
+        int mCalls = 0;
+
+        FakeResolver(InetAddress... addresses) {
+            mAddresses = addresses;
+        }
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            mCalls++;
+            if (mFailing) {
+                throw new UnknownHostException(host);
+            }
+            return mAddresses;
+        }
+    }
+
+    private static InetAddress v4(int last) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{(byte) 192, (byte) 168, 0, (byte) last});
+    }
+
+    private static InetAddress v6(int last) throws UnknownHostException {
+        byte[] address = new byte[16];
+        address[0] = (byte) 0xfd;
+        address[15] = (byte) last;
+        return InetAddress.getByAddress(address);
+    }
+
+    @Test
+    public void resolve_isCachedUntilInvalidated() throws Exception {
+        FakeResolver resolver = new FakeResolver(v4(2));
+        AddressCache cache = new AddressCache(resolver, 60000);
+
+        assertEquals(Arrays.asList(v4(2)), cache.resolve("receiver"));
+        assertEquals(Arrays.asList(v4(2)), cache.resolve("receiver"));
+        assertEquals(1, resolver.mCalls);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.invalidate("receiver");
+        cache.resolve("receiver");
+        assertEquals(2, resolver.mCalls);
+    }
+
+    @Test
+    public void expiredEntry_isResolvedAgain() throws Exception {
+        FakeResolver resolver = new FakeResolver(v4(2));
+        AddressCache cache = new AddressCache(resolver, 0);
+        cache.resolve("receiver");
+        resolver.mAddresses = new InetAddress[]{v4(3)};
+        assertEquals(Arrays.asList(v4(3)), cache.resolve("receiver"));
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void failedResolution_fallsBackToTheLastAddresses() throws Exception {
+        FakeResolver resolver = new FakeResolver(v4(2));
+        AddressCache cache = new AddressCache(resolver, 0);
+        cache.resolve("receiver");
+        resolver.mFailing = true;
+        assertEquals(Arrays.asList(v4(2)), cache.resolve("receiver"));
+        assertEquals(2, resolver.mCalls);
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void unknownHost_neverResolved_fails() throws Exception {
+        FakeResolver resolver = new FakeResolver();
+        resolver.mFailing = true;
+        new AddressCache(resolver, 60000).resolve("receiver");
+    }
+
+    @Test
+    public void addresses_alternateBetweenFamilies() throws Exception {
+        List<InetAddress> ordered = AddressCache.interleave(new InetAddress[]{
+                v6(1), v6(2), v6(3), v4(1), v4(2)
+        });
+        assertEquals(Arrays.asList(v6(1), v4(1), v6(2), v4(2), v6(3)), ordered);
+
+        ordered = AddressCache.interleave(new InetAddress[]{v4(1), v4(2), v6(1)});
+        assertEquals(Arrays.asList(v4(1), v6(1), v4(2)), ordered);
+    }
+}
@@ -0,0 +1,92 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link CaptureMetadataTable}.
+ */
+public class CaptureMetadataTableTest {
+    private static CaptureMetadata metadata(long frameNumber) {
+        return new CaptureMetadata().set(frameNumber, frameNumber * 1000, (int) frameNumber,
+                frameNumber / 4f, (int) (frameNumber & 0xFF),
+                CaptureMetadata.TIMESTAMP_SOURCE_REALTIME);
+    }
+
+    @Test
+    public void get_findsTheCaptureWithTheTimestamp() {
+        CaptureMetadataTable table = new CaptureMetadataTable(4);
+        for (int i = 0; i < 3; i++) {
+            table.put(100 + i, metadata(i));
+        }
+        CaptureMetadata out = new CaptureMetadata();
+        assertTrue(table.get(101, out));
+        assertEquals(1, out.getFrameNumber());
+        assertEquals(1000, out.getExposureTime());
+        assertEquals(0.25f, out.getFocusDistance(), 0f);
+        assertEquals(CaptureMetadata.TIMESTAMP_SOURCE_REALTIME, out.getTimestampSource());
+        assertFalse(table.get(103, out));
+    }
+
+    @Test
+    public void get_missesCapturesOverwritten() {
+        CaptureMetadataTable table = new CaptureMetadataTable(4);
+        for (int i = 0; i < 6; i++) {
+            table.put(100 + i, metadata(i));
+        }
+        CaptureMetadata out = new CaptureMetadata();
+        assertFalse(table.get(100, out));
+        assertFalse(table.get(101, out));
+        assertTrue(table.get(102, out));
+        assertEquals(2, out.getFrameNumber());
+        assertTrue(table.get(105, out));
+        assertEquals(5, out.getFrameNumber());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsCapacityNotPowerOfTwo() {
+        new CaptureMetadataTable(24);
+    }
+
+    @Test
+    public void concurrentReader_neverSeesTornMetadata() throws Exception {
+        final CaptureMetadataTable table = new CaptureMetadataTable(8);
+        final AtomicLong written = new AtomicLong(-1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                CaptureMetadata metadata = new CaptureMetadata();
+                for (long i = 0; i < 200000; i++) {
+                    table.put(i, metadata.set(i, i * 1000, (int) i, i / 4f,
+                            (int) (i & 0xFF), 0));
+                    written.set(i);
+                }
+            }
+        };
+        writer.start();
+        CaptureMetadata out = new CaptureMetadata();
+        long hits = 0;
+        long last;
+        do {
+            last = written.get();
+            // Chase the writer, looking up captures about to be overwritten
+            for (long i = last - 7; i <= last; i++) {
+                if (table.get(i, out)) {
+                    hits++;
+                    assertEquals(i, out.getFrameNumber());
+                    assertEquals(i * 1000, out.getExposureTime());
+                    assertEquals((int) i, out.getSensitivity());
+                    assertEquals(i / 4f, out.getFocusDistance(), 0f);
+                    assertEquals((int) (i & 0xFF), out.getFocusState());
+                }
+            }
+        } while (last < 199999);
+        writer.join();
+        assertTrue(hits > 0);
+        assertTrue(table.get(199999, out));
+        assertEquals(199999, out.getFrameNumber());
+    }
+}
@@ -0,0 +1,60 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link CaptureMetadata}.
+ */
+public class CaptureMetadataTest {
+    @Test
+    public void encode_roundTrip() {
+        CaptureMetadata metadata = new CaptureMetadata().set(1L << 40, 33333333L, 1600, 0.75f,
+                4, CaptureMetadata.TIMESTAMP_SOURCE_REALTIME);
+        metadata.setSendDelay(1234567);
+        ByteBuffer buffer = ByteBuffer.allocate(CaptureMetadata.LENGTH + 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0);
+        metadata.encode(buffer);
+        assertEquals(CaptureMetadata.LENGTH + 4, buffer.position());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+
+        buffer.position(4);
+        CaptureMetadata decoded = new CaptureMetadata();
+        decoded.decode(buffer);
+        assertEquals(1L << 40, decoded.getFrameNumber());
+        assertEquals(33333333L, decoded.getExposureTime());
+        assertEquals(1600, decoded.getSensitivity());
+        assertEquals(0.75f, decoded.getFocusDistance(), 0f);
+        assertEquals(4, decoded.getFocusState());
+        assertEquals(CaptureMetadata.TIMESTAMP_SOURCE_REALTIME, decoded.getTimestampSource());
+        assertEquals(1234, decoded.getSendDelayMicros());
+    }
+
+    @Test
+    public void encode_writesNetworkByteOrder() {
+        ByteBuffer buffer = ByteBuffer.allocate(CaptureMetadata.LENGTH);
+        new CaptureMetadata().set(0x0102, 0, 0, 0f, 0, 0).encode(buffer);
+        assertEquals(0x01, buffer.get(6));
+        assertEquals(0x02, buffer.get(7));
+    }
+
+    @Test
+    public void setSendDelay_clampsToTheField() {
+        CaptureMetadata metadata = new CaptureMetadata();
+        metadata.setSendDelay(-5000);
+        assertEquals(0, metadata.getSendDelayMicros());
+        metadata.setSendDelay(Long.MAX_VALUE);
+        assertEquals(Integer.MAX_VALUE, metadata.getSendDelayMicros());
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void decode_rejectsShortBuffer() {
+        new CaptureMetadata().decode(ByteBuffer.allocate(CaptureMetadata.LENGTH - 1));
+    }
+}
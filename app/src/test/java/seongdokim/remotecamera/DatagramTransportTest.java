@@ -0,0 +1,360 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loopback tests of {@link DatagramTransport} and of {@link FrameSender} over it, against a
+ * receiver that loses and reorders datagrams on purpose. The test drives both ends from one
+ * thread: datagrams sent on the loopback interface are queued at the receiving socket by the
+ * time the send returns.
+ */
+public class DatagramTransportTest {
+    private static final int PACKET_SIZE = 1000;
+    private static final int FRAME_SIZE = 20000;
+
+    private DatagramChannel mPeer;
+    private DatagramTransport mTransport;
+    private SocketAddress mSenderAddress;
+    private final List<ByteBuffer> mPending = new ArrayList<>();
+    private final List<byte[]> mImages = new ArrayList<>();
+    private final List<Integer> mRequests = new ArrayList<>();
+    private int mPackets = 0;
+
+    /**
+     * Drop the datagrams whose index modulo this is {@link #mLossPhase}, 0 to lose none
+     */
+    private int mLossPeriod = 0;
+    private int mLossPhase = 0;
+
+    /**
+     * The probability of losing each datagram, at random
+     */
+    private double mRandomLoss = 0;
+    private final Random mRandom = new Random(42);
+
+    /**
+     * The number of messages sent by the peer
+     */
+    private int mAnswers = 0;
+
+    /**
+     * Whether to swap every pair of datagrams
+     */
+    private boolean mSwap = false;
+
+    private final FrameDecoder mPeerDecoder = new FrameDecoder(64 * 1024,
+            new FrameDecoder.Listener() {
+                private int mType;
+                private ByteBuffer mImage;
+
+                @Override
+                public void onJsonMessage(ByteBuffer message) {
+                    try {
+                        mRequests.add(new JSONObject(new String(message.array(),
+                                message.arrayOffset() + message.position(), message.remaining()))
+                                .getInt(Constants.REQUEST_FIELD));
+                    } catch (JSONException e) {
+                        fail(e.getMessage());
+                    }
+                }
+
+                @Override
+                public void onHeader(FrameHeader header) {
+                    mType = header.getType();
+                    mRequests.add(mType);
+                    mImage = ByteBuffer.allocate(header.getPayloadLength());
+                }
+
+                @Override
+                public void onPayload(ByteBuffer chunk, int remaining) {
+                    mImage.put(chunk);
+                    if (remaining == 0 && mType == Constants.REQUEST_STREAMING) {
+                        mImages.add(mImage.array());
+                    }
+                }
+            });
+    private final FrameReassembler mPeerReassembler = new FrameReassembler(4, 1 << 20,
+            1000000000L, new FrameReassembler.Listener() {
+        @Override
+        public void onMessage(ByteBuffer message) {
+            try {
+                mPeerDecoder.feed(message);
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+        }
+    });
+
+    @Before
+    public void setUp() throws IOException {
+        mPeer = DatagramChannel.open();
+        mPeer.bind(new InetSocketAddress("127.0.0.1", 0));
+        mPeer.configureBlocking(false);
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(mPeer.getLocalAddress());
+        mTransport = new DatagramTransport(channel, PACKET_SIZE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mTransport.close();
+        mPeer.close();
+    }
+
+    /**
+     * Take every datagram the sender sent so far, losing and reordering some of them.
+     */
+    private void receive() throws IOException {
+        while (true) {
+            ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+            SocketAddress address = mPeer.receive(packet);
+            if (address == null) {
+                break;
+            }
+            mSenderAddress = address;
+            packet.flip();
+            int index = mPackets++;
+            if (mLossPeriod > 0 && index % mLossPeriod == mLossPhase
+                    || mRandomLoss > 0 && mRandom.nextDouble() < mRandomLoss) {
+                continue;
+            }
+            mPending.add(packet);
+            if (!mSwap || mPending.size() == 2) {
+                for (int i = mPending.size() - 1; i >= 0; i--) {
+                    mPeerReassembler.feed(mPending.get(i), System.nanoTime());
+                }
+                mPending.clear();
+            }
+        }
+    }
+
+    /**
+     * Send a message from the peer, as one datagram.
+     */
+    private void answer(byte[] message) throws IOException {
+        mAnswers++;
+        new DatagramFragmenter(PACKET_SIZE).send(null, ByteBuffer.wrap(message),
+                new DatagramFragmenter.Sink() {
+                    @Override
+                    public void sendPacket(ByteBuffer[] packet, int count) throws IOException {
+                        ByteBuffer datagram = ByteBuffer.allocate(PACKET_SIZE);
+                        for (int i = 0; i < count; i++) {
+                            datagram.put(packet[i].duplicate());
+                        }
+                        datagram.flip();
+                        mPeer.send(datagram, mSenderAddress);
+                    }
+                });
+    }
+
+    /**
+     * Connect a sender as {@code ConnectionThread} does: wait for the welcome, which the peer
+     * sends once it heard the hello, and send the handshake.
+     */
+    private FrameSender connect() throws IOException, JSONException {
+        final JSONObject[] welcome = new JSONObject[1];
+        final FrameSender[] sender = new FrameSender[1];
+        FrameDecoder decoder = new FrameDecoder(1024, new FrameDecoder.Listener() {
+            @Override
+            public void onJsonMessage(ByteBuffer message) {
+                try {
+                    welcome[0] = new JSONObject(new String(message.array(),
+                            message.arrayOffset() + message.position(), message.remaining()));
+                } catch (JSONException e) {
+                    fail(e.getMessage());
+                }
+            }
+
+            @Override
+            public void onHeader(FrameHeader header) {
+                sender[0].onAcknowledged();
+            }
+
+            @Override
+            public void onPayload(ByteBuffer chunk, int remaining) {
+            }
+        });
+        sender[0] = new FrameSender(mTransport, decoder, new SendStats(), new StreamMetrics());
+        sender[0].setReliable(false);
+
+        receive();
+        assertNotNull("No hello", mSenderAddress);
+        JSONObject json = new JSONObject();
+        json.put(Constants.REQUEST_WELCOME_NAME, "datagram");
+        json.put(Constants.REQUEST_FIELD_WINDOW, 4);
+        json.put(Constants.REQUEST_FIELD_VERSION, FrameHeader.VERSION);
+        answer(json.toString().getBytes("UTF-8"));
+        while (welcome[0] == null) {
+            assertTrue(mTransport.read(decoder, true) > 0);
+        }
+        JSONObject handshake = sender[0].negotiate(welcome[0], 4);
+        mTransport.write(null, ByteBuffer.wrap(handshake.toString().getBytes("UTF-8")));
+        receive();
+        assertEquals(Arrays.asList(Constants.REQUEST_HANDSHAKE), mRequests);
+        return sender[0];
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private void send(FrameSender sender, int frames) throws IOException {
+        FrameBufferPool pool = new FrameBufferPool(2, false, true);
+        for (int i = 0; i < frames; i++) {
+            FrameBuffer frame = pool.acquire(FRAME_SIZE);
+            frame.getBuffer().put(pattern(FRAME_SIZE, i)).flip();
+            frame.setImageInfo(640, 480, i);
+            try {
+                sender.send(frame);
+            } finally {
+                frame.release();
+            }
+            receive();
+        }
+    }
+
+    private void assertImagesIntact() {
+        for (byte[] image : mImages) {
+            assertEquals(FRAME_SIZE, image.length);
+            int seed = image[0] & 0xFF;
+            assertArrayEquals(pattern(FRAME_SIZE, seed), image);
+        }
+    }
+
+    @Test
+    public void everyFrameArrives_withoutLoss() throws Exception {
+        FrameSender sender = connect();
+        assertTrue(sender.isPipelined());
+        send(sender, 20);
+
+        assertEquals(20, mImages.size());
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(pattern(FRAME_SIZE, i), mImages.get(i));
+        }
+        assertEquals(0, sender.getInFlight());
+    }
+
+    @Test
+    public void reordering_withinAndAcrossFrames_losesNothing() throws Exception {
+        FrameSender sender = connect();
+        mSwap = true;
+        send(sender, 20);
+        // The last datagram waits for a partner that never comes
+        assertTrue(mImages.size() >= 19);
+        assertImagesIntact();
+    }
+
+    @Test
+    public void loss_dropsOnlyTheFramesHit() throws Exception {
+        FrameSender sender = connect();
+        // About one datagram in 50, so one frame in 2.4
+        mLossPeriod = 50;
+        mLossPhase = mPackets % 50 + 7;
+        mSwap = true;
+        send(sender, 60);
+
+        int hit = mPackets / 50;
+        assertTrue("Received " + mImages.size(), mImages.size() >= 60 - hit - 2);
+        assertTrue(mImages.size() < 60);
+        assertImagesIntact();
+        assertTrue(mPeerReassembler.getDroppedCount() > 0);
+    }
+
+    @Test
+    public void silentReceiver_timesOutAfterHellos() throws Exception {
+        mPeer.close();
+        FrameDecoder decoder = new FrameDecoder(1024, new FrameDecoder.Listener() {
+            @Override
+            public void onJsonMessage(ByteBuffer message) {
+            }
+
+            @Override
+            public void onHeader(FrameHeader header) {
+            }
+
+            @Override
+            public void onPayload(ByteBuffer chunk, int remaining) {
+            }
+        });
+        try {
+            mTransport.read(decoder, true);
+            fail("Read without a receiver");
+        } catch (IOException e) {
+            // Timed out, or told the port is unreachable
+        }
+    }
+
+    @Test
+    public void parity_rebuildsRandomLossesWithoutAskingTheSender() throws Exception {
+        FrameSender sender = connect();
+        // Groups of two fragments
+        mTransport.setParityRatio(0.5);
+        mRandomLoss = 0.02;
+        mSwap = true;
+        send(sender, 60);
+
+        assertEquals(60, mImages.size());
+        assertImagesIntact();
+        assertTrue(mPeerReassembler.getRecoveredPacketCount() > 0);
+        assertEquals(0, mPeerReassembler.getDroppedCount());
+        // The welcome was all the receiver ever sent
+        assertEquals(1, mAnswers);
+    }
+
+    private void report(long expected, long lost) throws IOException {
+        ByteBuffer report = ByteBuffer.allocate(DatagramFragmenter.REPORT_LENGTH);
+        DatagramFragmenter.putReport(report, expected, lost);
+        report.flip();
+        mPeer.send(report, mSenderAddress);
+    }
+
+    @Test
+    public void adaptiveParity_followsTheReportedLossRate() throws Exception {
+        FrameSender sender = connect();
+        mTransport.setAdaptiveParity(0.05, 0.5);
+        assertEquals(0.05, mTransport.getParityRatio(), 1e-9);
+        assertEquals(-1, mTransport.getLossRate(), 1e-9);
+
+        // 10% lost: three parity packets per lost fragment
+        report(1000, 100);
+        send(sender, 1);
+        assertEquals(0.1, mTransport.getLossRate(), 1e-9);
+        assertEquals(0.3, mTransport.getParityRatio(), 1e-9);
+
+        // A stale report changes nothing
+        report(900, 90);
+        send(sender, 1);
+        assertEquals(0.3, mTransport.getParityRatio(), 1e-9);
+
+        // Heavy loss is capped, and a clean network goes back to the least parity
+        report(2000, 900);
+        send(sender, 1);
+        assertEquals(0.5, mTransport.getParityRatio(), 1e-9);
+        for (int i = 3; i < 20; i++) {
+            report(i * 1000, 900);
+            send(sender, 1);
+        }
+        assertEquals(0.05, mTransport.getParityRatio(), 1e-9);
+        assertEquals(0, mPeerReassembler.getDroppedCount());
+    }
+}
@@ -0,0 +1,239 @@
+package seongdokim.remotecamera;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link EncoderStage}.
+ */
+public class EncoderStageTest {
+    private static final long TIMEOUT = 10000;
+
+    /**
+     * The camera image owning the planes, which must be closed exactly once.
+     */
+    private static class Owner implements AutoCloseable {
+        private final CountDownLatch mClosed = new CountDownLatch(1);
+        private volatile int mCloseCount = 0;
+
+        @Override
+        public void close() {
+            mCloseCount++;
+            mClosed.countDown();
+        }
+
+        boolean awaitClosed() throws InterruptedException {
+            return mClosed.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * An encoder that waits for the test before encoding each image.
+     */
+    private static class GatedEncoder implements FrameEncoder {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public ByteBuffer encode(YuvPlanes image) {
+            started.countDown();
+            try {
+                gate.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            if (image.getTimestamp() < 0) {
+                throw new IllegalArgumentException("Broken image");
+            }
+            return ByteBuffer.wrap(new byte[]{(byte) image.getTimestamp()});
+        }
+    }
+
+    private final List<Long> mTimestamps = new ArrayList<>();
+    private final List<Integer> mLengths = new ArrayList<>();
+    private EncoderStage mStage;
+
+    private final EncoderStage.Sink mSink = new EncoderStage.Sink() {
+        @Override
+        public void onFrameEncoded(ByteBuffer data, int width, int height, long timestamp) {
+            synchronized (EncoderStageTest.this) {
+                mTimestamps.add(timestamp);
+                mLengths.add(data.remaining());
+                EncoderStageTest.this.notifyAll();
+            }
+        }
+    };
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (mStage != null) {
+            mStage.shutdown();
+            mStage.join(TIMEOUT);
+        }
+    }
+
+    private synchronized boolean awaitDone(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        while (mStage.getEncodedCount() + mStage.getDroppedCount() < count) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                return false;
+            }
+            wait(Math.min(left, 10));
+        }
+        return true;
+    }
+
+    private static YuvPlanes image(long timestamp) {
+        return JpegEncoderTest.synthetic(64, 48, 2).set(64, 48, timestamp);
+    }
+
+    @Test
+    public void severalEncoders_deliverInCaptureOrder() throws InterruptedException {
+        mStage = new EncoderStage(new FrameEncoder[]{
+                new JpegEncoder(), new JpegEncoder(), new JpegEncoder()}, mSink);
+        mStage.start();
+
+        int count = 50;
+        Owner[] owners = new Owner[count];
+        for (int i = 0; i < count; i++) {
+            owners[i] = new Owner();
+            mStage.submit(image(i), owners[i]);
+            Thread.sleep(1);
+        }
+        assertTrue(awaitDone(count));
+
+        for (Owner owner : owners) {
+            assertTrue(owner.awaitClosed());
+            assertEquals(1, owner.mCloseCount);
+        }
+        synchronized (this) {
+            assertEquals(mStage.getEncodedCount(), mTimestamps.size());
+            for (int i = 1; i < mTimestamps.size(); i++) {
+                assertTrue(mTimestamps.get(i) > mTimestamps.get(i - 1));
+            }
+            assertEquals(count - 1, (long) mTimestamps.get(mTimestamps.size() - 1));
+        }
+        assertEquals(count, mStage.getSubmittedCount());
+        assertTrue(mStage.getMeanEncodeNanos() > 0);
+    }
+
+    @Test
+    public void laterImageFinishedFirst_waitsForTheEarlierOne() throws InterruptedException {
+        // The first image is held back, the second is encoded right away by the other thread
+        final GatedEncoder slow = new GatedEncoder();
+        final CountDownLatch fastDone = new CountDownLatch(1);
+        FrameEncoder encoder = new FrameEncoder() {
+            @Override
+            public ByteBuffer encode(YuvPlanes image) {
+                if (image.getTimestamp() == 1) {
+                    return slow.encode(image);
+                }
+                fastDone.countDown();
+                return ByteBuffer.wrap(new byte[2]);
+            }
+        };
+        mStage = new EncoderStage(new FrameEncoder[]{encoder, encoder}, mSink);
+        mStage.start();
+
+        mStage.submit(image(1), new Owner());
+        assertTrue(slow.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        Owner second = new Owner();
+        mStage.submit(image(2), second);
+        assertTrue(fastDone.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(second.awaitClosed());
+        synchronized (this) {
+            assertTrue(mTimestamps.isEmpty());
+        }
+
+        slow.gate.countDown();
+        assertTrue(awaitDone(2));
+        synchronized (this) {
+            assertEquals(2, mTimestamps.size());
+            assertEquals(1L, (long) mTimestamps.get(0));
+            assertEquals(2L, (long) mTimestamps.get(1));
+        }
+        assertEquals(0, mStage.getDroppedCount());
+    }
+
+    @Test
+    public void busyEncoder_replacesPendingImage() throws InterruptedException {
+        GatedEncoder encoder = new GatedEncoder();
+        mStage = new EncoderStage(new FrameEncoder[]{encoder}, mSink);
+        mStage.start();
+
+        Owner first = new Owner();
+        Owner replaced = new Owner();
+        Owner latest = new Owner();
+        assertTrue(mStage.submit(image(1), first));
+        assertTrue(encoder.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(mStage.submit(image(2), replaced));
+        assertTrue(mStage.submit(image(3), latest));
+
+        // Dropped right away, without waiting for the encoder
+        assertTrue(replaced.awaitClosed());
+        assertEquals(0, first.mCloseCount);
+        assertEquals(1, mStage.getDroppedCount());
+
+        encoder.gate.countDown();
+        assertTrue(awaitDone(3));
+        assertTrue(first.awaitClosed());
+        assertTrue(latest.awaitClosed());
+        synchronized (this) {
+            assertEquals(2, mTimestamps.size());
+            assertEquals(1L, (long) mTimestamps.get(0));
+            assertEquals(3L, (long) mTimestamps.get(1));
+            assertEquals(1, (int) mLengths.get(0));
+        }
+    }
+
+    @Test
+    public void failingImage_isDroppedAndClosed() throws InterruptedException {
+        GatedEncoder encoder = new GatedEncoder();
+        encoder.gate.countDown();
+        mStage = new EncoderStage(new FrameEncoder[]{encoder}, mSink);
+        mStage.start();
+
+        Owner broken = new Owner();
+        mStage.submit(image(-1), broken);
+        assertTrue(broken.awaitClosed());
+        assertTrue(awaitDone(1));
+        assertTrue(mStage.getLastError() instanceof IllegalArgumentException);
+
+        // The encoder thread carries on
+        mStage.submit(image(5), new Owner());
+        assertTrue(awaitDone(2));
+        assertEquals(1, mStage.getEncodedCount());
+    }
+
+    @Test
+    public void shutdown_closesPendingAndLaterImages() throws InterruptedException {
+        GatedEncoder encoder = new GatedEncoder();
+        mStage = new EncoderStage(new FrameEncoder[]{encoder}, mSink);
+        mStage.start();
+
+        Owner busy = new Owner();
+        Owner pending = new Owner();
+        mStage.submit(image(1), busy);
+        assertTrue(encoder.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        mStage.submit(image(2), pending);
+
+        mStage.shutdown();
+        assertTrue(pending.awaitClosed());
+        Owner late = new Owner();
+        assertFalse(mStage.submit(image(3), late));
+        assertEquals(1, late.mCloseCount);
+
+        encoder.gate.countDown();
+        mStage.join(TIMEOUT);
+        assertEquals(1, busy.mCloseCount);
+    }
+}
@@ -0,0 +1,87 @@
+package seongdokim.remotecamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A video encoder for tests that produces canned H.264 NAL units: a configuration made of an SPS
+ * and a PPS, then an IDR picture every {@code gop} frames or when asked for, and non-IDR pictures
+ * in between.
+ */
+class FakeVideoEncoder implements VideoEncoder {
+    static final byte[] CONFIG = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1f, 0, 0, 0, 1, 0x68, (byte) 0xce};
+
+    private final int mGop;
+    private Callback mCallback;
+    private int mFrameCount = 0;
+    private volatile boolean mKeyframeRequested = false;
+    private volatile int mKeyframeRequests = 0;
+
+    /**
+     * @param gop The number of frames from one keyframe to the next when none is asked for
+     */
+    FakeVideoEncoder(int gop) {
+        mGop = gop;
+    }
+
+    @Override
+    public void start(Callback callback) {
+        mCallback = callback;
+        ByteBuffer config = ByteBuffer.wrap(CONFIG.clone());
+        callback.onCodecConfig(config);
+        // The encoder reuses its buffers
+        config.put(4, (byte) 0);
+    }
+
+    /**
+     * Produce the next access unit, as a single picture NAL unit of {@code size} bytes whose
+     * body is the frame number.
+     *
+     * @return Whether it was a keyframe
+     */
+    synchronized boolean encodeFrame(int size) {
+        boolean keyframe = mKeyframeRequested || mFrameCount % mGop == 0;
+        mKeyframeRequested = false;
+        byte[] unit = new byte[Math.max(size, 6)];
+        unit[3] = 1;
+        unit[4] = (byte) (keyframe ? 0x65 : 0x41);
+        unit[5] = (byte) mFrameCount;
+        mCallback.onAccessUnit(ByteBuffer.wrap(unit), 1000L * mFrameCount, keyframe);
+        mFrameCount++;
+        return keyframe;
+    }
+
+    int getKeyframeRequests() {
+        return mKeyframeRequests;
+    }
+
+    @Override
+    public void requestKeyframe() {
+        mKeyframeRequests++;
+        mKeyframeRequested = true;
+    }
+
+    @Override
+    public void setBitrate(int bitrate) {
+        // Canned units have no bitrate
+    }
+
+    @Override
+    public void stop() {
+        mCallback = null;
+    }
+
+    @Override
+    public int getCodec() {
+        return FrameHeader.CODEC_H264;
+    }
+
+    @Override
+    public int getWidth() {
+        return 1280;
+    }
+
+    @Override
+    public int getHeight() {
+        return 720;
+    }
+}
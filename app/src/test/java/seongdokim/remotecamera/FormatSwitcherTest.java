@@ -0,0 +1,86 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link FormatSwitcher}.
+ */
+public class FormatSwitcherTest {
+    private static final int[][] SIZES = {{1280, 720}, {640, 480}, {320, 240}};
+    private static final int[][] RANGES = {{15, 15}, {7, 30}, {30, 30}, {15, 24}};
+    private static final long FRAME = TimeUnit.MILLISECONDS.toNanos(33);
+
+    @Test
+    public void chooseSize_largestThatFits() {
+        FormatSwitcher switcher = new FormatSwitcher(SIZES, RANGES);
+        assertArrayEquals(new int[]{1280, 720}, switcher.chooseSize(1920, 1080));
+        assertArrayEquals(new int[]{640, 480}, switcher.chooseSize(800, 600));
+        assertArrayEquals(new int[]{640, 480}, switcher.chooseSize(640, 480));
+        // Nothing fits: the smallest
+        assertArrayEquals(new int[]{320, 240}, switcher.chooseSize(160, 120));
+    }
+
+    @Test
+    public void chooseFrameRateRange_prefersFixedRates() {
+        FormatSwitcher switcher = new FormatSwitcher(SIZES, RANGES);
+        assertArrayEquals(new int[]{30, 30}, switcher.chooseFrameRateRange(30));
+        assertArrayEquals(new int[]{15, 15}, switcher.chooseFrameRateRange(15));
+        assertArrayEquals(new int[]{15, 24}, switcher.chooseFrameRateRange(20));
+        // Faster than the camera: its fastest
+        assertArrayEquals(new int[]{30, 30}, switcher.chooseFrameRateRange(60));
+        assertNull(new FormatSwitcher(SIZES, new int[0][]).chooseFrameRateRange(30));
+    }
+
+    @Test
+    public void sizeSwitch_measuresLatencyAndLostFrames() {
+        FormatSwitcher switcher = new FormatSwitcher(SIZES, RANGES);
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            assertFalse(switcher.onFrame(now, 1280, 720));
+            now += FRAME;
+        }
+
+        long request = now - FRAME / 2;
+        switcher.beginSwitch(request, 640, 480);
+        assertTrue(switcher.isSwitching());
+        // A frame of the old size still comes, then the session stalls for four frames
+        assertFalse(switcher.onFrame(now, 1280, 720));
+        now += 5 * FRAME;
+        assertTrue(switcher.onFrame(now, 640, 480));
+
+        assertFalse(switcher.isSwitching());
+        assertEquals(1, switcher.getSwitchCount());
+        assertEquals(now - request, switcher.getLastSwitchNanos());
+        assertEquals(4, switcher.getLastDroppedFrames());
+        assertEquals(4, switcher.getDroppedFrames());
+        assertEquals(now - request, switcher.getMaxSwitchNanos());
+    }
+
+    @Test
+    public void frameRateSwitch_endsOnTheNextFrame() {
+        FormatSwitcher switcher = new FormatSwitcher(SIZES, RANGES);
+        long now = 0;
+        for (int i = 0; i < 5; i++) {
+            switcher.onFrame(now, 640, 480);
+            now += FRAME;
+        }
+        switcher.beginSwitch(now - 1000, 0, 0);
+        assertTrue(switcher.onFrame(now, 640, 480));
+        assertEquals(0, switcher.getLastDroppedFrames());
+        assertEquals(1000, switcher.getLastSwitchNanos());
+
+        // The measurements are kept when the camera reopens with other options
+        switcher.setOptions(new int[][]{{320, 240}}, RANGES);
+        assertEquals(1, switcher.getSwitchCount());
+        assertArrayEquals(new int[]{320, 240}, switcher.chooseSize(1280, 720));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_needsSizes() {
+        new FormatSwitcher(new int[0][], RANGES);
+    }
+}
@@ -0,0 +1,151 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link FrameBufferPool} and the reference counting of {@link FrameBuffer}.
+ */
+public class FrameBufferPoolTest {
+    @Test
+    public void acquire_roundsUpToSizeClass() {
+        FrameBufferPool pool = new FrameBufferPool(4, false);
+        assertEquals(FrameBufferPool.MIN_SIZE_CLASS, pool.acquire(0).getBuffer().capacity());
+        assertEquals(FrameBufferPool.MIN_SIZE_CLASS,
+                pool.acquire(FrameBufferPool.MIN_SIZE_CLASS).getBuffer().capacity());
+        assertEquals(2 * FrameBufferPool.MIN_SIZE_CLASS,
+                pool.acquire(FrameBufferPool.MIN_SIZE_CLASS + 1).getBuffer().capacity());
+        assertEquals(512 * 1024, pool.acquire(300 * 1024).getBuffer().capacity());
+    }
+
+    @Test
+    public void release_recyclesBufferWithoutAllocating() {
+        FrameBufferPool pool = new FrameBufferPool(4, false);
+        FrameBuffer first = pool.acquire(200000);
+        first.getBuffer().put((byte) 1).flip();
+        first.setImageInfo(640, 480, 7);
+        first.release();
+
+        FrameBuffer second = pool.acquire(150000);
+        assertSame(first, second);
+        assertEquals(1, second.getRefCount());
+        assertEquals(0, second.getBuffer().position());
+        assertEquals(second.getBuffer().capacity(), second.getBuffer().remaining());
+        assertEquals(0, second.getWidth());
+        assertEquals(0, second.getTimestamp());
+
+        assertEquals(2, pool.getAcquiredCount());
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(256 * 1024, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void steadyState_allocatesNothing() {
+        FrameBufferPool pool = new FrameBufferPool(4, false);
+        FrameBuffer[] inFlight = new FrameBuffer[4];
+        for (int i = 0; i < 1000; i++) {
+            int slot = i % inFlight.length;
+            if (inFlight[slot] != null) {
+                inFlight[slot].release();
+            }
+            inFlight[slot] = pool.acquire(100000 + (i % 7) * 3000);
+        }
+        assertEquals(inFlight.length, pool.getAllocationCount());
+    }
+
+    @Test
+    public void retainedBuffer_returnsToPoolAfterLastRelease() {
+        FrameBufferPool pool = new FrameBufferPool(4, false);
+        FrameBuffer frame = pool.acquire(1000);
+        frame.retain();
+        assertEquals(2, frame.getRefCount());
+
+        frame.release();
+        assertNotSame(frame, pool.acquire(1000));
+
+        frame.release();
+        assertSame(frame, pool.acquire(1000));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void release_twiceThrows() {
+        FrameBuffer frame = new FrameBufferPool(4, false).acquire(1000);
+        frame.release();
+        frame.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void retain_afterReleaseThrows() {
+        FrameBuffer frame = new FrameBufferPool(4, false).acquire(1000);
+        frame.release();
+        frame.retain();
+    }
+
+    @Test
+    public void freeList_isBounded() {
+        FrameBufferPool pool = new FrameBufferPool(1, false);
+        FrameBuffer first = pool.acquire(1000);
+        FrameBuffer second = pool.acquire(1000);
+        first.release();
+        second.release();
+
+        assertSame(first, pool.acquire(1000));
+        assertNotSame(second, pool.acquire(1000));
+    }
+
+    @Test
+    public void oversizedRequest_isNotPooled() {
+        FrameBufferPool pool = new FrameBufferPool(4, false);
+        FrameBuffer frame = pool.acquire(FrameBufferPool.MAX_SIZE_CLASS + 1);
+        assertEquals(FrameBufferPool.MAX_SIZE_CLASS + 1, frame.getBuffer().capacity());
+        frame.release();
+        assertNotSame(frame, pool.acquire(FrameBufferPool.MAX_SIZE_CLASS + 1));
+    }
+
+    @Test
+    public void wrap_holdsArrayAndReleasesToNowhere() {
+        byte[] data = {1, 2, 3};
+        FrameBuffer frame = FrameBuffer.wrap(data);
+        assertEquals(3, frame.getLength());
+        assertSame(data, frame.getBuffer().array());
+        frame.release();
+        assertEquals(0, frame.getRefCount());
+    }
+
+    @Test
+    public void leakTracking_reportsUnreleasedBuffers() {
+        FrameBufferPool pool = new FrameBufferPool(4, true);
+        FrameBuffer leaked = pool.acquire(1000);
+        FrameBuffer released = pool.acquire(1000);
+        released.release();
+
+        assertEquals(1, pool.getOutstandingCount());
+        assertEquals(1, pool.findLeaks(-1).size());
+        assertTrue(pool.findLeaks(Long.MAX_VALUE).isEmpty());
+
+        leaked.release();
+        assertEquals(0, pool.getOutstandingCount());
+        assertTrue(pool.findLeaks(-1).isEmpty());
+    }
+
+    @Test
+    public void leakTracking_forgetsReleasedOversizedBuffers() {
+        FrameBufferPool pool = new FrameBufferPool(4, true);
+        FrameBuffer frame = pool.acquire(FrameBufferPool.MAX_SIZE_CLASS + 1);
+        assertEquals(1, pool.getOutstandingCount());
+
+        frame.release();
+        assertEquals(0, pool.getOutstandingCount());
+        assertTrue(pool.findLeaks(-1).isEmpty());
+        assertNotSame(frame, pool.acquire(FrameBufferPool.MAX_SIZE_CLASS + 1));
+    }
+
+    @Test
+    public void leakTracking_isOffByDefault() {
+        FrameBufferPool pool = new FrameBufferPool(4, false);
+        pool.acquire(1000);
+        assertEquals(-1, pool.getOutstandingCount());
+        assertTrue(pool.findLeaks(-1).isEmpty());
+    }
+}
@@ -0,0 +1,254 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link FrameDecoder}, feeding it streams split at random places.
+ */
+public class FrameDecoderTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 1024;
+
+    @Test
+    public void wholeStream_decodesEveryMessage() throws Exception {
+        Stream stream = createStream(new Random(1));
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(BUFFER_SIZE, recorder);
+        byte[] bytes = stream.bytes();
+        decoder.feed(bytes, 0, bytes.length);
+
+        assertEquals(stream.events, recorder.events);
+    }
+
+    @Test
+    public void randomlyFragmentedStream_decodesEveryMessage() throws Exception {
+        for (int seed = 0; seed < 200; seed++) {
+            Random random = new Random(seed);
+            Stream stream = createStream(random);
+            Recorder recorder = new Recorder();
+            FrameDecoder decoder = new FrameDecoder(BUFFER_SIZE, recorder);
+
+            byte[] bytes = stream.bytes();
+            int offset = 0;
+            while (offset < bytes.length) {
+                int length = Math.min(bytes.length - offset, 1 + random.nextInt(random.nextBoolean() ? 40 : 3000));
+                if (random.nextBoolean()) {
+                    decoder.feed(bytes, offset, length);
+                } else {
+                    decoder.feed(ByteBuffer.wrap(bytes, offset, length));
+                }
+                offset += length;
+            }
+
+            assertEquals("seed " + seed, stream.events, recorder.events);
+        }
+    }
+
+    @Test
+    public void inputStreamReads_decodeEveryMessage() throws Exception {
+        Random random = new Random(7);
+        Stream stream = createStream(random);
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(BUFFER_SIZE, recorder);
+
+        InputStream in = new FragmentedInputStream(stream.bytes(), random);
+        while (decoder.read(in) >= 0) {
+            // Keep reading until the end of the stream
+        }
+
+        assertEquals(stream.events, recorder.events);
+    }
+
+    @Test
+    public void payloadLargerThanBuffer_isDeliveredInChunks() throws Exception {
+        byte[] payload = new byte[20 * BUFFER_SIZE + 3];
+        new Random(3).nextBytes(payload);
+        Stream stream = new Stream();
+        stream.frame(Constants.REQUEST_STREAMING, 1, payload);
+
+        final List<Integer> chunkSizes = new ArrayList<>();
+        Recorder recorder = new Recorder() {
+            @Override
+            public void onPayload(ByteBuffer chunk, int remaining) {
+                chunkSizes.add(chunk.remaining());
+                super.onPayload(chunk, remaining);
+            }
+        };
+        FrameDecoder decoder = new FrameDecoder(BUFFER_SIZE, recorder);
+        byte[] bytes = stream.bytes();
+        decoder.feed(bytes, 0, bytes.length);
+
+        assertEquals(stream.events, recorder.events);
+        for (int size : chunkSizes) {
+            assertTrue(size <= BUFFER_SIZE);
+        }
+    }
+
+    @Test
+    public void jsonWithBracesInStrings_isOneMessage() throws Exception {
+        Stream stream = new Stream();
+        stream.json("{\"welcome\":\"a } \\\" { b\",\"nested\":{\"window\":4}}");
+        stream.json("{\"acknowledge\":1}");
+
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(BUFFER_SIZE, recorder);
+        byte[] bytes = stream.bytes();
+        for (int i = 0; i < bytes.length; i++) {
+            decoder.feed(bytes, i, 1);
+        }
+
+        assertEquals(stream.events, recorder.events);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void garbage_isRejected() throws Exception {
+        byte[] bytes = "hello".getBytes(UTF8);
+        new FrameDecoder(BUFFER_SIZE, new Recorder()).feed(bytes, 0, bytes.length);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void oversizedJson_isRejected() throws Exception {
+        byte[] bytes = new byte[2 * BUFFER_SIZE];
+        Arrays.fill(bytes, (byte) ' ');
+        bytes[0] = '{';
+        new FrameDecoder(BUFFER_SIZE, new Recorder()).feed(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void reset_dropsPartialMessage() throws Exception {
+        Stream stream = new Stream();
+        stream.frame(Constants.REQUEST_OK, 9, new byte[0]);
+        byte[] bytes = stream.bytes();
+
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(BUFFER_SIZE, recorder);
+        decoder.feed(new byte[]{'{', '"'}, 0, 2);
+        decoder.reset();
+        decoder.feed(bytes, 0, bytes.length);
+
+        assertEquals(stream.events, recorder.events);
+    }
+
+    /**
+     * Build a stream mixing JSON messages, acknowledgements and frames of every size class.
+     */
+    private static Stream createStream(Random random) {
+        Stream stream = new Stream();
+        stream.json("{\"welcome\":\"Hello {camera}\",\"window\":4,\"version\":1}");
+        int[] sizes = {0, 1, FrameHeader.HEADER_LENGTH, BUFFER_SIZE - 1, BUFFER_SIZE, 8192, 100000};
+        for (int i = 0; i < 30; i++) {
+            if (random.nextInt(4) == 0) {
+                stream.json("{\"acknowledge\":" + i + "}");
+            } else {
+                byte[] payload = new byte[sizes[random.nextInt(sizes.length)]];
+                random.nextBytes(payload);
+                stream.frame(random.nextBoolean() ? Constants.REQUEST_STREAMING : Constants.REQUEST_OK,
+                        i, payload);
+            }
+        }
+        return stream;
+    }
+
+    /**
+     * An encoded stream along with the events a decoder should report for it.
+     */
+    private static class Stream {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<String> events = new ArrayList<>();
+
+        void json(String message) {
+            byte[] bytes = message.getBytes(UTF8);
+            out.write(bytes, 0, bytes.length);
+            events.add("json " + message);
+        }
+
+        void frame(int type, int sequence, byte[] payload) {
+            ByteBuffer header = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+            new FrameHeader().set(type, sequence, sequence * 1000L, 640, 480, payload.length)
+                    .encode(header);
+            out.write(header.array(), 0, header.position());
+            out.write(payload, 0, payload.length);
+            events.add("header " + type + " " + sequence + " " + payload.length);
+            if (payload.length > 0) {
+                events.add("payload " + Arrays.hashCode(payload));
+            }
+        }
+
+        byte[] bytes() {
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Records decoded messages in the same form as {@link Stream#events}.
+     */
+    private static class Recorder implements FrameDecoder.Listener {
+        final List<String> events = new ArrayList<>();
+        private final ByteArrayOutputStream mPayload = new ByteArrayOutputStream();
+
+        @Override
+        public void onJsonMessage(ByteBuffer message) {
+            events.add("json " + new String(message.array(),
+                    message.arrayOffset() + message.position(), message.remaining(), UTF8));
+        }
+
+        @Override
+        public void onHeader(FrameHeader header) {
+            events.add("header " + header.getType() + " " + header.getSequence() + " "
+                    + header.getPayloadLength());
+        }
+
+        @Override
+        public void onPayload(ByteBuffer chunk, int remaining) {
+            mPayload.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            if (remaining == 0) {
+                events.add("payload " + Arrays.hashCode(mPayload.toByteArray()));
+                mPayload.reset();
+            }
+        }
+    }
+
+    /**
+     * An {@link InputStream} returning a random number of bytes on every read.
+     */
+    private static class FragmentedInputStream extends InputStream {
+        private final byte[] mBytes;
+        private final Random mRandom;
+        private int mOffset = 0;
+
+        FragmentedInputStream(byte[] bytes, Random random) {
+            mBytes = bytes;
+            mRandom = random;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return mOffset < mBytes.length ? mBytes[mOffset++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mOffset == mBytes.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(len, mBytes.length - mOffset), 1 + mRandom.nextInt(2000));
+            System.arraycopy(mBytes, mOffset, b, off, count);
+            mOffset += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link FrameFanout} against several loopback receivers.
+ */
+public class FrameFanoutTest {
+    private static final long TIMEOUT = 10000;
+
+    private TransportEngine mEngine;
+    private final BlockingQueue<String> mEvents = new ArrayBlockingQueue<>(100);
+    private FrameFanout mFanout;
+
+    @Before
+    public void setUp() throws IOException {
+        mEngine = new TransportEngine(10);
+        mEngine.start();
+        mFanout = new FrameFanout(mEngine, new FrameFanout.Listener() {
+            @Override
+            public void onReceiverStreaming(FrameFanout.Receiver receiver) {
+                mEvents.add("streaming");
+            }
+
+            @Override
+            public void onReceiverClosed(FrameFanout.Receiver receiver, IOException cause) {
+                mEvents.add(cause == null ? "closed" : "lost");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mEngine.shutdown();
+        mEngine.join(TIMEOUT);
+    }
+
+    private String nextEvent() throws InterruptedException {
+        return mEvents.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private static FrameBuffer frame(FrameBufferPool pool, int size, int seed) {
+        FrameBuffer frame = pool.acquire(size);
+        for (int i = 0; i < size; i++) {
+            frame.getBuffer().put((byte) (i + seed));
+        }
+        frame.getBuffer().flip();
+        return frame.setImageInfo(320, 240, seed);
+    }
+
+    private static void awaitOutstanding(FrameBufferPool pool, int count)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        while (pool.getOutstandingCount() != count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void parseTargets_acceptsPortsAndSpaces() {
+        List<InetSocketAddress> targets = FrameFanout.parseTargets(
+                "192.168.0.2, 192.168.0.3:1051,localhost", 1050);
+        assertEquals(3, targets.size());
+        assertEquals("192.168.0.2", targets.get(0).getHostString());
+        assertEquals(1050, targets.get(0).getPort());
+        assertEquals("192.168.0.3", targets.get(1).getHostString());
+        assertEquals(1051, targets.get(1).getPort());
+        assertEquals("localhost", targets.get(2).getHostString());
+        assertTrue(targets.get(2).isUnresolved());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseTargets_rejectsEmptyTarget() {
+        FrameFanout.parseTargets("192.168.0.2,,192.168.0.3", 1050);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseTargets_rejectsInvalidPort() {
+        FrameFanout.parseTargets("192.168.0.2:camera", 1050);
+    }
+
+    @Test
+    public void everyReceiverGetsEveryFrame() throws Exception {
+        LoopbackReceiver[] receivers = {
+                new LoopbackReceiver(0, 0), new LoopbackReceiver(4, 0), new LoopbackReceiver(4, 1)
+        };
+        for (LoopbackReceiver receiver : receivers) {
+            mFanout.addReceiver(receiver.getAddress(), 32, FrameRing.POLICY_BACKPRESSURE, 4, 0,
+                    TIMEOUT);
+        }
+        for (int i = 0; i < receivers.length; i++) {
+            assertEquals("streaming", nextEvent());
+        }
+        assertEquals(3, mFanout.getStreamingCount());
+
+        FrameBufferPool pool = new FrameBufferPool(8, true);
+        int count = 30;
+        for (int i = 0; i < count; i++) {
+            assertTrue(mFanout.publish(frame(pool, 20000 + i, i)));
+        }
+
+        for (LoopbackReceiver receiver : receivers) {
+            assertTrue(receiver.awaitFrames(count, TIMEOUT));
+            List<LoopbackReceiver.Frame> frames = receiver.getFrames();
+            for (int i = 0; i < count; i++) {
+                assertEquals(20000 + i, frames.get(i).data.length);
+                assertEquals((byte) (5 + i), frames.get(i).data[5]);
+            }
+        }
+
+        // Shared buffers go back to the pool once every receiver is done with them
+        awaitOutstanding(pool, 0);
+        assertTrue(pool.getAllocationCount() < count);
+
+        mFanout.close();
+        for (int i = 0; i < receivers.length; i++) {
+            assertEquals("closed", nextEvent());
+        }
+        for (LoopbackReceiver receiver : receivers) {
+            assertTrue(receiver.awaitRequest(Constants.REQUEST_DISCONNECT, TIMEOUT));
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void slowReceiver_dropsFramesWithoutStallingOthers() throws Exception {
+        LoopbackReceiver fast1 = new LoopbackReceiver(4, 1);
+        LoopbackReceiver fast2 = new LoopbackReceiver(4, 1);
+        LoopbackReceiver slow = new LoopbackReceiver(2, 1);
+        slow.setReadDelay(100);
+
+        mFanout.addReceiver(fast1.getAddress(), 16, FrameRing.POLICY_DROP_OLDEST, 4, 0, TIMEOUT);
+        mFanout.addReceiver(fast2.getAddress(), 16, FrameRing.POLICY_DROP_OLDEST, 4, 0, TIMEOUT);
+        FrameFanout.Receiver slowReceiver = mFanout.addReceiver(slow.getAddress(), 2,
+                FrameRing.POLICY_DROP_OLDEST, 2, 0, TIMEOUT);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("streaming", nextEvent());
+        }
+
+        FrameBufferPool pool = new FrameBufferPool(8, true);
+        int count = 40;
+        for (int i = 0; i < count; i++) {
+            mFanout.publish(frame(pool, 200000, i));
+            Thread.sleep(10);
+        }
+
+        assertTrue(fast1.awaitFrames(count, TIMEOUT));
+        assertTrue(fast2.awaitFrames(count, TIMEOUT));
+        assertTrue(slow.getFrames().size() < count);
+        assertTrue(slowReceiver.getDroppedCount() > 0);
+
+        // The slow receiver gets the frames it gets in order
+        int previous = -1;
+        for (LoopbackReceiver.Frame frame : slow.getFrames()) {
+            assertTrue(frame.sequence > previous);
+            previous = frame.sequence;
+        }
+
+        slow.close();
+        assertEquals("lost", nextEvent());
+        assertEquals(2, mFanout.getReceivers().size());
+
+        mFanout.close();
+        assertEquals("closed", nextEvent());
+        assertEquals("closed", nextEvent());
+        awaitOutstanding(pool, 0);
+        fast1.close();
+        fast2.close();
+    }
+
+    @Test
+    public void formatRequests_reachTheListener() throws Exception {
+        final BlockingQueue<StreamFormat> formats = new ArrayBlockingQueue<>(10);
+        mFanout.setFormatListener(new StreamFormat.Listener() {
+            @Override
+            public void onFormatRequested(StreamFormat format) {
+                formats.add(format);
+            }
+        });
+        LoopbackReceiver binary = new LoopbackReceiver(4, 1);
+        LoopbackReceiver json = new LoopbackReceiver(0, 0);
+        mFanout.addReceiver(binary.getAddress(), 4, FrameRing.POLICY_DROP_OLDEST, 4, 0, TIMEOUT);
+        mFanout.addReceiver(json.getAddress(), 4, FrameRing.POLICY_DROP_OLDEST, 4, 0, TIMEOUT);
+        assertEquals("streaming", nextEvent());
+        assertEquals("streaming", nextEvent());
+
+        FrameBufferPool pool = new FrameBufferPool(4, true);
+        mFanout.publish(frame(pool, 1000, 0));
+        assertTrue(binary.awaitFrames(1, TIMEOUT));
+        assertTrue(json.awaitFrames(1, TIMEOUT));
+
+        binary.requestFormat(new StreamFormat(640, 480, 15));
+        StreamFormat format = formats.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(format);
+        assertEquals(640, format.getWidth());
+        assertEquals(15, format.getFrameRate());
+
+        json.requestFormat(new StreamFormat(0, 0, 10));
+        format = formats.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(format);
+        assertFalse(format.hasSize());
+        assertEquals(10, format.getFrameRate());
+
+        // The requests are not taken for acknowledgements: frames keep flowing in lockstep
+        for (int i = 1; i < 5; i++) {
+            mFanout.publish(frame(pool, 1000, i));
+            assertTrue(json.awaitFrames(i + 1, TIMEOUT));
+        }
+        assertTrue(binary.awaitFrames(5, TIMEOUT));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        for (FrameFanout.Receiver receiver : mFanout.getReceivers()) {
+            SendStats stats = receiver.getSession().getSendStats();
+            while (stats.getFramesAcknowledged() < 5 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(5, stats.getFramesSent());
+            assertEquals(5, stats.getFramesAcknowledged());
+        }
+
+        mFanout.close();
+        assertEquals("closed", nextEvent());
+        assertEquals("closed", nextEvent());
+        binary.close();
+        json.close();
+    }
+
+    @Test
+    public void overviewFrames_onlyReachReceiversTellingStreamsApart() throws Exception {
+        final BlockingQueue<StreamRegion> regions = new ArrayBlockingQueue<>(10);
+        mFanout.setRegionListener(new StreamRegion.Listener() {
+            @Override
+            public void onRegionRequested(StreamRegion region) {
+                regions.add(region);
+            }
+        });
+        LoopbackReceiver streams = new LoopbackReceiver(4, 2);
+        LoopbackReceiver binary = new LoopbackReceiver(4, 1);
+        LoopbackReceiver json = new LoopbackReceiver(0, 0);
+        mFanout.addReceiver(streams.getAddress(), 4, FrameRing.POLICY_DROP_OLDEST, 4, 0,
+                TIMEOUT);
+        mFanout.addReceiver(binary.getAddress(), 4, FrameRing.POLICY_DROP_OLDEST, 4, 0, TIMEOUT);
+        mFanout.addReceiver(json.getAddress(), 4, FrameRing.POLICY_DROP_OLDEST, 4, 0, TIMEOUT);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("streaming", nextEvent());
+        }
+
+        FrameBufferPool pool = new FrameBufferPool(4, true);
+        mFanout.publish(frame(pool, 1000, 0));
+        mFanout.publish(frame(pool, 100, 1).setFlags(FrameHeader.STREAM_OVERVIEW));
+        mFanout.publish(frame(pool, 1000, 2));
+        assertTrue(streams.awaitFrames(3, TIMEOUT));
+        assertTrue(binary.awaitFrames(2, TIMEOUT));
+        assertTrue(json.awaitFrames(2, TIMEOUT));
+        assertEquals(FrameHeader.STREAM_OVERVIEW, streams.getFrames().get(1).flags);
+        assertEquals(100, streams.getFrames().get(1).data.length);
+        for (LoopbackReceiver receiver : new LoopbackReceiver[]{binary, json}) {
+            for (LoopbackReceiver.Frame frame : receiver.getFrames()) {
+                assertEquals(1000, frame.data.length);
+            }
+        }
+        awaitOutstanding(pool, 0);
+
+        StreamRegion centre = new StreamRegion(16384, 16384, 32768, 32768);
+        streams.requestRegion(centre);
+        assertEquals(centre, regions.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        json.requestRegion(StreamRegion.FULL);
+        assertEquals(StreamRegion.FULL, regions.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        mFanout.close();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("closed", nextEvent());
+        }
+        streams.close();
+        binary.close();
+        json.close();
+    }
+
+    @Test
+    public void captureMetadata_onlyReachesReceiversOfVersion3() throws Exception {
+        LoopbackReceiver metadata = new LoopbackReceiver(4, 3);
+        LoopbackReceiver plain = new LoopbackReceiver(4, 2);
+        mFanout.addReceiver(metadata.getAddress(), 4, FrameRing.POLICY_DROP_OLDEST, 4, 0,
+                TIMEOUT);
+        mFanout.addReceiver(plain.getAddress(), 4, FrameRing.POLICY_DROP_OLDEST, 4, 0, TIMEOUT);
+        for (int i = 0; i < 2; i++) {
+            assertEquals("streaming", nextEvent());
+        }
+
+        FrameBufferPool pool = new FrameBufferPool(4, true);
+        FrameBuffer frame = frame(pool, 1000, 0);
+        frame.getMetadata().set(77, 8000000, 400, 2.5f, 2,
+                CaptureMetadata.TIMESTAMP_SOURCE_REALTIME);
+        mFanout.publish(frame.setHasMetadata(true));
+        mFanout.publish(frame(pool, 1000, 1));
+        assertTrue(metadata.awaitFrames(2, TIMEOUT));
+        assertTrue(plain.awaitFrames(2, TIMEOUT));
+
+        LoopbackReceiver.Frame received = metadata.getFrames().get(0);
+        assertEquals(FrameHeader.FLAG_METADATA, received.flags);
+        assertEquals(1000, received.data.length);
+        assertEquals(77, received.metadata.getFrameNumber());
+        assertEquals(8000000, received.metadata.getExposureTime());
+        assertEquals(400, received.metadata.getSensitivity());
+        assertEquals(2.5f, received.metadata.getFocusDistance(), 0f);
+        assertNull(metadata.getFrames().get(1).metadata);
+        for (LoopbackReceiver.Frame other : plain.getFrames()) {
+            assertEquals(0, other.flags);
+            assertEquals(1000, other.data.length);
+            assertNull(other.metadata);
+        }
+        awaitOutstanding(pool, 0);
+
+        mFanout.close();
+        for (int i = 0; i < 2; i++) {
+            assertEquals("closed", nextEvent());
+        }
+        metadata.close();
+        plain.close();
+    }
+
+    @Test
+    public void stats_onlyReachReceiversOfVersion4() throws Exception {
+        StreamMetrics metrics = new StreamMetrics();
+        mFanout.setMetrics(metrics);
+        LoopbackReceiver stats = new LoopbackReceiver(4, 4);
+        LoopbackReceiver plain = new LoopbackReceiver(4, 3);
+        mFanout.addReceiver(stats.getAddress(), 4, FrameRing.POLICY_DROP_OLDEST, 4, 0, TIMEOUT);
+        mFanout.addReceiver(plain.getAddress(), 4, FrameRing.POLICY_DROP_OLDEST, 4, 0, TIMEOUT);
+        for (int i = 0; i < 2; i++) {
+            assertEquals("streaming", nextEvent());
+        }
+
+        FrameBufferPool pool = new FrameBufferPool(4, true);
+        mFanout.publish(frame(pool, 1000, 0));
+        assertTrue(stats.awaitFrames(1, TIMEOUT));
+        assertTrue(plain.awaitFrames(1, TIMEOUT));
+        awaitOutstanding(pool, 0);
+
+        StreamMetrics.Snapshot snapshot = new StreamMetrics.Snapshot();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        long acknowledged = 0;
+        while (acknowledged < 2 && System.nanoTime() < deadline) {
+            metrics.snapshot(snapshot, System.nanoTime());
+            acknowledged += snapshot.getLatency(StreamMetrics.LATENCY_ACK).getCount();
+            Thread.sleep(10);
+        }
+        assertEquals(2, acknowledged);
+        mFanout.sendStats(snapshot.toJson().toString().getBytes("UTF-8"));
+        mFanout.publish(frame(pool, 1000, 1));
+        assertTrue(stats.awaitRequest(Constants.REQUEST_STATS, TIMEOUT));
+        assertTrue(stats.awaitFrames(2, TIMEOUT));
+        assertTrue(plain.awaitFrames(2, TIMEOUT));
+        assertEquals(Constants.REQUEST_STATS,
+                stats.getStats().get(0).getInt(Constants.REQUEST_FIELD));
+        assertTrue(plain.getStats().isEmpty());
+        assertFalse(plain.getRequests().contains(Constants.REQUEST_STATS));
+
+        mFanout.close();
+        for (int i = 0; i < 2; i++) {
+            assertEquals("closed", nextEvent());
+        }
+        stats.close();
+        plain.close();
+    }
+
+    @Test
+    public void metrics_recordTimeToConnectAndToFirstFrame() throws Exception {
+        StreamMetrics metrics = new StreamMetrics();
+        mFanout.setMetrics(metrics);
+        LoopbackReceiver receiver = new LoopbackReceiver(4, 3);
+        // As if the address had taken a second to resolve
+        long startTime = System.nanoTime() - TimeUnit.SECONDS.toNanos(1);
+        mFanout.addReceiver(receiver.getAddress(), 4, FrameRing.POLICY_DROP_OLDEST, 4, 0,
+                TIMEOUT, startTime);
+        assertEquals("streaming", nextEvent());
+
+        FrameBufferPool pool = new FrameBufferPool(4, true);
+        mFanout.publish(frame(pool, 1000, 0));
+        mFanout.publish(frame(pool, 1000, 1));
+        assertTrue(receiver.awaitFrames(2, TIMEOUT));
+        awaitOutstanding(pool, 0);
+
+        StreamMetrics.Snapshot snapshot = new StreamMetrics.Snapshot();
+        metrics.snapshot(snapshot, System.nanoTime());
+        assertEquals(1, snapshot.getLatency(StreamMetrics.LATENCY_CONNECT).getCount());
+        assertEquals(1, snapshot.getLatency(StreamMetrics.LATENCY_FIRST_FRAME).getCount());
+        assertTrue(snapshot.getLatency(StreamMetrics.LATENCY_CONNECT).getValueAtPercentile(50)
+                >= TimeUnit.SECONDS.toNanos(1));
+
+        mFanout.close();
+        assertEquals("closed", nextEvent());
+        receiver.close();
+    }
+
+    @Test
+    public void reconnectReceiver_carriesOnTheStream() throws Exception {
+        LoopbackReceiver receiver = new LoopbackReceiver(4, 3);
+        mFanout.setSession("stream");
+        FrameFanout.Receiver first = mFanout.addReceiver(receiver.getAddress(), 4,
+                FrameRing.POLICY_DROP_OLDEST, 4, 0, TIMEOUT);
+        assertEquals("streaming", nextEvent());
+
+        FrameBufferPool pool = new FrameBufferPool(4, true);
+        mFanout.publish(frame(pool, 1000, 0));
+        mFanout.publish(frame(pool, 1000, 1));
+        assertTrue(receiver.awaitFrames(2, TIMEOUT));
+        synchronized (first.getBackoff()) {
+            first.getBackoff().nextDelay();
+        }
+        receiver.dropConnection();
+        assertEquals("lost", nextEvent());
+        assertTrue(first.isClosed());
+        assertEquals(0, mFanout.getReceivers().size());
+
+        FrameFanout.Receiver second = mFanout.reconnectReceiver(first, receiver.getAddress(),
+                System.nanoTime());
+        assertEquals("streaming", nextEvent());
+        assertSame(first.getBackoff(), second.getBackoff());
+        assertEquals(0, second.getBackoff().getAttempts());
+        mFanout.publish(frame(pool, 1000, 2));
+        assertTrue(receiver.awaitFrames(3, TIMEOUT));
+
+        List<JSONObject> handshakes = receiver.getHandshakes();
+        assertEquals(2, handshakes.size());
+        assertEquals("stream", handshakes.get(0).getString(Constants.REQUEST_FIELD_SESSION));
+        assertEquals(0, handshakes.get(0).getInt(Constants.REQUEST_FIELD_SEQUENCE));
+        assertEquals("stream", handshakes.get(1).getString(Constants.REQUEST_FIELD_SESSION));
+        assertEquals(2, handshakes.get(1).getInt(Constants.REQUEST_FIELD_SEQUENCE));
+        assertEquals(2, receiver.getFrames().get(2).sequence);
+
+        mFanout.close();
+        assertEquals("closed", nextEvent());
+        awaitOutstanding(pool, 0);
+        receiver.close();
+    }
+
+    @Test
+    public void publish_withoutReceiversReleasesFrame() {
+        FrameBufferPool pool = new FrameBufferPool(1, true);
+        assertFalse(mFanout.publish(frame(pool, 100, 0)));
+        assertEquals(0, pool.getOutstandingCount());
+    }
+}
@@ -0,0 +1,185 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the binary {@link FrameHeader} codec.
+ */
+public class FrameHeaderTest {
+    @Test
+    public void roundTrip_preservesEveryField() throws Exception {
+        FrameHeader header = new FrameHeader()
+                .set(Constants.REQUEST_STREAMING, 0x7FFFFFF0, 123456789012345L, 1920, 1080, 512000);
+        header.setFlags(0xABCD);
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+        header.encode(buffer);
+        assertEquals(FrameHeader.HEADER_LENGTH, buffer.position());
+
+        buffer.flip();
+        FrameHeader decoded = new FrameHeader();
+        assertTrue(decoded.decode(buffer));
+        assertEquals(0, buffer.remaining());
+        assertEquals(FrameHeader.VERSION, decoded.getVersion());
+        assertEquals(Constants.REQUEST_STREAMING, decoded.getType());
+        assertEquals(0xABCD, decoded.getFlags());
+        assertEquals(0x7FFFFFF0, decoded.getSequence());
+        assertEquals(123456789012345L, decoded.getTimestamp());
+        assertEquals(1920, decoded.getWidth());
+        assertEquals(1080, decoded.getHeight());
+        assertEquals(512000, decoded.getPayloadLength());
+    }
+
+    @Test
+    public void roundTrip_unsignedFieldsAtTheirLimits() throws Exception {
+        FrameHeader header = new FrameHeader().set(Constants.REQUEST_IDLE, -1, -1L,
+                FrameHeader.MAX_DIMENSION, FrameHeader.MAX_DIMENSION, Integer.MAX_VALUE);
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+        header.encode(buffer);
+        buffer.flip();
+
+        FrameHeader decoded = new FrameHeader();
+        assertTrue(decoded.decode(buffer));
+        assertEquals(Constants.REQUEST_IDLE, decoded.getType());
+        assertEquals(-1, decoded.getSequence());
+        assertEquals(-1L, decoded.getTimestamp());
+        assertEquals(FrameHeader.MAX_DIMENSION, decoded.getWidth());
+        assertEquals(FrameHeader.MAX_DIMENSION, decoded.getHeight());
+        assertEquals(Integer.MAX_VALUE, decoded.getPayloadLength());
+    }
+
+    @Test
+    public void encode_isBigEndianAndRestoresByteOrder() {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        new FrameHeader().set(Constants.REQUEST_STREAMING, 1, 0, 0, 0, 0).encode(buffer);
+
+        assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+        assertEquals('R', buffer.get(0));
+        assertEquals('C', buffer.get(1));
+        assertEquals('A', buffer.get(2));
+        assertEquals('M', buffer.get(3));
+        assertEquals(1, buffer.get(11));
+    }
+
+    @Test
+    public void encode_atOffsetAndDecodeFromSharedBuffer() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(3 + 2 * FrameHeader.HEADER_LENGTH);
+        buffer.position(3);
+        new FrameHeader().set(Constants.REQUEST_STREAMING, 1, 10, 640, 480, 100).encode(buffer);
+        new FrameHeader().set(Constants.REQUEST_OK, 2, 20, 0, 0, 0).encode(buffer);
+        buffer.flip();
+        buffer.position(3);
+
+        FrameHeader decoded = new FrameHeader();
+        assertTrue(decoded.decode(buffer));
+        assertEquals(1, decoded.getSequence());
+        assertTrue(decoded.decode(buffer));
+        assertEquals(2, decoded.getSequence());
+        assertEquals(Constants.REQUEST_OK, decoded.getType());
+        assertFalse(decoded.decode(buffer));
+    }
+
+    @Test
+    public void decode_partialHeaderConsumesNothing() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+        new FrameHeader().set(Constants.REQUEST_STREAMING, 5, 0, 0, 0, 0).encode(buffer);
+        buffer.flip();
+        buffer.limit(FrameHeader.HEADER_LENGTH - 1);
+
+        FrameHeader decoded = new FrameHeader();
+        assertFalse(decoded.decode(buffer));
+        assertEquals(0, buffer.position());
+
+        buffer.limit(FrameHeader.HEADER_LENGTH);
+        assertTrue(decoded.decode(buffer));
+        assertEquals(5, decoded.getSequence());
+    }
+
+    @Test
+    public void setVersion_writesTheNegotiatedVersion() throws Exception {
+        FrameHeader header = new FrameHeader();
+        header.setVersion(1);
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+        header.set(Constants.REQUEST_STREAMING, 1, 0, 16, 16, 0).encode(buffer);
+        assertEquals(1, buffer.get(4));
+
+        buffer.flip();
+        FrameHeader decoded = new FrameHeader();
+        assertTrue(decoded.decode(buffer));
+        assertEquals(1, decoded.getVersion());
+    }
+
+    @Test
+    public void isUnderstoodBy_keepsOtherStreamsFromOlderReceivers() {
+        assertTrue(FrameHeader.isUnderstoodBy(FrameHeader.FLAG_KEYFRAME, 0));
+        assertTrue(FrameHeader.isUnderstoodBy(FrameHeader.STREAM_MAIN, 1));
+        assertFalse(FrameHeader.isUnderstoodBy(FrameHeader.STREAM_OVERVIEW, 0));
+        assertFalse(FrameHeader.isUnderstoodBy(FrameHeader.STREAM_OVERVIEW, 1));
+        assertTrue(FrameHeader.isUnderstoodBy(FrameHeader.STREAM_OVERVIEW, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setVersion_rejectsUnknownVersion() {
+        new FrameHeader().setVersion(FrameHeader.VERSION + 1);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void decode_rejectsBadMagic() throws Exception {
+        ByteBuffer buffer = encoded();
+        buffer.put(0, (byte) '{');
+        new FrameHeader().decode(buffer);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void decode_rejectsUnknownVersion() throws Exception {
+        ByteBuffer buffer = encoded();
+        buffer.put(4, (byte) (FrameHeader.VERSION + 1));
+        new FrameHeader().decode(buffer);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void decode_rejectsNegativePayloadLength() throws Exception {
+        ByteBuffer buffer = encoded();
+        buffer.putInt(24, -1);
+        new FrameHeader().decode(buffer);
+    }
+
+    @Test
+    public void decode_failureLeavesBufferAndHeaderUntouched() throws Exception {
+        FrameHeader decoded = new FrameHeader().set(Constants.REQUEST_OK, 42, 0, 0, 0, 0);
+        ByteBuffer buffer = encoded();
+        buffer.putInt(0, 0);
+        try {
+            decoded.decode(buffer);
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException e) {
+            assertEquals(0, buffer.position());
+            assertEquals(42, decoded.getSequence());
+        }
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void encode_rejectsShortBuffer() {
+        new FrameHeader().encode(ByteBuffer.allocate(FrameHeader.HEADER_LENGTH - 1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void encode_rejectsOversizedImage() {
+        new FrameHeader().set(Constants.REQUEST_STREAMING, 0, 0, FrameHeader.MAX_DIMENSION + 1, 1, 0)
+                .encode(ByteBuffer.allocate(FrameHeader.HEADER_LENGTH));
+    }
+
+    private static ByteBuffer encoded() {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+        new FrameHeader().set(Constants.REQUEST_STREAMING, 1, 2, 3, 4, 5).encode(buffer);
+        buffer.flip();
+        return buffer;
+    }
+}
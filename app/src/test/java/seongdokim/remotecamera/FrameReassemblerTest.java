@@ -0,0 +1,358 @@
+package seongdokim.remotecamera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link DatagramFragmenter} and {@link FrameReassembler}, parity packets included.
+ */
+public class FrameReassemblerTest {
+    private static final int PACKET_SIZE = 120;
+    private static final long DEADLINE = 1000000;
+
+    private final DatagramFragmenter mFragmenter = new DatagramFragmenter(PACKET_SIZE);
+    private final List<byte[]> mMessages = new ArrayList<>();
+    private FrameReassembler mReassembler;
+
+    @Before
+    public void setUp() {
+        mReassembler = newReassembler(4, 1 << 20);
+    }
+
+    private FrameReassembler newReassembler(int slots, int maxLength) {
+        return new FrameReassembler(slots, maxLength, DEADLINE, new FrameReassembler.Listener() {
+            @Override
+            public void onMessage(ByteBuffer message) {
+                byte[] bytes = new byte[message.remaining()];
+                message.get(bytes);
+                mMessages.add(bytes);
+            }
+        });
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    /**
+     * Fragment a message made of a header and a payload into copies of its datagrams.
+     */
+    private List<ByteBuffer> fragment(byte[] header, byte[] payload) throws IOException {
+        final List<ByteBuffer> packets = new ArrayList<>();
+        mFragmenter.send(header != null ? ByteBuffer.wrap(header) : null,
+                payload != null ? ByteBuffer.wrap(payload) : null,
+                new DatagramFragmenter.Sink() {
+                    @Override
+                    public void sendPacket(ByteBuffer[] packet, int count) {
+                        int length = 0;
+                        for (int i = 0; i < count; i++) {
+                            length += packet[i].remaining();
+                        }
+                        assertTrue(length <= PACKET_SIZE);
+                        ByteBuffer copy = ByteBuffer.allocate(length);
+                        for (int i = 0; i < count; i++) {
+                            copy.put(packet[i].duplicate());
+                        }
+                        copy.flip();
+                        packets.add(copy);
+                    }
+                });
+        return packets;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] bytes = new byte[a.length + b.length];
+        System.arraycopy(a, 0, bytes, 0, a.length);
+        System.arraycopy(b, 0, bytes, a.length, b.length);
+        return bytes;
+    }
+
+    private void feed(List<ByteBuffer> packets, long now) {
+        for (ByteBuffer packet : packets) {
+            mReassembler.feed(packet, now);
+        }
+    }
+
+    @Test
+    public void fragmenter_leavesThePayloadAndConsumesTheHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(pattern(28, 1));
+        ByteBuffer payload = ByteBuffer.wrap(pattern(1000, 2));
+        payload.position(10);
+        final int[] packets = {0};
+        int count = mFragmenter.send(header, payload, new DatagramFragmenter.Sink() {
+            @Override
+            public void sendPacket(ByteBuffer[] packet, int count) {
+                packets[0]++;
+            }
+        });
+        // 28 + 990 bytes in fragments of 100 bytes
+        assertEquals(11, count);
+        assertEquals(11, packets[0]);
+        assertFalse(header.hasRemaining());
+        assertEquals(10, payload.position());
+        assertEquals(1000, payload.limit());
+    }
+
+    @Test
+    public void inOrder_deliversTheMessagesWhole() throws IOException {
+        byte[] header = pattern(28, 1);
+        byte[] payload = pattern(1000, 2);
+        feed(fragment(header, payload), 0);
+        feed(fragment(null, pattern(50, 3)), 0);
+        feed(fragment(null, null), 0);
+
+        assertEquals(3, mMessages.size());
+        assertArrayEquals(concat(header, payload), mMessages.get(0));
+        assertArrayEquals(pattern(50, 3), mMessages.get(1));
+        assertEquals(0, mMessages.get(2).length);
+        assertEquals(3, mReassembler.getDeliveredCount());
+        assertEquals(0, mReassembler.getDroppedCount());
+    }
+
+    @Test
+    public void reordered_deliversTheMessagesWhole() throws IOException {
+        List<ByteBuffer> packets = fragment(pattern(28, 1), pattern(5000, 2));
+        Collections.shuffle(packets, new Random(42));
+        feed(packets, 0);
+
+        assertEquals(1, mMessages.size());
+        assertArrayEquals(concat(pattern(28, 1), pattern(5000, 2)), mMessages.get(0));
+    }
+
+    @Test
+    public void duplicates_areIgnored() throws IOException {
+        List<ByteBuffer> packets = fragment(null, pattern(500, 1));
+        ByteBuffer first = packets.get(0);
+        mReassembler.feed(first.duplicate(), 0);
+        assertFalse(mReassembler.feed(first.duplicate(), 0));
+        feed(packets.subList(1, packets.size()), 0);
+        // Once delivered, any fragment of the message is late
+        assertFalse(mReassembler.feed(first.duplicate(), 0));
+
+        assertEquals(1, mMessages.size());
+        assertEquals(2, mReassembler.getLatePacketCount());
+    }
+
+    @Test
+    public void lostFragment_dropsOnlyItsMessageOnceANewerOneCompletes() throws IOException {
+        List<ByteBuffer> lost = fragment(null, pattern(500, 1));
+        lost.remove(2);
+        feed(lost, 0);
+        List<ByteBuffer> next = fragment(null, pattern(500, 2));
+        feed(next, 0);
+
+        assertEquals(1, mMessages.size());
+        assertArrayEquals(pattern(500, 2), mMessages.get(0));
+        assertEquals(1, mReassembler.getDroppedCount());
+    }
+
+    @Test
+    public void overtaken_olderMessageIsDroppedRatherThanDeliveredLate() throws IOException {
+        List<ByteBuffer> older = fragment(null, pattern(500, 1));
+        List<ByteBuffer> newer = fragment(null, pattern(500, 2));
+        feed(older.subList(0, 3), 0);
+        feed(newer, 0);
+        feed(older.subList(3, older.size()), 0);
+
+        assertEquals(1, mMessages.size());
+        assertArrayEquals(pattern(500, 2), mMessages.get(0));
+        assertEquals(1, mReassembler.getDroppedCount());
+        assertEquals(older.size() - 3, mReassembler.getLatePacketCount());
+    }
+
+    @Test
+    public void deadline_dropsMessagesThatTakeTooLong() throws IOException {
+        List<ByteBuffer> packets = fragment(null, pattern(500, 1));
+        feed(packets.subList(0, 2), 0);
+        feed(packets.subList(2, packets.size()), DEADLINE + 1);
+
+        assertTrue(mMessages.isEmpty());
+        assertEquals(1, mReassembler.getDroppedCount());
+    }
+
+    @Test
+    public void slots_areBoundedByDroppingTheOldestMessage() throws IOException {
+        mReassembler = newReassembler(2, 1 << 20);
+        List<ByteBuffer> first = fragment(null, pattern(300, 1));
+        List<ByteBuffer> second = fragment(null, pattern(300, 2));
+        List<ByteBuffer> third = fragment(null, pattern(300, 3));
+        mReassembler.feed(first.get(0), 0);
+        mReassembler.feed(second.get(0), 0);
+        mReassembler.feed(third.get(0), 0);
+        feed(first.subList(1, first.size()), 0);
+        feed(second.subList(1, second.size()), 0);
+        feed(third.subList(1, third.size()), 0);
+
+        assertEquals(2, mMessages.size());
+        assertArrayEquals(pattern(300, 2), mMessages.get(0));
+        assertArrayEquals(pattern(300, 3), mMessages.get(1));
+        assertEquals(1, mReassembler.getDroppedCount());
+    }
+
+    @Test
+    public void invalidPackets_areIgnored() throws IOException {
+        assertFalse(mReassembler.feed(ByteBuffer.wrap(pattern(10, 1)), 0));
+        assertFalse(mReassembler.feed(ByteBuffer.wrap(pattern(100, 1)), 0));
+
+        // A fragment reaching past the end of its message
+        ByteBuffer packet = fragment(null, pattern(50, 1)).get(0);
+        packet.putInt(16, 10);
+        assertFalse(mReassembler.feed(packet, 0));
+
+        assertEquals(3, mReassembler.getInvalidPacketCount());
+        assertTrue(mMessages.isEmpty());
+    }
+
+    @Test
+    public void tooLong_messagesAreIgnored() throws IOException {
+        mReassembler = newReassembler(2, 200);
+        feed(fragment(null, pattern(300, 1)), 0);
+        feed(fragment(null, pattern(200, 2)), 0);
+
+        assertEquals(1, mMessages.size());
+        assertArrayEquals(pattern(200, 2), mMessages.get(0));
+        assertEquals(1, mReassembler.getDroppedCount());
+    }
+
+    /**
+     * Drop packets from a list of datagrams.
+     *
+     * @return The datagrams left, in order
+     */
+    private static List<ByteBuffer> without(List<ByteBuffer> packets, int... indices) {
+        List<ByteBuffer> left = new ArrayList<>(packets);
+        Arrays.sort(indices);
+        for (int i = indices.length - 1; i >= 0; i--) {
+            left.remove(indices[i]);
+        }
+        return left;
+    }
+
+    @Test
+    public void parity_isDealtIntoGroupsAfterTheFragments() throws IOException {
+        mFragmenter.setParityRatio(0.25);
+        // 5028 bytes in 51 fragments of 100 bytes, and 13 parity packets
+        List<ByteBuffer> packets = fragment(pattern(28, 1), pattern(5000, 2));
+        assertEquals(64, packets.size());
+        assertEquals(13, mFragmenter.getParityCount(51));
+        for (int i = 0; i < packets.size(); i++) {
+            assertEquals(i < 51 ? DatagramFragmenter.MAGIC : DatagramFragmenter.PARITY_MAGIC,
+                    packets.get(i).getInt(0));
+        }
+        ByteBuffer parity = packets.get(51 + 3);
+        assertEquals(3, parity.getShort(8));
+        assertEquals(51, parity.getShort(10));
+        assertEquals(13, parity.getInt(12));
+        assertEquals(DatagramFragmenter.PACKET_HEADER_LENGTH + 100, parity.remaining());
+
+        // The XOR of the fragments 3, 16, 29 and 42
+        byte[] message = concat(pattern(28, 1), pattern(5000, 2));
+        for (int i = 0; i < 100; i++) {
+            byte expected = (byte) (message[300 + i] ^ message[1600 + i] ^ message[2900 + i]
+                    ^ message[4200 + i]);
+            assertEquals(expected, parity.get(DatagramFragmenter.PACKET_HEADER_LENGTH + i));
+        }
+    }
+
+    @Test
+    public void parity_rebuildsABurstOfLossesSpreadOverTheGroups() throws IOException {
+        mFragmenter.setParityRatio(0.25);
+        List<ByteBuffer> packets = fragment(pattern(28, 1), pattern(5000, 2));
+        // 12 consecutive fragments, the last one short, and the parity of the intact group
+        int[] lost = new int[13];
+        for (int i = 0; i < 12; i++) {
+            lost[i] = 39 + i;
+        }
+        lost[12] = 51 + 12;
+        List<ByteBuffer> left = without(packets, lost);
+        Collections.shuffle(left, new Random(7));
+        feed(left, 0);
+
+        assertEquals(1, mMessages.size());
+        assertArrayEquals(concat(pattern(28, 1), pattern(5000, 2)), mMessages.get(0));
+        assertEquals(12, mReassembler.getRecoveredPacketCount());
+        assertEquals(51, mReassembler.getExpectedPacketCount());
+        assertEquals(12, mReassembler.getLostPacketCount());
+        assertEquals(0, mReassembler.getDroppedCount());
+    }
+
+    @Test
+    public void parity_cannotRebuildTwoLossesOfAGroup() throws IOException {
+        mFragmenter.setParityRatio(0.25);
+        // Fragments 3 and 16 are both in group 3
+        feed(without(fragment(null, pattern(5000, 1)), 3, 16), 0);
+        feed(fragment(null, pattern(500, 2)), 0);
+
+        assertEquals(1, mMessages.size());
+        assertArrayEquals(pattern(500, 2), mMessages.get(0));
+        assertEquals(1, mReassembler.getDroppedCount());
+        assertEquals(2, mReassembler.getLostPacketCount());
+        assertEquals(0, mReassembler.getRecoveredPacketCount());
+    }
+
+    @Test
+    public void parity_rebuildsSmallAndEmptyMessages() throws IOException {
+        mFragmenter.setParityRatio(0.01);
+        List<ByteBuffer> small = fragment(null, pattern(60, 1));
+        assertEquals(2, small.size());
+        assertEquals(DatagramFragmenter.PACKET_HEADER_LENGTH + 60, small.get(1).remaining());
+        feed(without(small, 0), 0);
+        feed(without(fragment(null, null), 0), 0);
+
+        assertEquals(2, mMessages.size());
+        assertArrayEquals(pattern(60, 1), mMessages.get(0));
+        assertEquals(0, mMessages.get(1).length);
+        assertEquals(2, mReassembler.getRecoveredPacketCount());
+    }
+
+    @Test
+    public void parity_afterDeliveryIsNotLate() throws IOException {
+        mFragmenter.setParityRatio(0.5);
+        feed(fragment(null, pattern(1000, 1)), 0);
+
+        assertEquals(1, mMessages.size());
+        assertEquals(0, mReassembler.getLatePacketCount());
+        assertEquals(0, mReassembler.getInvalidPacketCount());
+        assertEquals(0, mReassembler.getLostPacketCount());
+    }
+
+    @Test
+    public void parity_withAnInconsistentFragmentSizeIsInvalid() throws IOException {
+        mFragmenter.setParityRatio(0.5);
+        List<ByteBuffer> packets = fragment(null, pattern(1000, 1));
+        ByteBuffer parity = packets.get(packets.size() - 1);
+        parity.limit(parity.limit() - 1);
+        assertFalse(mReassembler.feed(parity, 0));
+        assertEquals(1, mReassembler.getInvalidPacketCount());
+    }
+
+    @Test
+    public void xor_ofBuffersInEitherByteOrder() {
+        ByteBuffer src = ByteBuffer.wrap(pattern(21, 1)).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer dst = ByteBuffer.allocateDirect(23);
+        dst.put(pattern(23, 5)).clear();
+        DatagramFragmenter.xor(src, 1, dst, 2, 19);
+
+        byte[] a = pattern(21, 1);
+        byte[] b = pattern(23, 5);
+        for (int i = 0; i < 23; i++) {
+            byte expected = i >= 2 && i < 21 ? (byte) (b[i] ^ a[i - 1]) : b[i];
+            assertEquals(expected, dst.get(i));
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link FrameRing}.
+ */
+public class FrameRingTest {
+    @Test
+    public void capacity_isRoundedUpToPowerOfTwo() {
+        assertEquals(1, new FrameRing<Integer>(1).capacity());
+        assertEquals(4, new FrameRing<Integer>(3).capacity());
+        assertEquals(4, new FrameRing<Integer>(4).capacity());
+        assertEquals(8, new FrameRing<Integer>(5).capacity());
+    }
+
+    @Test
+    public void poll_returnsFramesInOfferOrder() {
+        FrameRing<Integer> ring = new FrameRing<>(4);
+        assertNull(ring.poll());
+        for (int i = 0; i < 3; i++) {
+            assertNull(ring.offer(i));
+        }
+        assertEquals(3, ring.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test
+    public void offer_whenFullOverwritesOldest() {
+        FrameRing<Integer> ring = new FrameRing<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertNull(ring.offer(i));
+        }
+        assertEquals(Integer.valueOf(0), ring.offer(4));
+        assertEquals(Integer.valueOf(1), ring.offer(5));
+        assertEquals(4, ring.size());
+        assertEquals(2, ring.getDroppedCount());
+
+        for (int i = 2; i < 6; i++) {
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void wrapAround_keepsOrder() {
+        FrameRing<Integer> ring = new FrameRing<>(2);
+        for (int i = 0; i < 1000; i++) {
+            ring.offer(i);
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void offer_rejectsNull() {
+        new FrameRing<Integer>(2).offer(null);
+    }
+
+    @Test
+    public void concurrentProducerAndConsumer_deliverIncreasingFramesWithoutLoss() throws Exception {
+        final int frames = 2000000;
+        final FrameRing<Integer> ring = new FrameRing<>(4);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final long[] received = new long[1];
+        final long[] evicted = new long[1];
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int last = -1;
+                while (last < frames - 1) {
+                    Integer frame = ring.poll();
+                    if (frame == null) {
+                        continue;
+                    }
+                    if (frame <= last) {
+                        failure.set("Frame " + frame + " after " + last);
+                        return;
+                    }
+                    last = frame;
+                    received[0]++;
+                }
+            }
+        });
+        consumer.start();
+
+        for (int i = 0; i < frames; i++) {
+            if (ring.offer(i) != null) {
+                evicted[0]++;
+            }
+        }
+        consumer.join(30000);
+
+        assertFalse(consumer.isAlive());
+        assertNull(failure.get(), failure.get());
+        assertEquals(evicted[0], ring.getDroppedCount());
+        assertEquals(frames, received[0] + evicted[0]);
+    }
+
+    @Test
+    public void take_returnsNullAfterTimeout() throws Exception {
+        FrameRing<Integer> ring = new FrameRing<>(4);
+        long start = System.nanoTime();
+        assertNull(ring.take(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void take_wakesUpOnOffer() throws Exception {
+        final FrameRing<Integer> ring = new FrameRing<>(4);
+        final AtomicReference<Integer> taken = new AtomicReference<>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken.set(ring.take(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        Thread.sleep(100);
+        long start = System.nanoTime();
+        ring.offer(42);
+        consumer.join(5000);
+
+        assertEquals(Integer.valueOf(42), taken.get());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void take_throwsWhenInterrupted() throws Exception {
+        Thread.currentThread().interrupt();
+        new FrameRing<Integer>(4).take(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A consumer waiting on an empty ring must not burn CPU, which the old busy loop on
+     * {@code popImage()} did.
+     */
+    @Test
+    public void take_onEmptyRingUsesAlmostNoCpu() throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isCurrentThreadCpuTimeSupported()) {
+            return;
+        }
+        final FrameRing<Integer> ring = new FrameRing<>(4);
+        final AtomicLong cpu = new AtomicLong();
+        final long wall = TimeUnit.MILLISECONDS.toNanos(500);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = threads.getCurrentThreadCpuTime();
+                try {
+                    ring.take(500, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                cpu.set(threads.getCurrentThreadCpuTime() - start);
+            }
+        });
+        consumer.start();
+        consumer.join(5000);
+
+        assertTrue("Waiting used " + cpu.get() / 1000000 + "ms of CPU", cpu.get() < wall / 10);
+    }
+
+    @Test
+    public void latestPolicy_keepsOnlyNewestFrame() {
+        FrameRing<Integer> ring = new FrameRing<>(8, FrameRing.POLICY_LATEST);
+        assertEquals(1, ring.capacity());
+        assertNull(ring.offer(0));
+        assertEquals(Integer.valueOf(0), ring.offer(1));
+        assertEquals(Integer.valueOf(1), ring.offer(2));
+        assertEquals(Integer.valueOf(2), ring.poll());
+        assertNull(ring.poll());
+        assertEquals(2, ring.getEvictedCount());
+        assertEquals(0, ring.getRejectedCount());
+    }
+
+    @Test
+    public void backpressurePolicy_rejectsNewFramesWhenFull() {
+        FrameRing<Integer> ring = new FrameRing<>(2, FrameRing.POLICY_BACKPRESSURE);
+        assertNull(ring.offer(0));
+        assertFalse(ring.isFull());
+        assertNull(ring.offer(1));
+        assertTrue(ring.isFull());
+        assertEquals(Integer.valueOf(2), ring.offer(2));
+        assertEquals(1, ring.getRejectedCount());
+        assertEquals(0, ring.getEvictedCount());
+
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertNull(ring.offer(3));
+        assertEquals(Integer.valueOf(1), ring.poll());
+        assertEquals(Integer.valueOf(3), ring.poll());
+        assertNull(ring.poll());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsUnknownPolicy() {
+        new FrameRing<Integer>(4, 42);
+    }
+
+    @Test
+    public void everyPolicy_deliversFramesInOrderUnderConcurrency() throws Exception {
+        int[] policies = {FrameRing.POLICY_LATEST, FrameRing.POLICY_DROP_OLDEST,
+                FrameRing.POLICY_BACKPRESSURE};
+        for (int policy : policies) {
+            final int frames = 500000;
+            final FrameRing<Integer> ring = new FrameRing<>(4, policy);
+            final AtomicReference<String> failure = new AtomicReference<>();
+            final AtomicLong received = new AtomicLong();
+            final AtomicLong done = new AtomicLong(-1);
+
+            Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int last = -1;
+                    while (done.get() < 0 || ring.size() > 0) {
+                        Integer frame = ring.poll();
+                        if (frame == null) {
+                            continue;
+                        }
+                        if (frame <= last) {
+                            failure.set("Frame " + frame + " after " + last);
+                            return;
+                        }
+                        last = frame;
+                        received.incrementAndGet();
+                    }
+                }
+            });
+            consumer.start();
+
+            long dropped = 0;
+            for (int i = 0; i < frames; i++) {
+                if (ring.offer(i) != null) {
+                    dropped++;
+                }
+            }
+            done.set(frames);
+            consumer.join(30000);
+
+            assertNull("policy " + policy + ": " + failure.get(), failure.get());
+            assertEquals(dropped, ring.getDroppedCount());
+            assertEquals("policy " + policy, frames, received.get() + dropped);
+        }
+    }
+}
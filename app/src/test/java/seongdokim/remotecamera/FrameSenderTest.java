@@ -0,0 +1,173 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loopback tests of {@link FrameSender} against a {@link LoopbackReceiver}.
+ */
+public class FrameSenderTest {
+    private LoopbackReceiver mReceiver;
+    private FrameTransport mTransport;
+    private FrameSender mSender;
+    private final StreamMetrics mMetrics = new StreamMetrics();
+    private final FrameBufferPool mPool = new FrameBufferPool(4, false);
+
+    @After
+    public void tearDown() throws IOException {
+        if (mTransport != null) {
+            mTransport.close();
+        }
+        if (mReceiver != null) {
+            mReceiver.close();
+        }
+    }
+
+    /**
+     * Connect a sender to a receiver advertising a window and a version, and send the
+     * handshake if the receiver advertised a window.
+     */
+    private void connect(int window, int version) throws IOException, JSONException {
+        mReceiver = new LoopbackReceiver(window, version);
+        InetSocketAddress address = mReceiver.getAddress();
+        mTransport = new StreamTransport(new Socket(address.getAddress(), address.getPort()));
+        FrameDecoder decoder = new FrameDecoder(1024, new FrameDecoder.Listener() {
+            @Override
+            public void onJsonMessage(ByteBuffer message) {
+                try {
+                    JSONObject json = new JSONObject(new String(message.array(),
+                            message.arrayOffset() + message.position(), message.remaining()));
+                    if (json.optInt(Constants.REQUEST_FIELD, -1) == Constants.REQUEST_OK) {
+                        mSender.onAcknowledged();
+                    }
+                } catch (JSONException e) {
+                    fail(e.getMessage());
+                }
+            }
+
+            @Override
+            public void onHeader(FrameHeader header) {
+                if (header.getType() == Constants.REQUEST_OK) {
+                    mSender.onAcknowledged();
+                }
+            }
+
+            @Override
+            public void onPayload(ByteBuffer chunk, int remaining) {
+            }
+        });
+        SendStats sendStats = new SendStats();
+        sendStats.setMetrics(mMetrics);
+        mSender = new FrameSender(mTransport, decoder, sendStats, mMetrics);
+
+        if (window > 0) {
+            JSONObject handshake = new JSONObject();
+            handshake.put(Constants.REQUEST_FIELD, Constants.REQUEST_HANDSHAKE);
+            handshake.put(Constants.REQUEST_FIELD_WINDOW, window);
+            if (version >= 1) {
+                handshake.put(Constants.REQUEST_FIELD_VERSION, version);
+            }
+            mTransport.write(null, ByteBuffer.wrap(handshake.toString().getBytes("UTF-8")));
+            mSender.configure(window, version);
+        }
+    }
+
+    private FrameBuffer frame(int size, int seed) {
+        FrameBuffer frame = mPool.acquire(size);
+        for (int i = 0; i < size; i++) {
+            frame.getBuffer().put((byte) (i + seed));
+        }
+        frame.getBuffer().flip();
+        frame.getMetadata().set(seed, 1000000, 100, 2.5f, 0,
+                CaptureMetadata.TIMESTAMP_SOURCE_REALTIME);
+        return frame.setImageInfo(320, 240, seed).setHasMetadata(true);
+    }
+
+    private void send(int count, int size) throws IOException {
+        for (int i = 0; i < count; i++) {
+            FrameBuffer frame = frame(size, i);
+            try {
+                mSender.send(frame);
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    @Test
+    public void pipelined_keepsTheWindowAndCarriesMetadata() throws Exception {
+        connect(4, 4);
+        assertTrue(mSender.isPipelined());
+        send(10, 50000);
+        assertTrue(mSender.getInFlight() <= 4);
+        mSender.drain();
+        assertEquals(0, mSender.getInFlight());
+
+        assertTrue(mReceiver.awaitFrames(10, 5000));
+        List<LoopbackReceiver.Frame> frames = mReceiver.getFrames();
+        for (int i = 0; i < 10; i++) {
+            LoopbackReceiver.Frame received = frames.get(i);
+            assertEquals(i, received.sequence);
+            assertNotNull(received.metadata);
+            assertEquals(i, received.metadata.getFrameNumber());
+            FrameBuffer expected = frame(50000, i);
+            byte[] data = new byte[expected.getLength()];
+            expected.getBuffer().get(data);
+            expected.release();
+            assertArrayEquals(data, received.data);
+        }
+
+        StreamMetrics.Snapshot snapshot = mMetrics.snapshot(new StreamMetrics.Snapshot(),
+                System.nanoTime());
+        assertEquals(10, snapshot.getCounter(StreamMetrics.COUNTER_FRAMES_SENT));
+        assertEquals(10, snapshot.getLatency(StreamMetrics.LATENCY_ACK).getCount());
+        assertEquals(10, snapshot.getLatency(StreamMetrics.LATENCY_PAYLOAD).getCount());
+    }
+
+    @Test
+    public void lockstep_sendsJsonHeadersWithoutMetadata() throws Exception {
+        connect(0, 0);
+        assertFalse(mSender.isPipelined());
+        send(3, 1000);
+        assertEquals(0, mSender.getInFlight());
+
+        assertTrue(mReceiver.awaitFrames(3, 5000));
+        for (LoopbackReceiver.Frame received : mReceiver.getFrames()) {
+            assertEquals(320, received.width);
+            assertEquals(240, received.height);
+            assertNull(received.metadata);
+            assertEquals(1000, received.data.length);
+        }
+    }
+
+    @Test
+    public void stats_onlySentToVersion4() throws Exception {
+        connect(2, 3);
+        mSender.sendStats("{\"request\":5}".getBytes("UTF-8"));
+        send(1, 100);
+        mSender.drain();
+        assertTrue(mReceiver.awaitFrames(1, 5000));
+        assertFalse(mReceiver.getRequests().contains(Constants.REQUEST_STATS));
+        tearDown();
+
+        connect(2, 4);
+        mSender.sendStats("{\"request\":5,\"frames\":7}".getBytes("UTF-8"));
+        send(1, 100);
+        mSender.drain();
+        assertTrue(mReceiver.awaitFrames(1, 5000));
+        assertEquals(Arrays.asList(Constants.REQUEST_HANDSHAKE, Constants.REQUEST_STATS,
+                Constants.REQUEST_STREAMING), mReceiver.getRequests());
+        assertEquals(7, mReceiver.getStats().get(0).getInt("frames"));
+    }
+}
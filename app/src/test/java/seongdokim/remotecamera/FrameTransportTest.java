@@ -0,0 +1,229 @@
+package seongdokim.remotecamera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loopback tests of {@link StreamTransport} and {@link ChannelTransport}.
+ */
+public class FrameTransportTest {
+    private ServerSocket mServer;
+    private Socket mPeer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new ServerSocket(0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mPeer != null) {
+            mPeer.close();
+        }
+        mServer.close();
+    }
+
+    private FrameTransport connect(boolean channel) throws IOException {
+        return connect(channel, false);
+    }
+
+    private FrameTransport connect(boolean channel, boolean coalescing) throws IOException {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", mServer.getLocalPort());
+        FrameTransport transport;
+        if (channel) {
+            transport = new ChannelTransport(SocketChannel.open(address));
+        } else {
+            StreamTransport stream = new StreamTransport(new Socket(address.getAddress(),
+                    address.getPort()));
+            stream.setCoalescing(coalescing);
+            transport = stream;
+        }
+        mPeer = mServer.accept();
+        return transport;
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private void assertWritesFrame(boolean channel, boolean direct) throws IOException {
+        assertWritesFrame(channel, direct, false, 3 * 1024 * 1024 + 17);
+    }
+
+    private void assertWritesFrame(boolean channel, boolean direct, boolean coalescing,
+                                   int length) throws IOException {
+        FrameTransport transport = connect(channel, coalescing);
+        byte[] image = pattern(length);
+        ByteBuffer payload = direct ? ByteBuffer.allocateDirect(image.length)
+                : ByteBuffer.allocate(image.length);
+        payload.put(image).flip();
+
+        ByteBuffer header = ByteBuffer.allocateDirect(FrameHeader.HEADER_LENGTH);
+        new FrameHeader().set(Constants.REQUEST_STREAMING, 5, 123L, 640, 480, image.length)
+                .encode(header);
+        header.flip();
+
+        final DataInputStream in = new DataInputStream(mPeer.getInputStream());
+        final byte[] received = new byte[FrameHeader.HEADER_LENGTH + image.length];
+        final IOException[] error = new IOException[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    in.readFully(received);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        reader.start();
+        transport.write(header, payload);
+        try {
+            reader.join(10000);
+        } catch (InterruptedException e) {
+            fail("Interrupted");
+        }
+        assertNull(error[0]);
+
+        assertFalse(header.hasRemaining());
+        assertEquals(0, payload.position());
+        assertEquals(image.length, payload.remaining());
+
+        FrameHeader decoded = new FrameHeader();
+        assertTrue(decoded.decode(ByteBuffer.wrap(received, 0, FrameHeader.HEADER_LENGTH)));
+        assertEquals(5, decoded.getSequence());
+        assertEquals(image.length, decoded.getPayloadLength());
+        assertArrayEquals(image, Arrays.copyOfRange(received, FrameHeader.HEADER_LENGTH,
+                received.length));
+        transport.close();
+    }
+
+    @Test
+    public void stream_writesHeaderAndHeapPayload() throws IOException {
+        assertWritesFrame(false, false);
+    }
+
+    @Test
+    public void stream_writesHeaderAndDirectPayload() throws IOException {
+        assertWritesFrame(false, true);
+    }
+
+    @Test
+    public void channel_writesHeaderAndDirectPayload() throws IOException {
+        assertWritesFrame(true, true);
+    }
+
+    @Test
+    public void channel_writesHeaderOfAnEmptyPayload() throws IOException {
+        assertWritesFrame(true, true, false, 0);
+    }
+
+    @Test
+    public void coalescingStream_writesHeaderWithTheStartOfThePayload() throws IOException {
+        assertWritesFrame(false, false, true, 3 * 1024 * 1024 + 17);
+    }
+
+    @Test
+    public void coalescingStream_writesDirectPayloads() throws IOException {
+        assertWritesFrame(false, true, true, 3 * 1024 * 1024 + 17);
+    }
+
+    @Test
+    public void coalescingStream_writesPayloadsSmallerThanItsBuffer() throws IOException {
+        assertWritesFrame(false, false, true, 100);
+    }
+
+    @Test
+    public void channel_writesHeaderAndHeapPayload() throws IOException {
+        assertWritesFrame(true, false);
+    }
+
+    private void assertReadsWithoutBlocking(boolean channel) throws IOException {
+        FrameTransport transport = connect(channel);
+        final ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        FrameDecoder decoder = new FrameDecoder(1024, new FrameDecoder.Listener() {
+            @Override
+            public void onJsonMessage(ByteBuffer message) {
+                messages.write(message.array(), message.arrayOffset() + message.position(),
+                        message.remaining());
+            }
+
+            @Override
+            public void onHeader(FrameHeader header) {
+            }
+
+            @Override
+            public void onPayload(ByteBuffer chunk, int remaining) {
+            }
+        });
+
+        assertEquals(0, transport.read(decoder, false));
+
+        OutputStream out = mPeer.getOutputStream();
+        out.write("{\"request\":98}".getBytes());
+        out.flush();
+        assertTrue(transport.read(decoder, true) > 0);
+        assertEquals("{\"request\":98}", messages.toString());
+
+        mPeer.shutdownOutput();
+        assertEquals(-1, transport.read(decoder, true));
+        transport.close();
+    }
+
+    @Test
+    public void stream_readsWithoutBlocking() throws IOException {
+        assertReadsWithoutBlocking(false);
+    }
+
+    @Test
+    public void channel_readsWithoutBlocking() throws IOException {
+        assertReadsWithoutBlocking(true);
+    }
+
+    @Test
+    public void channel_closeWakesBlockedReader() throws Exception {
+        final FrameTransport transport = connect(true);
+        final FrameDecoder decoder = new FrameDecoder(1024, null);
+        final Exception[] error = new Exception[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    transport.read(decoder, true);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(100);
+        transport.close();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertTrue(error[0] instanceof IOException);
+    }
+
+    @Test
+    public void pool_allocatesDirectBuffersOnRequest() {
+        assertTrue(new FrameBufferPool(2, false, true).acquire(1000).getBuffer().isDirect());
+        assertFalse(new FrameBufferPool(2, false).acquire(1000).getBuffer().isDirect());
+    }
+}
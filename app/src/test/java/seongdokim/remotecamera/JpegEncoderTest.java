@@ -0,0 +1,185 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link JpegEncoder}, decoding its output with {@link ImageIO}.
+ */
+public class JpegEncoderTest {
+    /**
+     * Build a smooth synthetic image, with padded rows like the camera gives.
+     *
+     * @param pixelStride 1 for separate chroma planes, 2 for interleaved ones as in NV21
+     */
+    static YuvPlanes synthetic(int width, int height, int pixelStride) {
+        int rowStride = width + 16;
+        ByteBuffer y = ByteBuffer.allocateDirect(rowStride * height);
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                y.put(row * rowStride + column, (byte) luma(column, row, width, height));
+            }
+        }
+
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        ByteBuffer u;
+        ByteBuffer v;
+        int uvRowStride;
+        if (pixelStride == 1) {
+            uvRowStride = chromaWidth + 8;
+            u = ByteBuffer.allocate(uvRowStride * chromaHeight);
+            v = ByteBuffer.allocate(uvRowStride * chromaHeight);
+        } else {
+            // V and U interleaved, each plane one byte short of the shared buffer
+            uvRowStride = chromaWidth * 2;
+            ByteBuffer vu = ByteBuffer.allocate(uvRowStride * chromaHeight);
+            vu.limit(vu.capacity() - 1);
+            v = vu.slice();
+            vu.limit(vu.capacity()).position(1);
+            u = vu.slice();
+        }
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int column = 0; column < chromaWidth; column++) {
+                int index = row * uvRowStride + column * pixelStride;
+                u.put(index, (byte) cb(column, row, chromaWidth, chromaHeight));
+                v.put(index, (byte) cr(column, row, chromaWidth, chromaHeight));
+            }
+        }
+        return new YuvPlanes().set(width, height, 1000)
+                .setLuma(y, rowStride)
+                .setChroma(u, v, uvRowStride, pixelStride);
+    }
+
+    private static int luma(int x, int y, int width, int height) {
+        return 30 + 180 * (x + y) / (width + height);
+    }
+
+    private static int cb(int x, int y, int width, int height) {
+        return 100 + 60 * x / width;
+    }
+
+    private static int cr(int x, int y, int width, int height) {
+        return 150 - 50 * y / height;
+    }
+
+    static BufferedImage decode(ByteBuffer jpeg) throws IOException {
+        byte[] bytes = new byte[jpeg.remaining()];
+        jpeg.duplicate().get(bytes);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+        assertNotNull("Not a JPEG image", image);
+        return image;
+    }
+
+    /**
+     * Check the decoded image against the source planes, converting back to YCbCr with the
+     * JFIF equations.
+     */
+    static void assertClose(YuvPlanes source, BufferedImage image, double maxError) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+
+        double lumaError = 0;
+        double chromaError = 0;
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                int rgb = image.getRGB(column, row);
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                double y = 0.299 * r + 0.587 * g + 0.114 * b;
+                double u = 128 - 0.168736 * r - 0.331264 * g + 0.5 * b;
+                double v = 128 + 0.5 * r - 0.418688 * g - 0.081312 * b;
+                lumaError += Math.abs(y - luma(column, row, width, height));
+                chromaError += Math.abs(u - cb(column / 2, row / 2, chromaWidth, chromaHeight));
+                chromaError += Math.abs(v - cr(column / 2, row / 2, chromaWidth, chromaHeight));
+            }
+        }
+        int pixels = width * height;
+        assertTrue("Luma error " + lumaError / pixels, lumaError / pixels < maxError);
+        assertTrue("Chroma error " + chromaError / pixels / 2,
+                chromaError / pixels / 2 < maxError);
+    }
+
+    @Test
+    public void encode_planarChroma() throws IOException {
+        YuvPlanes source = synthetic(64, 48, 1);
+        assertClose(source, decode(new JpegEncoder(90).encode(source)), 2);
+    }
+
+    @Test
+    public void encode_interleavedChroma() throws IOException {
+        YuvPlanes source = synthetic(320, 240, 2);
+        assertClose(source, decode(new JpegEncoder(90).encode(source)), 2);
+    }
+
+    @Test
+    public void encode_sizeNotMultipleOfMcu() throws IOException {
+        YuvPlanes source = synthetic(37, 23, 2);
+        assertClose(source, decode(new JpegEncoder(90).encode(source)), 2);
+    }
+
+    @Test
+    public void encode_reusesStateAcrossSizes() throws IOException {
+        JpegEncoder encoder = new JpegEncoder();
+        YuvPlanes large = synthetic(640, 480, 1);
+        YuvPlanes small = synthetic(50, 30, 1);
+        assertClose(large, decode(encoder.encode(large)), 3);
+        assertClose(small, decode(encoder.encode(small)), 3);
+        assertClose(large, decode(encoder.encode(large)), 3);
+    }
+
+    @Test
+    public void encode_startsAndEndsWithMarkers() {
+        ByteBuffer jpeg = new JpegEncoder().encode(synthetic(16, 16, 1));
+        assertEquals((byte) 0xff, jpeg.get(jpeg.position()));
+        assertEquals((byte) 0xd8, jpeg.get(jpeg.position() + 1));
+        assertEquals((byte) 0xff, jpeg.get(jpeg.limit() - 2));
+        assertEquals((byte) 0xd9, jpeg.get(jpeg.limit() - 1));
+    }
+
+    @Test
+    public void encode_qualityTradesSizeForError() throws IOException {
+        YuvPlanes source = synthetic(320, 240, 1);
+        // Noise, so that the quantization has high frequencies to discard
+        ByteBuffer y = source.getY();
+        Random random = new Random(42);
+        for (int i = 0; i < y.capacity(); i++) {
+            y.put(i, (byte) ((y.get(i) & 0xff) + random.nextInt(16)));
+        }
+        int low = new JpegEncoder(20).encode(source).remaining();
+        int high = new JpegEncoder(95).encode(source).remaining();
+        assertTrue(low + " >= " + high, low < high);
+    }
+
+    @Test
+    public void setQuality_appliesToTheNextImage() throws IOException {
+        YuvPlanes source = synthetic(320, 240, 1);
+        JpegEncoder encoder = new JpegEncoder(95);
+        int high = encoder.encode(source).remaining();
+        encoder.setQuality(20);
+        assertEquals(20, encoder.getQuality());
+        int low = encoder.encode(source).remaining();
+        assertEquals(new JpegEncoder(20).encode(source).remaining(), low);
+        assertTrue(low + " >= " + high, low < high);
+        assertClose(source, decode(encoder.encode(source)), 12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsInvalidQuality() {
+        new JpegEncoder(0);
+    }
+}
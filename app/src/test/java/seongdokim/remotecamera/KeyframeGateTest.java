@@ -0,0 +1,75 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link KeyframeGate}.
+ */
+public class KeyframeGateTest {
+    private static final int KEYFRAME = FrameHeader.CODEC_H264 | FrameHeader.FLAG_KEYFRAME
+            | FrameHeader.FLAG_CODEC_CONFIG;
+    private static final int DELTA = FrameHeader.CODEC_H264;
+
+    private int mRequests = 0;
+
+    private final KeyframeGate mGate = new KeyframeGate(new KeyframeGate.Listener() {
+        @Override
+        public void onKeyframeNeeded() {
+            mRequests++;
+        }
+    });
+
+    private static FrameBuffer frame(int flags) {
+        return FrameBuffer.wrap(new byte[8]).setFlags(flags);
+    }
+
+    @Test
+    public void jpegImages_alwaysPass() {
+        assertTrue(mGate.admit(frame(0), 0, false));
+        assertTrue(mGate.admit(frame(0), 3, true));
+        assertEquals(0, mRequests);
+    }
+
+    @Test
+    public void deltaFrames_waitForKeyframeWithConfig() {
+        assertFalse(mGate.admit(frame(DELTA), 0, true));
+        assertFalse(mGate.admit(frame(DELTA), 0, true));
+        assertEquals(1, mRequests);
+
+        // A keyframe without the configuration is not enough to start decoding
+        assertFalse(mGate.admit(frame(DELTA | FrameHeader.FLAG_KEYFRAME), 0, true));
+
+        assertTrue(mGate.admit(frame(KEYFRAME), 0, true));
+        assertTrue(mGate.admit(frame(DELTA), 0, true));
+        assertFalse(mGate.isWaiting());
+        assertEquals(3, mGate.getSkippedCount());
+        assertEquals(1, mRequests);
+    }
+
+    @Test
+    public void droppedFrame_waitsForNextKeyframe() {
+        assertTrue(mGate.admit(frame(KEYFRAME), 0, true));
+        assertTrue(mGate.admit(frame(DELTA), 0, true));
+
+        // The queue dropped a frame since the last one taken
+        assertFalse(mGate.admit(frame(DELTA), 1, true));
+        assertFalse(mGate.admit(frame(DELTA), 1, true));
+        assertEquals(1, mRequests);
+
+        // A keyframe right after a drop needs nothing before it
+        assertTrue(mGate.admit(frame(KEYFRAME), 2, true));
+        assertTrue(mGate.admit(frame(DELTA), 2, true));
+        assertFalse(mGate.admit(frame(DELTA), 3, true));
+        assertEquals(2, mRequests);
+    }
+
+    @Test
+    public void jsonReceivers_getNoVideo() {
+        assertFalse(mGate.admit(frame(KEYFRAME), 0, false));
+        assertFalse(mGate.admit(frame(DELTA), 0, false));
+        assertEquals(0, mRequests);
+        assertEquals(2, mGate.getSkippedCount());
+    }
+}
@@ -0,0 +1,105 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+    private static void assertWithin(long expected, long actual, double tolerance) {
+        assertTrue("Expected " + expected + " got " + actual,
+                Math.abs(actual - expected) <= expected * tolerance);
+    }
+
+    @Test
+    public void percentiles_areWithinTheBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(10000, histogram.getCount());
+        assertWithin(5000000, histogram.getValueAtPercentile(50), 0.07);
+        assertWithin(9000000, histogram.getValueAtPercentile(90), 0.07);
+        assertWithin(9900000, histogram.getValueAtPercentile(99), 0.07);
+        assertEquals(10000000, histogram.getMaxNanos());
+        assertEquals(10000000, histogram.getValueAtPercentile(100));
+        assertWithin(5000500, histogram.getMeanNanos(), 0.001);
+    }
+
+    @Test
+    public void smallValues_areExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3000);
+        histogram.record(3500);
+        histogram.record(5000);
+        histogram.record(-1);
+        // Up to the end of the microsecond, below the largest value
+        assertEquals(3999, histogram.getValueAtPercentile(60));
+        assertEquals(999, histogram.getValueAtPercentile(10));
+        assertEquals(5000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void hugeValues_areCountedInTheLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1, histogram.getCount());
+        assertEquals(Long.MAX_VALUE, histogram.getMaxNanos());
+        assertTrue(histogram.getValueAtPercentile(50) > TimeUnit.HOURS.toNanos(1));
+    }
+
+    @Test
+    public void empty_reportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0, histogram.getMeanNanos());
+    }
+
+    @Test
+    public void drainTo_movesEveryCount() {
+        LatencyHistogram source = new LatencyHistogram();
+        LatencyHistogram target = new LatencyHistogram();
+        source.record(1000000);
+        source.record(2000000);
+        target.record(500000);
+        source.drainTo(target);
+        assertEquals(0, source.getCount());
+        assertEquals(0, source.getMaxNanos());
+        assertEquals(3, target.getCount());
+        assertEquals(2000000, target.getMaxNanos());
+        assertEquals(3500000 / 3, target.getMeanNanos());
+    }
+
+    @Test
+    public void concurrentRecording_losesNothing() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final LatencyHistogram drained = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 50000; i++) {
+                        histogram.record((i * 7919L + seed) % 1000000000L);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        // Drain while the writers run: every value lands in one histogram or the other
+        for (int i = 0; i < 100; i++) {
+            histogram.drainTo(drained);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        histogram.drainTo(drained);
+        assertEquals(200000, drained.getCount());
+    }
+}
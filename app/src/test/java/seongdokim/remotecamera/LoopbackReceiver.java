@@ -0,0 +1,410 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A receiver on the loopback interface for tests: it accepts one connection at a time, sends
+ * the welcome message, and records and acknowledges every frame it receives, speaking the
+ * lockstep or the pipelined protocol depending on what it advertises.
+ */
+class LoopbackReceiver implements Runnable {
+    /**
+     * A received frame.
+     */
+    static class Frame {
+        final int sequence;
+        final int width;
+        final int height;
+        final int flags;
+        final byte[] data;
+        /**
+         * The capture metadata sent in front of the image, or {@code null}
+         */
+        final CaptureMetadata metadata;
+
+        /**
+         * Record a frame, splitting the capture metadata off the payload if the flags say it
+         * leads it.
+         */
+        Frame(int sequence, int width, int height, int flags, byte[] payload) {
+            this.sequence = sequence;
+            this.width = width;
+            this.height = height;
+            this.flags = flags;
+            if ((flags & FrameHeader.FLAG_METADATA) != 0) {
+                metadata = new CaptureMetadata();
+                metadata.decode(ByteBuffer.wrap(payload));
+                data = Arrays.copyOfRange(payload, CaptureMetadata.LENGTH, payload.length);
+            } else {
+                metadata = null;
+                data = payload;
+            }
+        }
+    }
+
+    private final ServerSocket mServer;
+    private final int mWindow;
+    private final int mVersion;
+    private final Thread mThread;
+
+    private final List<Frame> mFrames = new ArrayList<>();
+    private final List<Integer> mRequests = new ArrayList<>();
+    private final List<JSONObject> mStats = new ArrayList<>();
+    private final List<JSONObject> mHandshakes = new ArrayList<>();
+    private volatile Socket mSocket;
+    private volatile OutputStream mOut;
+    private volatile boolean mBinary;
+    private volatile long mReadDelayMillis = 0;
+    private volatile boolean mClosed = false;
+    private int mConnections = 0;
+
+    /**
+     * Start a receiver.
+     *
+     * @param window  The window advertised in the welcome, 0 to advertise none
+     * @param version The header version advertised in the welcome, 0 to advertise none
+     */
+    LoopbackReceiver(int window, int version) throws IOException {
+        mServer = new ServerSocket(0);
+        mWindow = window;
+        mVersion = version;
+        mThread = new Thread(this, "LoopbackReceiver");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress("127.0.0.1", mServer.getLocalPort());
+    }
+
+    /**
+     * Sleep that long before each read, to let the send buffer of the sender fill up.
+     */
+    void setReadDelay(long millis) {
+        mReadDelayMillis = millis;
+    }
+
+    @Override
+    public void run() {
+        while (!mClosed) {
+            try {
+                Socket socket = mServer.accept();
+                mSocket = socket;
+                synchronized (this) {
+                    mConnections++;
+                    notifyAll();
+                }
+                serve(socket);
+            } catch (IOException e) {
+                // Closed by the test or by the sender
+            } finally {
+                if (mSocket != null) {
+                    try {
+                        mSocket.close();
+                    } catch (IOException e) {
+                        // Nothing to do
+                    }
+                }
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        final OutputStream out = socket.getOutputStream();
+        final InputStream in = socket.getInputStream();
+        mOut = out;
+        mBinary = false;
+
+        JSONObject welcome = new JSONObject();
+        try {
+            welcome.put(Constants.REQUEST_WELCOME_NAME, "loopback");
+            if (mWindow > 0) {
+                welcome.put(Constants.REQUEST_FIELD_WINDOW, mWindow);
+            }
+            if (mVersion > 0) {
+                welcome.put(Constants.REQUEST_FIELD_VERSION, mVersion);
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        out.write(welcome.toString().getBytes("UTF-8"));
+        out.flush();
+
+        final boolean[] binary = {false};
+        final boolean[] pipelined = {false};
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final int[] current = new int[4];
+        final boolean[] stats = {false};
+        final IOException[] failure = new IOException[1];
+        final ByteBuffer ack = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+        final FrameHeader ackHeader = new FrameHeader();
+
+        final FrameDecoder[] decoder = new FrameDecoder[1];
+        decoder[0] = new FrameDecoder(64 * 1024, new FrameDecoder.Listener() {
+            @Override
+            public void onJsonMessage(ByteBuffer message) {
+                try {
+                    onJson(new JSONObject(new String(message.array(),
+                            message.arrayOffset() + message.position(), message.remaining())));
+                } catch (JSONException e) {
+                    failure[0] = new IOException(e);
+                }
+            }
+
+            private void onJson(JSONObject json) throws JSONException {
+                int request = json.getInt(Constants.REQUEST_FIELD);
+                record(request);
+                if (request == Constants.REQUEST_HANDSHAKE) {
+                    synchronized (LoopbackReceiver.this) {
+                        mHandshakes.add(json);
+                    }
+                    pipelined[0] = true;
+                    binary[0] = json.optInt(Constants.REQUEST_FIELD_VERSION, 0) >= 1;
+                    mBinary = binary[0];
+                } else if (request == Constants.REQUEST_STREAMING) {
+                    int length = json.getInt(Constants.REQUEST_FIELD_BYTE);
+                    current[0] = -1;
+                    current[1] = json.getInt(Constants.REQUEST_FIELD_WIDTH);
+                    current[2] = json.getInt(Constants.REQUEST_FIELD_HEIGHT);
+                    current[3] = 0;
+                    if (!pipelined[0]) {
+                        acknowledge();
+                    }
+                    if (length == 0) {
+                        frameDone();
+                    } else {
+                        decoder[0].expectPayload(length);
+                    }
+                }
+            }
+
+            @Override
+            public void onHeader(FrameHeader header) {
+                if (header.getType() == Constants.REQUEST_STATS) {
+                    // Recorded once its payload is in
+                    stats[0] = true;
+                    return;
+                }
+                record(header.getType());
+                if (header.getType() == Constants.REQUEST_STREAMING) {
+                    current[0] = header.getSequence();
+                    current[1] = header.getWidth();
+                    current[2] = header.getHeight();
+                    current[3] = header.getFlags();
+                    if (header.getPayloadLength() == 0) {
+                        frameDone();
+                    }
+                }
+            }
+
+            @Override
+            public void onPayload(ByteBuffer chunk, int remaining) {
+                payload.write(chunk.array(), chunk.arrayOffset() + chunk.position(),
+                        chunk.remaining());
+                if (remaining == 0 && stats[0]) {
+                    statsDone();
+                } else if (remaining == 0) {
+                    frameDone();
+                }
+            }
+
+            private void statsDone() {
+                try {
+                    JSONObject json = new JSONObject(payload.toString("UTF-8"));
+                    synchronized (LoopbackReceiver.this) {
+                        mStats.add(json);
+                    }
+                    record(Constants.REQUEST_STATS);
+                } catch (IOException e) {
+                    failure[0] = e;
+                } catch (JSONException e) {
+                    failure[0] = new IOException(e);
+                }
+                payload.reset();
+                stats[0] = false;
+            }
+
+            private void frameDone() {
+                synchronized (LoopbackReceiver.this) {
+                    mFrames.add(new Frame(current[0], current[1], current[2], current[3],
+                            payload.toByteArray()));
+                    LoopbackReceiver.this.notifyAll();
+                }
+                payload.reset();
+                acknowledge();
+            }
+
+            private void acknowledge() {
+                try {
+                    synchronized (out) {
+                        if (binary[0]) {
+                            ack.clear();
+                            ackHeader.set(Constants.REQUEST_OK, current[0], 0, 0, 0, 0)
+                                    .encode(ack);
+                            out.write(ack.array(), 0, FrameHeader.HEADER_LENGTH);
+                        } else {
+                            JSONObject json = new JSONObject();
+                            json.put(Constants.REQUEST_FIELD, Constants.REQUEST_OK);
+                            out.write(json.toString().getBytes("UTF-8"));
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                } catch (JSONException e) {
+                    failure[0] = new IOException(e);
+                }
+            }
+        });
+
+        while (!mClosed) {
+            if (mReadDelayMillis > 0) {
+                try {
+                    Thread.sleep(mReadDelayMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (decoder[0].read(in) < 0) {
+                return;
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
+    private synchronized void record(int request) {
+        mRequests.add(request);
+        notifyAll();
+    }
+
+    /**
+     * Ask the sender for another format, with a header or a JSON message depending on what was
+     * negotiated.
+     */
+    void requestFormat(StreamFormat format) throws IOException {
+        if (mBinary) {
+            ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+            format.toHeader(new FrameHeader(), 0).encode(buffer);
+            send(buffer.array());
+        } else {
+            send(format.toJson().toString().getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Ask the sender for a region of the field of view, the same way.
+     */
+    void requestRegion(StreamRegion region) throws IOException {
+        if (mBinary) {
+            ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+            region.toHeader(new FrameHeader(), 0).encode(buffer);
+            send(buffer.array());
+        } else {
+            send(region.toJson().toString().getBytes("UTF-8"));
+        }
+    }
+
+    private void send(byte[] message) throws IOException {
+        OutputStream out = mOut;
+        synchronized (out) {
+            out.write(message);
+            out.flush();
+        }
+    }
+
+    synchronized List<Frame> getFrames() {
+        return new ArrayList<>(mFrames);
+    }
+
+    /**
+     * Get the stats messages received, which are not acknowledged.
+     */
+    synchronized List<JSONObject> getStats() {
+        return new ArrayList<>(mStats);
+    }
+
+    /**
+     * Get the handshakes received, one per connection of the pipelined protocol.
+     */
+    synchronized List<JSONObject> getHandshakes() {
+        return new ArrayList<>(mHandshakes);
+    }
+
+    synchronized List<Integer> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    synchronized int getConnectionCount() {
+        return mConnections;
+    }
+
+    /**
+     * Wait until {@code count} frames were received.
+     *
+     * @return True if they were received in time
+     */
+    synchronized boolean awaitFrames(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (mFrames.size() < count) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Wait until a message of type {@code request} was received.
+     *
+     * @return True if it was received in time
+     */
+    synchronized boolean awaitRequest(int request, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!mRequests.contains(request)) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Drop the current connection, keeping the receiver listening.
+     */
+    void dropConnection() throws IOException {
+        Socket socket = mSocket;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    void close() throws IOException {
+        mClosed = true;
+        mServer.close();
+        dropConnection();
+    }
+}
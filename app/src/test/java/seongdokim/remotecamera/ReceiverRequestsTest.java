@@ -0,0 +1,90 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link ReceiverRequests}.
+ */
+public class ReceiverRequestsTest {
+    /**
+     * Records the requests dispatched to it.
+     */
+    private static class RecordingHandler implements ReceiverRequests.Handler {
+        int acknowledged = 0;
+        final List<StreamFormat> formats = new ArrayList<>();
+        final List<StreamRegion> regions = new ArrayList<>();
+
+        @Override
+        public void onAcknowledged() {
+            acknowledged++;
+        }
+
+        @Override
+        public void onFormatRequested(StreamFormat format) {
+            formats.add(format);
+        }
+
+        @Override
+        public void onRegionRequested(StreamRegion region) {
+            regions.add(region);
+        }
+    }
+
+    private static ByteBuffer json(String text) {
+        return ByteBuffer.wrap(text.getBytes());
+    }
+
+    @Test
+    public void dispatchJson_tellsRequestsFromAcknowledgements() {
+        RecordingHandler handler = new RecordingHandler();
+        StreamFormat format = new StreamFormat(640, 480, 15);
+        StreamRegion region = new StreamRegion(16384, 16384, 32768, 32768);
+
+        ReceiverRequests.dispatch(json(format.toJson().toString()), handler);
+        ReceiverRequests.dispatch(json(region.toJson().toString()), handler);
+        ReceiverRequests.dispatch(json("{\"request\":" + Constants.REQUEST_OK + "}"), handler);
+
+        assertEquals(1, handler.acknowledged);
+        assertEquals(1, handler.formats.size());
+        assertEquals(640, handler.formats.get(0).getWidth());
+        assertEquals(1, handler.regions.size());
+        assertEquals(region, handler.regions.get(0));
+    }
+
+    @Test
+    public void dispatchHeader_tellsRequestsFromAcknowledgements() {
+        RecordingHandler handler = new RecordingHandler();
+        FrameHeader header = new FrameHeader();
+
+        assertTrue(ReceiverRequests.dispatch(
+                header.set(Constants.REQUEST_OK, 0, 0, 0, 0, 0), handler));
+        assertTrue(ReceiverRequests.dispatch(
+                new StreamFormat(1280, 720, 0).toHeader(header, 1), handler));
+        assertTrue(ReceiverRequests.dispatch(StreamRegion.FULL.toHeader(header, 2), handler));
+        assertTrue(ReceiverRequests.dispatch(
+                header.set(Constants.REQUEST_STREAMING, 3, 0, 0, 0, 0), handler));
+
+        assertEquals(1, handler.acknowledged);
+        assertEquals(1, handler.formats.size());
+        assertEquals(720, handler.formats.get(0).getHeight());
+        assertEquals(1, handler.regions.size());
+        assertTrue(handler.regions.get(0).isFull());
+    }
+
+    @Test
+    public void dispatchHeader_rejectsInvalidRequests() {
+        RecordingHandler handler = new RecordingHandler();
+        // A width without a height is no format
+        FrameHeader header = new FrameHeader().set(Constants.REQUEST_FORMAT, 0, 0, 640, 0, 0);
+
+        assertFalse(ReceiverRequests.dispatch(header, handler));
+        assertTrue(handler.formats.isEmpty());
+        assertEquals(0, handler.acknowledged);
+    }
+}
@@ -0,0 +1,50 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectBackoffTest {
+    @Test
+    public void delays_doubleWithinJitterUpToTheCap() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 1000, new Random(42));
+        long ceiling = 100;
+        for (int i = 0; i < 100; i++) {
+            long delay = backoff.nextDelay();
+            assertTrue("Delay " + i + ": " + delay, delay >= ceiling / 2 && delay <= ceiling);
+            ceiling = Math.min(1000, ceiling * 2);
+        }
+        assertEquals(100, backoff.getAttempts());
+    }
+
+    @Test
+    public void reset_startsOverFromTheFirstDelay() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 1000, new Random(42));
+        for (int i = 0; i < 5; i++) {
+            backoff.nextDelay();
+        }
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.nextDelay() <= 100);
+    }
+
+    @Test
+    public void jitter_spreadsSendersLosingTheSameReceiver() {
+        ReconnectBackoff first = new ReconnectBackoff(1000, 1000, new Random(1));
+        ReconnectBackoff second = new ReconnectBackoff(1000, 1000, new Random(2));
+        int same = 0;
+        for (int i = 0; i < 20; i++) {
+            if (first.nextDelay() == second.nextDelay()) {
+                same++;
+            }
+        }
+        assertTrue(same < 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxDelayBelowInitial_isRejected() {
+        new ReconnectBackoff(1000, 100, new Random());
+    }
+}
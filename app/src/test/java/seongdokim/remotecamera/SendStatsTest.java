@@ -0,0 +1,98 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link SendStats}.
+ */
+public class SendStatsTest {
+    private static FrameBuffer frame(long acquireTime) {
+        FrameBuffer frame = FrameBuffer.wrap(new byte[100]);
+        frame.mAcquireTime = acquireTime;
+        return frame;
+    }
+
+    @Test
+    public void acknowledgements_matchFramesInOrder() {
+        SendStats stats = new SendStats();
+        stats.onSent(frame(100), 128);
+        stats.onSent(frame(200), 128);
+        stats.onSent(frame(300), 128);
+        stats.onAcknowledged(2, 1000);
+        assertEquals(3, stats.getFramesSent());
+        assertEquals(384, stats.getBytesSent());
+        assertEquals(2, stats.getFramesAcknowledged());
+        assertEquals(900 + 800, stats.getLatencyNanos());
+
+        stats.onAcknowledged(1, 2000);
+        assertEquals(900 + 800 + 1700, stats.getLatencyNanos());
+    }
+
+    @Test
+    public void inFlight_growsPastItsInitialCapacity() {
+        SendStats stats = new SendStats();
+        for (int i = 0; i < 5; i++) {
+            stats.onSent(frame(0), 1);
+        }
+        stats.onAcknowledged(3, 10);
+        for (int i = 0; i < 20; i++) {
+            stats.onSent(frame(i + 1), 1);
+        }
+        stats.onAcknowledged(2, 10);
+        assertEquals(50, stats.getLatencyNanos());
+        stats.onAcknowledged(2, 10);
+        assertEquals(50 + 9 + 8, stats.getLatencyNanos());
+    }
+
+    @Test
+    public void acknowledgements_beyondTheFramesInFlightAreIgnored() {
+        SendStats stats = new SendStats();
+        stats.onAcknowledged(1, 1000);
+        stats.onSent(frame(100), 10);
+        stats.clearInFlight();
+        stats.onAcknowledged(1, 1000);
+        assertEquals(0, stats.getFramesAcknowledged());
+        assertEquals(0, stats.getLatencyNanos());
+    }
+
+    @Test
+    public void accumulate_sumsTheTotals() {
+        SendStats a = new SendStats();
+        a.onSent(frame(0), 10);
+        a.onAcknowledged(1, 5);
+        SendStats b = new SendStats();
+        b.onSent(frame(0), 20);
+        b.onAcknowledged(1, 7);
+
+        SendStats total = new SendStats();
+        total.accumulate(a);
+        total.accumulate(b);
+        assertEquals(2, total.getFramesSent());
+        assertEquals(30, total.getBytesSent());
+        assertEquals(12, total.getLatencyNanos());
+        total.reset();
+        assertEquals(0, total.getFramesSent());
+    }
+
+    @Test
+    public void acknowledgements_recordTheTimeSinceSent() {
+        StreamMetrics metrics = new StreamMetrics();
+        SendStats stats = new SendStats();
+        stats.setMetrics(metrics);
+        long before = System.nanoTime();
+        stats.onSent(frame(0), 100);
+        stats.onSent(frame(0), 200);
+        stats.onAcknowledged(2, before + 5000000);
+
+        StreamMetrics.Snapshot snapshot = metrics.snapshot(new StreamMetrics.Snapshot(),
+                System.nanoTime());
+        assertEquals(2, snapshot.getCounter(StreamMetrics.COUNTER_FRAMES_SENT));
+        assertEquals(300, snapshot.getCounter(StreamMetrics.COUNTER_BYTES_SENT));
+        LatencyHistogram ack = snapshot.getLatency(StreamMetrics.LATENCY_ACK);
+        assertEquals(2, ack.getCount());
+        assertTrue(ack.getMaxNanos() <= 5000000);
+        assertTrue(ack.getMaxNanos() > 0);
+    }
+}
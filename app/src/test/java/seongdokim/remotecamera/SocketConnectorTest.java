@@ -0,0 +1,247 @@
+package seongdokim.remotecamera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Loopback tests of {@link SocketConnector}.
+ */
+public class SocketConnectorTest {
+    private static final SocketConnector.SocketFactory PLAIN = new SocketConnector.SocketFactory() {
+        @Override
+        public Socket createSocket() {
+            return new Socket();
+        }
+    };
+
+    private ServerSocket mServer;
+    private Socket mSocket;
+
+    /**
+     * A server taking no connection, and the connections filling its backlog
+     */
+    private ServerSocket mSilentServer;
+    private final List<Socket> mBacklog = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mSocket != null) {
+            mSocket.close();
+        }
+        for (Socket socket : mBacklog) {
+            socket.close();
+        }
+        if (mSilentServer != null) {
+            mSilentServer.close();
+        }
+        mServer.close();
+    }
+
+    private InetSocketAddress serverAddress() {
+        return new InetSocketAddress("127.0.0.1", mServer.getLocalPort());
+    }
+
+    /**
+     * An address nothing listens on: the port of a server socket since closed.
+     */
+    private static InetSocketAddress closedAddress() throws IOException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int port = server.getLocalPort();
+        server.close();
+        return new InetSocketAddress("127.0.0.1", port);
+    }
+
+    /**
+     * An address that does not answer: a server that never accepts, its backlog filled until
+     * connecting to it hangs, as it does on Linux.
+     */
+    private InetSocketAddress silentAddress() throws IOException {
+        mSilentServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1",
+                mSilentServer.getLocalPort());
+        for (int i = 0; i < 16; i++) {
+            Socket socket = new Socket();
+            mBacklog.add(socket);
+            try {
+                socket.connect(address, 200);
+            } catch (SocketTimeoutException e) {
+                return address;
+            }
+        }
+        assumeTrue("The backlog of a server never fills on this system", false);
+        return null;
+    }
+
+    @Test
+    public void connect_setsTheSocketOptions() throws Exception {
+        SocketConnector connector = new SocketConnector(PLAIN);
+        connector.setProfile(TransportProfile.lowLatency(64 * 1024));
+        mSocket = connector.connect(Arrays.asList(serverAddress()), 3000);
+
+        assertTrue(mSocket.isConnected());
+        assertTrue(mSocket.getTcpNoDelay());
+        assertTrue(mSocket.getKeepAlive());
+        assertEquals(0, connector.getConnectedIndex());
+        assertEquals(1, connector.getAttemptCount());
+    }
+
+    @Test
+    public void refusedAddress_fallsBackAtOnceToTheNext() throws Exception {
+        SocketConnector connector = new SocketConnector(PLAIN);
+        connector.setAttemptDelay(10000);
+        long start = System.nanoTime();
+        mSocket = connector.connect(Arrays.asList(closedAddress(), serverAddress()), 30000);
+
+        // No waiting for the attempt delay once the first attempt failed
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, connector.getConnectedIndex());
+        assertEquals(2, connector.getAttemptCount());
+    }
+
+    @Test
+    public void silentAddress_isRacedAfterTheAttemptDelay() throws Exception {
+        InetSocketAddress silent = silentAddress();
+        SocketConnector connector = new SocketConnector(PLAIN);
+        connector.setAttemptDelay(100);
+        long start = System.nanoTime();
+        mSocket = connector.connect(Arrays.asList(silent, serverAddress()), 30000);
+
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(elapsed < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, connector.getConnectedIndex());
+    }
+
+    @Test
+    public void everyAddressRefused_failsWithTheLastFailure() throws Exception {
+        SocketConnector connector = new SocketConnector(PLAIN);
+        try {
+            connector.connect(Arrays.asList(closedAddress(), closedAddress()), 30000);
+            fail("Connected to closed ports");
+        } catch (IOException e) {
+            assertEquals(2, connector.getAttemptCount());
+            assertEquals(-1, connector.getConnectedIndex());
+        }
+    }
+
+    @Test
+    public void failingFactory_countsAsAFailedAttempt() throws Exception {
+        final List<Socket> created = new ArrayList<>();
+        SocketConnector connector = new SocketConnector(new SocketConnector.SocketFactory() {
+            @Override
+            public Socket createSocket() {
+                synchronized (created) {
+                    if (created.isEmpty()) {
+                        created.add(null);
+                        throw new IllegalStateException("No socket");
+                    }
+                    Socket socket = new Socket();
+                    created.add(socket);
+                    return socket;
+                }
+            }
+        });
+        connector.setAttemptDelay(10000);
+        long start = System.nanoTime();
+        mSocket = connector.connect(Arrays.asList(serverAddress(), serverAddress()), 30000);
+
+        // The failure ends the first attempt instead of leaving it waited for
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, connector.getConnectedIndex());
+    }
+
+    @Test
+    public void failingFactory_failsWithAnIOException() throws Exception {
+        SocketConnector connector = new SocketConnector(new SocketConnector.SocketFactory() {
+            @Override
+            public Socket createSocket() {
+                throw new IllegalStateException("No socket");
+            }
+        });
+        try {
+            connector.connect(Arrays.asList(serverAddress()), 30000);
+            fail("Connected without a socket");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void timeout_closesTheSocketOfALateAttempt() throws Exception {
+        final CountDownLatch created = new CountDownLatch(1);
+        final AtomicReference<Socket> late = new AtomicReference<>();
+        SocketConnector connector = new SocketConnector(new SocketConnector.SocketFactory() {
+            @Override
+            public Socket createSocket() {
+                try {
+                    created.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                Socket socket = new Socket();
+                late.set(socket);
+                return socket;
+            }
+        });
+        try {
+            connector.connect(Arrays.asList(serverAddress()), 100);
+            fail("Connected while the socket was being created");
+        } catch (SocketTimeoutException e) {
+            // Expected
+        }
+
+        // The attempt goes on once connect() gave up, and must not leave its socket open
+        created.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((late.get() == null || !late.get().isClosed()) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(late.get().isClosed());
+    }
+
+    @Test
+    public void cancel_abandonsTheAttempts() throws Exception {
+        final InetSocketAddress silent = silentAddress();
+        final SocketConnector connector = new SocketConnector(PLAIN);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    connector.connect(Arrays.asList(silent), 30000);
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+        connector.cancel();
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertTrue(failure.get() instanceof IOException);
+    }
+}
@@ -0,0 +1,66 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link StreamFormat}.
+ */
+public class StreamFormatTest {
+    @Test
+    public void header_roundTrip() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+        new StreamFormat(640, 480, 15).toHeader(new FrameHeader(), 7).encode(buffer);
+        buffer.flip();
+
+        FrameHeader header = new FrameHeader();
+        assertTrue(header.decode(buffer));
+        assertEquals(Constants.REQUEST_FORMAT, header.getType());
+        assertEquals(0, header.getPayloadLength());
+        StreamFormat format = StreamFormat.fromHeader(header);
+        assertEquals(640, format.getWidth());
+        assertEquals(480, format.getHeight());
+        assertEquals(15, format.getFrameRate());
+    }
+
+    @Test
+    public void parseRequest_readsJsonRequests() {
+        String json = new StreamFormat(1280, 720, 0).toJson().toString();
+        StreamFormat format = StreamFormat.parseRequest(ByteBuffer.wrap(json.getBytes()));
+        assertNotNull(format);
+        assertEquals(1280, format.getWidth());
+        assertEquals(720, format.getHeight());
+        assertEquals(0, format.getFrameRate());
+        assertTrue(format.hasSize());
+    }
+
+    @Test
+    public void parseRequest_ignoresAcknowledgements() throws Exception {
+        JSONObject ack = new JSONObject().put(Constants.REQUEST_FIELD, Constants.REQUEST_OK);
+        assertNull(StreamFormat.parseRequest(ByteBuffer.wrap(ack.toString().getBytes())));
+
+        // A frame header of an older peer has a width but is no request
+        JSONObject header = new JSONObject().put(Constants.REQUEST_FIELD,
+                Constants.REQUEST_STREAMING).put(Constants.REQUEST_FIELD_WIDTH, 640);
+        assertNull(StreamFormat.parseRequest(ByteBuffer.wrap(header.toString().getBytes())));
+    }
+
+    @Test
+    public void parseRequest_readsWithinPositionAndLimit() {
+        byte[] json = ("xx{\"request\":3,\"width\":320,\"height\":240,\"fps\":30}yy").getBytes();
+        ByteBuffer message = ByteBuffer.wrap(json, 2, json.length - 4).slice();
+        StreamFormat format = StreamFormat.parseRequest(message);
+        assertNotNull(format);
+        assertEquals(320, format.getWidth());
+        assertEquals(30, format.getFrameRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsHalfASize() {
+        new StreamFormat(640, 0, 30);
+    }
+}
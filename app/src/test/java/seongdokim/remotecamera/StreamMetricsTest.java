@@ -0,0 +1,81 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link StreamMetrics}.
+ */
+public class StreamMetricsTest {
+    @Test
+    public void snapshot_takesWhatWasRecordedSinceThePreviousOne() {
+        StreamMetrics metrics = new StreamMetrics();
+        StreamMetrics.Snapshot snapshot = new StreamMetrics.Snapshot();
+        long start = System.nanoTime();
+        metrics.snapshot(snapshot, start);
+
+        for (int i = 0; i < 30; i++) {
+            metrics.recordLatency(StreamMetrics.LATENCY_ENCODE, TimeUnit.MILLISECONDS.toNanos(8));
+            metrics.increment(StreamMetrics.COUNTER_FRAMES_SENT);
+            metrics.add(StreamMetrics.COUNTER_BYTES_SENT, 50000);
+        }
+        metrics.increment(StreamMetrics.COUNTER_FRAMES_DROPPED);
+        metrics.snapshot(snapshot, start + TimeUnit.SECONDS.toNanos(2));
+        assertEquals(15f, snapshot.getFrameRate(), 0.001f);
+        assertEquals(750000, snapshot.getByteRate());
+        assertEquals(1, snapshot.getCounter(StreamMetrics.COUNTER_FRAMES_DROPPED));
+        assertEquals(30, snapshot.getLatency(StreamMetrics.LATENCY_ENCODE).getCount());
+        assertEquals(0, snapshot.getLatency(StreamMetrics.LATENCY_ACK).getCount());
+
+        metrics.snapshot(snapshot, start + TimeUnit.SECONDS.toNanos(3));
+        assertEquals(0, snapshot.getCounter(StreamMetrics.COUNTER_FRAMES_SENT));
+        assertEquals(0, snapshot.getLatency(StreamMetrics.LATENCY_ENCODE).getCount());
+        assertEquals(TimeUnit.SECONDS.toNanos(1), snapshot.getIntervalNanos());
+    }
+
+    @Test
+    public void toJson_reportsPercentilesInMicroseconds() throws Exception {
+        StreamMetrics metrics = new StreamMetrics();
+        StreamMetrics.Snapshot snapshot = new StreamMetrics.Snapshot();
+        long start = System.nanoTime();
+        metrics.snapshot(snapshot, start);
+        metrics.recordLatency(StreamMetrics.LATENCY_ACK, 12000000);
+        metrics.add(StreamMetrics.COUNTER_BYTES_SENT, 1234);
+        metrics.snapshot(snapshot, start + TimeUnit.MILLISECONDS.toNanos(500));
+
+        JSONObject json = new JSONObject(snapshot.toJson().toString());
+        assertEquals(Constants.REQUEST_STATS, json.getInt(Constants.REQUEST_FIELD));
+        assertEquals(500, json.getLong("interval"));
+        assertEquals(1234, json.getLong("bytes"));
+        JSONObject latency = json.getJSONObject("latency");
+        assertFalse(latency.has("encode"));
+        JSONObject ack = latency.getJSONObject("ack");
+        assertEquals(1, ack.getLong("count"));
+        assertEquals(12000, ack.getLong("p50"));
+        assertEquals(12000, ack.getLong("max"));
+        assertTrue(snapshot.format().contains("ack"));
+    }
+
+    @Test
+    public void metadataMisses_areReported() throws Exception {
+        StreamMetrics metrics = new StreamMetrics();
+        StreamMetrics.Snapshot snapshot = new StreamMetrics.Snapshot();
+        long start = System.nanoTime();
+        metrics.snapshot(snapshot, start);
+        metrics.increment(StreamMetrics.COUNTER_METADATA_MISSES);
+        metrics.increment(StreamMetrics.COUNTER_METADATA_MISSES);
+        metrics.snapshot(snapshot, start + TimeUnit.SECONDS.toNanos(1));
+
+        assertEquals(2, snapshot.getCounter(StreamMetrics.COUNTER_METADATA_MISSES));
+        JSONObject json = new JSONObject(snapshot.toJson().toString());
+        assertEquals(2, json.getLong("metadataMisses"));
+        assertTrue(snapshot.format().contains("2 without metadata"));
+
+        metrics.snapshot(snapshot, start + TimeUnit.SECONDS.toNanos(2));
+        assertFalse(snapshot.format().contains("without metadata"));
+    }
+}
@@ -0,0 +1,94 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link StreamRegion}, and of the crop of {@link YuvPlanes} it relies on.
+ */
+public class StreamRegionTest {
+    private static final StreamRegion CENTRE = new StreamRegion(16384, 16384, 32768, 32768);
+
+    @Test
+    public void header_roundTrip() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+        new StreamRegion(100, StreamRegion.SCALE - 200, 300, 200)
+                .toHeader(new FrameHeader(), 3).encode(buffer);
+        buffer.flip();
+
+        FrameHeader header = new FrameHeader();
+        assertTrue(header.decode(buffer));
+        assertEquals(Constants.REQUEST_REGION, header.getType());
+        assertEquals(0, header.getPayloadLength());
+        StreamRegion region = StreamRegion.fromHeader(header);
+        assertEquals(100, region.getLeft());
+        assertEquals(StreamRegion.SCALE - 200, region.getTop());
+        assertEquals(300, region.getWidth());
+        assertEquals(200, region.getHeight());
+    }
+
+    @Test
+    public void parseRequest_readsJsonRequests() {
+        String json = CENTRE.toJson().toString();
+        assertEquals(CENTRE, StreamRegion.parseRequest(ByteBuffer.wrap(json.getBytes())));
+        json = StreamRegion.FULL.toJson().toString();
+        assertTrue(StreamRegion.parseRequest(ByteBuffer.wrap(json.getBytes())).isFull());
+    }
+
+    @Test
+    public void parseRequest_ignoresOtherMessages() {
+        String format = new StreamFormat(640, 480, 15).toJson().toString();
+        assertNull(StreamRegion.parseRequest(ByteBuffer.wrap(format.getBytes())));
+        // And the other way round
+        String region = CENTRE.toJson().toString();
+        assertNull(StreamFormat.parseRequest(ByteBuffer.wrap(region.getBytes())));
+        assertNull(StreamRegion.parseRequest(ByteBuffer.wrap("{\"request\":98}".getBytes())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsRegionOutsideTheField() {
+        new StreamRegion(StreamRegion.SCALE / 2, 0, StreamRegion.SCALE / 2 + 2, 100);
+    }
+
+    @Test
+    public void getBounds_coversTheRegionOnEvenPixels() {
+        assertArrayEquals(new int[]{0, 0, 640, 480}, StreamRegion.FULL.getBounds(640, 480));
+        assertArrayEquals(new int[]{160, 120, 480, 360}, CENTRE.getBounds(640, 480));
+
+        // 9.8,21.9 to 58.7,73.1 in pixels
+        int[] bounds = new StreamRegion(1000, 3000, 5000, 7000).getBounds(641, 479);
+        assertArrayEquals(new int[]{10, 22, 60, 74}, bounds);
+
+        // A tiny region still holds a chroma sample
+        bounds = new StreamRegion(StreamRegion.SCALE - 1, 0, 1, 1).getBounds(64, 48);
+        assertArrayEquals(new int[]{62, 0, 64, 2}, bounds);
+    }
+
+    @Test
+    public void crop_viewsTheRegionWithoutCopying() {
+        YuvPlanes image = JpegEncoderTest.synthetic(64, 48, 2).set(64, 48, 42);
+        YuvPlanes crop = CENTRE.crop(image);
+        assertEquals(32, crop.getWidth());
+        assertEquals(24, crop.getHeight());
+        assertEquals(42, crop.getTimestamp());
+        assertEquals(image.getYRowStride(), crop.getYRowStride());
+        assertEquals(image.getY().get(12 * image.getYRowStride() + 16), crop.getY().get(0));
+        int chroma = 6 * image.getUvRowStride() + 8 * image.getUvPixelStride();
+        assertEquals(image.getU().get(chroma), crop.getU().get(0));
+        assertEquals(image.getV().get(chroma), crop.getV().get(0));
+        assertSame(image, StreamRegion.FULL.crop(image));
+    }
+
+    @Test
+    public void crop_encodesAtTheSizeOfTheRegion() throws Exception {
+        YuvPlanes image = JpegEncoderTest.synthetic(320, 240, 2);
+        BufferedImage decoded = JpegEncoderTest.decode(
+                new JpegEncoder(90).encode(new StreamRegion(0, 32768, 16384, 32767).crop(image)));
+        assertEquals(80, decoded.getWidth());
+        assertEquals(120, decoded.getHeight());
+    }
+}
@@ -0,0 +1,94 @@
+package seongdokim.remotecamera;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link StripedJpegEncoder}, decoding its output with {@code ImageIO}.
+ */
+public class StripedJpegEncoderTest {
+    private StripedJpegEncoder mEncoder;
+
+    @After
+    public void tearDown() {
+        if (mEncoder != null) {
+            mEncoder.shutdown();
+        }
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int row = 0; row < expected.getHeight(); row++) {
+            for (int column = 0; column < expected.getWidth(); column++) {
+                assertEquals("Pixel " + column + "," + row,
+                        expected.getRGB(column, row), actual.getRGB(column, row));
+            }
+        }
+    }
+
+    @Test
+    public void encode_stripesDecodeLikeOneImage() throws IOException {
+        mEncoder = new StripedJpegEncoder(90, 4);
+        YuvPlanes source = JpegEncoderTest.synthetic(320, 240, 2);
+        BufferedImage striped = JpegEncoderTest.decode(mEncoder.encode(source));
+        JpegEncoderTest.assertClose(source, striped, 2);
+        // The restart markers only reset the predictions: the coefficients are the same
+        assertSamePixels(JpegEncoderTest.decode(new JpegEncoder(90).encode(source)), striped);
+    }
+
+    @Test
+    public void encode_moreStripesThanRows() throws IOException {
+        mEncoder = new StripedJpegEncoder(90, 8);
+        YuvPlanes source = JpegEncoderTest.synthetic(37, 23, 1);
+        JpegEncoderTest.assertClose(source, JpegEncoderTest.decode(mEncoder.encode(source)), 2);
+    }
+
+    @Test
+    public void encode_reusesTheHelpersAcrossSizes() throws IOException {
+        mEncoder = new StripedJpegEncoder(85, 3);
+        YuvPlanes large = JpegEncoderTest.synthetic(640, 480, 1);
+        YuvPlanes small = JpegEncoderTest.synthetic(50, 30, 1);
+        for (int i = 0; i < 3; i++) {
+            JpegEncoderTest.assertClose(large, JpegEncoderTest.decode(mEncoder.encode(large)), 3);
+            JpegEncoderTest.assertClose(small, JpegEncoderTest.decode(mEncoder.encode(small)), 3);
+        }
+    }
+
+    @Test
+    public void encode_writesOneRestartMarkerPerRow() {
+        mEncoder = new StripedJpegEncoder(90, 2);
+        // 6 MCU rows, so RST0 to RST4 between them
+        ByteBuffer jpeg = mEncoder.encode(JpegEncoderTest.synthetic(64, 96, 1));
+        int markers = 0;
+        for (int i = jpeg.position(); i < jpeg.limit() - 1; i++) {
+            if (jpeg.get(i) == (byte) 0xff && (jpeg.get(i + 1) & 0xf8) == 0xd0) {
+                assertEquals(0xd0 + markers, jpeg.get(i + 1) & 0xff);
+                markers++;
+            }
+        }
+        assertEquals(5, markers);
+    }
+
+    @Test
+    public void setQuality_appliesToEveryStripe() throws IOException {
+        mEncoder = new StripedJpegEncoder(95, 4);
+        YuvPlanes source = JpegEncoderTest.synthetic(320, 240, 1);
+        mEncoder.setQuality(20);
+        BufferedImage striped = JpegEncoderTest.decode(mEncoder.encode(source));
+        assertSamePixels(JpegEncoderTest.decode(new JpegEncoder(20).encode(source)), striped);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void encode_failsAfterShutdown() {
+        mEncoder = new StripedJpegEncoder(90, 2);
+        mEncoder.shutdown();
+        mEncoder.encode(JpegEncoderTest.synthetic(16, 16, 1));
+    }
+}
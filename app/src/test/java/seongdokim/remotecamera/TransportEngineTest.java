@@ -0,0 +1,493 @@
+package seongdokim.remotecamera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loopback tests of {@link TransportEngine} and of {@link StreamSession} running on it.
+ */
+public class TransportEngineTest {
+    private static final long TIMEOUT = 10000;
+
+    private TransportEngine mEngine;
+
+    @Before
+    public void setUp() throws IOException {
+        mEngine = new TransportEngine(20);
+        mEngine.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mEngine.shutdown();
+        mEngine.join(TIMEOUT);
+    }
+
+    /**
+     * Records the events of a connection for the test thread.
+     */
+    private static class RecordingHandler implements TransportEngine.Handler {
+        final BlockingQueue<String> events = new ArrayBlockingQueue<>(1000);
+        volatile IOException cause;
+        volatile int writable;
+
+        @Override
+        public void onConnected(TransportEngine.Connection connection) {
+            events.add("connected");
+        }
+
+        @Override
+        public void onWritable(TransportEngine.Connection connection) {
+            writable++;
+        }
+
+        @Override
+        public void onClosed(TransportEngine.Connection connection, IOException cause) {
+            this.cause = cause;
+            events.add("closed");
+        }
+
+        @Override
+        public void onJsonMessage(ByteBuffer message) {
+            events.add(new String(message.array(), message.arrayOffset() + message.position(),
+                    message.remaining()));
+        }
+
+        @Override
+        public void onHeader(FrameHeader header) {
+            events.add("header " + header.getType());
+        }
+
+        @Override
+        public void onPayload(ByteBuffer chunk, int remaining) {
+        }
+
+        String next() throws InterruptedException {
+            return events.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void runOnEngine(final Runnable task) throws InterruptedException {
+        final ArrayBlockingQueue<Boolean> done = new ArrayBlockingQueue<>(1);
+        mEngine.execute(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                done.add(true);
+            }
+        });
+        assertNotNull(done.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static FrameBuffer frame(byte[] data, boolean direct) {
+        FrameBufferPool pool = new FrameBufferPool(1, false, direct);
+        FrameBuffer frame = pool.acquire(data.length);
+        frame.getBuffer().put(data).flip();
+        return frame.setImageInfo(640, 480, 1);
+    }
+
+    @Test
+    public void connect_reportsConnectedThenClosedLocally() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        RecordingHandler handler = new RecordingHandler();
+        TransportEngine.Connection connection = mEngine.connect(
+                new InetSocketAddress("127.0.0.1", server.getLocalPort()), TIMEOUT, handler);
+        // Loopback connections may complete before connect() returns
+        assertTrue(connection.getState() != Constants.STATE_NONE);
+
+        Socket peer = server.accept();
+        assertEquals("connected", handler.next());
+        assertEquals(Constants.STATE_CONNECTED, connection.getState());
+
+        connection.close();
+        assertEquals("closed", handler.next());
+        assertNull(handler.cause);
+        assertEquals(Constants.STATE_NONE, connection.getState());
+        assertEquals(-1, peer.getInputStream().read());
+        peer.close();
+        server.close();
+    }
+
+    @Test
+    public void connect_refusedReportsFailure() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        int port = server.getLocalPort();
+        server.close();
+
+        RecordingHandler handler = new RecordingHandler();
+        TransportEngine.Connection connection = mEngine.connect(
+                new InetSocketAddress("127.0.0.1", port), TIMEOUT, handler);
+        assertEquals("closed", handler.next());
+        assertNotNull(handler.cause);
+        assertEquals(Constants.STATE_NONE, connection.getState());
+    }
+
+    @Test
+    public void connect_failsOnUnresolvedAddress() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        RecordingHandler handler = new RecordingHandler();
+        // Resolving is left to the caller, for the engine thread never to wait for it
+        mEngine.connect(InetSocketAddress.createUnresolved("127.0.0.1", server.getLocalPort()),
+                TIMEOUT, handler);
+        assertEquals("closed", handler.next());
+        assertTrue(handler.cause instanceof UnknownHostException);
+        server.close();
+    }
+
+    @Test
+    public void read_decodesMessagesSplitAcrossReads() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        RecordingHandler handler = new RecordingHandler();
+        mEngine.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()), TIMEOUT,
+                handler);
+        Socket peer = server.accept();
+        assertEquals("connected", handler.next());
+
+        OutputStream out = peer.getOutputStream();
+        out.write("{\"request\":".getBytes());
+        out.flush();
+        Thread.sleep(50);
+        ByteBuffer ack = ByteBuffer.allocate(FrameHeader.HEADER_LENGTH);
+        new FrameHeader().set(Constants.REQUEST_OK, 0, 0, 0, 0, 0).encode(ack);
+        out.write("98}".getBytes());
+        out.write(ack.array());
+        out.flush();
+
+        assertEquals("{\"request\":98}", handler.next());
+        assertEquals("header " + Constants.REQUEST_OK, handler.next());
+
+        peer.close();
+        assertEquals("closed", handler.next());
+        assertNotNull(handler.cause);
+        server.close();
+    }
+
+    @Test
+    public void send_completesPartialWritesWhenSocketDrains() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        final RecordingHandler handler = new RecordingHandler();
+        final TransportEngine.Connection connection = mEngine.connect(
+                new InetSocketAddress("127.0.0.1", server.getLocalPort()), TIMEOUT, handler);
+        Socket peer = server.accept();
+        assertEquals("connected", handler.next());
+
+        // Far more than the socket buffers hold, so the engine must wait for the reader
+        final byte[] first = pattern(8 * 1024 * 1024, 1);
+        final byte[] second = pattern(1024 * 1024, 2);
+        final FrameBuffer firstFrame = frame(first, true);
+        final FrameBuffer secondFrame = frame(second, false);
+        final byte[] header = {1, 2, 3, 4};
+        runOnEngine(new Runnable() {
+            @Override
+            public void run() {
+                connection.send(ByteBuffer.wrap(header), firstFrame);
+                connection.send(null, secondFrame);
+            }
+        });
+        // The engine holds its own references until the bytes are written
+        firstFrame.release();
+        secondFrame.release();
+        assertEquals(1, firstFrame.getRefCount());
+
+        DataInputStream in = new DataInputStream(peer.getInputStream());
+        byte[] received = new byte[header.length + first.length + second.length];
+        Thread.sleep(100);
+        in.readFully(received);
+
+        assertArrayEquals(header, Arrays.copyOfRange(received, 0, header.length));
+        assertArrayEquals(first, Arrays.copyOfRange(received, header.length,
+                header.length + first.length));
+        assertArrayEquals(second, Arrays.copyOfRange(received, header.length + first.length,
+                received.length));
+
+        final long[] stats = new long[3];
+        runOnEngine(new Runnable() {
+            @Override
+            public void run() {
+                stats[0] = connection.getPartialWriteCount();
+                stats[1] = connection.getBytesWritten();
+                stats[2] = connection.getQueuedCount();
+            }
+        });
+        assertTrue(stats[0] > 0);
+        assertEquals(received.length, stats[1]);
+        assertEquals(0, stats[2]);
+        assertEquals(0, firstFrame.getRefCount());
+        assertEquals(0, secondFrame.getRefCount());
+
+        connection.close();
+        peer.close();
+        server.close();
+    }
+
+    @Test
+    public void send_completesHeaderOfAnEmptyFrame() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        final RecordingHandler handler = new RecordingHandler();
+        final TransportEngine.Connection connection = mEngine.connect(
+                new InetSocketAddress("127.0.0.1", server.getLocalPort()), TIMEOUT, handler);
+        Socket peer = server.accept();
+        assertEquals("connected", handler.next());
+
+        // A header larger than the socket buffers, so it is only partly written at first
+        final byte[] header = pattern(8 * 1024 * 1024, 5);
+        final byte[] next = pattern(1024, 6);
+        final FrameBuffer empty = frame(new byte[0], false);
+        final FrameBuffer nextFrame = frame(next, false);
+        runOnEngine(new Runnable() {
+            @Override
+            public void run() {
+                connection.send(ByteBuffer.wrap(header), empty);
+                connection.send(null, nextFrame);
+            }
+        });
+        empty.release();
+        nextFrame.release();
+
+        peer.setSoTimeout((int) TIMEOUT);
+        DataInputStream in = new DataInputStream(peer.getInputStream());
+        byte[] received = new byte[header.length + next.length];
+        Thread.sleep(100);
+        in.readFully(received);
+
+        assertArrayEquals(header, Arrays.copyOfRange(received, 0, header.length));
+        assertArrayEquals(next, Arrays.copyOfRange(received, header.length, received.length));
+
+        connection.close();
+        peer.close();
+        server.close();
+    }
+
+    @Test
+    public void close_releasesQueuedFrames() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        final RecordingHandler handler = new RecordingHandler();
+        final TransportEngine.Connection connection = mEngine.connect(
+                new InetSocketAddress("127.0.0.1", server.getLocalPort()), TIMEOUT, handler);
+        Socket peer = server.accept();
+        assertEquals("connected", handler.next());
+
+        final FrameBuffer frame = frame(pattern(16 * 1024 * 1024, 3), false);
+        runOnEngine(new Runnable() {
+            @Override
+            public void run() {
+                connection.send(null, frame);
+            }
+        });
+        frame.release();
+        assertEquals(1, frame.getRefCount());
+
+        connection.close();
+        assertEquals("closed", handler.next());
+        assertEquals(0, frame.getRefCount());
+        peer.close();
+        server.close();
+    }
+
+    @Test
+    public void closeWhenFlushed_writesEverythingFirst() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        final RecordingHandler handler = new RecordingHandler();
+        final TransportEngine.Connection connection = mEngine.connect(
+                new InetSocketAddress("127.0.0.1", server.getLocalPort()), TIMEOUT, handler);
+        Socket peer = server.accept();
+        assertEquals("connected", handler.next());
+
+        final byte[] data = pattern(4 * 1024 * 1024, 4);
+        final FrameBuffer frame = frame(data, true);
+        runOnEngine(new Runnable() {
+            @Override
+            public void run() {
+                connection.send(null, frame);
+                connection.closeWhenFlushed();
+            }
+        });
+        frame.release();
+
+        DataInputStream in = new DataInputStream(peer.getInputStream());
+        byte[] received = new byte[data.length];
+        in.readFully(received);
+        assertArrayEquals(data, received);
+        assertEquals(-1, in.read());
+        assertEquals("closed", handler.next());
+        peer.close();
+        server.close();
+    }
+
+    @Test
+    public void oneThread_drivesSeveralConnections() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        int count = 4;
+        RecordingHandler[] handlers = new RecordingHandler[count];
+        Socket[] peers = new Socket[count];
+        for (int i = 0; i < count; i++) {
+            handlers[i] = new RecordingHandler();
+            mEngine.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()), TIMEOUT,
+                    handlers[i]);
+            peers[i] = server.accept();
+            assertEquals("connected", handlers[i].next());
+        }
+
+        for (int i = 0; i < count; i++) {
+            OutputStream out = peers[i].getOutputStream();
+            out.write(("{\"id\":" + i + "}").getBytes());
+            out.flush();
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals("{\"id\":" + i + "}", handlers[i].next());
+            assertTrue(handlers[i].writable > 0);
+            peers[i].close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void failingTaskOrHandler_leavesOtherConnectionsRunning() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        RecordingHandler failing = new RecordingHandler() {
+            @Override
+            public void onConnected(TransportEngine.Connection connection) {
+                super.onConnected(connection);
+                throw new IllegalStateException("Failing handler");
+            }
+
+            @Override
+            public void onClosed(TransportEngine.Connection connection, IOException cause) {
+                super.onClosed(connection, cause);
+                throw new IllegalStateException("Failing handler");
+            }
+        };
+        mEngine.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()), TIMEOUT,
+                failing);
+        Socket failingPeer = server.accept();
+        assertEquals("connected", failing.next());
+        assertEquals("closed", failing.next());
+        assertTrue(failing.cause.getCause() instanceof IllegalStateException);
+
+        mEngine.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Failing task");
+            }
+        });
+
+        RecordingHandler handler = new RecordingHandler();
+        mEngine.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()), TIMEOUT,
+                handler);
+        Socket peer = server.accept();
+        assertEquals("connected", handler.next());
+        OutputStream out = peer.getOutputStream();
+        out.write("{\"id\":1}".getBytes());
+        out.flush();
+        assertEquals("{\"id\":1}", handler.next());
+
+        peer.close();
+        failingPeer.close();
+        server.close();
+    }
+
+    /**
+     * Records the events of a session for the test thread.
+     */
+    private static class SessionEvents implements StreamSession.Listener {
+        final BlockingQueue<String> events = new ArrayBlockingQueue<>(100);
+
+        @Override
+        public void onStreaming(StreamSession session) {
+            events.add("streaming");
+        }
+
+        @Override
+        public void onClosed(StreamSession session, IOException cause) {
+            events.add(cause == null ? "closed" : "lost");
+        }
+
+        String next() throws InterruptedException {
+            return events.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void assertStreams(int window, int version, int expectedSequence) throws Exception {
+        LoopbackReceiver receiver = new LoopbackReceiver(window, version);
+        FrameRing<FrameBuffer> ring = new FrameRing<>(64, FrameRing.POLICY_BACKPRESSURE);
+        SessionEvents events = new SessionEvents();
+        StreamSession session = new StreamSession(ring, 4, 0, events);
+        session.connect(mEngine, receiver.getAddress(), TIMEOUT);
+        assertEquals("streaming", events.next());
+
+        int count = 20;
+        byte[][] images = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            images[i] = pattern(50000 + i * 1000, i);
+            assertNull(ring.offer(frame(images[i], i % 2 == 0)));
+            mEngine.wakeup();
+        }
+        assertTrue(receiver.awaitFrames(count, TIMEOUT));
+
+        List<LoopbackReceiver.Frame> frames = receiver.getFrames();
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(images[i], frames.get(i).data);
+            assertEquals(640, frames.get(i).width);
+            assertEquals(expectedSequence < 0 ? -1 : i, frames.get(i).sequence);
+        }
+
+        session.disconnect();
+        assertTrue(receiver.awaitRequest(Constants.REQUEST_DISCONNECT, TIMEOUT));
+        assertEquals("closed", events.next());
+        receiver.close();
+    }
+
+    @Test
+    public void session_streamsWithLockstepProtocol() throws Exception {
+        assertStreams(0, 0, -1);
+    }
+
+    @Test
+    public void session_streamsWithPipelinedJsonHeaders() throws Exception {
+        assertStreams(4, 0, -1);
+    }
+
+    @Test
+    public void session_streamsWithBinaryHeaders() throws Exception {
+        assertStreams(4, 1, 0);
+    }
+
+    @Test
+    public void session_reportsLostReceiver() throws Exception {
+        LoopbackReceiver receiver = new LoopbackReceiver(4, 1);
+        FrameRing<FrameBuffer> ring = new FrameRing<>(4);
+        SessionEvents events = new SessionEvents();
+        StreamSession session = new StreamSession(ring, 4, 0, events);
+        session.connect(mEngine, receiver.getAddress(), TIMEOUT);
+        assertEquals("streaming", events.next());
+
+        receiver.close();
+        assertEquals("lost", events.next());
+        assertFalse(session.isStreaming());
+    }
+}
@@ -0,0 +1,52 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link TransportProfile}.
+ */
+public class TransportProfileTest {
+    @Test
+    public void sendBuffer_holdsTwoFramesWithinBounds() {
+        assertEquals(512 * 1024, TransportProfile.sendBufferSizeFor(256 * 1024));
+        assertEquals(64 * 1024, TransportProfile.sendBufferSizeFor(1000));
+        assertEquals(4 * 1024 * 1024, TransportProfile.sendBufferSizeFor(100 * 1024 * 1024));
+        assertEquals(4 * 1024 * 1024, TransportProfile.sendBufferSizeFor(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void lowLatency_setsTheSocketOptions() throws Exception {
+        TransportProfile profile = TransportProfile.lowLatency(256 * 1024);
+        assertTrue(profile.isCoalescing());
+        Socket socket = new Socket();
+        try {
+            profile.apply(socket);
+            assertTrue(socket.getTcpNoDelay());
+            assertTrue(socket.getKeepAlive());
+            // The system may round the size, or cap it
+            assertTrue(socket.getSendBufferSize() > 64 * 1024);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void systemDefault_leavesTheSocketAlone() throws Exception {
+        Socket untouched = new Socket();
+        Socket socket = new Socket();
+        try {
+            TransportProfile.systemDefault().apply(socket);
+            assertEquals(untouched.getTcpNoDelay(), socket.getTcpNoDelay());
+            assertEquals(untouched.getSendBufferSize(), socket.getSendBufferSize());
+            assertEquals(untouched.getTrafficClass(), socket.getTrafficClass());
+            assertFalse(TransportProfile.systemDefault().isCoalescing());
+        } finally {
+            untouched.close();
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package seongdokim.remotecamera;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link VideoPacketizer} with a {@link FakeVideoEncoder}, alone and through the
+ * protocol to loopback receivers.
+ */
+public class VideoPacketizerTest {
+    private static final long TIMEOUT = 10000;
+
+    private static final int KEYFRAME = FrameHeader.CODEC_H264 | FrameHeader.FLAG_KEYFRAME
+            | FrameHeader.FLAG_CODEC_CONFIG;
+
+    /**
+     * Keeps the frames pushed.
+     */
+    private static class ListSink implements VideoPacketizer.Sink {
+        final FrameBufferPool pool = new FrameBufferPool(4, true);
+        final List<FrameBuffer> frames = new ArrayList<>();
+
+        @Override
+        public FrameBuffer acquireFrameBuffer(int size) {
+            return pool.acquire(size);
+        }
+
+        @Override
+        public boolean pushImage(FrameBuffer frame) {
+            frames.add(frame);
+            return true;
+        }
+
+        byte[] bytes(int index) {
+            FrameBuffer frame = frames.get(index);
+            byte[] bytes = new byte[frame.getLength()];
+            frame.getBuffer().duplicate().get(bytes);
+            return bytes;
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    @Test
+    public void keyframes_carryCodecConfig() throws IOException {
+        FakeVideoEncoder encoder = new FakeVideoEncoder(3);
+        VideoPacketizer packetizer = new VideoPacketizer(encoder);
+        packetizer.start();
+        ListSink sink = new ListSink();
+        packetizer.setSink(sink);
+        encoder.encodeFrame(10); // keyframe, asked for by setSink
+        encoder.encodeFrame(10);
+        encoder.encodeFrame(10);
+        encoder.encodeFrame(10); // keyframe of the next group
+
+        assertEquals(4, sink.frames.size());
+        FrameBuffer first = sink.frames.get(0);
+        assertEquals(KEYFRAME, first.getFlags());
+        assertEquals(1280, first.getWidth());
+        assertEquals(720, first.getHeight());
+        assertEquals(FakeVideoEncoder.CONFIG.length + 10, first.getLength());
+        // The configuration was copied before the encoder reused its buffer
+        assertArrayEquals(FakeVideoEncoder.CONFIG,
+                Arrays.copyOf(sink.bytes(0), FakeVideoEncoder.CONFIG.length));
+        assertEquals(0x65, sink.bytes(0)[FakeVideoEncoder.CONFIG.length + 4]);
+
+        assertEquals(FrameHeader.CODEC_H264, sink.frames.get(1).getFlags());
+        assertEquals(10, sink.frames.get(1).getLength());
+        assertEquals(1000L, sink.frames.get(1).getTimestamp());
+        assertEquals(KEYFRAME, sink.frames.get(3).getFlags());
+        assertEquals(2, packetizer.getKeyframeCount());
+        assertEquals(4, packetizer.getFrameCount());
+
+        for (FrameBuffer frame : sink.frames) {
+            frame.release();
+        }
+        assertEquals(0, sink.pool.getOutstandingCount());
+    }
+
+    @Test
+    public void keyframeRequests_coalesceUntilKeyframe() throws IOException {
+        FakeVideoEncoder encoder = new FakeVideoEncoder(1000);
+        VideoPacketizer packetizer = new VideoPacketizer(encoder);
+        packetizer.start();
+        encoder.encodeFrame(10);
+
+        packetizer.setSink(new ListSink());
+        packetizer.onKeyframeNeeded();
+        packetizer.onKeyframeNeeded();
+        assertEquals(1, encoder.getKeyframeRequests());
+
+        assertTrue(encoder.encodeFrame(10));
+        packetizer.onKeyframeNeeded();
+        assertEquals(2, encoder.getKeyframeRequests());
+    }
+
+    @Test
+    public void withoutSink_framesAreDiscarded() throws IOException {
+        FakeVideoEncoder encoder = new FakeVideoEncoder(2);
+        VideoPacketizer packetizer = new VideoPacketizer(encoder);
+        packetizer.start();
+        encoder.encodeFrame(10);
+        encoder.encodeFrame(10);
+        assertEquals(0, packetizer.getFrameCount());
+    }
+
+    @Test
+    public void receivers_startDecodingAtKeyframeWithConfig() throws Exception {
+        TransportEngine engine = new TransportEngine(10);
+        engine.start();
+        final BlockingQueue<String> events = new ArrayBlockingQueue<>(10);
+        final FrameFanout fanout = new FrameFanout(engine, new FrameFanout.Listener() {
+            @Override
+            public void onReceiverStreaming(FrameFanout.Receiver receiver) {
+                events.add("streaming");
+            }
+
+            @Override
+            public void onReceiverClosed(FrameFanout.Receiver receiver, IOException cause) {
+                events.add("closed");
+            }
+        });
+
+        // Keyframes only when asked for, as after a long group of pictures
+        FakeVideoEncoder encoder = new FakeVideoEncoder(Integer.MAX_VALUE);
+        VideoPacketizer packetizer = new VideoPacketizer(encoder);
+        packetizer.start();
+
+        final FrameBufferPool pool = new FrameBufferPool(8, true);
+        packetizer.setSink(new VideoPacketizer.Sink() {
+            @Override
+            public FrameBuffer acquireFrameBuffer(int size) {
+                return pool.acquire(size);
+            }
+
+            @Override
+            public boolean pushImage(FrameBuffer frame) {
+                return fanout.publish(frame);
+            }
+        });
+        fanout.setKeyframeListener(packetizer);
+
+        // The keyframe asked for by the new sink goes to no receiver
+        assertTrue(encoder.encodeFrame(100));
+        assertFalse(encoder.encodeFrame(100));
+
+        LoopbackReceiver video = new LoopbackReceiver(4, 1);
+        LoopbackReceiver json = new LoopbackReceiver(4, 0);
+        FrameFanout.Receiver videoReceiver = fanout.addReceiver(video.getAddress(), 16,
+                FrameRing.POLICY_BACKPRESSURE, 4, 0, TIMEOUT);
+        fanout.addReceiver(json.getAddress(), 16, FrameRing.POLICY_BACKPRESSURE, 4, 0, TIMEOUT);
+        assertEquals("streaming", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("streaming", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // The receivers ask for another one
+        int keyframes = 0;
+        for (int i = 0; i < 30; i++) {
+            if (encoder.encodeFrame(100)) {
+                keyframes++;
+            }
+            Thread.sleep(10);
+        }
+        assertTrue(keyframes >= 1);
+        assertTrue(encoder.getKeyframeRequests() >= 2);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        while (video.getFrames().isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        List<LoopbackReceiver.Frame> frames = video.getFrames();
+        assertFalse(frames.isEmpty());
+        LoopbackReceiver.Frame first = frames.get(0);
+        assertEquals(KEYFRAME, first.flags);
+        assertEquals(1280, first.width);
+        assertArrayEquals(FakeVideoEncoder.CONFIG,
+                Arrays.copyOf(first.data, FakeVideoEncoder.CONFIG.length));
+        for (int i = 1; i < frames.size(); i++) {
+            assertEquals(FrameHeader.CODEC_H264,
+                    frames.get(i).flags & FrameHeader.FLAG_CODEC_MASK);
+        }
+        assertTrue(videoReceiver.getSession().getSkippedCount() > 0);
+
+        // Receivers with JSON headers cannot tell video from JPEG, so they get none
+        assertTrue(json.getFrames().isEmpty());
+
+        fanout.close();
+        assertEquals("closed", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("closed", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        engine.shutdown();
+        engine.join(TIMEOUT);
+        video.close();
+        json.close();
+        assertEquals(0, pool.getOutstandingCount());
+    }
+}
@@ -0,0 +1,125 @@
+package seongdokim.remotecamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the parity packets of {@link DatagramFragmenter} on both ends: fragmenting a frame
+ * with its parity, and putting it back together with {@link FrameReassembler} when one fragment
+ * of every group was lost and has to be rebuilt. A ratio of 0 is the cost without parity and
+ * without loss. The score in operations per second times {@code frameSize} gives the bytes per
+ * second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DatagramParityBenchmark {
+    /**
+     * The size of every frame in bytes.
+     */
+    @Param({"16384", "131072", "1048576"})
+    public int frameSize;
+
+    /**
+     * The number of parity packets per fragment.
+     */
+    @Param({"0", "0.1", "0.25", "0.5"})
+    public double parityRatio;
+
+    private final DatagramFragmenter mFragmenter = new DatagramFragmenter(
+            DatagramFragmenter.DEFAULT_PACKET_SIZE);
+    private ByteBuffer mFrame;
+    private Blackhole mBlackhole;
+
+    /**
+     * The datagrams of a frame that reach the receiver, the first fragment of every group lost
+     */
+    private ByteBuffer[] mPackets;
+    private FrameReassembler mReassembler;
+    private int mNextId = 1;
+
+    private final DatagramFragmenter.Sink mSink = new DatagramFragmenter.Sink() {
+        @Override
+        public void sendPacket(ByteBuffer[] packet, int count) {
+            for (int i = 0; i < count; i++) {
+                mBlackhole.consume(packet[i].get(packet[i].position()));
+            }
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) throws IOException {
+        mBlackhole = blackhole;
+        byte[] frame = new byte[frameSize];
+        new Random(42).nextBytes(frame);
+        mFrame = ByteBuffer.allocateDirect(frameSize);
+        mFrame.put(frame).flip();
+        mFragmenter.setParityRatio(parityRatio);
+
+        final int count = (frameSize + mFragmenter.getFragmentSize() - 1)
+                / mFragmenter.getFragmentSize();
+        final int groups = mFragmenter.getParityCount(count);
+        final List<ByteBuffer> packets = new ArrayList<>();
+        mFragmenter.send(null, mFrame, new DatagramFragmenter.Sink() {
+            private int mIndex = 0;
+
+            @Override
+            public void sendPacket(ByteBuffer[] packet, int parts) {
+                if (mIndex++ < groups) {
+                    return;
+                }
+                int length = 0;
+                for (int i = 0; i < parts; i++) {
+                    length += packet[i].remaining();
+                }
+                ByteBuffer copy = ByteBuffer.allocate(length);
+                for (int i = 0; i < parts; i++) {
+                    copy.put(packet[i].duplicate());
+                }
+                copy.flip();
+                packets.add(copy);
+            }
+        });
+        mPackets = packets.toArray(new ByteBuffer[packets.size()]);
+        mReassembler = new FrameReassembler(4, frameSize, TimeUnit.SECONDS.toNanos(1),
+                new FrameReassembler.Listener() {
+                    @Override
+                    public void onMessage(ByteBuffer message) {
+                        mBlackhole.consume(message.get(message.limit() - 1));
+                    }
+                });
+    }
+
+    @Benchmark
+    public int fragment() throws IOException {
+        return mFragmenter.send(null, mFrame, mSink);
+    }
+
+    @Benchmark
+    public long reassemble() {
+        // Replay the frame as a new message
+        int id = mNextId++;
+        long now = System.nanoTime();
+        for (ByteBuffer packet : mPackets) {
+            packet.putInt(4, id);
+            packet.clear();
+            mReassembler.feed(packet, now);
+        }
+        return mReassembler.getDeliveredCount();
+    }
+}
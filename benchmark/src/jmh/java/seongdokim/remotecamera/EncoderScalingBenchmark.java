@@ -0,0 +1,97 @@
+package seongdokim.remotecamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How JPEG encoding scales with the number of threads, the two ways the app can use them:
+ * {@link #stage()} gives whole frames to an {@link EncoderStage} with one {@link JpegEncoder}
+ * per thread, which raises the frame rate, and {@link #striped()} cuts each frame into stripes
+ * with a {@link StripedJpegEncoder}, which lowers the latency of a frame. Both report the time
+ * per frame; compare the thread counts against {@code threads=1}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EncoderScalingBenchmark {
+    private static final int FRAMES = 32;
+    private static final int QUALITY = 80;
+
+    @Param({"1280x720", "1920x1080"})
+    public String size;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private YuvPlanes mImage;
+    private EncoderStage mStage;
+    private StripedJpegEncoder mStriped;
+    private volatile long mDelivered;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        mImage = JpegEncoderBenchmark.synthetic(Integer.parseInt(dimensions[0]),
+                Integer.parseInt(dimensions[1]), new Random(42));
+
+        FrameEncoder[] encoders = new FrameEncoder[threads];
+        for (int i = 0; i < threads; i++) {
+            encoders[i] = new JpegEncoder(QUALITY);
+        }
+        mStage = new EncoderStage(encoders, new EncoderStage.Sink() {
+            @Override
+            public void onFrameEncoded(ByteBuffer data, int width, int height, long timestamp) {
+                mDelivered++;
+            }
+        });
+        mStage.start();
+        mStriped = new StripedJpegEncoder(QUALITY, threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mStage.shutdown();
+        mStage.join(1000);
+        mStriped.shutdown();
+    }
+
+    /**
+     * Feed the stage as fast as it takes frames, so that none is dropped, and wait for the
+     * last one.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long stage() {
+        long target = mDelivered + FRAMES;
+        for (int i = 0; i < FRAMES; i++) {
+            while (!mStage.canAccept()) {
+                LockSupport.parkNanos(20000);
+            }
+            // The planes are only read, so every encoder can share them
+            mStage.submit(mImage, null);
+        }
+        while (mDelivered < target) {
+            LockSupport.parkNanos(20000);
+        }
+        return mDelivered;
+    }
+
+    @Benchmark
+    public ByteBuffer striped() {
+        return mStriped.encode(mImage);
+    }
+}
@@ -0,0 +1,141 @@
+package seongdokim.remotecamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link FrameDecoder} on a stream of frames split at random places, as TCP
+ * does under load. Each invocation decodes {@link #FRAMES} frames; the score in operations per
+ * second times {@code FRAMES * frameSize} gives the decoded bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameDecoderBenchmark {
+    private static final int FRAMES = 32;
+
+    /**
+     * The payload size of every frame in bytes.
+     */
+    @Param({"1024", "65536", "524288"})
+    public int frameSize;
+
+    /**
+     * The largest fragment handed to the decoder at once; fragments are uniformly distributed
+     * between one byte and this size.
+     */
+    @Param({"64", "1460", "16384"})
+    public int maxFragment;
+
+    private byte[] mStream;
+    private int[] mFragments;
+    private FrameDecoder mDecoder;
+    private Blackhole mBlackhole;
+    private final FragmentedInputStream mInput = new FragmentedInputStream();
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        Random random = new Random(42);
+        ByteBuffer stream = ByteBuffer.allocate(FRAMES * (FrameHeader.HEADER_LENGTH + frameSize));
+        FrameHeader header = new FrameHeader();
+        byte[] payload = new byte[frameSize];
+        random.nextBytes(payload);
+        for (int i = 0; i < FRAMES; i++) {
+            header.set(Constants.REQUEST_STREAMING, i, i, 1920, 1080, frameSize).encode(stream);
+            stream.put(payload);
+        }
+        mStream = stream.array();
+
+        int[] fragments = new int[mStream.length];
+        int count = 0;
+        for (int offset = 0; offset < mStream.length; count++) {
+            fragments[count] = Math.min(mStream.length - offset, 1 + random.nextInt(maxFragment));
+            offset += fragments[count];
+        }
+        mFragments = new int[count];
+        System.arraycopy(fragments, 0, mFragments, 0, count);
+
+        mDecoder = new FrameDecoder(1024, new FrameDecoder.Listener() {
+            @Override
+            public void onJsonMessage(ByteBuffer message) {
+                mBlackhole.consume(message);
+            }
+
+            @Override
+            public void onHeader(FrameHeader header) {
+                mBlackhole.consume(header.getSequence());
+            }
+
+            @Override
+            public void onPayload(ByteBuffer chunk, int remaining) {
+                mBlackhole.consume(chunk.get(chunk.position()));
+            }
+        });
+    }
+
+    @Benchmark
+    public void readFragmentedStream() throws Exception {
+        mInput.rewind();
+        while (mDecoder.read(mInput) >= 0) {
+            // Decode until the end of the stream
+        }
+    }
+
+    @Benchmark
+    public void feedFragmentedStream() throws Exception {
+        int offset = 0;
+        for (int fragment : mFragments) {
+            mDecoder.feed(mStream, offset, fragment);
+            offset += fragment;
+        }
+    }
+
+    /**
+     * Replays {@link #mStream} with reads no larger than the precomputed fragments.
+     */
+    private class FragmentedInputStream extends InputStream {
+        private int mOffset;
+        private int mFragment;
+        private int mFragmentRemaining;
+
+        void rewind() {
+            mOffset = 0;
+            mFragment = 0;
+            mFragmentRemaining = 0;
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mOffset == mStream.length) {
+                return -1;
+            }
+            if (mFragmentRemaining == 0) {
+                mFragmentRemaining = mFragments[mFragment++];
+            }
+            int count = Math.min(len, mFragmentRemaining);
+            System.arraycopy(mStream, mOffset, b, off, count);
+            mOffset += count;
+            mFragmentRemaining -= count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package seongdokim.remotecamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares {@link FrameRing} with the {@link LockedFrameQueue} it replaced.
+ *
+ * <p>{@link Paced} measures how long the camera thread is held up by a push at a simulated frame
+ * rate while the network thread polls the queue as {@link ConnectionThread} does; run it in
+ * sample mode to read the tail latency from the percentiles. {@link Unpaced} measures raw
+ * hand-off throughput with one producer and one consumer.</p>
+ */
+public class FrameQueueBenchmark {
+    /**
+     * Time the simulated network thread spends sending each frame.
+     */
+    private static final long SEND_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private static final Object FRAME = new Object();
+
+    /**
+     * Common view of the two queue implementations.
+     */
+    abstract static class Queue {
+        abstract void push(Object frame);
+
+        abstract Object pop();
+
+        static Queue create(String implementation) {
+            if ("ring".equals(implementation)) {
+                final FrameRing<Object> ring = new FrameRing<>(4);
+                return new Queue() {
+                    @Override
+                    void push(Object frame) {
+                        ring.offer(frame);
+                    }
+
+                    @Override
+                    Object pop() {
+                        return ring.poll();
+                    }
+                };
+            }
+            final LockedFrameQueue<Object> locked = new LockedFrameQueue<>();
+            return new Queue() {
+                @Override
+                void push(Object frame) {
+                    locked.push(frame);
+                }
+
+                @Override
+                Object pop() {
+                    return locked.pop();
+                }
+            };
+        }
+    }
+
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public static class Paced {
+        @Param({"ring", "locked"})
+        public String implementation;
+
+        @Param({"30", "60", "120"})
+        public int fps;
+
+        private Queue mQueue;
+        private Thread mConsumer;
+        private volatile boolean mRunning;
+        private long mPeriod;
+        private long mNextFrame;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            mQueue = Queue.create(implementation);
+            mPeriod = TimeUnit.SECONDS.toNanos(1) / fps;
+            mNextFrame = System.nanoTime();
+            mRunning = true;
+            mConsumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (mRunning) {
+                        // Poll like the streaming loop, then pretend to send the frame
+                        if (mQueue.pop() != null) {
+                            LockSupport.parkNanos(SEND_NANOS);
+                        }
+                    }
+                }
+            }, "network");
+            mConsumer.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            mRunning = false;
+            mConsumer.join();
+        }
+
+        /**
+         * Wait for the next frame of the simulated camera, outside of the measured time.
+         */
+        @Setup(Level.Invocation)
+        public void waitForFrame() {
+            mNextFrame += mPeriod;
+            long delay;
+            while ((delay = mNextFrame - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+        }
+
+        @Benchmark
+        public void push() {
+            mQueue.push(FRAME);
+        }
+    }
+
+    @State(Scope.Group)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public static class Unpaced {
+        @Param({"ring", "locked"})
+        public String implementation;
+
+        private Queue mQueue;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            mQueue = Queue.create(implementation);
+        }
+
+        @Benchmark
+        @Group("handoff")
+        @GroupThreads(1)
+        public void push() {
+            mQueue.push(FRAME);
+        }
+
+        @Benchmark
+        @Group("handoff")
+        @GroupThreads(1)
+        public Object pop() {
+            return mQueue.pop();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package seongdokim.remotecamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding time of {@link JpegEncoder} for camera-sized YUV_420_888 images, with the interleaved
+ * chroma most devices give.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JpegEncoderBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String size;
+
+    @Param({"50", "80", "95"})
+    public int quality;
+
+    private JpegEncoder mEncoder;
+    private YuvPlanes mImage;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        int width = Integer.parseInt(dimensions[0]);
+        int height = Integer.parseInt(dimensions[1]);
+        mEncoder = new JpegEncoder(quality);
+        mImage = synthetic(width, height, new Random(42));
+    }
+
+    /**
+     * A gradient with some noise, closer to what a camera sees than a flat image.
+     */
+    static YuvPlanes synthetic(int width, int height, Random random) {
+        ByteBuffer y = ByteBuffer.allocateDirect(width * height);
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                y.put((byte) ((column + row) * 200 / (width + height) + random.nextInt(24)));
+            }
+        }
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        ByteBuffer vu = ByteBuffer.allocateDirect(chromaWidth * chromaHeight * 2);
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int column = 0; column < chromaWidth; column++) {
+                vu.put((byte) (150 - 50 * row / chromaHeight));
+                vu.put((byte) (100 + 60 * column / chromaWidth));
+            }
+        }
+        vu.clear();
+        ByteBuffer v = vu.slice();
+        vu.position(1);
+        ByteBuffer u = vu.slice();
+        return new YuvPlanes().set(width, height, 0)
+                .setLuma(y, width)
+                .setChroma(u, v, chromaWidth * 2, 2);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return mEncoder.encode(mImage);
+    }
+}
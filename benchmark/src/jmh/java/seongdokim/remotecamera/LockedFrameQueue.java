@@ -0,0 +1,43 @@
+package seongdokim.remotecamera;
+
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The image queue {@link ConnectionThread} used before {@link FrameRing}: a {@link LinkedList}
+ * guarded by a {@link Semaphore}, kept as a baseline for the benchmarks.
+ */
+class LockedFrameQueue<T> {
+    private final LinkedList<T> mQueue = new LinkedList<>();
+    private final Semaphore mLock = new Semaphore(1);
+
+    void push(T frame) {
+        try {
+            if (!mLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("Time out waiting to lock the image queue");
+            }
+            if (mQueue.size() > 3) {
+                mQueue.poll();
+            }
+            mQueue.push(frame);
+            mLock.release();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    T pop() {
+        T frame = null;
+        try {
+            if (!mLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("Time out waiting to lock the image queue");
+            }
+            frame = mQueue.poll();
+            mLock.release();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,280 @@
+package seongdokim.remotecamera;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole send path of a connection, from a pooled frame to its acknowledgement, with
+ * {@link FrameSender} writing binary headers, capture metadata and payloads to a receiver on
+ * the loopback interface, which decodes every frame with a {@link FrameDecoder} and
+ * acknowledges it once the payload is in.
+ *
+ * <p>{@code stream} keeps the window full and scores frames per second, with the bytes per
+ * second as a secondary result; {@code roundTrip} sends one frame at a time and waits for its
+ * acknowledgement, so its sample percentiles are the latency of a frame on an idle connection.
+ * {@code stream} also reports, from the {@link StreamMetrics} of the sender, the median, p99
+ * and largest time each frame waited for its acknowledgement under load, in microseconds. Run
+ * with {@code -prof gc} for the allocation rate, which should not grow with the frame size.</p>
+ *
+ * <p>{@code profile} compares the sockets left to the system with those tuned by
+ * {@link TransportProfile#lowLatency(int)} for the frame size; on the loopback interface the
+ * difference is mostly Nagle's algorithm and the header coalescing of the stream transport, the
+ * traffic class only counting on a real network.</p>
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LoopbackStreamBenchmark {
+    /**
+     * The payload size of every frame in bytes: a small JPEG, a 1080p JPEG and a raw frame.
+     */
+    @Param({"16384", "131072", "1048576"})
+    public int frameSize;
+
+    /**
+     * The {@link FrameTransport}: blocking socket streams or a selector driven channel.
+     */
+    @Param({"stream", "channel"})
+    public String transport;
+
+    /**
+     * The number of frames in flight advertised by the receiver.
+     */
+    @Param({"1", "8"})
+    public int window;
+
+    /**
+     * The {@link TransportProfile} of the sending socket.
+     */
+    @Param({"system", "lowLatency"})
+    public String profile;
+
+    private ServerSocket mServer;
+    private FrameTransport mTransport;
+    private FrameSender mSender;
+    private FrameBufferPool mPool;
+    private Thread mReceiver;
+    private final StreamMetrics mMetrics = new StreamMetrics();
+    private final StreamMetrics.Snapshot mSnapshot = new StreamMetrics.Snapshot();
+
+    /**
+     * The bytes sent, reported as a rate next to the frames per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+        }
+    }
+
+    /**
+     * The time frames waited for their acknowledgement during an iteration, in microseconds,
+     * reported as they are rather than as rates. Filled in by {@link #report} at the end of
+     * the iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class AckLatency {
+        public long ackP50;
+        public long ackP99;
+        public long ackMax;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                mServer.getLocalPort());
+        boolean channel = "channel".equals(transport);
+        TransportProfile transportProfile = "lowLatency".equals(profile)
+                ? TransportProfile.lowLatency(frameSize) : TransportProfile.systemDefault();
+        if (channel) {
+            SocketChannel socketChannel = SocketChannel.open();
+            transportProfile.apply(socketChannel.socket());
+            socketChannel.connect(address);
+            mTransport = new ChannelTransport(socketChannel);
+        } else {
+            Socket socket = new Socket();
+            transportProfile.apply(socket);
+            socket.connect(address);
+            StreamTransport stream = new StreamTransport(socket);
+            stream.setCoalescing(transportProfile.isCoalescing());
+            mTransport = stream;
+        }
+        mReceiver = new Thread(new Receiver(mServer.accept()), "LoopbackStreamReceiver");
+        mReceiver.setDaemon(true);
+        mReceiver.start();
+
+        FrameDecoder decoder = new FrameDecoder(1024, new FrameDecoder.Listener() {
+            @Override
+            public void onJsonMessage(ByteBuffer message) {
+            }
+
+            @Override
+            public void onHeader(FrameHeader header) {
+                if (header.getType() == Constants.REQUEST_OK) {
+                    mSender.onAcknowledged();
+                }
+            }
+
+            @Override
+            public void onPayload(ByteBuffer chunk, int remaining) {
+            }
+        });
+        SendStats sendStats = new SendStats();
+        sendStats.setMetrics(mMetrics);
+        mSender = new FrameSender(mTransport, decoder, sendStats, mMetrics);
+        mSender.configure(window, FrameHeader.VERSION);
+        // The channel transport gathers direct buffers without copying them, as in the app
+        mPool = new FrameBufferPool(window + 1, false, channel);
+    }
+
+    @Setup(Level.Iteration)
+    public void startInterval() {
+        mMetrics.snapshot(mSnapshot, System.nanoTime());
+    }
+
+    @TearDown(Level.Iteration)
+    public void report(AckLatency ackLatency) throws IOException {
+        // Frames still in flight are counted in this iteration
+        mSender.drain();
+        LatencyHistogram ack = mMetrics.snapshot(mSnapshot, System.nanoTime())
+                .getLatency(StreamMetrics.LATENCY_ACK);
+        ackLatency.ackP50 = TimeUnit.NANOSECONDS.toMicros(ack.getValueAtPercentile(50));
+        ackLatency.ackP99 = TimeUnit.NANOSECONDS.toMicros(ack.getValueAtPercentile(99));
+        ackLatency.ackMax = TimeUnit.NANOSECONDS.toMicros(ack.getMaxNanos());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        mTransport.close();
+        mServer.close();
+        mReceiver.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    private FrameBuffer acquireFrame() {
+        FrameBuffer frame = mPool.acquire(frameSize);
+        ByteBuffer buffer = frame.getBuffer();
+        buffer.position(frameSize);
+        buffer.flip();
+        frame.getMetadata().set(frameSize, 10000000, 100, 0, 0,
+                CaptureMetadata.TIMESTAMP_SOURCE_UNKNOWN);
+        return frame.setImageInfo(1920, 1080, System.nanoTime()).setHasMetadata(true);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public void stream(Bytes bytes) throws IOException {
+        FrameBuffer frame = acquireFrame();
+        try {
+            mSender.send(frame);
+        } finally {
+            frame.release();
+        }
+        bytes.bytes += frameSize;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() throws IOException {
+        FrameBuffer frame = acquireFrame();
+        try {
+            mSender.send(frame);
+        } finally {
+            frame.release();
+        }
+        mSender.drain();
+    }
+
+    /**
+     * Reads the frames off the connection and acknowledges each one once its payload is in.
+     */
+    private static class Receiver implements Runnable {
+        private final Socket mSocket;
+        private final byte[] mAck = new byte[FrameHeader.HEADER_LENGTH];
+        private final FrameHeader mAckHeader = new FrameHeader();
+        private OutputStream mOut;
+        private int mType;
+        private int mSequence;
+
+        Receiver(Socket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream in = mSocket.getInputStream();
+                mOut = mSocket.getOutputStream();
+                FrameDecoder decoder = new FrameDecoder(64 * 1024, new FrameDecoder.Listener() {
+                    @Override
+                    public void onJsonMessage(ByteBuffer message) {
+                    }
+
+                    @Override
+                    public void onHeader(FrameHeader header) {
+                        mType = header.getType();
+                        mSequence = header.getSequence();
+                        if (mType == Constants.REQUEST_STREAMING
+                                && header.getPayloadLength() == 0) {
+                            acknowledge();
+                        }
+                    }
+
+                    @Override
+                    public void onPayload(ByteBuffer chunk, int remaining) {
+                        if (remaining == 0 && mType == Constants.REQUEST_STREAMING) {
+                            acknowledge();
+                        }
+                    }
+                });
+                while (decoder.read(in) >= 0) {
+                    // Every frame is handled by the listener
+                }
+            } catch (IOException e) {
+                // Closed by the sender at the end of the trial
+            } finally {
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+
+        private void acknowledge() {
+            mAckHeader.set(Constants.REQUEST_OK, mSequence, 0, 0, 0, 0)
+                    .encode(ByteBuffer.wrap(mAck));
+            try {
+                mOut.write(mAck);
+                mOut.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package seongdokim.remotecamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of recording into {@link StreamMetrics} on the hot path of every frame, alone and
+ * with the camera, encoder and network threads recording at once. Run with {@code -prof gc} to
+ * check that recording allocates nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+    private final StreamMetrics mMetrics = new StreamMetrics();
+
+    /**
+     * Latencies spread over the buckets, as a stream of frames would give
+     */
+    private long mLatency = 0;
+
+    private void recordFrame() {
+        mLatency = (mLatency + 7919) % 50000000;
+        mMetrics.recordLatency(StreamMetrics.LATENCY_QUEUE, mLatency);
+        mMetrics.recordLatency(StreamMetrics.LATENCY_ACK, mLatency * 2);
+        mMetrics.increment(StreamMetrics.COUNTER_FRAMES_SENT);
+        mMetrics.add(StreamMetrics.COUNTER_BYTES_SENT, 100000);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void record() {
+        recordFrame();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        recordFrame();
+    }
+}
@@ -0,0 +1,226 @@
+package seongdokim.remotecamera;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The UDP side of a {@link ReceiverServer}, for the {@code DatagramTransport} of the app. One
+ * thread receives the datagrams of every sender, puts each sender's messages back together with
+ * a {@link FrameReassembler} and hands them to that sender's {@link ReceiverSession}.
+ *
+ * <p>A sender is known by its address from its first datagram, normally a hello: an empty
+ * message, answered with the welcome. Hellos keep coming until the sender has the welcome, which
+ * is sent again for each of them. A sender is dropped once it disconnects or after
+ * {@link #IDLE_TIMEOUT} milliseconds of silence.</p>
+ *
+ * <p>Every {@link #REPORT_INTERVAL} milliseconds at most, each sender is told how many of its
+ * fragments were lost, for it to adapt its parity packets to the loss rate.</p>
+ */
+class DatagramReceiver implements Runnable {
+    /**
+     * The silence in milliseconds after which a sender is taken for gone.
+     */
+    private static final int IDLE_TIMEOUT = 10000;
+
+    /**
+     * The largest message accepted from a sender, enough for a high resolution JPEG image.
+     */
+    private static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * The time in milliseconds a frame may take to complete before it is dropped.
+     */
+    private static final long FRAME_DEADLINE = 1000;
+
+    /**
+     * The shortest time in milliseconds between two loss reports to a sender.
+     */
+    private static final long REPORT_INTERVAL = 250;
+
+    private final ReceiverServer mServer;
+    private final DatagramSocket mSocket;
+    private final Map<SocketAddress, Peer> mPeers = new HashMap<>();
+    private final DatagramPacket mPacket = new DatagramPacket(new byte[64 * 1024], 64 * 1024);
+
+    /**
+     * Take over a bound socket.
+     *
+     * @param server The server the sessions report to
+     * @param socket The socket, bound to the port of the server
+     */
+    DatagramReceiver(ReceiverServer server, DatagramSocket socket) {
+        mServer = server;
+        mSocket = socket;
+    }
+
+    @Override
+    public void run() {
+        try {
+            mSocket.setSoTimeout(IDLE_TIMEOUT / 4);
+            while (true) {
+                try {
+                    // A receive shrinks the length of the packet to that of the datagram
+                    mPacket.setLength(mPacket.getData().length);
+                    mSocket.receive(mPacket);
+                    receive(mPacket);
+                } catch (SocketTimeoutException e) {
+                    // Time to look for senders gone silent
+                }
+                expire();
+            }
+        } catch (IOException e) {
+            // Closed
+        } finally {
+            for (Peer peer : mPeers.values()) {
+                peer.mSession.finish(null);
+            }
+            mPeers.clear();
+        }
+    }
+
+    /**
+     * Stop receiving, ending the session of every sender.
+     */
+    void close() {
+        mSocket.close();
+    }
+
+    private void receive(DatagramPacket packet) {
+        SocketAddress address = packet.getSocketAddress();
+        Peer peer = mPeers.get(address);
+        if (peer == null) {
+            peer = new Peer(address);
+            mPeers.put(address, peer);
+            mServer.onConnected();
+        }
+        long now = System.nanoTime();
+        peer.mLastHeard = now;
+        FrameReassembler reassembler = peer.mReassembler;
+        reassembler.feed(ByteBuffer.wrap(packet.getData(), packet.getOffset(),
+                packet.getLength()), now);
+        if (peer.mFailure != null || peer.mDisconnected) {
+            mPeers.remove(address);
+            peer.mSession.finish(peer.mFailure);
+            return;
+        }
+
+        long expected = reassembler.getExpectedPacketCount();
+        if (expected != peer.mReportedExpected
+                && now - peer.mLastReport >= TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL)) {
+            long lost = reassembler.getLostPacketCount();
+            long recovered = reassembler.getRecoveredPacketCount();
+            mServer.onPacketsLost(lost - peer.mReportedLost,
+                    recovered - peer.mReportedRecovered);
+            peer.mReportedExpected = expected;
+            peer.mReportedLost = lost;
+            peer.mReportedRecovered = recovered;
+            peer.mLastReport = now;
+            try {
+                peer.sendReport(expected, lost);
+            } catch (IOException e) {
+                // The next report makes up for it
+            }
+        }
+    }
+
+    private void expire() {
+        long now = System.nanoTime();
+        Iterator<Peer> peers = mPeers.values().iterator();
+        while (peers.hasNext()) {
+            Peer peer = peers.next();
+            if (now - peer.mLastHeard > TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT)) {
+                peers.remove();
+                peer.mSession.finish(new SocketTimeoutException("Sender gone silent"));
+            }
+        }
+    }
+
+    /**
+     * One sender: its reassembler, its session, and the stream the session answers it with.
+     */
+    private class Peer extends ByteArrayOutputStream implements FrameReassembler.Listener,
+            DatagramFragmenter.Sink {
+        private final SocketAddress mAddress;
+        private final FrameReassembler mReassembler;
+        private final ReceiverSession mSession;
+        private final DatagramFragmenter mFragmenter = new DatagramFragmenter(
+                DatagramFragmenter.DEFAULT_PACKET_SIZE);
+        private final byte[] mDatagram = new byte[DatagramFragmenter.DEFAULT_PACKET_SIZE];
+        private long mLastHeard;
+        private long mLastReport;
+        private long mReportedExpected = 0;
+        private long mReportedLost = 0;
+        private long mReportedRecovered = 0;
+        private final ByteBuffer mReport = ByteBuffer.allocate(DatagramFragmenter.REPORT_LENGTH);
+
+        /**
+         * Whether the sender sent anything but hellos, so it has the welcome
+         */
+        private boolean mAnswered = false;
+        private boolean mDisconnected = false;
+        private IOException mFailure;
+
+        Peer(SocketAddress address) {
+            mAddress = address;
+            mLastReport = System.nanoTime();
+            mReassembler = new FrameReassembler(4, MAX_MESSAGE_LENGTH,
+                    TimeUnit.MILLISECONDS.toNanos(FRAME_DEADLINE), this);
+            mSession = new ReceiverSession(mServer, this, mServer.nextSessionId());
+        }
+
+        @Override
+        public void onMessage(ByteBuffer message) {
+            try {
+                if (!message.hasRemaining()) {
+                    if (!mAnswered) {
+                        mSession.start();
+                    }
+                } else {
+                    mAnswered = true;
+                    mDisconnected = !mSession.onMessage(message);
+                }
+            } catch (IOException e) {
+                if (mFailure == null) {
+                    mFailure = e;
+                }
+            }
+        }
+
+        /**
+         * Send what the session wrote as one message.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                mFragmenter.send(null, ByteBuffer.wrap(buf, 0, count), this);
+                reset();
+            }
+        }
+
+        void sendReport(long expected, long lost) throws IOException {
+            mReport.clear();
+            DatagramFragmenter.putReport(mReport, expected, lost);
+            mSocket.send(new DatagramPacket(mReport.array(), mReport.position(), mAddress));
+        }
+
+        @Override
+        public void sendPacket(ByteBuffer[] packet, int parts) throws IOException {
+            int length = 0;
+            for (int i = 0; i < parts; i++) {
+                int remaining = packet[i].remaining();
+                packet[i].duplicate().get(mDatagram, length, remaining);
+                length += remaining;
+            }
+            mSocket.send(new DatagramPacket(mDatagram, length, mAddress));
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emulates many phones streaming to one receiver, to find out how many it can take. Each
+ * emulated sender connects, negotiates the protocol from the welcome message and sends frames
+ * of a fixed size at a fixed rate with the {@link FrameSender} of the app, so the receiver sees
+ * exactly what the app would send, capture metadata included.
+ *
+ * <p>All senders record into one {@link StreamMetrics}, which can be read from any thread while
+ * they run.</p>
+ *
+ * <p>Senders told to reconnect behave as the app does after losing its receiver: they connect
+ * again after a {@link ReconnectBackoff} delay and carry their stream on, so a receiver can be
+ * restarted under load.</p>
+ */
+public class LoadGenerator {
+    public static final int TRANSPORT_STREAM = 0;  // blocking socket streams
+    public static final int TRANSPORT_CHANNEL = 1; // NIO channel with gathering writes
+    public static final int TRANSPORT_DATAGRAM = 2; // fragmented UDP, frames not acknowledged
+
+    private final InetSocketAddress mAddress;
+    private final int mSenders;
+    private final int mFrameSize;
+    private final int mFrameRate;
+    private final int mMaxWindow;
+    private final int mTransport;
+    private int mFrameLimit = 0;
+    private double mMinParity = 0;
+    private double mMaxParity = 0;
+    private long mInitialReconnectDelay = 0;
+    private long mMaxReconnectDelay = 0;
+
+    private final StreamMetrics mMetrics = new StreamMetrics();
+    private final AtomicLong mFramesSent = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final List<Thread> mThreads = new ArrayList<>();
+    private volatile boolean mStopped = false;
+
+    /**
+     * Notified on stop, for the senders waiting to reconnect
+     */
+    private final Object mStopLock = new Object();
+
+    /**
+     * The first error of any sender, {@code null} if none failed
+     */
+    private volatile IOException mFailure;
+
+    /**
+     * Describe the load. Call {@link #start()} to connect the senders.
+     *
+     * @param address   The address of the receiver
+     * @param senders   The number of senders to emulate
+     * @param frameSize The number of bytes of every image
+     * @param frameRate The frames per second of each sender, 0 to send as fast as possible
+     * @param maxWindow The largest number of frames a sender lets in flight
+     * @param transport How to send, one of the {@code TRANSPORT_} constants
+     */
+    public LoadGenerator(InetSocketAddress address, int senders, int frameSize, int frameRate,
+                         int maxWindow, int transport) {
+        mAddress = address;
+        mSenders = senders;
+        mFrameSize = frameSize;
+        mFrameRate = frameRate;
+        mMaxWindow = maxWindow;
+        mTransport = transport;
+    }
+
+    /**
+     * Make each sender disconnect after that many frames.
+     *
+     * @param frames The number of frames of each sender, 0 to send until stopped
+     */
+    public void setFrameLimit(int frames) {
+        mFrameLimit = frames;
+    }
+
+    /**
+     * Send parity packets with the frames over datagrams.
+     *
+     * @param minRatio The fewest parity packets per fragment
+     * @param maxRatio The most parity packets per fragment, adapted to the loss rate reported by
+     *                 the receiver if more than {@code minRatio}
+     */
+    public void setParity(double minRatio, double maxRatio) {
+        mMinParity = minRatio;
+        mMaxParity = maxRatio;
+    }
+
+    /**
+     * Make each sender connect again and carry its stream on when its connection is lost,
+     * instead of failing.
+     *
+     * @param initialDelay The ceiling of the first delay in milliseconds, 0 not to reconnect
+     * @param maxDelay     The ceiling of every delay in milliseconds
+     */
+    public void setReconnect(long initialDelay, long maxDelay) {
+        mInitialReconnectDelay = initialDelay;
+        mMaxReconnectDelay = maxDelay;
+    }
+
+    public void start() {
+        for (int i = 0; i < mSenders; i++) {
+            Thread thread = new Thread(new Sender(), "LoadGenerator-" + i);
+            thread.setDaemon(true);
+            mThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Make every sender disconnect after the frame it is sending, and wait for them.
+     *
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void stop() throws InterruptedException {
+        mStopped = true;
+        synchronized (mStopLock) {
+            mStopLock.notifyAll();
+        }
+        join(0);
+    }
+
+    /**
+     * Wait for every sender to be done.
+     *
+     * @param timeoutMillis How long to wait in all, 0 to wait forever
+     * @return False if a sender is still running
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean join(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Thread thread : mThreads) {
+            if (timeoutMillis == 0) {
+                thread.join();
+                continue;
+            }
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining > 0) {
+                thread.join(remaining);
+            }
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public StreamMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Get the number of frames sent so far.
+     *
+     * @return The number of frames sent by all senders
+     */
+    public long getFramesSent() {
+        return mFramesSent.get();
+    }
+
+    /**
+     * Get the number of senders whose connection failed.
+     *
+     * @return The number of failed senders
+     */
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    public IOException getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * One emulated phone.
+     */
+    private class Sender implements Runnable {
+        private FrameSender mSender;
+        private JSONObject mWelcome;
+        private final String mSession = UUID.randomUUID().toString();
+        private int mNextSequence = 0;
+
+        /**
+         * The number of frames sent on every connection so far
+         */
+        private int mFrames = 0;
+
+        /**
+         * When the last connection was lost, in {@link System#nanoTime()}, 0 while streaming
+         */
+        private long mLostTime = 0;
+
+        @Override
+        public void run() {
+            ReconnectBackoff backoff = mInitialReconnectDelay > 0 ? new ReconnectBackoff(
+                    mInitialReconnectDelay, mMaxReconnectDelay, new Random()) : null;
+            while (true) {
+                FrameTransport transport = null;
+                mSender = null;
+                mWelcome = null;
+                try {
+                    transport = connect();
+                    stream(transport, backoff);
+                    return;
+                } catch (IOException e) {
+                    if (backoff == null || mStopped) {
+                        if (mFailure == null) {
+                            mFailure = e;
+                        }
+                        mFailures.incrementAndGet();
+                        return;
+                    }
+                    if (mSender != null) {
+                        mNextSequence = mSender.getSequence();
+                    }
+                    if (mLostTime == 0) {
+                        mLostTime = System.nanoTime();
+                    }
+                } finally {
+                    if (transport != null) {
+                        try {
+                            transport.close();
+                        } catch (IOException e) {
+                            // Nothing to do
+                        }
+                    }
+                }
+                try {
+                    synchronized (mStopLock) {
+                        if (mStopped) {
+                            return;
+                        }
+                        mStopLock.wait(backoff.nextDelay());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private FrameTransport connect() throws IOException {
+            switch (mTransport) {
+                case TRANSPORT_CHANNEL:
+                    return new ChannelTransport(SocketChannel.open(mAddress));
+
+                case TRANSPORT_DATAGRAM:
+                    DatagramChannel channel = DatagramChannel.open();
+                    try {
+                        channel.connect(mAddress);
+                        DatagramTransport transport = new DatagramTransport(channel);
+                        if (mMaxParity > mMinParity) {
+                            transport.setAdaptiveParity(mMinParity, mMaxParity);
+                        } else {
+                            transport.setParityRatio(mMinParity);
+                        }
+                        return transport;
+                    } catch (IOException e) {
+                        channel.close();
+                        throw e;
+                    }
+
+                default:
+                    break;
+            }
+            Socket socket = new Socket();
+            socket.connect(mAddress);
+            return new StreamTransport(socket);
+        }
+
+        private void stream(FrameTransport transport, ReconnectBackoff backoff)
+                throws IOException {
+            FrameDecoder decoder = new FrameDecoder(4096, new FrameDecoder.Listener() {
+                @Override
+                public void onJsonMessage(ByteBuffer message) {
+                    String text = new String(message.array(),
+                            message.arrayOffset() + message.position(), message.remaining());
+                    JSONObject json;
+                    try {
+                        json = new JSONObject(text);
+                    } catch (JSONException e) {
+                        json = new JSONObject();
+                    }
+                    if (mWelcome == null) {
+                        mWelcome = json;
+                    } else if (json.optInt(Constants.REQUEST_FIELD, -1)
+                            == Constants.REQUEST_OK) {
+                        mSender.onAcknowledged();
+                    }
+                }
+
+                @Override
+                public void onHeader(FrameHeader header) {
+                    if (header.getType() == Constants.REQUEST_OK) {
+                        mSender.onAcknowledged();
+                    }
+                }
+
+                @Override
+                public void onPayload(ByteBuffer chunk, int remaining) {
+                }
+            });
+            SendStats sendStats = new SendStats();
+            sendStats.setMetrics(mMetrics);
+            mSender = new FrameSender(transport, decoder, sendStats, mMetrics);
+            mSender.setReliable(mTransport != TRANSPORT_DATAGRAM);
+            mSender.setSession(mSession, mNextSequence);
+
+            while (mWelcome == null) {
+                if (transport.read(decoder, true) < 0) {
+                    throw new IOException("Connection closed before the welcome message");
+                }
+            }
+            JSONObject handshake = mSender.negotiate(mWelcome, mMaxWindow);
+            if (handshake != null) {
+                transport.write(null, ByteBuffer.wrap(handshake.toString().getBytes("UTF-8")));
+            }
+            if (backoff != null) {
+                backoff.reset();
+            }
+            if (mLostTime != 0) {
+                long now = System.nanoTime();
+                mMetrics.recordLatency(StreamMetrics.LATENCY_RECONNECT, now - mLostTime);
+                mMetrics.increment(StreamMetrics.COUNTER_RECONNECTS);
+                mLostTime = 0;
+            }
+
+            FrameBufferPool pool = new FrameBufferPool(mMaxWindow + 1, false,
+                    mTransport != TRANSPORT_STREAM);
+            long period = mFrameRate > 0 ? TimeUnit.SECONDS.toNanos(1) / mFrameRate : 0;
+            long next = System.nanoTime();
+            for (; !mStopped && (mFrameLimit == 0 || mFrames < mFrameLimit); mFrames++) {
+                if (period > 0) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                    next += period;
+                }
+
+                FrameBuffer frame = pool.acquire(mFrameSize);
+                ByteBuffer buffer = frame.getBuffer();
+                buffer.position(mFrameSize);
+                buffer.flip();
+                frame.getMetadata().set(mFrames, TimeUnit.MILLISECONDS.toNanos(10), 100, 0, 0,
+                        CaptureMetadata.TIMESTAMP_SOURCE_UNKNOWN);
+                frame.setImageInfo(1920, 1080, System.nanoTime()).setHasMetadata(true);
+                try {
+                    mSender.send(frame);
+                } finally {
+                    frame.release();
+                }
+                mFramesSent.incrementAndGet();
+            }
+
+            mSender.drain();
+            disconnect(transport);
+        }
+
+        private void disconnect(FrameTransport transport) throws IOException {
+            if (mSender.isBinaryHeader()) {
+                mSender.sendMessage(Constants.REQUEST_DISCONNECT);
+                return;
+            }
+            JSONObject json = new JSONObject();
+            try {
+                json.put(Constants.REQUEST_FIELD, Constants.REQUEST_DISCONNECT);
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+            transport.write(null, ByteBuffer.wrap(json.toString().getBytes("UTF-8")));
+        }
+    }
+}
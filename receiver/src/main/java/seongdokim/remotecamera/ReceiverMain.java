@@ -0,0 +1,195 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The command line of the reference receiver, printing the throughput once per second.
+ *
+ * <pre>
+ * receive [--port 1050] [--window 4] [--version 4] [--output DIR]
+ *     Receive from the app over TCP and UDP, writing the frames to DIR or discarding them.
+ * load --host HOST [--port 1050] [--senders 8] [--size 131072] [--fps 30] [--window 4]
+ *      [--frames 0] [--duration 0] [--channel | --datagram [--fec [RATIO]]] [--reconnect]
+ *     Emulate that many phones streaming to a receiver; an fps of 0 sends as fast as possible
+ *     and a duration of 0 runs until every sender sent its frames, or forever. Frames go over
+ *     socket streams, NIO channels or fragmented UDP, with parity packets adapted to the loss
+ *     rate or in a fixed RATIO to the fragments. Senders told to reconnect connect again
+ *     after a lost connection and carry their stream on.
+ * </pre>
+ */
+public class ReceiverMain {
+    private static final long REPORT_INTERVAL = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || !("receive".equals(args[0]) || "load".equals(args[0]))) {
+            usage();
+            return;
+        }
+        Map<String, String> options = parseOptions(args);
+        if (options == null) {
+            usage();
+            return;
+        }
+        if ("receive".equals(args[0])) {
+            receive(options);
+        } else {
+            load(options);
+        }
+    }
+
+    private static void usage() {
+        PrintStream out = System.err;
+        out.println("usage: receive [--port 1050] [--window 4] [--version "
+                + FrameHeader.VERSION + "] [--output DIR]");
+        out.println("       load --host HOST [--port 1050] [--senders 8] [--size 131072]"
+                + " [--fps 30] [--window 4] [--frames 0] [--duration 0]"
+                + " [--channel | --datagram [--fec [RATIO]]] [--reconnect]");
+    }
+
+    /**
+     * Read the options following the mode, {@code --name value} or {@code --name} alone for a
+     * switch.
+     *
+     * @return The values by name, or {@code null} if the options are malformed
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                return null;
+            }
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(name, args[++i]);
+            } else {
+                options.put(name, "");
+            }
+        }
+        return options;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int fallback) {
+        String value = options.get(name);
+        return value != null && !value.isEmpty() ? Integer.parseInt(value) : fallback;
+    }
+
+    private static void receive(Map<String, String> options)
+            throws IOException, InterruptedException {
+        String output = options.get("output");
+        File directory = output != null ? new File(output) : null;
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        final ReceiverServer server = new ReceiverServer(
+                intOption(options, "port", ReceiverServer.DEFAULT_PORT), "ReferenceReceiver",
+                intOption(options, "window", Constants.DEFAULT_STREAMING_WINDOW),
+                intOption(options, "version", FrameHeader.VERSION), directory);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.close();
+                } catch (InterruptedException e) {
+                    // Exiting anyway
+                }
+            }
+        });
+        server.start();
+        System.out.println("Listening on port " + server.getPort()
+                + (directory != null ? ", writing frames to " + directory : ""));
+
+        long frames = 0;
+        long bytes = 0;
+        JSONObject stats = null;
+        long last = System.nanoTime();
+        while (true) {
+            Thread.sleep(REPORT_INTERVAL);
+            long now = System.nanoTime();
+            long elapsed = Math.max(1, now - last);
+            long frameCount = server.getFrameCount();
+            long byteCount = server.getByteCount();
+            System.out.println(String.format(Locale.US,
+                    "%d connected  %d failed  %.1f frames/s  %.2f MiB/s  "
+                            + "%d datagrams lost, %d rebuilt",
+                    server.getConnectionCount(), server.getFailureCount(),
+                    (frameCount - frames) * 1e9 / elapsed,
+                    (byteCount - bytes) * 1e9 / elapsed / (1024 * 1024),
+                    server.getLostPacketCount(), server.getRecoveredPacketCount()));
+            JSONObject lastStats = server.getLastStats();
+            if (lastStats != null && lastStats != stats) {
+                System.out.println("  sender stats: " + lastStats);
+                stats = lastStats;
+            }
+            frames = frameCount;
+            bytes = byteCount;
+            last = now;
+        }
+    }
+
+    private static void load(Map<String, String> options) throws InterruptedException {
+        String host = options.get("host");
+        if (host == null || host.isEmpty()) {
+            usage();
+            return;
+        }
+        int size = intOption(options, "size", 131072);
+        int transport = LoadGenerator.TRANSPORT_STREAM;
+        if (options.containsKey("channel")) {
+            transport = LoadGenerator.TRANSPORT_CHANNEL;
+        } else if (options.containsKey("datagram")) {
+            transport = LoadGenerator.TRANSPORT_DATAGRAM;
+        }
+        LoadGenerator generator = new LoadGenerator(
+                new InetSocketAddress(host, intOption(options, "port",
+                        ReceiverServer.DEFAULT_PORT)),
+                intOption(options, "senders", 8), size, intOption(options, "fps", 30),
+                intOption(options, "window", Constants.DEFAULT_STREAMING_WINDOW),
+                transport);
+        String fec = options.get("fec");
+        if (fec != null && fec.isEmpty()) {
+            generator.setParity(DatagramTransport.DEFAULT_MIN_PARITY,
+                    DatagramTransport.DEFAULT_MAX_PARITY);
+        } else if (fec != null) {
+            double ratio = Double.parseDouble(fec);
+            generator.setParity(ratio, ratio);
+        }
+        if (options.containsKey("reconnect")) {
+            generator.setReconnect(ReconnectBackoff.DEFAULT_INITIAL_DELAY,
+                    ReconnectBackoff.DEFAULT_MAX_DELAY);
+        }
+        generator.setFrameLimit(intOption(options, "frames", 0));
+        long duration = TimeUnit.SECONDS.toNanos(intOption(options, "duration", 0));
+
+        StreamMetrics.Snapshot snapshot = new StreamMetrics.Snapshot();
+        long start = System.nanoTime();
+        generator.start();
+        while (!generator.join(REPORT_INTERVAL)) {
+            System.out.println(generator.getMetrics().snapshot(snapshot, System.nanoTime())
+                    .format());
+            if (duration > 0 && System.nanoTime() - start >= duration) {
+                generator.stop();
+            }
+        }
+        System.out.println(generator.getMetrics().snapshot(snapshot, System.nanoTime())
+                .format());
+
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        long sent = generator.getFramesSent();
+        System.out.println(String.format(Locale.US,
+                "%d frames in %.1f s: %.1f frames/s, %.2f MiB/s, %d senders failed", sent,
+                elapsed / 1e9, sent * 1e9 / elapsed, sent * size * 1e9 / elapsed / (1024 * 1024),
+                generator.getFailureCount()));
+        if (generator.getFailure() != null) {
+            System.out.println("First failure: " + generator.getFailure());
+        }
+    }
+}
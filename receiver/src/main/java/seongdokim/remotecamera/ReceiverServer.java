@@ -0,0 +1,379 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A reference implementation of the receiver the app streams to. It listens on a port, greets
+ * every sender with a welcome message advertising a window and a header version, acknowledges
+ * every frame once its payload is in, and writes the frames to a directory or discards them.
+ *
+ * <p>Each connection is served by a {@link ReceiverSession} on its own thread. The totals of all
+ * connections may be read from any thread to report the throughput.</p>
+ *
+ * <p>Senders over UDP are received on the same port number by a {@link DatagramReceiver}, on a
+ * thread of its own; their frames count in the same totals.</p>
+ *
+ * <p>A sender that names its stream in the handshake may carry it on over a new connection
+ * after losing one, with the sequence numbers following the last ones sent. The files of the
+ * stream then go on from where the lost connection left them, as long as the server has not
+ * been restarted in between.</p>
+ */
+public class ReceiverServer implements Runnable {
+    /**
+     * The port the app connects to unless told otherwise.
+     */
+    public static final int DEFAULT_PORT = 1050;
+
+    /**
+     * The number of ended streams remembered for a sender to carry on.
+     */
+    private static final int MAX_ENDED_STREAMS = 256;
+
+    /**
+     * What is left of a stream once its connection ended.
+     */
+    static class EndedStream {
+        final int id;
+        final int frameCount;
+
+        EndedStream(int id, int frameCount) {
+            this.id = id;
+            this.frameCount = frameCount;
+        }
+    }
+
+    private final ServerSocket mServer;
+    private final String mName;
+    private final int mWindow;
+    private final int mVersion;
+    private final File mDirectory;
+    private final Thread mThread;
+    private final DatagramReceiver mDatagramReceiver;
+    private final Thread mDatagramThread;
+    private final List<ReceiverSession> mSessions = new ArrayList<>();
+    private final AtomicInteger mNextSessionId = new AtomicInteger();
+
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mLostPackets = new AtomicLong();
+    private final AtomicLong mRecoveredPackets = new AtomicLong();
+    private final AtomicLong mResumes = new AtomicLong();
+
+    /**
+     * The streams whose connection ended, by session, the least recently ended first.
+     */
+    private final Map<String, EndedStream> mEndedStreams = new LinkedHashMap<String,
+            EndedStream>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, EndedStream> eldest) {
+            return size() > MAX_ENDED_STREAMS;
+        }
+    };
+
+    /**
+     * The sequence number a stream was last carried on from, -1 if none was.
+     */
+    private volatile int mResumeSequence = -1;
+
+    /**
+     * The sequence number of the last frame received from any sender, -1 before the first.
+     */
+    private volatile int mLastSequence = -1;
+
+    /**
+     * The last stats message received from any sender, {@code null} until one is received.
+     */
+    private volatile JSONObject mLastStats;
+
+    private volatile boolean mClosed = false;
+
+    /**
+     * Listen for senders, over TCP and UDP. Call {@link #start()} to accept them.
+     *
+     * @param port      The port to listen on, 0 for any free port
+     * @param name      The name of the receiver in the welcome message
+     * @param window    The number of frames in flight advertised in the welcome, 1 or less for
+     *                  the lockstep protocol
+     * @param version   The header version advertised in the welcome, 0 for JSON headers
+     * @param directory Where to write the frames, or {@code null} to discard them
+     * @throws IOException If the port cannot be bound for TCP or UDP
+     */
+    public ReceiverServer(int port, String name, int window, int version, File directory)
+            throws IOException {
+        mServer = new ServerSocket();
+        mServer.setReuseAddress(true);
+        mServer.bind(new InetSocketAddress(port));
+        DatagramSocket datagramSocket;
+        try {
+            datagramSocket = new DatagramSocket(mServer.getLocalPort());
+        } catch (IOException e) {
+            mServer.close();
+            throw e;
+        }
+        mName = name;
+        mWindow = window;
+        mVersion = Math.min(version, FrameHeader.VERSION);
+        mDirectory = directory;
+        mThread = new Thread(this, "ReceiverServer");
+        mDatagramReceiver = new DatagramReceiver(this, datagramSocket);
+        mDatagramThread = new Thread(mDatagramReceiver, "DatagramReceiver");
+    }
+
+    public void start() {
+        mThread.start();
+        mDatagramThread.start();
+    }
+
+    public int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        while (!mClosed) {
+            Socket socket;
+            try {
+                socket = mServer.accept();
+            } catch (IOException e) {
+                // Closed
+                break;
+            }
+            ReceiverSession session = new ReceiverSession(this, socket, nextSessionId());
+            synchronized (mSessions) {
+                if (mClosed) {
+                    session.close();
+                    break;
+                }
+                mSessions.add(session);
+            }
+            Thread thread = new Thread(session, "ReceiverSession-" + session.getId());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop accepting senders and drop every connection.
+     *
+     * @throws InterruptedException If interrupted while waiting for the accepting thread
+     */
+    public void close() throws InterruptedException {
+        mClosed = true;
+        try {
+            mServer.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+        mDatagramReceiver.close();
+        synchronized (mSessions) {
+            for (ReceiverSession session : mSessions) {
+                session.close();
+            }
+            mSessions.clear();
+        }
+        if (mThread.isAlive()) {
+            mThread.join();
+        }
+        if (mDatagramThread.isAlive()) {
+            mDatagramThread.join();
+        }
+    }
+
+    /**
+     * Number a new session, whatever its transport.
+     *
+     * @return The id of the session, which names its files
+     */
+    int nextSessionId() {
+        return mNextSessionId.getAndIncrement();
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    int getWindow() {
+        return mWindow;
+    }
+
+    int getVersion() {
+        return mVersion;
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    void onConnected() {
+        mConnections.incrementAndGet();
+    }
+
+    /**
+     * Take a session off the list once its connection is closed.
+     *
+     * @param session The closed session
+     * @param failure Why the connection was lost, or {@code null} if the sender closed it
+     */
+    void onDisconnected(ReceiverSession session, IOException failure) {
+        synchronized (mSessions) {
+            mSessions.remove(session);
+        }
+        mConnections.decrementAndGet();
+        if (failure != null) {
+            mFailures.incrementAndGet();
+        }
+    }
+
+    void onFrame(int sequence, int length) {
+        mLastSequence = sequence;
+        mFrames.incrementAndGet();
+        mBytes.addAndGet(length);
+    }
+
+    /**
+     * Look up the stream a handshake names.
+     *
+     * @param session  The name of the stream
+     * @param sequence The sequence number the sender starts from, 0 for a new stream
+     * @return What is left of the stream if its connection ended, {@code null} otherwise
+     */
+    EndedStream onHandshake(String session, int sequence) {
+        EndedStream stream;
+        synchronized (mEndedStreams) {
+            stream = mEndedStreams.remove(session);
+        }
+        if (stream != null || sequence > 0) {
+            mResumes.incrementAndGet();
+            mResumeSequence = sequence;
+        }
+        return stream;
+    }
+
+    /**
+     * Remember a stream whose connection ended, for the sender to carry it on.
+     *
+     * @param session    The name of the stream
+     * @param id         The id naming the files of the stream
+     * @param frameCount The number of frames of the stream received so far
+     */
+    void onStreamEnded(String session, int id, int frameCount) {
+        synchronized (mEndedStreams) {
+            mEndedStreams.put(session, new EndedStream(id, frameCount));
+        }
+    }
+
+    /**
+     * Count the datagrams lost by senders over UDP.
+     *
+     * @param lost      The number of fragments lost since the last call for the sender
+     * @param recovered How many of them were rebuilt from parity packets
+     */
+    void onPacketsLost(long lost, long recovered) {
+        mLostPackets.addAndGet(lost);
+        mRecoveredPackets.addAndGet(recovered);
+    }
+
+    void onStats(JSONObject stats) {
+        mLastStats = stats;
+    }
+
+    /**
+     * Get the number of frames received since the start.
+     *
+     * @return The number of frames of all connections
+     */
+    public long getFrameCount() {
+        return mFrames.get();
+    }
+
+    /**
+     * Get the number of payload bytes received since the start.
+     *
+     * @return The number of bytes of all connections, headers excluded
+     */
+    public long getByteCount() {
+        return mBytes.get();
+    }
+
+    /**
+     * Get the number of senders connected.
+     *
+     * @return The number of open connections
+     */
+    public long getConnectionCount() {
+        return mConnections.get();
+    }
+
+    /**
+     * Get the number of connections lost on an error rather than closed by the sender.
+     *
+     * @return The number of failed connections
+     */
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    /**
+     * Get the number of fragments lost by senders over UDP, as last reported to them.
+     *
+     * @return The number of fragments lost, rebuilt from parity or not
+     */
+    public long getLostPacketCount() {
+        return mLostPackets.get();
+    }
+
+    /**
+     * Get the number of lost fragments rebuilt from parity packets, as last reported.
+     *
+     * @return The number of fragments rebuilt
+     */
+    public long getRecoveredPacketCount() {
+        return mRecoveredPackets.get();
+    }
+
+    /**
+     * Get the number of streams carried on over a new connection.
+     *
+     * @return The number of connections that resumed a stream
+     */
+    public long getResumeCount() {
+        return mResumes.get();
+    }
+
+    /**
+     * Get the sequence number the last stream carried on went on from.
+     *
+     * @return The first sequence number of the last resumed connection, or -1 if none was
+     */
+    public int getResumeSequence() {
+        return mResumeSequence;
+    }
+
+    /**
+     * Get the sequence number of the last frame received.
+     *
+     * @return The sequence number of the last frame of any sender, or -1 before the first
+     */
+    public int getLastSequence() {
+        return mLastSequence;
+    }
+
+    public JSONObject getLastStats() {
+        return mLastStats;
+    }
+}
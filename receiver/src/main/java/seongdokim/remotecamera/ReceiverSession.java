@@ -0,0 +1,428 @@
+package seongdokim.remotecamera;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * One sender connected to a {@link ReceiverServer}: the receiving side of the protocol of
+ * {@code ConnectionThread} in the app.
+ *
+ * <ul>
+ * <li>The receiver speaks first, with a welcome message advertising its window and header
+ * version. A sender that supports them answers with a handshake; otherwise it speaks the
+ * lockstep protocol.</li>
+ * <li>In the lockstep protocol each frame is a JSON header, acknowledged, then the payload,
+ * acknowledged.</li>
+ * <li>In the pipelined protocol each frame is a header, JSON or binary as agreed, followed by
+ * its payload, and is acknowledged once the payload is in.</li>
+ * </ul>
+ *
+ * Payloads are streamed to disk as they arrive: a file per JPEG image, and a single elementary
+ * stream per connection for video. The capture metadata in front of a payload is left out.
+ * A connection carrying on a stream whose connection was lost goes on with its files.
+ *
+ * <p>A sender over UDP has no connection of its own: its {@link DatagramReceiver} feeds the
+ * session each message once it is put back together, with {@link #onMessage}. Frames lost on
+ * the way are not waited for, so they are not acknowledged either.</p>
+ */
+class ReceiverSession implements Runnable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ReceiverServer mServer;
+    private final Socket mSocket;
+
+    /**
+     * The id naming the files, that of the stream carried on if the connection resumes one
+     */
+    private int mId;
+
+    /**
+     * The name of the stream given in the handshake, {@code null} if none was
+     */
+    private String mSession;
+
+    /**
+     * Whether the sender waits for acknowledgements, false over UDP
+     */
+    private final boolean mReliable;
+    private final FrameDecoder mDecoder;
+    private OutputStream mOut;
+
+    /**
+     * Whether the sender sent a handshake, and acknowledges frames only once their payload is in
+     */
+    private boolean mPipelined = false;
+    private int mVersion = 0;
+    private boolean mDisconnected = false;
+
+    /**
+     * What the message whose payload is being received is about
+     */
+    private int mType;
+    private int mSequence;
+    private int mFlags;
+    private int mLength;
+    private int mFrameCount = 0;
+
+    /**
+     * The bytes of capture metadata still to skip at the start of the payload
+     */
+    private int mSkip;
+
+    /**
+     * Where the payload of the current frame goes, {@code null} when frames are discarded
+     */
+    private OutputStream mFile;
+    private OutputStream mVideoFile;
+
+    private final ByteArrayOutputStream mStats = new ByteArrayOutputStream();
+    private final FrameHeader mAckHeader = new FrameHeader();
+    private final byte[] mAck = new byte[FrameHeader.HEADER_LENGTH];
+
+    /**
+     * The error found by the listener of the decoder, thrown once the read returns
+     */
+    private IOException mFailure;
+
+    ReceiverSession(ReceiverServer server, Socket socket, int id) {
+        this(server, socket, null, id);
+    }
+
+    /**
+     * Create the session of a sender over UDP.
+     *
+     * @param out Sends each flushed message to the sender, as one run of datagrams
+     */
+    ReceiverSession(ReceiverServer server, OutputStream out, int id) {
+        this(server, null, out, id);
+    }
+
+    private ReceiverSession(ReceiverServer server, Socket socket, OutputStream out, int id) {
+        mServer = server;
+        mSocket = socket;
+        mOut = out;
+        mReliable = socket != null;
+        mId = id;
+        mDecoder = new FrameDecoder(BUFFER_SIZE, new FrameDecoder.Listener() {
+            @Override
+            public void onJsonMessage(ByteBuffer message) {
+                try {
+                    onJson(new JSONObject(new String(message.array(),
+                            message.arrayOffset() + message.position(), message.remaining(),
+                            "UTF-8")));
+                } catch (JSONException | IOException e) {
+                    fail(e);
+                }
+            }
+
+            @Override
+            public void onHeader(FrameHeader header) {
+                try {
+                    ReceiverSession.this.onHeader(header);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+
+            @Override
+            public void onPayload(ByteBuffer chunk, int remaining) {
+                try {
+                    ReceiverSession.this.onPayload(chunk, remaining);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    @Override
+    public void run() {
+        IOException failure = null;
+        mServer.onConnected();
+        try {
+            InputStream in = mSocket.getInputStream();
+            mOut = new BufferedOutputStream(mSocket.getOutputStream());
+            sendWelcome();
+            while (!mDisconnected && mDecoder.read(in) >= 0) {
+                if (mFailure != null) {
+                    throw mFailure;
+                }
+            }
+        } catch (IOException e) {
+            failure = mSocket.isClosed() ? null : e;
+        } finally {
+            close();
+            finish(failure);
+        }
+    }
+
+    /**
+     * Greet a sender over UDP, again each time it says hello until it answers.
+     *
+     * @throws IOException If the welcome cannot be sent
+     */
+    void start() throws IOException {
+        sendWelcome();
+    }
+
+    /**
+     * Take in one whole message of a sender over UDP.
+     *
+     * @param message The bytes of the message between position and limit
+     * @return False once the sender disconnected
+     * @throws IOException If the message breaks the protocol or its frame cannot be written
+     */
+    boolean onMessage(ByteBuffer message) throws IOException {
+        mDecoder.feed(message);
+        if (mFailure != null) {
+            throw mFailure;
+        }
+        return !mDisconnected;
+    }
+
+    /**
+     * Close the files of the session and tell the server it is over.
+     *
+     * @param failure Why the session ended, or {@code null} if the sender ended it
+     */
+    void finish(IOException failure) {
+        closeFiles();
+        if (mSession != null) {
+            mServer.onStreamEnded(mSession, mId, mFrameCount);
+        }
+        mServer.onDisconnected(this, failure);
+    }
+
+    /**
+     * Drop the connection, waking up the thread of the session.
+     */
+    void close() {
+        if (mSocket == null) {
+            return;
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    private void fail(Exception e) {
+        if (mFailure == null) {
+            mFailure = e instanceof IOException ? (IOException) e : new ProtocolException(
+                    e.getMessage());
+        }
+    }
+
+    private void sendWelcome() throws IOException {
+        JSONObject welcome = new JSONObject();
+        try {
+            welcome.put(Constants.REQUEST_WELCOME_NAME, mServer.getName());
+            if (mServer.getWindow() > 1) {
+                welcome.put(Constants.REQUEST_FIELD_WINDOW, mServer.getWindow());
+            }
+            if (mServer.getVersion() > 0) {
+                welcome.put(Constants.REQUEST_FIELD_VERSION, mServer.getVersion());
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        mOut.write(welcome.toString().getBytes("UTF-8"));
+        mOut.flush();
+    }
+
+    private void onJson(JSONObject json) throws JSONException, IOException {
+        switch (json.getInt(Constants.REQUEST_FIELD)) {
+            case Constants.REQUEST_HANDSHAKE:
+                mPipelined = true;
+                mVersion = Math.min(json.optInt(Constants.REQUEST_FIELD_VERSION, 0),
+                        mServer.getVersion());
+                mAckHeader.setVersion(Math.max(1, mVersion));
+                String session = json.optString(Constants.REQUEST_FIELD_SESSION, null);
+                if (session != null) {
+                    mSession = session;
+                    ReceiverServer.EndedStream stream = mServer.onHandshake(session,
+                            json.optInt(Constants.REQUEST_FIELD_SEQUENCE, 0));
+                    if (stream != null) {
+                        mId = stream.id;
+                        mFrameCount = stream.frameCount;
+                    }
+                }
+                break;
+
+            case Constants.REQUEST_STREAMING:
+                if (!mPipelined && mReliable) {
+                    // The lockstep protocol acknowledges the header too
+                    acknowledge();
+                }
+                startFrame(Constants.REQUEST_STREAMING, mFrameCount, 0,
+                        json.getInt(Constants.REQUEST_FIELD_BYTE));
+                mDecoder.expectPayload(mLength);
+                break;
+
+            case Constants.REQUEST_DISCONNECT:
+                mDisconnected = true;
+                break;
+
+            default:
+                // Keep-alive messages need no answer
+                break;
+        }
+    }
+
+    private void onHeader(FrameHeader header) throws IOException {
+        switch (header.getType()) {
+            case Constants.REQUEST_STREAMING:
+            case Constants.REQUEST_STATS:
+                startFrame(header.getType(), header.getSequence(), header.getFlags(),
+                        header.getPayloadLength());
+                break;
+
+            case Constants.REQUEST_DISCONNECT:
+                mDisconnected = true;
+                break;
+
+            default:
+                // Keep-alive messages need no answer
+                break;
+        }
+    }
+
+    /**
+     * Get ready for the payload of a message, finishing it at once if it has none.
+     */
+    private void startFrame(int type, int sequence, int flags, int length) throws IOException {
+        mType = type;
+        mSequence = sequence;
+        mFlags = flags;
+        mLength = length;
+        if (type == Constants.REQUEST_STATS) {
+            mStats.reset();
+        } else {
+            mSkip = (flags & FrameHeader.FLAG_METADATA) != 0 ? CaptureMetadata.LENGTH : 0;
+            mFile = openFrameFile();
+        }
+        if (length == 0) {
+            onPayloadDone();
+        }
+    }
+
+    private void onPayload(ByteBuffer chunk, int remaining) throws IOException {
+        if (mType == Constants.REQUEST_STATS) {
+            mStats.write(chunk.array(), chunk.arrayOffset() + chunk.position(),
+                    chunk.remaining());
+        } else {
+            int skip = Math.min(mSkip, chunk.remaining());
+            mSkip -= skip;
+            if (mFile != null) {
+                mFile.write(chunk.array(), chunk.arrayOffset() + chunk.position() + skip,
+                        chunk.remaining() - skip);
+            }
+        }
+        if (remaining == 0) {
+            onPayloadDone();
+        }
+    }
+
+    private void onPayloadDone() throws IOException {
+        if (mType == Constants.REQUEST_STATS) {
+            try {
+                mServer.onStats(new JSONObject(mStats.toString("UTF-8")));
+            } catch (JSONException e) {
+                throw new ProtocolException("Invalid stats message: " + e.getMessage());
+            }
+            return;
+        }
+
+        if (mFile != null && mFile != mVideoFile) {
+            mFile.close();
+        }
+        mFile = null;
+        mFrameCount++;
+        mServer.onFrame(mSequence, mLength);
+        acknowledge();
+    }
+
+    /**
+     * Open where the payload of the current frame goes: a new file for a JPEG image, or the
+     * stream of the connection for a video frame.
+     *
+     * @return The stream to write the payload to, or {@code null} to discard it
+     */
+    private OutputStream openFrameFile() throws IOException {
+        File directory = mServer.getDirectory();
+        if (directory == null) {
+            return null;
+        }
+        String name = "connection-" + mId;
+        if ((mFlags & FrameHeader.FLAG_STREAM_MASK) == FrameHeader.STREAM_OVERVIEW) {
+            name += "-overview";
+        }
+        switch (mFlags & FrameHeader.FLAG_CODEC_MASK) {
+            case FrameHeader.CODEC_H264:
+            case FrameHeader.CODEC_HEVC:
+                // Only the main stream may be video; its frames make one elementary stream
+                if (mVideoFile == null) {
+                    String extension = (mFlags & FrameHeader.FLAG_CODEC_MASK)
+                            == FrameHeader.CODEC_H264 ? ".h264" : ".hevc";
+                    mVideoFile = new BufferedOutputStream(new FileOutputStream(
+                            new File(directory, name + extension)), BUFFER_SIZE);
+                }
+                return mVideoFile;
+
+            default:
+                return new BufferedOutputStream(new FileOutputStream(new File(directory,
+                        String.format(Locale.US, "%s-%06d.jpg", name, mFrameCount))),
+                        BUFFER_SIZE);
+        }
+    }
+
+    private void closeFiles() {
+        try {
+            if (mFile != null && mFile != mVideoFile) {
+                mFile.close();
+            }
+            if (mVideoFile != null) {
+                mVideoFile.close();
+            }
+        } catch (IOException e) {
+            // Nothing more to write
+        }
+    }
+
+    private void acknowledge() throws IOException {
+        if (!mReliable) {
+            return;
+        }
+        if (mVersion >= 1) {
+            mAckHeader.set(Constants.REQUEST_OK, mSequence, System.nanoTime(), 0, 0, 0)
+                    .encode(ByteBuffer.wrap(mAck));
+            mOut.write(mAck);
+        } else {
+            JSONObject json = new JSONObject();
+            try {
+                json.put(Constants.REQUEST_FIELD, Constants.REQUEST_OK);
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+            mOut.write(json.toString().getBytes("UTF-8"));
+        }
+        mOut.flush();
+    }
+}
@@ -0,0 +1,203 @@
+package seongdokim.remotecamera;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loopback tests of {@link ReceiverServer} driven by a {@link LoadGenerator}.
+ */
+public class ReceiverServerTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ReceiverServer mServer;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    private LoadGenerator startServerAndLoad(int window, int version, File directory,
+                                             int senders, int frames, int size,
+                                             int transport) throws IOException {
+        return startServerAndLoad(window, version, directory, senders, frames, size, 0,
+                transport);
+    }
+
+    private LoadGenerator startServerAndLoad(int window, int version, File directory,
+                                             int senders, int frames, int size, int frameRate,
+                                             int transport) throws IOException {
+        mServer = new ReceiverServer(0, "test", window, version, directory);
+        mServer.start();
+        LoadGenerator generator = new LoadGenerator(
+                new InetSocketAddress("127.0.0.1", mServer.getPort()), senders, size, frameRate,
+                Constants.DEFAULT_STREAMING_WINDOW, transport);
+        generator.setFrameLimit(frames);
+        generator.start();
+        return generator;
+    }
+
+    /**
+     * Wait for the receiver to see every sender gone.
+     */
+    private void awaitDisconnected() throws InterruptedException {
+        for (int i = 0; i < 500 && mServer.getConnectionCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void pipelined_receivesEveryFrameOfEverySender() throws Exception {
+        LoadGenerator generator = startServerAndLoad(4, FrameHeader.VERSION, null, 4, 50,
+                20000, LoadGenerator.TRANSPORT_STREAM);
+        assertTrue(generator.join(10000));
+        assertNull(generator.getFailure());
+        awaitDisconnected();
+
+        assertEquals(200, generator.getFramesSent());
+        assertEquals(200, mServer.getFrameCount());
+        // Every payload is led by the capture metadata
+        assertEquals(200 * (20000 + CaptureMetadata.LENGTH), mServer.getByteCount());
+        assertEquals(0, mServer.getFailureCount());
+
+        StreamMetrics.Snapshot snapshot = generator.getMetrics().snapshot(
+                new StreamMetrics.Snapshot(), System.nanoTime());
+        assertEquals(200, snapshot.getLatency(StreamMetrics.LATENCY_ACK).getCount());
+    }
+
+    @Test
+    public void lockstep_receivesEveryFrameOverChannels() throws Exception {
+        LoadGenerator generator = startServerAndLoad(1, 0, null, 2, 10, 5000,
+                LoadGenerator.TRANSPORT_CHANNEL);
+        assertTrue(generator.join(10000));
+        assertNull(generator.getFailure());
+        awaitDisconnected();
+
+        assertEquals(20, mServer.getFrameCount());
+        assertEquals(20 * 5000, mServer.getByteCount());
+    }
+
+    @Test
+    public void output_writesOneFilePerImageWithoutMetadata() throws Exception {
+        File directory = mFolder.newFolder("frames");
+        LoadGenerator generator = startServerAndLoad(4, FrameHeader.VERSION, directory, 1, 3,
+                1000, LoadGenerator.TRANSPORT_STREAM);
+        assertTrue(generator.join(10000));
+        awaitDisconnected();
+
+        String[] names = directory.list();
+        Arrays.sort(names);
+        assertArrayEquals(new String[]{
+                "connection-0-000000.jpg", "connection-0-000001.jpg", "connection-0-000002.jpg"
+        }, names);
+        for (String name : names) {
+            assertEquals(1000, new File(directory, name).length());
+        }
+    }
+
+    @Test
+    public void stop_endsSendersWithoutALimit() throws Exception {
+        LoadGenerator generator = startServerAndLoad(4, FrameHeader.VERSION, null, 2, 0, 1000,
+                LoadGenerator.TRANSPORT_STREAM);
+        while (mServer.getFrameCount() < 20) {
+            Thread.sleep(10);
+        }
+        generator.stop();
+        assertNull(generator.getFailure());
+        awaitDisconnected();
+        assertEquals(generator.getFramesSent(), mServer.getFrameCount());
+    }
+
+    @Test
+    public void datagram_receivesFramesWithoutAcknowledging() throws Exception {
+        LoadGenerator generator = startServerAndLoad(4, FrameHeader.VERSION, null, 2, 50, 20000,
+                200, LoadGenerator.TRANSPORT_DATAGRAM);
+        assertTrue(generator.join(10000));
+        assertNull(generator.getFailure());
+        awaitDisconnected();
+
+        assertEquals(100, generator.getFramesSent());
+        // Loopback may still lose a datagram when the socket buffer overflows
+        long frames = mServer.getFrameCount();
+        assertTrue("Received " + frames, frames >= 90 && frames <= 100);
+        assertEquals(frames * (20000 + CaptureMetadata.LENGTH), mServer.getByteCount());
+        assertEquals(0, mServer.getFailureCount());
+
+        StreamMetrics.Snapshot snapshot = generator.getMetrics().snapshot(
+                new StreamMetrics.Snapshot(), System.nanoTime());
+        assertEquals(0, snapshot.getLatency(StreamMetrics.LATENCY_ACK).getCount());
+    }
+
+    @Test
+    public void datagramWithParity_receivesFrames() throws Exception {
+        mServer = new ReceiverServer(0, "test", 4, FrameHeader.VERSION, null);
+        mServer.start();
+        LoadGenerator generator = new LoadGenerator(
+                new InetSocketAddress("127.0.0.1", mServer.getPort()), 1, 20000, 100, 4,
+                LoadGenerator.TRANSPORT_DATAGRAM);
+        generator.setParity(DatagramTransport.DEFAULT_MIN_PARITY,
+                DatagramTransport.DEFAULT_MAX_PARITY);
+        generator.setFrameLimit(50);
+        generator.start();
+        assertTrue(generator.join(10000));
+        assertNull(generator.getFailure());
+        awaitDisconnected();
+
+        long frames = mServer.getFrameCount();
+        assertTrue("Received " + frames, frames >= 45 && frames <= 50);
+        assertEquals(frames * (20000 + CaptureMetadata.LENGTH), mServer.getByteCount());
+        assertTrue(mServer.getRecoveredPacketCount() <= mServer.getLostPacketCount());
+    }
+
+    @Test
+    public void reconnect_carriesTheStreamOnAcrossReceiverRestarts() throws Exception {
+        mServer = new ReceiverServer(0, "test", 4, FrameHeader.VERSION, null);
+        mServer.start();
+        int port = mServer.getPort();
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress("127.0.0.1", port), 1,
+                1000, 200, 4, LoadGenerator.TRANSPORT_STREAM);
+        generator.setReconnect(20, 200);
+        generator.start();
+
+        int lastSequence = -1;
+        for (int restart = 0; restart <= 3; restart++) {
+            for (int i = 0; i < 500 && mServer.getFrameCount() < 20; i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(mServer.getFrameCount() >= 20);
+            if (restart == 0) {
+                assertEquals(0, mServer.getResumeCount());
+            } else {
+                // The sender goes on from the frame after the last one it sent
+                assertEquals(1, mServer.getResumeCount());
+                assertTrue(mServer.getResumeSequence() > lastSequence);
+            }
+            if (restart == 3) {
+                break;
+            }
+            lastSequence = mServer.getLastSequence();
+            mServer.close();
+            mServer = new ReceiverServer(port, "test", 4, FrameHeader.VERSION, null);
+            mServer.start();
+        }
+        generator.stop();
+        assertNull(generator.getFailure());
+
+        StreamMetrics.Snapshot snapshot = generator.getMetrics().snapshot(
+                new StreamMetrics.Snapshot(), System.nanoTime());
+        assertEquals(3, snapshot.getCounter(StreamMetrics.COUNTER_RECONNECTS));
+        assertEquals(3, snapshot.getLatency(StreamMetrics.LATENCY_RECONNECT).getCount());
+    }
+}